@@ -0,0 +1,116 @@
+package com.javarush.telegram;
+
+import com.plexpt.chatgpt.entity.chat.ChatCompletion;
+import com.plexpt.chatgpt.entity.chat.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * История диалога с ChatGPT в зависимости от длины переписки (turns - пар "вопрос"-"ответ"):
+ * ChatHistory с бюджетом токенов по умолчанию против прежней истории без ограничений.
+ * Размер тела запроса и число токенов для каждой длины печатаются при подготовке, время - результаты бенчмарков.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ChatHistoryBenchmark {
+    private static final String PROMPT = "Ты - собеседник на свидании. Отвечай тепло, с юмором и коротко.";
+    private static final String ANSWER = "Отличный вопрос! Думаю, лучше всего начать с прогулки по парку, а потом зайти в уютное кафе. "
+            + "Так будет время поговорить, and nobody feels pressured. ";
+
+    @Param({"10", "50", "200"})
+    public int turns;
+
+    private List<String> questions;
+    private int next;
+    private ChatHistory budgeted;
+    private ChatHistory unbounded;
+    private ChatGPTTransport transport;
+
+    @Setup
+    public void fill() {
+        questions = SyntheticQuestions.generate(Math.max(turns, 64), 1);
+        budgeted = new ChatHistory();
+        unbounded = new ChatHistory(Integer.MAX_VALUE, Integer.MAX_VALUE); //как прежний messageHistory
+        budgeted.setPrompt(PROMPT);
+        unbounded.setPrompt(PROMPT);
+        for (int i = 0; i < turns; i++) {
+            addTurn(budgeted);
+            addTurn(unbounded);
+        }
+
+        ChatGPTTransport.Settings settings = new ChatGPTTransport.Settings();
+        settings.proxy = null;
+        transport = new ChatGPTTransport("benchmark-key", settings);
+
+        System.out.printf("%n%d turns: budgeted %d bytes, %d tokens; unbounded %d bytes, %d tokens%n", turns,
+                payload(budgeted).getBytes(StandardCharsets.UTF_8).length, TokenCounter.count(budgeted.getMessages()),
+                payload(unbounded).getBytes(StandardCharsets.UTF_8).length, TokenCounter.count(unbounded.getMessages()));
+    }
+
+    /**
+     * Новая пара "вопрос"-"ответ" в историю с бюджетом: подсчет токенов сообщений и обрезка старых
+     */
+    @Benchmark
+    public ChatHistory addTurn() {
+        addTurn(budgeted);
+        return budgeted;
+    }
+
+    /**
+     * Оценка токенов всей истории без ограничений - растет вместе с перепиской
+     */
+    @Benchmark
+    public int countUnbounded() {
+        return TokenCounter.count(unbounded.getMessages());
+    }
+
+    /**
+     * Тело запроса из истории с бюджетом
+     */
+    @Benchmark
+    public String payloadBudgeted() {
+        return payload(budgeted);
+    }
+
+    /**
+     * Тело запроса из истории без ограничений, как раньше на каждом шаге /date
+     */
+    @Benchmark
+    public String payloadUnbounded() {
+        return payload(unbounded);
+    }
+
+    private void addTurn(ChatHistory history) {
+        next = (next + 1) % questions.size();
+        history.add(Message.of(questions.get(next)));
+        history.add(Message.ofAssistant(ANSWER));
+        history.trimToBudget(); //у истории без ограничений ничего не удаляется
+    }
+
+    private String payload(ChatHistory history) {
+        ChatCompletion completion = ChatCompletion.builder()
+                .model(ChatCompletion.Model.GPT4Turbo.getName())
+                .messages(history.getMessages())
+                .maxTokens(3000)
+                .temperature(0.9)
+                .build();
+        return transport.toJson(completion, true);
+    }
+}
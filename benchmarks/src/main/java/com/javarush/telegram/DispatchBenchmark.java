@@ -0,0 +1,96 @@
+package com.javarush.telegram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Обработка одного обновления целиком: onUpdateReceived -> очередь чата -> сессия -> DialogEngine -> ответ в Telegram.
+ * Telegram - заглушка в этом же процессе без задержки, очередь отправки (лимиты Telegram) отключена.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+    private static final long FIRST_CHAT_ID = 2_000_000_000L;
+    private static final int CHATS = 1024;
+
+    private FakeTelegramServer telegram;
+    private TinderBoltApp bot;
+
+    /**
+     * Каждый поток бенчмарка перебирает чаты по кругу
+     */
+    @State(Scope.Thread)
+    public static class ChatCursor {
+        private int next;
+
+        long nextChatId() {
+            next = (next + 1) % CHATS;
+            return FIRST_CHAT_ID + next;
+        }
+    }
+
+    @Setup
+    public void start() throws IOException {
+        telegram = new FakeTelegramServer(0, 0, 0);
+        telegram.start();
+        System.setProperty(TinderBoltApp.TELEGRAM_URL_PROPERTY, telegram.getBaseUrl());
+        System.setProperty(TinderBoltApp.DATA_DIR_PROPERTY, Files.createTempDirectory("tinderbolt-jmh").toString());
+
+        bot = new TinderBoltApp();
+        bot.setSendQueue(null);
+        bot.showDefaultMainMenu();
+        for (int i = 0; i < CHATS; i++)
+            process(SyntheticUpdates.command(FIRST_CHAT_ID + i, "/message"));
+    }
+
+    @TearDown
+    public void stop() {
+        bot.onClosing();
+        telegram.stop();
+    }
+
+    /**
+     * Сообщение в режиме MESSAGE: только сессия и запись в переписку, без запросов к Telegram
+     */
+    @Benchmark
+    public void transcriptMessage(ChatCursor cursor) {
+        process(SyntheticUpdates.text(cursor.nextChatId(), "Привет! Как прошел твой день?"));
+    }
+
+    /**
+     * Команда /date: картинка и сообщение с пятью кнопками
+     */
+    @Benchmark
+    public void dateCommand(ChatCursor cursor) {
+        process(SyntheticUpdates.command(cursor.nextChatId(), "/date"));
+    }
+
+    /**
+     * Передает обновление боту и ждет, пока очередь его чата дойдет до конца обработки
+     */
+    private void process(Update update) {
+        bot.onUpdateReceived(update);
+        CompletableFuture<Void> processed = new CompletableFuture<>();
+        bot.runInUpdateContext(update, () -> processed.complete(null));
+        processed.join();
+    }
+}
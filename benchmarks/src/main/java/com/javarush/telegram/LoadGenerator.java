@@ -0,0 +1,237 @@
+package com.javarush.telegram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Нагрузочный тест: тысячи выдуманных пользователей проходят /start -> /profile (анкета и ответ ChatGPT) -> /date (выбор
+ * и сообщение собеседнику) через настоящий TinderBoltApp, а Telegram и OpenAI заменены заглушками в этом же процессе.
+ * Обновления подаются в bot.onUpdateReceived() - как их подает long polling или webhook.
+ *
+ * Шаг считается выполненным, когда бот обработал обновление, а для шагов с ChatGPT - когда в чат пришел итоговый ответ.
+ * Результат (пропускная способность, p50/p99/p999 по шагам, выделение памяти, GC) - JSON в stdout или в файл -out.
+ *
+ * Параметры (все необязательные): -users 1000 -concurrency 200 -telegram-latency 30 -telegram-429 0.0
+ * -openai-latency 500 -openai-chunk 20 -openai-429 0.0 -global-rate 30 -chat-rate 1 -chat-burst 3 -timeout 120000 -out file.json
+ */
+public class LoadGenerator {
+    private static final long FIRST_CHAT_ID = 1_000_000_000L;
+    private static final String[] OCCUPATIONS = {"программист", "врач", "дизайнер", "учитель", "бариста"};
+    private static final String[] HOBBIES = {"бег", "шахматы", "горы", "кино", "йога"};
+
+    private final Map<String, String> options;
+    private final Map<String, LatencyHistogram> steps = new LinkedHashMap<>();
+    private final LatencyHistogram allSteps = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final long timeoutMillis;
+
+    private FakeTelegramServer telegram;
+    private FakeOpenAiServer openAi;
+    private TinderBoltApp bot;
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.timeoutMillis = getLong("timeout", 120_000);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2)
+            options.put(args[i].replaceFirst("^-+", ""), args[i + 1]);
+
+        LoadGenerator generator = new LoadGenerator(options);
+        String result = generator.run();
+        String out = options.get("out");
+        if (out != null)
+            Files.writeString(Path.of(out), result);
+        else
+            System.out.println(result);
+        System.exit(0); //потоки бота (очереди, таймеры) не daemon
+    }
+
+    /**
+     * Запускает заглушки и бота, прогоняет всех пользователей и возвращает результат в JSON
+     */
+    public String run() throws Exception {
+        int users = (int) getLong("users", 1000);
+        int concurrency = (int) getLong("concurrency", 200);
+
+        telegram = new FakeTelegramServer(0, getLong("telegram-latency", 30), getDouble("telegram-429", 0));
+        telegram.start();
+        openAi = new FakeOpenAiServer(0, getLong("openai-latency", 500), getLong("openai-chunk", 20), getDouble("openai-429", 0));
+        openAi.start();
+        startBot();
+
+        for (String step : List.of("start", "profile", "profile_answer", "profile_result", "date", "date_choice", "date_message"))
+            steps.put(step, new LatencyHistogram());
+
+        long allocatedBefore = allocatedBytes();
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long startNanos = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < users; i++) {
+            int user = i;
+            executor.execute(() -> runUser(user));
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode result = mapper.createObjectNode();
+        result.put("users", users);
+        result.put("concurrency", concurrency);
+        result.put("durationSeconds", seconds);
+        result.put("steps", allSteps.getCount());
+        result.put("errors", errors.sum());
+        result.put("throughputStepsPerSecond", allSteps.getCount() / seconds);
+        result.put("throughputUsersPerSecond", (users - errors.sum()) / seconds);
+        latency(result.putObject("latency"), allSteps);
+        ObjectNode stepLatency = result.putObject("stepLatency");
+        for (Map.Entry<String, LatencyHistogram> step : steps.entrySet())
+            latency(stepLatency.putObject(step.getKey()), step.getValue());
+
+        //выделение памяти считается по живым потокам: то, что выделили уже завершившиеся потоки, не учитывается
+        result.put("allocatedBytesPerSecond", allocated / seconds);
+        result.put("allocatedBytesPerStep", allSteps.getCount() > 0 ? allocated / allSteps.getCount() : 0);
+        result.put("gcCount", gcCount() - gcCountBefore);
+        result.put("gcMillis", gcMillis() - gcMillisBefore);
+
+        ObjectNode fakes = result.putObject("fakes");
+        fakes.put("telegramCalls", telegram.getCallCount());
+        fakes.put("telegram429", telegram.getTooManyRequestsCount());
+        fakes.put("openAiRequests", openAi.getRequestCount());
+        fakes.put("openAi429", openAi.getTooManyRequestsCount());
+
+        bot.onClosing();
+        telegram.stop();
+        openAi.stop();
+        return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(result);
+    }
+
+    private void startBot() throws IOException {
+        //свойства читаются при загрузке класса TinderBoltApp, поэтому задаются до его первого использования
+        System.setProperty(TinderBoltApp.TELEGRAM_URL_PROPERTY, telegram.getBaseUrl());
+        System.setProperty(TinderBoltApp.OPENAI_URL_PROPERTY, openAi.getBaseUrl());
+        System.setProperty(TinderBoltApp.DATA_DIR_PROPERTY, Files.createTempDirectory("tinderbolt-load").toString());
+
+        String quotaPrefix = TinderBoltApp.QUOTA_EXCEEDED_MESSAGE.substring(0, TinderBoltApp.QUOTA_EXCEEDED_MESSAGE.indexOf('%'));
+        telegram.setAnswerFilter(text -> text.equals(FakeOpenAiServer.ANSWER)
+                || text.equals(ChatGPTService.FALLBACK_ANSWER)
+                || text.startsWith(quotaPrefix));
+
+        bot = new TinderBoltApp();
+        bot.showDefaultMainMenu(); //как при обычном запуске (TinderBoltApp.main)
+        if (options.containsKey("global-rate") || options.containsKey("chat-rate") || options.containsKey("chat-burst")) {
+            bot.setSendQueue(new TelegramSendQueue(getDouble("global-rate", TelegramSendQueue.GLOBAL_PER_SECOND),
+                    getDouble("chat-rate", TelegramSendQueue.CHAT_PER_SECOND), getDouble("chat-burst", TelegramSendQueue.CHAT_BURST)));
+        }
+    }
+
+    /**
+     * Один пользователь проходит весь сценарий. После ошибки (таймаута) его сценарий прерывается
+     */
+    private void runUser(int user) {
+        long chatId = FIRST_CHAT_ID + user;
+        try {
+            step("start", () -> SyntheticUpdates.command(chatId, "/start"), chatId, false);
+            step("profile", () -> SyntheticUpdates.command(chatId, "/profile"), chatId, false);
+            step("profile_answer", () -> SyntheticUpdates.text(chatId, String.valueOf(18 + user % 40)), chatId, false);
+            step("profile_answer", () -> SyntheticUpdates.text(chatId, OCCUPATIONS[user % OCCUPATIONS.length]), chatId, false);
+            step("profile_answer", () -> SyntheticUpdates.text(chatId, HOBBIES[user % HOBBIES.length]), chatId, false);
+            step("profile_answer", () -> SyntheticUpdates.text(chatId, "опоздания"), chatId, false);
+            step("profile_result", () -> SyntheticUpdates.text(chatId, "серьезные отношения"), chatId, true);
+            step("date", () -> SyntheticUpdates.command(chatId, "/date"), chatId, false);
+            step("date_choice", () -> SyntheticUpdates.button(chatId, "date_grande"), chatId, false);
+            step("date_message", () -> SyntheticUpdates.text(chatId, "Привет! Пойдем в кино?"), chatId, true);
+        } catch (Exception e) {
+            errors.increment();
+            System.out.println("User " + user + " failed: " + e);
+        }
+    }
+
+    /**
+     * Отправляет боту обновление и ждет, пока оно обработано (и, если answer, пока в чат придет ответ ChatGPT)
+     */
+    private void step(String name, Supplier<Update> updateFactory, long chatId, boolean answer) throws Exception {
+        Update update = updateFactory.get();
+        int answers = telegram.getAnswerCount(chatId);
+        long startNanos = System.nanoTime();
+
+        bot.onUpdateReceived(update);
+        CompletableFuture<Void> processed = new CompletableFuture<>();
+        bot.runInUpdateContext(update, () -> processed.complete(null)); //очередь чата обрабатывается по порядку
+        processed.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (answer && !telegram.awaitAnswers(chatId, answers + 1, timeoutMillis))
+            throw new TimeoutException("No ChatGPT answer on step " + name);
+
+        long nanos = System.nanoTime() - startNanos;
+        steps.get(name).record(nanos);
+        allSteps.record(nanos);
+    }
+
+    private static void latency(ObjectNode node, LatencyHistogram histogram) {
+        long count = histogram.getCount();
+        node.put("count", count);
+        node.put("meanMillis", count > 0 ? histogram.getSumSeconds() * 1000 / count : 0);
+        node.put("p50Millis", histogram.getQuantileSeconds(0.5) * 1000);
+        node.put("p99Millis", histogram.getQuantileSeconds(0.99) * 1000);
+        node.put("p999Millis", histogram.getQuantileSeconds(0.999) * 1000);
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0)
+                total += bytes;
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    private long getLong(String name, long defaultValue) {
+        String value = options.get(name);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    private double getDouble(String name, double defaultValue) {
+        String value = options.get(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+}
@@ -0,0 +1,77 @@
+package com.javarush.telegram;
+
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Сколько памяти занимают сессии: разница занятой кучи после полной сборки мусора до и после заполнения.
+ *      sessions - типичные сессии (SessionLogBenchmark.sampleSession) в SessionStore, как после перезапуска бота;
+ *      sessionLog - индекс (keydir) журнала с этими сессиями сразу после открытия, сами сессии остаются на диске;
+ *      transcripts - переписки режима MESSAGE, заполненные до лимита сообщениями по 600 символов (TranscriptBenchmark.message).
+ * JMH (-prof gc) показывает только выделения, поэтому удерживаемая память считается здесь.
+ *
+ * Параметры (все необязательные): -sessions 100000 -chats 10000
+ */
+public class MemoryFootprint {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2)
+            options.put(args[i].replaceFirst("^-+", ""), args[i + 1]);
+
+        int sessionCount = Integer.parseInt(options.getOrDefault("sessions", "100000"));
+        int chatCount = Integer.parseInt(options.getOrDefault("chats", "10000"));
+
+        byte[] data = SessionCodec.encode(SessionLogBenchmark.sampleSession(SessionLogBenchmark.FIRST_CHAT_ID));
+
+        long before = usedHeap();
+        SessionStore sessions = new SessionStore(SessionStore.DEFAULT_IDLE_TTL, sessionCount);
+        for (int i = 0; i < sessionCount; i++)
+            sessions.attach(SessionLogBenchmark.FIRST_CHAT_ID + i, data);
+        report("sessions", sessions.size(), usedHeap() - before);
+        Reference.reachabilityFence(sessions); //иначе JIT отдаст хранилище сборщику мусора еще до замера
+
+        Path dir = Files.createTempDirectory("tinderbolt-memory");
+        SessionLog writer = new SessionLog(dir, SessionLog.DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE, false);
+        for (int i = 0; i < sessionCount; i++)
+            writer.append(SessionLogBenchmark.FIRST_CHAT_ID + i, data);
+        writer.close();
+
+        before = usedHeap();
+        SessionLog log = new SessionLog(dir);
+        report("sessionLog", log.size(), usedHeap() - before);
+        log.close();
+
+        Random random = new Random(1);
+        String[] messages = new String[1024];
+        for (int i = 0; i < messages.length; i++)
+            messages[i] = TranscriptBenchmark.message(random, 600);
+
+        before = usedHeap();
+        ChatTranscript[] transcripts = new ChatTranscript[chatCount];
+        for (int i = 0; i < chatCount; i++) {
+            transcripts[i] = new ChatTranscript();
+            for (int j = 0; j < ChatTranscript.DEFAULT_MAX_ENTRIES * 2; j++)
+                transcripts[i].add(messages[random.nextInt(messages.length)]);
+        }
+        report("transcripts", chatCount, usedHeap() - before);
+        Reference.reachabilityFence(transcripts);
+    }
+
+    private static void report(String name, int count, long bytes) {
+        System.out.printf("%s: %d, %.1f MB, %d bytes each%n", name, count, bytes / 1048576.0, bytes / Math.max(count, 1));
+    }
+
+    static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
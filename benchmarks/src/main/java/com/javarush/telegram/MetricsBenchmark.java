@@ -0,0 +1,136 @@
+package com.javarush.telegram;
+
+import jdk.jfr.Recording;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Во что обходятся метрики на пути обновления и запроса к ChatGPT: запись в гистограмму (в одном потоке и из многих потоков
+ * в одну гистограмму), span обработки обновления с записью JFR и без нее, квантиль и ответ /metrics.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    private static final int SAMPLES = 1024;
+
+    private final LatencyHistogram shared = new LatencyHistogram();
+    private final LatencyHistogram filled = new LatencyHistogram();
+
+    /**
+     * Длительности с логнормальным распределением (медиана ~2 мс), свои у каждого потока
+     */
+    @State(Scope.Thread)
+    public static class Samples {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final long[] nanos = new long[SAMPLES];
+        private int next;
+
+        @Setup
+        public void generate() {
+            Random random = new Random();
+            for (int i = 0; i < SAMPLES; i++)
+                nanos[i] = (long) (Math.exp(random.nextGaussian()) * 2_000_000);
+        }
+
+        long nextNanos() {
+            next = (next + 1) % SAMPLES;
+            return nanos[next];
+        }
+    }
+
+    /**
+     * off - JFR не записывает, on - идет запись с событием tinderbolt.Update
+     */
+    @State(Scope.Benchmark)
+    public static class Jfr {
+        @Param({"off", "on"})
+        public String jfr;
+
+        private Recording recording;
+
+        @Setup
+        public void start() {
+            if (jfr.equals("on")) {
+                recording = new Recording();
+                recording.enable("tinderbolt.Update");
+                recording.setToDisk(false);
+                recording.start();
+            }
+        }
+
+        @TearDown
+        public void stop() {
+            if (recording != null)
+                recording.close();
+        }
+    }
+
+    @Setup
+    public void prepare() {
+        Samples samples = new Samples();
+        samples.generate();
+        for (int i = 0; i < 100_000; i++)
+            filled.record(samples.nextNanos());
+        BotMetrics.startUpdate(0).end(DialogMode.GPT); //гистограммы BotMetrics уже зарегистрированы для scrape()
+    }
+
+    /**
+     * Запись в гистограмму, которой пользуется только этот поток
+     */
+    @Benchmark
+    public void record(Samples samples) {
+        samples.histogram.record(samples.nextNanos());
+    }
+
+    /**
+     * Запись в одну гистограмму из 8 потоков - как гистограмма режима при одновременных обновлениях
+     */
+    @Benchmark
+    @Threads(8)
+    public void recordShared(Samples samples) {
+        shared.record(samples.nextNanos());
+    }
+
+    /**
+     * Span обработки обновления: BotMetrics.startUpdate() ... end()
+     */
+    @Benchmark
+    public void updateSpan(Jfr jfr) {
+        BotMetrics.startUpdate(1).end(DialogMode.GPT);
+    }
+
+    /**
+     * p99 по гистограмме со 100 000 записей
+     */
+    @Benchmark
+    public double quantile() {
+        return filled.getQuantileSeconds(0.99);
+    }
+
+    /**
+     * Ответ /metrics со всеми метриками бота в формате Prometheus
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String scrape() {
+        return Metrics.getInstance().scrape();
+    }
+}
@@ -0,0 +1,137 @@
+package com.javarush.telegram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Подготовка сообщений к отправке: проверка и экранирование разметки, клавиатура, анкета для ChatGPT.
+ * Методы *Before повторяют прежний код MultiSessionTelegramBot: текст и кнопки через getBytes()/new String(),
+ * подсчет "_" через chars().filter(). Разницу в выделениях памяти видно с профилировщиком:
+ *      java -jar target/benchmarks.jar RenderingBenchmark -prof gc
+ * (gc.alloc.rate.norm - байт на операцию)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderingBenchmark {
+    private static final List<String> BUTTONS = List.of(
+            "Ариана Гранде", "date_grande",
+            "Марго Робби", "date_robbie",
+            "Зендея", "date_zendaya",
+            "Райн Гослинг", "date_gosling",
+            "Том Харди", "date_hardy");
+
+    private String staticText;
+    private String answer;
+    private UserInfo profile;
+
+    @Setup
+    public void prepare() {
+        staticText = ResourceRegistry.getInstance().getMessage("main");
+        answer = "Привет! Меня зовут *Анна*, я люблю горы, кино и [хорошие] книги. Мой ник - anna_2000. ".repeat(8);
+
+        profile = new UserInfo();
+        profile.name = "Анна";
+        profile.age = "27";
+        profile.occupation = "дизайнер";
+        profile.hobby = "горы, кино";
+        profile.annoys = "опоздания";
+        profile.goals = "серьезные отношения";
+    }
+
+    /**
+     * Как sendTextMessage() со статическим текстом: проверка разметки и команда SendMessage
+     */
+    @Benchmark
+    public SendMessage prepareTextMessage() {
+        SendMessage message = new SendMessage();
+        message.setText(MessageRenderer.isValidMarkdown(staticText) ? staticText : MessageRenderer.escapeHtml(staticText));
+        message.setParseMode("markdown");
+        message.setChatId(42L);
+        return message;
+    }
+
+    /**
+     * Прежний sendTextMessage(): подсчет "_" через chars().filter() и копия текста через getBytes()/new String()
+     */
+    @Benchmark
+    public SendMessage prepareTextMessageBefore() {
+        SendMessage message = new SendMessage();
+        boolean valid = staticText.chars().filter(c -> c == '_').count() % 2 == 0;
+        message.setText(new String(staticText.getBytes(), StandardCharsets.UTF_8));
+        message.setParseMode(valid ? "markdown" : "html");
+        message.setChatId(42L);
+        return message;
+    }
+
+    /**
+     * Как sendTextButtonsMessage(): то же плюс клавиатура
+     */
+    @Benchmark
+    public SendMessage prepareButtonsMessage() {
+        SendMessage message = prepareTextMessage();
+        message.setReplyMarkup(MessageRenderer.keyboard(BUTTONS));
+        return message;
+    }
+
+    @Benchmark
+    public boolean validateAnswer() {
+        return MessageRenderer.isValidMarkdown(answer);
+    }
+
+    /**
+     * Прежняя проверка разметки: поток символов на каждый вызов
+     */
+    @Benchmark
+    public boolean validateAnswerBefore() {
+        return answer.chars().filter(c -> c == '_').count() % 2 == 0;
+    }
+
+    /**
+     * Прежний sendTextButtonsMessage(): клавиатура собирается заново, текст каждой кнопки - через getBytes()/new String()
+     */
+    @Benchmark
+    public SendMessage prepareButtonsMessageBefore() {
+        SendMessage message = prepareTextMessageBefore();
+        List<List<InlineKeyboardButton>> keyboard = new ArrayList<>();
+        for (int i = 0; i < BUTTONS.size(); i += 2) {
+            InlineKeyboardButton button = new InlineKeyboardButton();
+            button.setText(new String(BUTTONS.get(i).getBytes(), StandardCharsets.UTF_8));
+            button.setCallbackData(BUTTONS.get(i + 1));
+            keyboard.add(List.of(button));
+        }
+        InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
+        markup.setKeyboard(keyboard);
+        message.setReplyMarkup(markup);
+        return message;
+    }
+
+    @Benchmark
+    public String escapeAnswer() {
+        return MessageRenderer.escapeMarkdown(answer);
+    }
+
+    @Benchmark
+    public String userInfoToString() {
+        return profile.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package com.javarush.telegram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Загрузка ресурсов: перечитывание всех prompt-ов, сообщений и картинок (старт бота и правка файлов на лету)
+ * и чтение одного ресурса при обработке обновления.
+ * Методы classpath* повторяют прежнюю загрузку - чтение ресурса из classpath на каждый вызов - для сравнения.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResourceBenchmark {
+    private ResourceRegistry registry;
+
+    @Setup
+    public void prepare() {
+        registry = ResourceRegistry.getInstance();
+    }
+
+    @Benchmark
+    public ResourceRegistry reload() {
+        registry.reload();
+        return registry;
+    }
+
+    @Benchmark
+    public String loadMessage() {
+        return MultiSessionTelegramBot.loadMessage("main");
+    }
+
+    @Benchmark
+    public String loadPrompt() {
+        return MultiSessionTelegramBot.loadPrompt("profile");
+    }
+
+    /**
+     * Картинка целиком, как ее читает загрузка в Telegram
+     */
+    @Benchmark
+    public byte[] loadImage() throws IOException {
+        try (InputStream image = MultiSessionTelegramBot.loadImage("date")) {
+            return image.readAllBytes();
+        }
+    }
+
+    /**
+     * Прежний loadMessage(): ресурс читается из classpath и декодируется при каждом вызове
+     */
+    @Benchmark
+    public String classpathMessage() throws IOException {
+        try (InputStream is = ClassLoader.getSystemResourceAsStream("messages/main.txt")) {
+            return new String(is.readAllBytes());
+        }
+    }
+
+    /**
+     * Прежний loadPrompt()
+     */
+    @Benchmark
+    public String classpathPrompt() throws IOException {
+        try (InputStream is = ClassLoader.getSystemResourceAsStream("prompts/profile.txt")) {
+            return new String(is.readAllBytes());
+        }
+    }
+
+    /**
+     * Прежний loadImage(): поток из classpath, который затем читается целиком
+     */
+    @Benchmark
+    public byte[] classpathImage() throws IOException {
+        try (InputStream is = ClassLoader.getSystemResourceAsStream("images/date.jpg")) {
+            return is.readAllBytes();
+        }
+    }
+}
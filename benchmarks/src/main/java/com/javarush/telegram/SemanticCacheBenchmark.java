@@ -0,0 +1,88 @@
+package com.javarush.telegram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поиск в SemanticCache с entries записями: embed() вопроса, поиск готового вектора (попадание и промах)
+ * и весь путь вопроса /gpt до ответа из кеша. Качество (recall) на тех же данных считает SemanticCacheRecall.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Benchmark)
+public class SemanticCacheBenchmark {
+    private static final String SCOPE = "gpt";
+    private static final int QUERIES = 1024;
+
+    @Param({"10000", "100000"})
+    public int entries;
+
+    private SemanticCache cache;
+    private String[] paraphrases;
+    private float[][] paraphraseVectors;
+    private float[][] unseenVectors;
+    private int next;
+
+    @Setup
+    public void prepare() {
+        HashingEmbedder embedder = new HashingEmbedder();
+        cache = new SemanticCache(embedder, entries, 0.93);
+        List<String> questions = SyntheticQuestions.generate(entries + QUERIES, 1);
+        for (int i = 0; i < entries; i++)
+            cache.put(SCOPE, questions.get(i), "answer-" + i);
+
+        Random random = new Random(2);
+        paraphrases = new String[QUERIES];
+        paraphraseVectors = new float[QUERIES][];
+        unseenVectors = new float[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            paraphrases[i] = SyntheticQuestions.paraphrase(questions.get(random.nextInt(entries)), random);
+            paraphraseVectors[i] = embedder.embed(paraphrases[i]);
+            unseenVectors[i] = embedder.embed(questions.get(entries + i));
+        }
+    }
+
+    @Benchmark
+    public float[] embed() {
+        return cache.embed(paraphrases[nextQuery()]);
+    }
+
+    @Benchmark
+    public String lookupParaphrase() {
+        return cache.get(SCOPE, paraphraseVectors[nextQuery()]);
+    }
+
+    @Benchmark
+    public String lookupUnseen() {
+        return cache.get(SCOPE, unseenVectors[nextQuery()]);
+    }
+
+    /**
+     * Как ChatGPTService.sendQuestionAsync() при попадании: embed() и поиск
+     */
+    @Benchmark
+    public String question() {
+        return cache.get(SCOPE, paraphrases[nextQuery()]);
+    }
+
+    private int nextQuery() {
+        next = (next + 1) & (QUERIES - 1);
+        return next;
+    }
+}
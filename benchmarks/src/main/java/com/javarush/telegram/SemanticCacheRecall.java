@@ -0,0 +1,133 @@
+package com.javarush.telegram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Качество и скорость SemanticCache на большом кеше: в кеш кладутся entries выдуманных вопросов,
+ * затем задаются перефразировки queries из них и queries новых вопросов, которых в кеше нет.
+ * Для каждого порога сходства считается:
+ *      recall - доля перефразировок, получивших ответ на свой исходный вопрос;
+ *      wrongAnswers - доля перефразировок, получивших ответ на другой вопрос;
+ *      falseHits - доля новых вопросов, получивших чужой ответ вместо запроса к ChatGPT.
+ * Задержка поиска (без embed()) и embed() - p50/p99 в микросекундах.
+ * Индекс плоский, поэтому ближайший сосед находится всегда точно: recall зависит только от embedder-а и порога.
+ *
+ * Параметры (все необязательные): -entries 100000 -queries 1000 -dimension 256 -thresholds 0.75,0.8,0.85,0.9,0.95 -out file.json
+ */
+public class SemanticCacheRecall {
+    private static final String SCOPE = "gpt";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2)
+            options.put(args[i].replaceFirst("^-+", ""), args[i + 1]);
+
+        int entries = Integer.parseInt(options.getOrDefault("entries", "100000"));
+        int queries = Integer.parseInt(options.getOrDefault("queries", "1000"));
+        HashingEmbedder embedder = new HashingEmbedder(Integer.parseInt(options.getOrDefault("dimension", "256")));
+
+        //первые entries вопросов идут в кеш, остальные queries - новые вопросы
+        List<String> questions = SyntheticQuestions.generate(entries + queries, 1);
+        Random random = new Random(2);
+        int[] sources = new int[queries];
+        float[][] paraphrases = new float[queries][];
+        float[][] unseen = new float[queries][];
+        LatencyHistogram embedLatency = new LatencyHistogram();
+        for (int i = 0; i < queries; i++) {
+            sources[i] = random.nextInt(entries);
+            String paraphrase = SyntheticQuestions.paraphrase(questions.get(sources[i]), random);
+            long start = System.nanoTime();
+            paraphrases[i] = embedder.embed(paraphrase);
+            embedLatency.record(System.nanoTime() - start);
+            unseen[i] = embedder.embed(questions.get(entries + i));
+        }
+        float[][] vectors = new float[entries][];
+        for (int i = 0; i < entries; i++)
+            vectors[i] = embedder.embed(questions.get(i));
+
+        //порог -1: кеш всегда возвращает ближайший вопрос, а пороги применяются к его сходству - один просмотр на все пороги
+        SemanticCache cache = new SemanticCache(embedder, entries, -1);
+        for (int i = 0; i < entries; i++)
+            cache.put(SCOPE, vectors[i], String.valueOf(i));
+
+        int[] nearestParaphrase = new int[queries];
+        int[] nearestUnseen = new int[queries];
+        float[] paraphraseSimilarity = new float[queries];
+        float[] unseenSimilarity = new float[queries];
+        LatencyHistogram lookupLatency = new LatencyHistogram();
+        for (int i = 0; i < queries; i++) {
+            long start = System.nanoTime();
+            nearestParaphrase[i] = Integer.parseInt(cache.get(SCOPE, paraphrases[i]));
+            lookupLatency.record(System.nanoTime() - start);
+            paraphraseSimilarity[i] = similarity(vectors[nearestParaphrase[i]], paraphrases[i]);
+
+            start = System.nanoTime();
+            nearestUnseen[i] = Integer.parseInt(cache.get(SCOPE, unseen[i]));
+            lookupLatency.record(System.nanoTime() - start);
+            unseenSimilarity[i] = similarity(vectors[nearestUnseen[i]], unseen[i]);
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode result = mapper.createObjectNode();
+        result.put("entries", entries);
+        result.put("queries", queries);
+        result.put("embedder", embedder.getId());
+        latency(result.putObject("embedMicros"), embedLatency);
+        latency(result.putObject("lookupMicros"), lookupLatency);
+        ArrayNode thresholds = result.putArray("thresholds");
+        for (String value : options.getOrDefault("thresholds", "0.75,0.8,0.85,0.9,0.95").split(",")) {
+            float threshold = Float.parseFloat(value);
+            int correct = 0;
+            int wrong = 0;
+            int falseHits = 0;
+            for (int i = 0; i < queries; i++) {
+                if (paraphraseSimilarity[i] >= threshold && nearestParaphrase[i] == sources[i])
+                    correct++;
+                else if (paraphraseSimilarity[i] >= threshold)
+                    wrong++;
+                if (unseenSimilarity[i] >= threshold)
+                    falseHits++;
+            }
+
+            ObjectNode node = thresholds.addObject();
+            node.put("threshold", threshold);
+            node.put("recall", (double) correct / queries);
+            node.put("wrongAnswers", (double) wrong / queries);
+            node.put("falseHits", (double) falseHits / queries);
+        }
+
+        String json = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(result);
+        String out = options.get("out");
+        if (out != null)
+            Files.writeString(Path.of(out), json);
+        else
+            System.out.println(json);
+    }
+
+    /**
+     * Сходство так, как его считает SemanticCache (по байтовым векторам)
+     */
+    private static float similarity(float[] a, float[] b) {
+        byte[] quantizedA = new byte[a.length];
+        byte[] quantizedB = new byte[b.length];
+        float scaleA = SemanticCache.quantize(a, quantizedA);
+        float scaleB = SemanticCache.quantize(b, quantizedB);
+        return SemanticCache.dot(quantizedA, 0, quantizedB) * scaleA * scaleB;
+    }
+
+    private static void latency(ObjectNode node, LatencyHistogram histogram) {
+        node.put("count", histogram.getCount());
+        node.put("mean", histogram.getCount() > 0 ? histogram.getSumSeconds() * 1e6 / histogram.getCount() : 0);
+        node.put("p50", histogram.getQuantileSeconds(0.5) * 1e6);
+        node.put("p99", histogram.getQuantileSeconds(0.99) * 1e6);
+    }
+}
@@ -0,0 +1,200 @@
+package com.javarush.telegram;
+
+import com.plexpt.chatgpt.entity.chat.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Журнал сессий (SessionLog) на 100 000 сессий: запись из многих потоков с fsync,
+ * перезапуск бота (открытие журнала и первая сессия) и кодирование сессии в JSON.
+ * Память, которую занимают 100 000 сессий, считает MemoryFootprint.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionLogBenchmark {
+    static final long FIRST_CHAT_ID = 3_000_000_000L;
+    static final int SESSIONS = 100_000;
+    private static final long SEGMENT_SIZE = 4L << 20; //100 000 сессий - около десятка сегментов
+
+    /**
+     * Журнал, в который пишут все потоки бенчмарка, fsync включен, как в боте
+     */
+    @State(Scope.Benchmark)
+    public static class AppendState {
+        private SessionLog log;
+        private byte[] data;
+
+        @Setup
+        public void open() throws IOException {
+            log = new SessionLog(Files.createTempDirectory("tinderbolt-jmh"), SEGMENT_SIZE, SessionLog.DEFAULT_COMPACT_SEGMENTS, true);
+            data = SessionCodec.encode(sampleSession(FIRST_CHAT_ID));
+        }
+
+        @TearDown
+        public void close() {
+            log.close();
+        }
+    }
+
+    /**
+     * Каждый поток бенчмарка сохраняет случайные сессии
+     */
+    @State(Scope.Thread)
+    public static class ChatCursor {
+        private final Random random = new Random();
+
+        long nextChatId() {
+            return FIRST_CHAT_ID + random.nextInt(SESSIONS);
+        }
+    }
+
+    /**
+     * 100 000 сессий на диске. scan - сегменты читаются целиком, hints - почти все записи уже сжаты
+     * и при старте читаются только hint-файлы
+     */
+    @State(Scope.Benchmark)
+    public static class RestartState {
+        @Param({"scan", "hints"})
+        public String restore;
+
+        private Path dir;
+        private SessionLog log;
+        private final Random random = new Random(1);
+
+        @Setup(Level.Trial)
+        public void fill() throws IOException {
+            dir = Files.createTempDirectory("tinderbolt-jmh");
+            SessionLog log = new SessionLog(dir, SEGMENT_SIZE, Integer.MAX_VALUE, false);
+            for (int i = 0; i < SESSIONS; i++)
+                log.append(sampleSession(FIRST_CHAT_ID + i));
+            if (restore.equals("hints"))
+                log.compact().join();
+            log.close();
+        }
+
+        /**
+         * Закрываем журнал вне замера и убираем пустой сегмент, который создает каждое открытие
+         */
+        @TearDown(Level.Invocation)
+        public void close() throws IOException {
+            log.close();
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : files.toList()) {
+                    if (Files.size(file) == 0)
+                        Files.delete(file);
+                }
+            }
+        }
+
+        long randomChatId() {
+            return FIRST_CHAT_ID + random.nextInt(SESSIONS);
+        }
+    }
+
+    /**
+     * Типичная сессия (анкеты, переписка, история ChatGPT) и ее JSON
+     */
+    @State(Scope.Benchmark)
+    public static class CodecState {
+        private UserSession session;
+        private byte[] data;
+
+        @Setup
+        public void prepare() {
+            session = sampleSession(FIRST_CHAT_ID);
+            data = SessionCodec.encode(session);
+        }
+    }
+
+    /**
+     * Сохранение измененной сессии: future завершается после fsync, а одновременные записи делят один fsync
+     */
+    @Benchmark
+    @Threads(32)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void append(AppendState state, ChatCursor cursor) {
+        state.log.append(cursor.nextChatId(), state.data).join();
+    }
+
+    /**
+     * Перезапуск бота: от открытия журнала до первой сессии, прочитанной с диска
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = 1)
+    @Measurement(iterations = 10, batchSize = 1)
+    public UserSession restart(RestartState state) {
+        state.log = new SessionLog(state.dir, SEGMENT_SIZE, Integer.MAX_VALUE, false);
+        SessionStore sessions = new SessionStore();
+        sessions.setSessionLog(state.log);
+        return sessions.get(state.randomChatId());
+    }
+
+    /**
+     * Кодирование сессии перед записью в журнал
+     */
+    @Benchmark
+    public byte[] encode(CodecState state) {
+        return SessionCodec.encode(state.session);
+    }
+
+    /**
+     * Раскодирование сессии, прочитанной из журнала
+     */
+    @Benchmark
+    public UserSession decode(CodecState state) {
+        return SessionCodec.decode(FIRST_CHAT_ID, state.data);
+    }
+
+    /**
+     * Сессия, как после анкеты, нескольких сообщений в режиме MESSAGE и пары вопросов в режиме GPT
+     */
+    static UserSession sampleSession(long chatId) {
+        UserSession session = new UserSession(chatId);
+        session.currentMode = DialogMode.GPT;
+        session.me = new UserInfo();
+        session.me.age = "25";
+        session.me.occupation = "программист";
+        session.me.hobby = "шахматы";
+        session.me.annoys = "опоздания";
+        session.me.goals = "серьезные отношения";
+        session.she = new UserInfo();
+        session.she.name = "Анна";
+        session.she.age = "23";
+        session.she.hobby = "танцы";
+        session.she.occupation = "дизайнер";
+        session.she.goals = "дружба";
+        session.transcript.add("Привет! Как прошел день?");
+        session.transcript.add("Отлично, была на выставке современного искусства");
+        session.transcript.add("Здорово! А что больше всего понравилось?");
+        session.history.setPrompt("Ты - помощник, который отвечает кратко и по делу.");
+        session.history.add(Message.of("Что подарить на первое свидание?"));
+        session.history.add(Message.ofAssistant("Небольшой подарок со смыслом: книгу любимого автора или билеты на выставку."));
+        session.questionCount = 1;
+        return session;
+    }
+}
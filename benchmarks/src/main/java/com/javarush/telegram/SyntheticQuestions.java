@@ -0,0 +1,88 @@
+package com.javarush.telegram;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Выдуманные вопросы для режима /gpt и их перефразировки - для проверки SemanticCache.
+ * Вопросы собираются из частей ("как" + "пригласить" + "девушку" + "на первом свидании" + ...), поэтому разные вопросы
+ * бывают очень похожи (отличаются одной частью) - так же, как настоящие вопросы пользователей.
+ */
+public class SyntheticQuestions {
+    private static final String[] STARTS = {"как", "где", "когда лучше", "почему не стоит", "что делать, если хочу",
+            "стоит ли", "можно ли", "чем", "как правильно", "с чего начать, чтобы"};
+    private static final String[] VERBS = {"познакомиться", "пригласить на кофе", "написать первой", "понравиться",
+            "удивить", "поддержать", "заинтересовать", "помириться", "флиртовать", "пошутить", "сделать комплимент",
+            "предложить встречу", "признаться в симпатии", "поздравить", "отказать вежливо", "продолжить переписку",
+            "начать разговор", "подарить цветы", "рассмешить", "узнать получше"};
+    private static final String[] PEOPLE = {"девушку", "парня", "коллегу", "соседку", "бывшую", "одноклассника",
+            "подругу", "студентку", "программиста", "художницу", "спортсмена", "бариста", "врача", "учительницу",
+            "музыканта", "туристку", "блогера", "фотографа", "дизайнера", "водителя"};
+    private static final String[] PLACES = {"на первом свидании", "в кафе", "в тиндере", "после ссоры", "на работе",
+            "в переписке", "летом", "в спортзале", "в парке", "на концерте", "в метро", "на вечеринке", "в баре",
+            "на выставке", "в поезде", "в библиотеке", "на пляже", "в горах", "зимой", "в отпуске", "онлайн",
+            "в кино", "на курсах", "в инстаграме", "на свадьбе друзей"};
+    private static final String[] DETAILS = {"если я стесняюсь", "без лишнего пафоса", "если у нас мало общего",
+            "чтобы не показаться навязчивым", "если мы давно не общались", "если она старше меня", "с юмором",
+            "если я плохо знаю человека", "коротко и мило", "если прошлая попытка не удалась", "не выглядя глупо",
+            "если у меня мало времени", "оригинально", "если мы живем в разных городах", "без банальностей",
+            "если он очень занят", "по-дружески", "романтично", "без спешки", "если я нервничаю"};
+    private static final String[] FILLERS = {"подскажи, ", "скажи пожалуйста, ", "а ", "слушай, ", "вопрос: "};
+
+    private SyntheticQuestions() {
+    }
+
+    /**
+     * count разных вопросов, одинаковых для одного и того же seed
+     */
+    public static List<String> generate(int count, long seed) {
+        Random random = new Random(seed);
+        Set<String> questions = new LinkedHashSet<>();
+        while (questions.size() < count)
+            questions.add(pick(random, STARTS) + " " + pick(random, VERBS) + " " + pick(random, PEOPLE) + " "
+                    + pick(random, PLACES) + " " + pick(random, DETAILS) + "?");
+        return new ArrayList<>(questions);
+    }
+
+    /**
+     * Тот же вопрос другими словами: вводное слово, переставленные слова, опечатка, другой регистр и знаки препинания
+     */
+    public static String paraphrase(String question, Random random) {
+        String[] words = question.replace("?", "").split(" ");
+        int changes = 1 + random.nextInt(2);
+        for (int i = 0; i < changes; i++) {
+            int index = random.nextInt(words.length);
+            switch (random.nextInt(3)) {
+                case 0 -> { //соседние слова меняются местами
+                    int next = (index + 1) % words.length;
+                    String word = words[index];
+                    words[index] = words[next];
+                    words[next] = word;
+                }
+                case 1 -> words[index] = typo(words[index], random);
+                default -> words[index] = words[index].toUpperCase();
+            }
+        }
+
+        String text = String.join(" ", words);
+        if (random.nextBoolean())
+            text = pick(random, FILLERS) + text;
+        return random.nextBoolean() ? text + "?" : text + "...";
+    }
+
+    private static String typo(String word, Random random) {
+        if (word.length() < 5)
+            return word;
+        int index = 1 + random.nextInt(word.length() - 2);
+        return random.nextBoolean()
+                ? word.substring(0, index) + word.substring(index + 1) //пропущенная буква
+                : word.substring(0, index) + word.charAt(index + 1) + word.charAt(index) + word.substring(index + 2); //переставленные буквы
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
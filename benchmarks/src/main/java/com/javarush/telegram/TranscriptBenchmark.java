@@ -0,0 +1,118 @@
+package com.javarush.telegram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Переписка в режиме MESSAGE, заполненная до лимита (ChatTranscript.DEFAULT_MAX_ENTRIES / DEFAULT_MAX_BYTES):
+ * новое сообщение вытесняет старые, а текст для ChatGPT собирается на каждое нажатие кнопки.
+ * Для сравнения - прежний вариант: список строк и String.join.
+ * Память 10 000 таких переписок считает MemoryFootprint.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TranscriptBenchmark {
+    private static final int MESSAGES = 1024;
+
+    /**
+     * Длина сообщений в символах: короткая реплика или вставленный длинный кусок переписки
+     */
+    @Param({"60", "600"})
+    public int messageLength;
+
+    private String[] messages;
+    private int next;
+    private ChatTranscript transcript;
+    private List<String> list;
+
+    @Setup
+    public void fill() {
+        Random random = new Random(1);
+        messages = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++)
+            messages[i] = message(random, messageLength);
+
+        transcript = new ChatTranscript();
+        list = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            String message = nextMessage();
+            transcript.add(message);
+            addToList(message);
+        }
+    }
+
+    /**
+     * Сообщение в заполненную переписку: запись в кольцо и вытеснение старых
+     */
+    @Benchmark
+    public ChatTranscript add() {
+        transcript.add(nextMessage());
+        return transcript;
+    }
+
+    /**
+     * Текст переписки для запроса к ChatGPT
+     */
+    @Benchmark
+    public String render() {
+        return transcript.render();
+    }
+
+    /**
+     * Прежний вариант: сообщение в список с тем же лимитом числа сообщений
+     */
+    @Benchmark
+    public List<String> listAdd() {
+        addToList(nextMessage());
+        return list;
+    }
+
+    /**
+     * Прежний вариант: String.join над списком
+     */
+    @Benchmark
+    public String listJoin() {
+        return String.join("\n\n", list);
+    }
+
+    private void addToList(String message) {
+        list.add(message);
+        if (list.size() > ChatTranscript.DEFAULT_MAX_ENTRIES)
+            list.remove(0);
+    }
+
+    private String nextMessage() {
+        next = (next + 1) % MESSAGES;
+        return messages[next];
+    }
+
+    /**
+     * Сообщение из русских и латинских слов, как в настоящей переписке
+     */
+    static String message(Random random, int length) {
+        String[] words = {"привет", "как", "дела", "сегодня", "выставка", "кофе", "погулять", "okay", "lol", "weekend", "concert"};
+        StringBuilder text = new StringBuilder(length + 16);
+        while (text.length() < length)
+            text.append(words[random.nextInt(words.length)]).append(' ');
+        text.setLength(length);
+        return text.toString();
+    }
+}
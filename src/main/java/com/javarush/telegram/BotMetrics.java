@@ -0,0 +1,208 @@
+package com.javarush.telegram;
+
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.util.EnumMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики бота: имена метрик Prometheus и точки записи для обработки обновлений, Telegram API и ChatGPT.
+ * Гистограммы для меток заранее найдены в Metrics и закешированы, поэтому запись не строит строк.
+ */
+public class BotMetrics {
+    private static final Metrics METRICS = Metrics.getInstance();
+
+    private static final String NO_MODE = "NONE";
+    private static final LatencyHistogram NO_MODE_UPDATES = updateHistogram(NO_MODE);
+    private static final EnumMap<DialogMode, LatencyHistogram> UPDATES = new EnumMap<>(DialogMode.class);
+
+    private static final ConcurrentHashMap<String, LatencyHistogram> TELEGRAM_CALLS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> TELEGRAM_ERRORS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, GptMetrics> GPT = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> ERRORS = new ConcurrentHashMap<>();
+
+    private static final LatencyHistogram RESOURCE_LOADS = METRICS.histogram("tinderbolt_resources_load_seconds",
+            "Длительность загрузки prompt-ов, сообщений и картинок");
+    private static final LongAdder UPDATE_ERRORS = METRICS.counter("tinderbolt_update_errors_total",
+            "Обновления, обработка которых завершилась исключением");
+
+    static {
+        for (DialogMode mode : DialogMode.values())
+            UPDATES.put(mode, updateHistogram(mode.name()));
+    }
+
+    /**
+     * Начало обработки обновления из чата chatId; по окончании нужно вызвать UpdateSpan.end()
+     */
+    public static UpdateSpan startUpdate(long chatId) {
+        return new UpdateSpan(chatId);
+    }
+
+    public static void updateError() {
+        UPDATE_ERRORS.increment();
+    }
+
+    /**
+     * Сбой компонента бота, который не дошел до пользователя (файл кеша не записался, ресурсы не перечитались и т.п.).
+     * Подробности - в логе, здесь только счетчик по компонентам
+     */
+    public static void error(String component) {
+        ERRORS.computeIfAbsent(component, key -> METRICS.counter("tinderbolt_errors_total",
+                "Сбои компонентов бота (подробности в логе)", "component", key)).increment();
+    }
+
+    public static void resourcesLoaded(long nanos) {
+        RESOURCE_LOADS.record(nanos);
+    }
+
+    /**
+     * Выполняет запрос method к Telegram API и записывает его длительность
+     * (без времени ожидания в TelegramSendQueue - call вызывается уже из очереди)
+     */
+    public static <T> T telegramCall(String method, TelegramSendQueue.ApiCall<T> call) throws TelegramApiException {
+        JfrEvents.TelegramApiCall event = new JfrEvents.TelegramApiCall();
+        event.begin();
+        long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = call.call();
+            success = true;
+            return result;
+        } finally {
+            telegramCall(method, System.nanoTime() - startNanos, success);
+            event.end();
+            if (event.shouldCommit()) {
+                event.method = method;
+                event.success = success;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * То же для асинхронного запроса: длительность записывается, когда future завершится
+     */
+    public static <T> CompletableFuture<T> telegramCallAsync(String method, CompletableFuture<T> call, long startNanos) {
+        return call.whenComplete((result, error) -> telegramCall(method, System.nanoTime() - startNanos, error == null));
+    }
+
+    private static void telegramCall(String method, long nanos, boolean success) {
+        TELEGRAM_CALLS.computeIfAbsent(method, key -> METRICS.histogram("tinderbolt_telegram_api_seconds",
+                "Длительность запросов к Telegram Bot API", "method", key)).record(nanos);
+        if (!success) {
+            TELEGRAM_ERRORS.computeIfAbsent(method, key -> METRICS.counter("tinderbolt_telegram_api_errors_total",
+                    "Запросы к Telegram Bot API, завершившиеся ошибкой", "method", key)).increment();
+        }
+    }
+
+    /**
+     * Начало запроса к ChatGPT; время первого токена отмечается через GptRequest.firstToken(),
+     * итог - через GptRequest.complete()
+     */
+    public static GptRequest gptRequest(ChatGPTBackend backend, boolean stream) {
+        GptMetrics metrics = GPT.computeIfAbsent(backend.getName(), GptMetrics::new);
+        return new GptRequest(metrics, backend, stream);
+    }
+
+    private static LatencyHistogram updateHistogram(String mode) {
+        return METRICS.histogram("tinderbolt_update_seconds", "Длительность обработки обновления Telegram по режимам", "mode", mode);
+    }
+
+    /**
+     * Обработка одного обновления: гистограмма по режиму и событие JFR
+     */
+    public static class UpdateSpan {
+        private final JfrEvents.Update event = new JfrEvents.Update();
+        private final long startNanos = System.nanoTime();
+
+        private UpdateSpan(long chatId) {
+            event.begin();
+            event.chatId = chatId;
+        }
+
+        /**
+         * Обработка закончена, mode - режим, в котором осталась сессия
+         */
+        public void end(DialogMode mode) {
+            LatencyHistogram histogram = mode != null ? UPDATES.get(mode) : NO_MODE_UPDATES;
+            histogram.record(System.nanoTime() - startNanos);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.mode = mode != null ? mode.name() : NO_MODE;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Метрики одного бэкенда ChatGPT
+     */
+    private static class GptMetrics {
+        final LatencyHistogram latency;
+        final LatencyHistogram firstToken;
+        final LongAdder promptTokens;
+        final LongAdder completionTokens;
+        final LongAdder errors;
+
+        GptMetrics(String backend) {
+            latency = METRICS.histogram("tinderbolt_gpt_request_seconds", "Длительность запросов к ChatGPT", "backend", backend);
+            firstToken = METRICS.histogram("tinderbolt_gpt_first_token_seconds", "Время до первого токена потокового ответа ChatGPT", "backend", backend);
+            promptTokens = METRICS.counter("tinderbolt_gpt_tokens_total", "Токены ChatGPT по данным usage", "backend", backend, "type", "prompt");
+            completionTokens = METRICS.counter("tinderbolt_gpt_tokens_total", "Токены ChatGPT по данным usage", "backend", backend, "type", "completion");
+            errors = METRICS.counter("tinderbolt_gpt_errors_total", "Запросы к ChatGPT, завершившиеся ошибкой", "backend", backend);
+        }
+    }
+
+    /**
+     * Один запрос к ChatGPT: метрики и событие JFR
+     */
+    public static class GptRequest {
+        private final GptMetrics metrics;
+        private final JfrEvents.GptRequest event = new JfrEvents.GptRequest();
+        private final long startNanos = System.nanoTime();
+        private volatile long firstTokenNanos;
+
+        private GptRequest(GptMetrics metrics, ChatGPTBackend backend, boolean stream) {
+            this.metrics = metrics;
+            event.begin();
+            event.backend = backend.getName();
+            event.model = backend.getModel();
+            event.stream = stream;
+        }
+
+        /**
+         * Пришел первый кусочек потокового ответа (повторные вызовы игнорируются)
+         */
+        public void firstToken() {
+            if (firstTokenNanos != 0)
+                return;
+            firstTokenNanos = System.nanoTime() - startNanos;
+            metrics.firstToken.record(firstTokenNanos);
+        }
+
+        public void complete(ChatGPTAnswer answer, Throwable error) {
+            metrics.latency.record(System.nanoTime() - startNanos);
+            if (answer != null) {
+                metrics.promptTokens.add(answer.promptTokens);
+                metrics.completionTokens.add(answer.completionTokens);
+            } else {
+                metrics.errors.increment();
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.firstTokenMillis = firstTokenNanos / 1_000_000;
+                if (answer != null) {
+                    event.promptTokens = answer.promptTokens;
+                    event.completionTokens = answer.completionTokens;
+                } else {
+                    event.error = String.valueOf(ChatGPTBackendPool.unwrap(error));
+                }
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.javarush.telegram;
+
+/**
+ * Ответ ChatGPT и количество потраченных на него токенов (из поля usage ответа, 0 - если сервер его не прислал)
+ */
+public class ChatGPTAnswer {
+    public final String content;
+    public final int promptTokens;
+    public final int completionTokens;
+
+    public ChatGPTAnswer(String content, int promptTokens, int completionTokens) {
+        this.content = content;
+        this.promptTokens = promptTokens;
+        this.completionTokens = completionTokens;
+    }
+
+    public int getTotalTokens() {
+        return promptTokens + completionTokens;
+    }
+}
@@ -0,0 +1,218 @@
+package com.javarush.telegram;
+
+import com.plexpt.chatgpt.entity.chat.ChatCompletion;
+import com.plexpt.chatgpt.entity.chat.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Один бэкенд ChatGPT: ключ + адрес API + модель.
+ * Считает выполняющиеся запросы и потраченные за последнюю минуту токены (TPM),
+ * а после серии ответов 429 временно исключается из выбора (см. ChatGPTBackendPool).
+ */
+public class ChatGPTBackend {
+    private static final Logger logger = LoggerFactory.getLogger(ChatGPTBackend.class);
+
+    public static final int EJECT_AFTER_RATE_LIMITS = 3; //сколько 429 подряд исключают бэкенд
+    public static final long EJECT_BASE_MILLIS = 10_000;
+    public static final long EJECT_MAX_MILLIS = 5 * 60_000;
+
+    private final String name;
+    private final String model;
+    private final ChatGPTRoute route;
+    private final int weight;
+    private final int tokensPerMinute;
+    private final ChatGPTTransport transport;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final TokenWindow tokens = new TokenWindow();
+
+    private int rateLimits; //429 подряд
+    private long ejectMillis = EJECT_BASE_MILLIS; //на сколько исключить в следующий раз (растет, пока бэкенд не поправится)
+    private long ejectedUntil;
+    private int ejectionCount;
+
+    /**
+     * Бэкенд с весом 1 и без локального ограничения токенов
+     */
+    public ChatGPTBackend(String name, String apiKey, String model, ChatGPTRoute route) {
+        this(name, apiKey, new ChatGPTTransport.Settings(), model, route, 1, 0);
+    }
+
+    /**
+     * route - какие запросы обслуживает бэкенд (null - любые),
+     * weight - во сколько раз больше запросов он может выполнять одновременно по сравнению с бэкендом веса 1,
+     * tokensPerMinute - лимит ключа на токены в минуту (0 - не ограничен).
+     */
+    public ChatGPTBackend(String name, String apiKey, ChatGPTTransport.Settings settings, String model,
+                          ChatGPTRoute route, int weight, int tokensPerMinute) {
+        if (apiKey.startsWith("gpt:")) {
+            apiKey = "sk-proj-" + new StringBuilder(apiKey.substring(4)).reverse();
+        }
+
+        this.name = name;
+        this.model = model;
+        this.route = route;
+        this.weight = Math.max(1, weight);
+        this.tokensPerMinute = tokensPerMinute;
+        this.transport = new ChatGPTTransport(apiKey, settings);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public ChatGPTRoute getRoute() {
+        return route;
+    }
+
+    public ChatGPTTransport getTransport() {
+        return transport;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Оценка токенов, потраченных за последние 60 секунд
+     */
+    public long getTokensLastMinute() {
+        return tokens.sum(System.currentTimeMillis());
+    }
+
+    public synchronized int getEjectionCount() {
+        return ejectionCount;
+    }
+
+    public boolean serves(ChatGPTRoute route) {
+        return this.route == null || this.route == route;
+    }
+
+    /**
+     * Бэкенд можно выбирать: он не исключен, его предохранитель не разомкнут и лимит токенов не исчерпан
+     */
+    public boolean isAvailable() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now < ejectedUntil)
+                return false;
+        }
+        if (!transport.getCircuitBreaker().isCallPermitted())
+            return false;
+        return tokensPerMinute <= 0 || tokens.sum(now) < tokensPerMinute;
+    }
+
+    /**
+     * Чем меньше, тем лучше: выполняющиеся запросы с учетом веса
+     */
+    double load() {
+        return (outstanding.get() + 1.0) / weight;
+    }
+
+    CompletableFuture<ChatGPTAnswer> complete(List<Message> messages, int maxTokens, double temperature) {
+        outstanding.incrementAndGet();
+        BotMetrics.GptRequest metrics = BotMetrics.gptRequest(this, false);
+        return track(messages, metrics, transport.complete(createChatCompletion(messages, maxTokens, temperature)));
+    }
+
+    CompletableFuture<ChatGPTAnswer> stream(List<Message> messages, int maxTokens, double temperature, Consumer<String> onUpdate) {
+        outstanding.incrementAndGet();
+        BotMetrics.GptRequest metrics = BotMetrics.gptRequest(this, true);
+        return track(messages, metrics, transport.stream(createChatCompletion(messages, maxTokens, temperature), text -> {
+            metrics.firstToken();
+            onUpdate.accept(text);
+        }));
+    }
+
+    /**
+     * Учет запроса: пока ответа нет, токены запроса считаются по оценке TokenCounter,
+     * после ответа оценка заменяется точными цифрами из usage
+     */
+    private CompletableFuture<ChatGPTAnswer> track(List<Message> messages, BotMetrics.GptRequest metrics, CompletableFuture<ChatGPTAnswer> request) {
+        int estimate = TokenCounter.count(messages);
+        tokens.add(System.currentTimeMillis(), estimate);
+
+        return request.whenComplete((answer, error) -> {
+            outstanding.decrementAndGet();
+            metrics.complete(answer, error);
+            if (answer != null) {
+                int used = answer.getTotalTokens() > 0
+                        ? answer.getTotalTokens()
+                        : estimate + TokenCounter.count(answer.content);
+                tokens.add(System.currentTimeMillis(), used - estimate);
+                onSuccess();
+            } else if (ChatGPTBackendPool.unwrap(error) instanceof ChatGPTUnavailableException e && e.isRateLimited()) {
+                onRateLimited();
+            }
+        });
+    }
+
+    private synchronized void onSuccess() {
+        rateLimits = 0;
+        ejectMillis = EJECT_BASE_MILLIS;
+    }
+
+    private synchronized void onRateLimited() {
+        if (++rateLimits < EJECT_AFTER_RATE_LIMITS)
+            return;
+
+        //исключаем бэкенд; по истечении времени он вернется сам, а при новых 429 будет исключен на вдвое больший срок
+        rateLimits = 0;
+        ejectedUntil = System.currentTimeMillis() + ejectMillis;
+        ejectMillis = Math.min(ejectMillis * 2, EJECT_MAX_MILLIS);
+        ejectionCount++;
+        logger.warn("ChatGPT backend {} is rate limited, ejected until {}", name, ejectedUntil);
+    }
+
+    private ChatCompletion createChatCompletion(List<Message> messages, int maxTokens, double temperature) {
+        return ChatCompletion.builder()
+                .model(model)
+                .messages(messages)
+                .maxTokens(maxTokens)
+                .temperature(temperature)
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return name + "(" + model + ")";
+    }
+
+    /**
+     * Скользящее окно токенов за 60 секунд: по ячейке на секунду
+     */
+    private static class TokenWindow {
+        private final long[] tokens = new long[60];
+        private final long[] seconds = new long[60];
+
+        synchronized void add(long now, long count) {
+            long second = now / 1000;
+            int index = (int) (second % tokens.length);
+            if (seconds[index] != second) {
+                seconds[index] = second;
+                tokens[index] = 0;
+            }
+            tokens[index] += count;
+        }
+
+        synchronized long sum(long now) {
+            long second = now / 1000;
+            long sum = 0;
+            for (int i = 0; i < tokens.length; i++) {
+                if (second - seconds[i] < tokens.length)
+                    sum += tokens[i];
+            }
+            return Math.max(0, sum); //поправка по usage могла попасть в другую секунду, чем оценка
+        }
+    }
+}
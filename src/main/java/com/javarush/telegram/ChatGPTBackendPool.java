@@ -0,0 +1,108 @@
+package com.javarush.telegram;
+
+import com.plexpt.chatgpt.entity.chat.Message;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Набор бэкендов ChatGPT (ключи, адреса API, модели), между которыми распределяются запросы.
+ * Для запроса выбирается доступный бэкенд его класса (ChatGPTRoute) с наименьшим числом выполняющихся запросов
+ * с учетом веса (weighted least outstanding requests). Если бэкенды класса недоступны - любой другой доступный.
+ * Если бэкенд не смог ответить (ChatGPTUnavailableException), запрос повторяется на следующем.
+ * Бэкенды, которые раз за разом отвечают 429, временно исключаются из выбора и возвращаются сами (см. ChatGPTBackend).
+ */
+public class ChatGPTBackendPool {
+    private final List<ChatGPTBackend> backends;
+    private final AtomicInteger next = new AtomicInteger(); //с какого бэкенда начинать перебор - чтобы при равной нагрузке чередовать их
+
+    public ChatGPTBackendPool(List<ChatGPTBackend> backends) {
+        if (backends.isEmpty())
+            throw new IllegalArgumentException("ChatGPT backend pool is empty");
+        this.backends = List.copyOf(backends);
+    }
+
+    public List<ChatGPTBackend> getBackends() {
+        return backends;
+    }
+
+    public CompletableFuture<ChatGPTAnswer> complete(ChatGPTRoute route, List<Message> messages, int maxTokens, double temperature) {
+        return execute(route, new HashSet<>(), new AtomicBoolean(), backend -> backend.complete(messages, maxTokens, temperature));
+    }
+
+    public CompletableFuture<ChatGPTAnswer> stream(ChatGPTRoute route, List<Message> messages, int maxTokens, double temperature,
+                                                   Consumer<String> onUpdate) {
+        AtomicBoolean started = new AtomicBoolean();
+        return execute(route, new HashSet<>(), started, backend -> backend.stream(messages, maxTokens, temperature, text -> {
+            started.set(true);
+            onUpdate.accept(text);
+        }));
+    }
+
+    /**
+     * started - ответ уже начал приходить: повторять такой запрос на другом бэкенде нельзя, пользователь увидит его дважды
+     */
+    private CompletableFuture<ChatGPTAnswer> execute(ChatGPTRoute route, Set<ChatGPTBackend> tried, AtomicBoolean started,
+                                                     Function<ChatGPTBackend, CompletableFuture<ChatGPTAnswer>> request) {
+        ChatGPTBackend backend = select(route, tried);
+        if (backend == null)
+            return CompletableFuture.failedFuture(new ChatGPTUnavailableException("No available ChatGPT backends for " + route));
+
+        tried.add(backend);
+        return request.apply(backend).exceptionallyCompose(error -> {
+            //сервер не ответил до начала ответа - пробуем другой бэкенд, иначе отдаем ошибку
+            if (unwrap(error) instanceof ChatGPTUnavailableException && !started.get() && select(route, tried) != null)
+                return execute(route, tried, started, request);
+            return CompletableFuture.failedFuture(error);
+        });
+    }
+
+    /**
+     * Выбор бэкенда: сначала среди бэкендов нужного класса, потом среди всех остальных
+     */
+    ChatGPTBackend select(ChatGPTRoute route, Set<ChatGPTBackend> excluded) {
+        ChatGPTBackend best = select(route, excluded, true);
+        return best != null ? best : select(route, excluded, false);
+    }
+
+    private ChatGPTBackend select(ChatGPTRoute route, Set<ChatGPTBackend> excluded, boolean sameRoute) {
+        int start = Math.floorMod(next.getAndIncrement(), backends.size());
+        ChatGPTBackend best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (int i = 0; i < backends.size(); i++) {
+            ChatGPTBackend backend = backends.get((start + i) % backends.size());
+            if (backend.serves(route) != sameRoute || excluded.contains(backend) || !backend.isAvailable())
+                continue;
+
+            double load = backend.load();
+            if (load < bestLoad) {
+                best = backend;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Состояние бэкендов для логов: имя, выполняющиеся запросы, токены за минуту, доступность
+     */
+    public List<String> describe() {
+        List<String> result = new ArrayList<>(backends.size());
+        for (ChatGPTBackend backend : backends)
+            result.add(backend + ": outstanding=" + backend.getOutstanding() + ", tpm=" + backend.getTokensLastMinute()
+                    + ", ejections=" + backend.getEjectionCount() + (backend.isAvailable() ? "" : ", unavailable"));
+        return result;
+    }
+
+    static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
@@ -0,0 +1,17 @@
+package com.javarush.telegram;
+
+/**
+ * Чат исчерпал свою квоту запросов или токенов ChatGPT (см. ChatGPTScheduler), запрос не выполнялся
+ */
+public class ChatGPTQuotaExceededException extends RuntimeException {
+    private final long retryAfterMillis; //через сколько квота снова позволит запрос
+
+    public ChatGPTQuotaExceededException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,9 @@
+package com.javarush.telegram;
+
+/**
+ * Класс запросов к ChatGPT: по нему ChatGPTBackendPool выбирает, какой ключ/модель обслужит запрос
+ */
+public enum ChatGPTRoute {
+    FAST,    //быстрая и дешевая модель: живая переписка, служебные запросы
+    PREMIUM, //самая качественная модель: профили, первые сообщения
+}
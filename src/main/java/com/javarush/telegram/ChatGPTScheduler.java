@@ -0,0 +1,277 @@
+package com.javarush.telegram;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Планировщик запросов к ChatGPT между ботом и ChatGPTService, чтобы один активный пользователь
+ * не занимал всю квоту OpenAI.
+ * - у каждого чата свои квоты (token bucket): запросов в минуту и токенов в минуту; сверх квоты запрос отклоняется
+ *   (ChatGPTQuotaExceededException);
+ * - одновременно выполняется не больше maxConcurrent запросов, остальные ждут в очередях своих чатов;
+ * - очереди чатов обслуживаются по кругу с учетом стоимости запроса в токенах (deficit round robin):
+ *   чат с длинными запросами получает меньше запросов, но не больше чем свою долю токенов;
+ * - у чата выполняется не больше одного запроса сразу, а новый запрос заменяет еще не начатый запрос
+ *   этого же чата (старый завершается CancellationException) - пользователь ждет ответ на последнее сообщение
+ *   (отключается setReplaceQueued(false)).
+ * Запросы без чата (SHARED_CHAT) приходят от разных вызывающих, поэтому у этой очереди нет ни квот, ни ограничения
+ * "один запрос сразу", и запросы в ней друг друга не заменяют - ее ограничивает только maxConcurrent и очередность по кругу.
+ */
+public class ChatGPTScheduler {
+    public static final int DEFAULT_MAX_CONCURRENT = 32;
+    public static final double DEFAULT_REQUESTS_PER_MINUTE = 10;
+    public static final double DEFAULT_REQUEST_BURST = 5;
+    public static final double DEFAULT_TOKENS_PER_MINUTE = 20_000;
+    public static final int QUANTUM = 1000; //сколько токенов добавляется чату за один круг
+    public static final long SHARED_CHAT = 0; //очередь запросов, не привязанных к чату (в Telegram такого chatId нет)
+
+    private static final int CLEANUP_INTERVAL = 1024; //как часто (в запросах) удалять неактивные чаты
+
+    private final int maxConcurrent;
+    private final double requestsPerMinute;
+    private final double requestBurst;
+    private final double tokensPerMinute;
+    private volatile boolean replaceQueued = true;
+
+    //все поля ниже защищены this
+    private final Map<Long, ChatQueue> chats = new HashMap<>();
+    private final ArrayDeque<ChatQueue> active = new ArrayDeque<>(); //чаты с ожидающими запросами, по кругу
+    private int running;
+    private int queued;
+    private long submitCount;
+    private long rejectedCount;
+    private long supersededCount;
+
+    public ChatGPTScheduler() {
+        this(DEFAULT_MAX_CONCURRENT, DEFAULT_REQUESTS_PER_MINUTE, DEFAULT_REQUEST_BURST, DEFAULT_TOKENS_PER_MINUTE);
+    }
+
+    public ChatGPTScheduler(int maxConcurrent, double requestsPerMinute, double requestBurst, double tokensPerMinute) {
+        this.maxConcurrent = maxConcurrent;
+        this.requestsPerMinute = requestsPerMinute;
+        this.requestBurst = requestBurst;
+        this.tokensPerMinute = tokensPerMinute;
+    }
+
+    /**
+     * Ставит запрос чата chatId в очередь. estimatedTokens - оценка токенов запроса (TokenCounter),
+     * call - сам запрос к ChatGPT, вызывается, когда подойдет очередь. Вызов может прийти из потока,
+     * завершившего предыдущий запрос (потока чтения HTTP-ответа), поэтому call должен только запускать запрос,
+     * ничего не дожидаясь.
+     * После ответа квота токенов дополнительно уменьшается на размер ответа.
+     */
+    public CompletableFuture<String> submit(long chatId, int estimatedTokens, Supplier<CompletableFuture<String>> call) {
+        return submit(chatId, estimatedTokens, replaceQueued, call);
+    }
+
+    /**
+     * То же, но replace задает, заменяет ли запрос еще не начатый запрос этого чата (см. setReplaceQueued())
+     */
+    public CompletableFuture<String> submit(long chatId, int estimatedTokens, boolean replace, Supplier<CompletableFuture<String>> call) {
+        Task task = new Task(Math.max(1, estimatedTokens), call);
+        List<Task> ready;
+        synchronized (this) {
+            if (++submitCount % CLEANUP_INTERVAL == 0)
+                chats.values().removeIf(ChatQueue::isIdle);
+
+            ChatQueue chat = chats.computeIfAbsent(chatId, ChatQueue::new);
+            Task previous = replace && !chat.shared ? chat.queue.pollLast() : null;
+            if (previous != null) {
+                //новый запрос занимает место еще не начатого - квоту второй раз не тратим
+                queued--;
+                supersededCount++;
+                previous.result.completeExceptionally(new CancellationException("Replaced by a newer request"));
+            } else {
+                ChatGPTQuotaExceededException rejection = chat.admit(task.cost);
+                if (rejection != null) {
+                    rejectedCount++;
+                    return CompletableFuture.failedFuture(rejection);
+                }
+            }
+
+            chat.queue.addLast(task);
+            queued++;
+            if (!chat.active) {
+                chat.active = true;
+                chat.deficit = 0;
+                active.addLast(chat);
+            }
+            ready = dispatch();
+        }
+
+        start(ready);
+        return task.result;
+    }
+
+    /**
+     * Отменяет еще не начатые запросы чата (они завершаются CancellationException), выполняющийся запрос не трогает.
+     * Например, когда пользователь дописал сообщение и прежний вопрос устарел
+     */
+    public void cancelQueued(long chatId) {
+        List<Task> cancelled;
+        synchronized (this) {
+            ChatQueue chat = chats.get(chatId);
+            if (chat == null || chat.queue.isEmpty())
+                return;
+
+            cancelled = new ArrayList<>(chat.queue);
+            chat.queue.clear();
+            queued -= cancelled.size();
+            supersededCount += cancelled.size();
+            active.remove(chat);
+            chat.active = false;
+            chat.deficit = 0;
+        }
+
+        for (Task task : cancelled)
+            task.result.completeExceptionally(new CancellationException("Cancelled by a newer message"));
+    }
+
+    /**
+     * false - новый запрос не заменяет еще не начатый запрос того же чата, а встает за ним в очередь
+     */
+    public void setReplaceQueued(boolean replaceQueued) {
+        this.replaceQueued = replaceQueued;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public synchronized long getSupersededCount() {
+        return supersededCount;
+    }
+
+    /**
+     * Выбирает запросы, которые можно запустить сейчас (вызывать под this)
+     */
+    private List<Task> dispatch() {
+        List<Task> ready = new ArrayList<>();
+        int blocked = 0; //чаты подряд, у которых уже выполняется запрос
+        while (running < maxConcurrent && !active.isEmpty() && blocked < active.size()) {
+            ChatQueue chat = active.pollFirst();
+            if (chat.running > 0 && !chat.shared) {
+                active.addLast(chat);
+                blocked++;
+                continue;
+            }
+            blocked = 0;
+
+            Task task = chat.queue.peekFirst();
+            chat.deficit += QUANTUM;
+            if (chat.deficit >= task.cost) {
+                chat.queue.pollFirst();
+                queued--;
+                chat.deficit -= task.cost;
+                if (!task.result.isDone()) { //запрос могли отменить, пока он ждал
+                    chat.running++;
+                    running++;
+                    task.chat = chat;
+                    ready.add(task);
+                }
+            }
+
+            if (chat.queue.isEmpty()) {
+                chat.active = false;
+                chat.deficit = 0;
+            } else {
+                active.addLast(chat);
+            }
+        }
+        return ready;
+    }
+
+    private void start(List<Task> ready) {
+        for (Task task : ready) {
+            CompletableFuture<String> request;
+            try {
+                request = task.call.get();
+            } catch (RuntimeException e) {
+                request = CompletableFuture.failedFuture(e);
+            }
+
+            request.whenComplete((answer, error) -> {
+                List<Task> next;
+                synchronized (this) {
+                    running--;
+                    task.chat.running--;
+                    if (answer != null)
+                        task.chat.tokens.reserve(TokenCounter.count(answer));
+                    next = dispatch();
+                }
+                if (error != null)
+                    task.result.completeExceptionally(error);
+                else
+                    task.result.complete(answer);
+                start(next);
+            });
+        }
+    }
+
+    private static class Task {
+        final int cost;
+        final Supplier<CompletableFuture<String>> call;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        ChatQueue chat;
+
+        Task(int cost, Supplier<CompletableFuture<String>> call) {
+            this.cost = cost;
+            this.call = call;
+        }
+    }
+
+    private class ChatQueue {
+        final long chatId;
+        final boolean shared;
+        final TokenBucket requests = new TokenBucket(requestBurst, requestsPerMinute / 60);
+        final TokenBucket tokens = new TokenBucket(tokensPerMinute, tokensPerMinute / 60);
+        final ArrayDeque<Task> queue = new ArrayDeque<>();
+        boolean active;
+        long deficit;
+        int running;
+
+        ChatQueue(long chatId) {
+            this.chatId = chatId;
+            this.shared = chatId == SHARED_CHAT;
+        }
+
+        /**
+         * Проверяет квоты и списывает запрос; null - запрос разрешен.
+         * Токены списываются по оценке и могут уйти в долг: следующий запрос подождет, пока долг не погасится.
+         */
+        ChatGPTQuotaExceededException admit(int cost) {
+            if (shared)
+                return null;
+            double available = tokens.getTokens();
+            if (available <= 0)
+                return new ChatGPTQuotaExceededException("Token quota exceeded for chat " + chatId, waitMillis(-available, tokensPerMinute));
+            if (!requests.tryAcquire(1))
+                return new ChatGPTQuotaExceededException("Request quota exceeded for chat " + chatId, waitMillis(1 - requests.getTokens(), requestsPerMinute));
+            tokens.reserve(cost);
+            return null;
+        }
+
+        private long waitMillis(double missing, double perMinute) {
+            return Math.max(1, (long) Math.ceil(missing / perMinute * TimeUnit.MINUTES.toMillis(1)));
+        }
+
+        boolean isIdle() {
+            return !active && running == 0 && requests.isIdle() && tokens.isIdle();
+        }
+    }
+}
@@ -1,33 +1,109 @@
 package com.javarush.telegram;
 
-import com.plexpt.chatgpt.ChatGPT;
 import com.plexpt.chatgpt.entity.chat.ChatCompletion;
-import com.plexpt.chatgpt.entity.chat.ChatCompletionResponse;
 import com.plexpt.chatgpt.entity.chat.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.net.InetSocketAddress;
-import java.net.Proxy;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class ChatGPTService {
-    private ChatGPT chatGPT;
+    private static final Logger logger = LoggerFactory.getLogger(ChatGPTService.class);
 
-    private List<Message> messageHistory = new ArrayList<>(); //История переписки с ChatGPT - нужна для диалогов
+    public static final String FALLBACK_ANSWER = "ChatGPT сейчас недоступен, попробуйте еще раз через пару минут.";
+    private static final String SUMMARY_PROMPT = "Ты получишь фрагмент переписки (и, возможно, ее прежнее краткое содержание). " +
+            "Составь краткое содержание всей переписки не длиннее 100 слов: кто участники, о чем договорились, важные факты. " +
+            "Пиши только само краткое содержание.";
+    private static final String SUMMARY_TITLE = "Краткое содержание предыдущей переписки: ";
+    private static final int SUMMARY_MAX_TOKENS = 300;
+    private static final String MODEL = ChatCompletion.Model.GPT4Turbo.getName(); // GPT4Turbo or GPT_3_5_TURBO
+    private static final ChatGPTRoute DEFAULT_ROUTE = ChatGPTRoute.PREMIUM;
+    private static final ChatGPTRoute SUMMARY_ROUTE = ChatGPTRoute.FAST;
+    private static final double TEMPERATURE = 0.9;
+
+    private final ChatGPTBackendPool backends;
+
+    private int maxAnswerTokens = 3000; //максимальная длина ответа ChatGPT
+    private boolean summarizeHistory = true; //заменять удаленную из истории переписку ее кратким содержанием
+    private ResponseCache responseCache; //null - кеш ответов не используется
+    private SemanticCache semanticCache; //null - похожие вопросы в режиме GPT не кешируются
+    private boolean coalesceRequests = true; //объединять одинаковые одновременные одиночные запросы
+    private ChatGPTScheduler scheduler; //null - запросы уходят в ChatGPT сразу, без квот и очереди
+    private final SingleFlight<String, String, String> inFlight = new SingleFlight<>();
 
     public ChatGPTService(String token) {
-        Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("18.199.183.77", 49232));
-        if (token.startsWith("gpt:")) {
-            token = "sk-proj-" + new StringBuilder(token.substring(4)).reverse();
-        }
+        this(token, new ChatGPTTransport.Settings());
+    }
+
+    public ChatGPTService(String token, ChatGPTTransport.Settings settings) {
+        this(new ChatGPTBackendPool(List.of(new ChatGPTBackend("default", token, settings, MODEL, null, 1, 0))));
+    }
+
+    /**
+     * Запросы распределяются между несколькими ключами/адресами/моделями (см. ChatGPTBackendPool)
+     */
+    public ChatGPTService(ChatGPTBackendPool backends) {
+        this.backends = backends;
+    }
+
+    public ChatGPTBackendPool getBackends() {
+        return backends;
+    }
+
+    public void setMaxAnswerTokens(int maxAnswerTokens) {
+        this.maxAnswerTokens = maxAnswerTokens;
+    }
+
+    public void setSummarizeHistory(boolean summarizeHistory) {
+        this.summarizeHistory = summarizeHistory;
+    }
+
+    public void setCoalesceRequests(boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    /**
+     * Статистика объединения одинаковых запросов
+     */
+    public SingleFlight<String, String, String> getInFlightRequests() {
+        return inFlight;
+    }
 
-        this.chatGPT = ChatGPT.builder()
-                .apiKey(token)
-                .apiHost("https://api.openai.com/")
-                .proxy(proxy)
-                .build()
-                .init();
+    /**
+     * Все запросы к ChatGPT, включая краткое содержание истории, проходят через планировщик: квоты чата и честная очередь.
+     * Запросы методов без chatId идут в общую очередь ChatGPTScheduler.SHARED_CHAT - без квот чата.
+     * Ответы из кеша планировщик не проходят и квоту не тратят
+     */
+    public void setScheduler(ChatGPTScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Кеш ответов для одиночных запросов. Используется только там, где вызывающий код явно его разрешил
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Кеш ответов на похожие вопросы (см. sendQuestionAsync())
+     */
+    public void setSemanticCache(SemanticCache semanticCache) {
+        this.semanticCache = semanticCache;
+    }
+
+    public SemanticCache getSemanticCache() {
+        return semanticCache;
     }
 
     /**
@@ -37,49 +113,209 @@ public class ChatGPTService {
      *      question - сам запрос
      */
     public String sendMessage(String prompt, String question) {
-        Message system = Message.ofSystem(prompt);
-        Message message = Message.of(question);
-        messageHistory = new ArrayList<>(Arrays.asList(system, message));
+        return sendMessage(prompt, question, false);
+    }
 
-        return sendMessagesToChatGPT();
+    /**
+     * Одиночный запрос к ChatGPT. Если useCache = true, одинаковые запросы берутся из кеша ответов.
+     * Если ChatGPT недоступен, возвращается FALLBACK_ANSWER (он не кешируется).
+     */
+    public String sendMessage(String prompt, String question, boolean useCache) {
+        try {
+            return sendMessageAsync(prompt, question, answer -> { }, useCache).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
     }
 
     /**
      * Запросы к ChatGPT с сохранением истории сообщений.
-     * Метод setPrompt() задает контект запроса
+     * Метод addMessage() добавляет новый вопрос (сообщение) в историю чата.
+     * Контекст запроса задается через history.setPrompt()
      */
-    public void setPrompt(String prompt) {
-        Message system = Message.ofSystem(prompt);
-        messageHistory = new ArrayList<>(List.of(system));
+    public String addMessage(ChatHistory history, String question) {
+        try {
+            return addMessageAsync(history, question, answer -> { }).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
     }
 
     /**
-     * Запросы к ChatGPT с сохранением истории сообщений.
-     * Метод addMessage() добавляет новый вопрос (сообщение) в чат.
+     * То же, что sendMessage(), но ответ приходит по частям:
+     * onUpdate вызывается с накопленным текстом ответа каждый раз, когда ChatGPT присылает новый кусочек.
+     */
+    public CompletableFuture<String> sendMessageAsync(String prompt, String question, Consumer<String> onUpdate) {
+        return sendMessageAsync(prompt, question, onUpdate, false);
+    }
+
+    /**
+     * Потоковый одиночный запрос. Если useCache = true и ответ уже есть в кеше, он возвращается сразу целиком.
+     * Одинаковые одновременные запросы (например, много пользователей нажали одну кнопку) объединяются:
+     * к ChatGPT уходит один запрос, а его ответ по частям получают все вызывающие.
+     */
+    public CompletableFuture<String> sendMessageAsync(String prompt, String question, Consumer<String> onUpdate, boolean useCache) {
+        return sendMessageAsync(DEFAULT_ROUTE, prompt, question, onUpdate, useCache);
+    }
+
+    /**
+     * То же, но запрос обслуживает бэкенд класса route (например, быстрая модель для живой переписки)
+     */
+    public CompletableFuture<String> sendMessageAsync(ChatGPTRoute route, String prompt, String question, Consumer<String> onUpdate, boolean useCache) {
+        return sendMessageAsync(ChatGPTScheduler.SHARED_CHAT, route, prompt, question, onUpdate, useCache);
+    }
+
+    /**
+     * То же, но запрос идет в ChatGPT в очереди и по квотам чата chatId (см. setScheduler())
+     */
+    public CompletableFuture<String> sendMessageAsync(long chatId, ChatGPTRoute route, String prompt, String question, Consumer<String> onUpdate, boolean useCache) {
+        String key = ResponseCache.key(route.name(), prompt, question, TEMPERATURE);
+        String cached = useCache && responseCache != null ? responseCache.get(key) : null;
+        if (cached != null) {
+            onUpdate.accept(cached);
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        List<Message> messages = Arrays.asList(Message.ofSystem(prompt), Message.of(question));
+        CompletableFuture<String> answer = schedule(chatId, TokenCounter.count(messages), true, () -> coalesceRequests
+                ? inFlight.execute(key + "/" + maxAnswerTokens, progress -> streamAnswer(route, messages, progress), onUpdate)
+                : streamAnswer(route, messages, onUpdate));
+
+        if (useCache && responseCache != null)
+            answer = answer.thenApply(text -> {
+                responseCache.put(key, text);
+                return text;
+            });
+        return answer.exceptionally(error -> fallback(error, onUpdate));
+    }
+
+    /**
+     * Свободный вопрос пользователя (режим GPT). Точные повторы тут редки, зато часто задают те же вопросы другими словами:
+     * если задан семантический кеш и похожий вопрос с тем же prompt-ом уже задавали, прежний ответ возвращается сразу.
+     * Иначе вопрос уходит в ChatGPT, а полный ответ попадает в кеш (FALLBACK_ANSWER не кешируется).
+     */
+    public CompletableFuture<String> sendQuestionAsync(ChatGPTRoute route, String prompt, String question, Consumer<String> onUpdate) {
+        return sendQuestionAsync(ChatGPTScheduler.SHARED_CHAT, route, prompt, question, onUpdate);
+    }
+
+    public CompletableFuture<String> sendQuestionAsync(long chatId, ChatGPTRoute route, String prompt, String question, Consumer<String> onUpdate) {
+        SemanticCache cache = semanticCache;
+        if (cache == null)
+            return sendMessageAsync(chatId, route, prompt, question, onUpdate, false);
+
+        String scope = ResponseCache.key(route.name(), prompt, "", TEMPERATURE);
+        float[] vector = cache.embed(question);
+        String cached = cache.get(scope, vector);
+        if (cached != null) {
+            onUpdate.accept(cached);
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return sendMessageAsync(chatId, route, prompt, question, onUpdate, false).thenApply(answer -> {
+            if (!answer.equals(FALLBACK_ANSWER))
+                cache.put(scope, vector, answer);
+            return answer;
+        });
+    }
+
+    private CompletableFuture<String> streamAnswer(ChatGPTRoute route, List<Message> messages, Consumer<String> onUpdate) {
+        return backends.stream(route, messages, maxAnswerTokens, TEMPERATURE, onUpdate).thenApply(result -> result.content);
+    }
+
+    /**
+     * То же, что addMessage(), но ответ приходит по частям (см. sendMessageAsync()).
+     * Полный ответ добавляется в историю, когда ChatGPT закончит его присылать.
      */
-    public String addMessage(String question) {
+    public CompletableFuture<String> addMessageAsync(ChatHistory history, String question, Consumer<String> onUpdate) {
+        return addMessageAsync(DEFAULT_ROUTE, history, question, onUpdate);
+    }
+
+    public CompletableFuture<String> addMessageAsync(ChatGPTRoute route, ChatHistory history, String question, Consumer<String> onUpdate) {
+        return addMessageAsync(ChatGPTScheduler.SHARED_CHAT, route, history, question, onUpdate);
+    }
+
+    public CompletableFuture<String> addMessageAsync(long chatId, ChatGPTRoute route, ChatHistory history, String question, Consumer<String> onUpdate) {
         Message message = Message.of(question);
-        messageHistory.add(message);
+        history.add(message);
 
-        return sendMessagesToChatGPT();
+        //краткое содержание удаленной переписки - тоже запрос к ChatGPT: ответ на вопрос идет после него, не блокируя поток
+        CompletableFuture<Void> summary = compactHistory(chatId, history);
+        //пока составлялось краткое содержание, в очередь чата мог встать более новый запрос - его ответ не заменяет
+        boolean replace = summary.isDone();
+        return summary
+                .thenCompose(ignored -> {
+                    List<Message> messages = history.getMessages();
+                    return schedule(chatId, TokenCounter.count(messages), replace, () -> streamAnswer(route, messages, onUpdate));
+                })
+                .thenApply(answer -> {
+                    history.add(Message.ofAssistant(answer));
+                    return answer;
+                })
+                .exceptionally(error -> {
+                    Throwable cause = unwrap(error);
+                    if (cause instanceof ChatGPTUnavailableException || cause instanceof CancellationException)
+                        history.removeLast(message); //вопрос без ответа в истории не оставляем
+                    return fallback(error, onUpdate);
+                });
+    }
+
+    /**
+     * ChatGPT недоступен - вместо ответа показываем FALLBACK_ANSWER. Остальные ошибки пробрасываются дальше.
+     */
+    private static String fallback(Throwable error, Consumer<String> onUpdate) {
+        Throwable cause = unwrap(error);
+        if (!(cause instanceof ChatGPTUnavailableException))
+            throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(cause);
+
+        logger.warn(cause.getMessage());
+        onUpdate.accept(FALLBACK_ANSWER);
+        return FALLBACK_ANSWER;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * Запускает запрос call через планировщик (если он задан) в очереди чата chatId
+     */
+    private CompletableFuture<String> schedule(long chatId, int estimatedTokens, boolean replace, Supplier<CompletableFuture<String>> call) {
+        ChatGPTScheduler current = scheduler;
+        if (current == null)
+            return call.get();
+        return current.submit(chatId, estimatedTokens, replace, call);
     }
 
     /**
-     * Отправляем ChatGPT серию сообщений: prompt, message1, answer1, message2, answer2, ..., messageN
-     * Ответ ChatGPT добавляется в конец messageHistory для последующейго использования
+     * Подгоняет историю под бюджет токенов.
+     * Удаленные старые сообщения (вместе с прежним summary) сворачиваются ChatGPT в новое краткое содержание,
+     * которое дальше отправляется вместо них. Future завершается, когда краткое содержание готово
+     * (если ChatGPT его не составил - просто без него; ошибкой завершается, только если запрос заменен более новым).
      */
-    private String sendMessagesToChatGPT(){
-        ChatCompletion chatCompletion = ChatCompletion.builder()
-                .model(ChatCompletion.Model.GPT4Turbo.getName()) // GPT4Turbo or GPT_3_5_TURBO
-                .messages(messageHistory)
-                .maxTokens(3000)
-                .temperature(0.9)
-                .build();
+    private CompletableFuture<Void> compactHistory(long chatId, ChatHistory history) {
+        List<Message> removed = history.trimToBudget();
+        if (removed.isEmpty() || !summarizeHistory)
+            return CompletableFuture.completedFuture(null);
 
-        ChatCompletionResponse response = chatGPT.chatCompletion(chatCompletion);
-        Message res = response.getChoices().get(0).getMessage();
-        messageHistory.add(res);
+        StringBuilder text = new StringBuilder();
+        if (history.getSummary() != null)
+            text.append(history.getSummary()).append("\n\n");
+        for (Message message : removed)
+            text.append(message.getRole()).append(": ").append(message.getContent()).append("\n");
 
-        return res.getContent();
+        List<Message> request = Arrays.asList(Message.ofSystem(SUMMARY_PROMPT), Message.of(text.toString()));
+        return schedule(chatId, TokenCounter.count(request), true,
+                        () -> backends.complete(SUMMARY_ROUTE, request, SUMMARY_MAX_TOKENS, 0.3).thenApply(answer -> answer.content))
+                .handle((answer, error) -> {
+                    if (unwrap(error) instanceof CancellationException cancelled)
+                        throw new CompletionException(cancelled);
+                    if (error != null) {
+                        logger.warn("Can't summarize chat history: {}", unwrap(error).getMessage());
+                        return null;
+                    }
+                    history.setSummary(SUMMARY_TITLE + answer);
+                    history.trimToBudget();
+                    return null;
+                });
     }
 }
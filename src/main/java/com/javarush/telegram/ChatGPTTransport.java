@@ -0,0 +1,400 @@
+package com.javarush.telegram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.plexpt.chatgpt.entity.chat.ChatCompletion;
+import com.plexpt.chatgpt.entity.chat.Message;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * HTTP-транспорт для запросов к ChatGPT (OpenAI-совместимый /v1/chat/completions).
+ * Один HttpClient на все запросы: соединения переиспользуются (keep-alive), по HTTP/2 запросы мультиплексируются в одном соединении.
+ * Число одновременных запросов ограничено: запрос без свободного места ждет его в очереди (не занимая поток)
+ * не дольше connectTimeout. У запросов есть таймауты на соединение, на ответ и общий - по общему таймауту
+ * (и при отмене future) текущая попытка прерывается, а поток ответа закрывается.
+ * Ответы 429 и 5xx, а также сетевые ошибки повторяются с экспоненциальной задержкой со случайным разбросом (jitter).
+ * После серии неудач срабатывает CircuitBreaker - запросы сразу завершаются ChatGPTUnavailableException.
+ */
+public class ChatGPTTransport {
+    private static final String DATA_PREFIX = "data:";
+    private static final String DONE = "[DONE]";
+
+    /**
+     * Настройки транспорта
+     */
+    public static class Settings {
+        public String apiHost = "https://api.openai.com/";
+        public InetSocketAddress proxy = new InetSocketAddress("18.199.183.77", 49232); //null - без прокси
+        public int maxConcurrentRequests = 64; //сколько запросов может выполняться одновременно
+        public boolean http2 = true;
+        public Duration connectTimeout = Duration.ofSeconds(10);
+        public Duration responseTimeout = Duration.ofSeconds(60); //ожидание начала ответа
+        public Duration totalTimeout = Duration.ofSeconds(180); //весь запрос вместе с повторами
+        public int maxRetries = 3;
+        public long retryBaseDelayMillis = 500;
+        public long retryMaxDelayMillis = 10_000;
+        public int breakerFailureThreshold = 5;
+        public long breakerOpenMillis = 30_000;
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Settings settings;
+    private final String apiKey;
+    private final URI completionsUri;
+    private final HttpClient httpClient;
+    private final ExecutorService readers;
+    private final CircuitBreaker breaker;
+    private final ArrayDeque<CompletableFuture<Void>> slotWaiters = new ArrayDeque<>(); //запросы, ждущие свободного места
+    private int freeSlots; //под synchronized (slotWaiters)
+
+    public ChatGPTTransport(String apiKey, Settings settings) {
+        this.settings = settings;
+        this.apiKey = apiKey;
+        this.completionsUri = URI.create(settings.apiHost).resolve("v1/chat/completions");
+        this.freeSlots = settings.maxConcurrentRequests;
+        this.breaker = new CircuitBreaker(settings.breakerFailureThreshold, settings.breakerOpenMillis);
+        this.readers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "chatgpt-transport");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(settings.http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(settings.connectTimeout)
+                .executor(readers);
+        if (settings.proxy != null)
+            builder.proxy(ProxySelector.of(settings.proxy));
+        this.httpClient = builder.build();
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Обычный запрос: future завершается полным ответом
+     */
+    public CompletableFuture<ChatGPTAnswer> complete(ChatCompletion chatCompletion) {
+        HttpRequest request = createRequest(toJson(chatCompletion, false), "application/json");
+        return execute(request, HttpResponse.BodyHandlers.ofString(), response -> parseAnswer(response.body()));
+    }
+
+    /**
+     * Потоковый (stream=true) запрос: ответ приходит кусочками (Server-Sent Events).
+     * onUpdate получает весь накопленный на данный момент текст ответа, future завершается полным ответом.
+     */
+    public CompletableFuture<ChatGPTAnswer> stream(ChatCompletion chatCompletion, Consumer<String> onUpdate) {
+        HttpRequest request = createRequest(toJson(chatCompletion, true), "text/event-stream");
+        return execute(request, HttpResponse.BodyHandlers.ofLines(), response -> readEvents(response.body(), onUpdate));
+    }
+
+    private HttpRequest createRequest(String body, String accept) {
+        return HttpRequest.newBuilder(completionsUri)
+                .timeout(settings.responseTimeout)
+                .header("Authorization", "Bearer " + apiKey)
+                .header("Content-Type", "application/json")
+                .header("Accept", accept)
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    /**
+     * Один запрос со всеми его повторами: отмена прерывает текущую попытку и закрывает поток ответа
+     */
+    private static class Call {
+        private volatile boolean cancelled;
+        private volatile CompletableFuture<?> attempt;
+        private volatile Object body;
+
+        void setAttempt(CompletableFuture<?> attempt) {
+            this.attempt = attempt;
+            if (cancelled)
+                attempt.cancel(true);
+        }
+
+        void setBody(Object body) {
+            this.body = body;
+            if (cancelled)
+                discard(body);
+        }
+
+        void cancel() {
+            cancelled = true;
+            CompletableFuture<?> attempt = this.attempt;
+            if (attempt != null)
+                attempt.cancel(true); //HttpClient прерывает обмен по отмене future из sendAsync
+            discard(body);
+        }
+    }
+
+    /**
+     * Общая часть запроса: лимит одновременных запросов, предохранитель, повторы и общий таймаут.
+     * reader разбирает тело успешного (200) ответа.
+     */
+    private <T> CompletableFuture<ChatGPTAnswer> execute(HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                                         Function<HttpResponse<T>, ChatGPTAnswer> reader) {
+        if (!breaker.isCallPermitted()) //не занимаем очередь запросами, которые все равно не уйдут
+            return CompletableFuture.failedFuture(new ChatGPTUnavailableException("ChatGPT is unavailable (circuit breaker is open)"));
+
+        Call call = new Call();
+        CompletableFuture<ChatGPTAnswer> result = acquireSlot()
+                .thenCompose(ignored -> executeInSlot(call, request, handler, reader))
+                .exceptionallyCompose(error -> {
+                    Throwable cause = unwrap(error);
+                    if (isNetworkError(cause))
+                        return CompletableFuture.failedFuture(new ChatGPTUnavailableException("ChatGPT is not responding", cause));
+                    return CompletableFuture.failedFuture(cause);
+                });
+        result.whenComplete((answer, error) -> {
+            if (error instanceof CancellationException)
+                call.cancel(); //ответ больше не нужен вызывающему
+        });
+        return result;
+    }
+
+    private <T> CompletableFuture<ChatGPTAnswer> executeInSlot(Call call, HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                                               Function<HttpResponse<T>, ChatGPTAnswer> reader) {
+        if (call.cancelled) {
+            releaseSlot();
+            return CompletableFuture.failedFuture(new CancellationException());
+        }
+        if (!breaker.allowRequest()) {
+            releaseSlot();
+            return CompletableFuture.failedFuture(new ChatGPTUnavailableException("ChatGPT is unavailable (circuit breaker is open)"));
+        }
+
+        return send(call, request, handler, 0)
+                .thenApplyAsync(response -> {
+                    call.setBody(response.body());
+                    if (response.statusCode() != 200) {
+                        String error = readError(response.body());
+                        if (isRetryable(response.statusCode())) {
+                            breaker.onFailure();
+                            throw new ChatGPTUnavailableException("ChatGPT error " + response.statusCode() + ": " + error, response.statusCode());
+                        }
+                        breaker.onSuccess(); //сервер работает, просто запрос плохой
+                        throw new RuntimeException("ChatGPT error " + response.statusCode() + ": " + error);
+                    }
+
+                    breaker.onSuccess();
+                    return reader.apply(response);
+                }, readers)
+                .orTimeout(settings.totalTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((answer, error) -> {
+                    if (error != null)
+                        call.cancel(); //после таймаута попытка и чтение ответа не должны продолжаться в фоне
+                    releaseSlot();
+                    if (isNetworkError(error))
+                        breaker.onFailure();
+                });
+    }
+
+    /**
+     * Место для запроса: сразу, если есть свободное, иначе - когда освободится (но не дольше connectTimeout)
+     */
+    private CompletableFuture<Void> acquireSlot() {
+        CompletableFuture<Void> slot = new CompletableFuture<>();
+        synchronized (slotWaiters) {
+            if (freeSlots > 0) {
+                freeSlots--;
+                return CompletableFuture.completedFuture(null);
+            }
+            slotWaiters.add(slot);
+        }
+        return slot.orTimeout(settings.connectTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .exceptionallyCompose(error -> CompletableFuture.failedFuture(
+                        new ChatGPTUnavailableException("Too many concurrent ChatGPT requests")));
+    }
+
+    /**
+     * Отдает место первому ждущему запросу (кроме тех, кто уже перестал ждать) или возвращает его в свободные
+     */
+    private void releaseSlot() {
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (slotWaiters) {
+                next = slotWaiters.poll();
+                if (next == null) {
+                    freeSlots++;
+                    return;
+                }
+            }
+            if (next.complete(null))
+                return;
+        }
+    }
+
+    /**
+     * Отправляет запрос, повторяя его при 429/5xx и сетевых ошибках
+     */
+    private <T> CompletableFuture<HttpResponse<T>> send(Call call, HttpRequest request, HttpResponse.BodyHandler<T> handler, int attempt) {
+        if (call.cancelled)
+            return CompletableFuture.failedFuture(new CancellationException());
+
+        CompletableFuture<HttpResponse<T>> exchange = httpClient.sendAsync(request, handler);
+        call.setAttempt(exchange);
+        return exchange.handle((response, error) -> {
+            boolean retryable = error != null ? isNetworkError(error) : isRetryable(response.statusCode());
+            if (!retryable || attempt >= settings.maxRetries || call.cancelled) {
+                return error == null
+                        ? CompletableFuture.completedFuture(response)
+                        : CompletableFuture.<HttpResponse<T>>failedFuture(error);
+            }
+
+            long delay = retryDelay(attempt, response);
+            if (response != null)
+                discard(response.body());
+
+            return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, readers))
+                    .thenCompose(ignored -> send(call, request, handler, attempt + 1));
+        }).thenCompose(future -> future);
+    }
+
+    /**
+     * Экспоненциальная задержка с jitter ("full jitter"), но не меньше Retry-After от сервера
+     */
+    private long retryDelay(int attempt, HttpResponse<?> response) {
+        long max = Math.min(settings.retryMaxDelayMillis, settings.retryBaseDelayMillis << Math.min(attempt, 20));
+        long delay = ThreadLocalRandom.current().nextLong(max / 2, max + 1);
+
+        String retryAfter = response != null ? response.headers().firstValue("Retry-After").orElse(null) : null;
+        if (retryAfter != null) {
+            try {
+                delay = Math.max(delay, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim())));
+            } catch (NumberFormatException e) {
+                //Retry-After в виде даты - используем свою задержку
+            }
+        }
+        return Math.min(delay, settings.retryMaxDelayMillis);
+    }
+
+    private static boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Сетевая ошибка или таймаут - сервер не ответил
+     */
+    private static boolean isNetworkError(Throwable error) {
+        Throwable cause = unwrap(error);
+        return cause instanceof IOException || cause instanceof TimeoutException;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static void discard(Object body) {
+        if (body instanceof Stream<?> lines)
+            lines.close();
+    }
+
+    private static String readError(Object body) {
+        if (body instanceof Stream<?> lines) {
+            try (lines) {
+                return String.join("\n", (Iterable<String>) lines.map(String::valueOf)::iterator);
+            }
+        }
+        return String.valueOf(body);
+    }
+
+    private ChatGPTAnswer parseAnswer(String body) {
+        try {
+            JsonNode root = mapper.readTree(body);
+            String content = root.path("choices").path(0).path("message").path("content").asText("");
+            JsonNode usage = root.path("usage");
+            return new ChatGPTAnswer(content, usage.path("prompt_tokens").asInt(0), usage.path("completion_tokens").asInt(0));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't parse ChatGPT answer!", e);
+        }
+    }
+
+    private ChatGPTAnswer readEvents(Stream<String> body, Consumer<String> onUpdate) {
+        try (Stream<String> lines = body) {
+            StringBuilder answer = new StringBuilder();
+            int promptTokens = 0;
+            int completionTokens = 0;
+
+            Iterator<String> iterator = lines.iterator();
+            while (iterator.hasNext()) {
+                String line = iterator.next();
+                if (!line.startsWith(DATA_PREFIX))
+                    continue; //пустые строки-разделители и комментарии SSE
+
+                String data = line.substring(DATA_PREFIX.length()).trim();
+                if (data.equals(DONE))
+                    break;
+
+                JsonNode event = parseEvent(data);
+                JsonNode delta = event.path("choices").path(0).path("delta").path("content");
+                if (delta.isTextual() && !delta.asText().isEmpty()) {
+                    answer.append(delta.asText());
+                    onUpdate.accept(answer.toString());
+                }
+
+                JsonNode usage = event.path("usage"); //приходит в последнем событии (stream_options.include_usage)
+                if (usage.isObject()) {
+                    promptTokens = usage.path("prompt_tokens").asInt(0);
+                    completionTokens = usage.path("completion_tokens").asInt(0);
+                }
+            }
+            return new ChatGPTAnswer(answer.toString(), promptTokens, completionTokens);
+        }
+    }
+
+    private JsonNode parseEvent(String data) {
+        try {
+            return mapper.readTree(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't parse ChatGPT stream event!", e);
+        }
+    }
+
+    /**
+     * Тело запроса к /v1/chat/completions (package-private - для бенчмарка размера запроса)
+     */
+    String toJson(ChatCompletion chatCompletion, boolean stream) {
+        ObjectNode body = mapper.createObjectNode();
+        body.put("model", chatCompletion.getModel());
+        body.put("temperature", chatCompletion.getTemperature());
+        if (chatCompletion.getMaxTokens() != null)
+            body.put("max_tokens", chatCompletion.getMaxTokens());
+        if (stream) {
+            body.put("stream", true);
+            body.putObject("stream_options").put("include_usage", true);
+        }
+
+        ArrayNode messages = body.putArray("messages");
+        for (Message message : chatCompletion.getMessages()) {
+            messages.addObject()
+                    .put("role", message.getRole())
+                    .put("content", message.getContent());
+        }
+        return body.toString();
+    }
+}
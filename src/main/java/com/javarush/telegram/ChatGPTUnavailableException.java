@@ -0,0 +1,34 @@
+package com.javarush.telegram;
+
+/**
+ * ChatGPT сейчас недоступен: сервер не отвечает или перегружен, повторные попытки не помогли,
+ * либо предохранитель (CircuitBreaker) разомкнут после серии ошибок.
+ */
+public class ChatGPTUnavailableException extends RuntimeException {
+    private final int statusCode; //HTTP-код ответа сервера, 0 - ответа не было
+
+    public ChatGPTUnavailableException(String message) {
+        this(message, 0);
+    }
+
+    public ChatGPTUnavailableException(String message, int statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public ChatGPTUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+        this.statusCode = 0;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Сервер ответил 429 Too Many Requests - превышены лимиты ключа
+     */
+    public boolean isRateLimited() {
+        return statusCode == 429;
+    }
+}
@@ -0,0 +1,160 @@
+package com.javarush.telegram;
+
+import com.plexpt.chatgpt.entity.chat.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * История переписки с ChatGPT для одного чата.
+ * Первое сообщение - prompt (system), он никогда не удаляется. Дальше пары "вопрос"-"ответ".
+ * История ограничена количеством сообщений и бюджетом токенов (оценка через TokenCounter):
+ * самые старые вопросы/ответы удаляются первыми, а вместо них может храниться краткое содержание (summary).
+ * Методы синхронизированы: ответ ChatGPT может добавляться в историю из потока, читающего ответ.
+ */
+public class ChatHistory {
+    public static final int DEFAULT_MAX_MESSAGES = 41; //prompt + 20 пар "вопрос"-"ответ"
+    public static final int DEFAULT_MAX_TOKENS = 4000; //бюджет токенов на историю (без учета ответа)
+
+    private final int maxMessages;
+    private final int maxTokens;
+
+    private Message prompt;
+    private String summary; //краткое содержание удаленных из истории сообщений
+    private final List<Message> turns = new ArrayList<>();
+    private final List<Integer> turnTokens = new ArrayList<>();
+    private int tokens; //оценка токенов prompt + summary + turns
+    private long version; //растет при каждом изменении истории (см. UserSession.version())
+
+    public ChatHistory() {
+        this(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_TOKENS);
+    }
+
+    public ChatHistory(int maxMessages, int maxTokens) {
+        this.maxMessages = maxMessages;
+        this.maxTokens = maxTokens;
+    }
+
+    /**
+     * Начинает новый диалог с заданным контекстом (prompt)
+     */
+    public synchronized void setPrompt(String prompt) {
+        clear();
+        version++;
+        this.prompt = Message.ofSystem(prompt);
+        tokens = TokenCounter.count(this.prompt);
+    }
+
+    public synchronized void add(Message message) {
+        version++;
+        int count = TokenCounter.count(message);
+        turns.add(message);
+        turnTokens.add(count);
+        tokens += count;
+
+        while (turns.size() + 1 > maxMessages && turns.size() > 1)
+            removeOldestTurn();
+    }
+
+    /**
+     * Сообщения для отправки в ChatGPT: prompt, summary (если есть) и вопросы/ответы
+     */
+    public synchronized List<Message> getMessages() {
+        List<Message> messages = new ArrayList<>(turns.size() + 2);
+        if (prompt != null)
+            messages.add(prompt);
+        if (summary != null)
+            messages.add(Message.ofSystem(summary));
+        messages.addAll(turns);
+        return messages;
+    }
+
+    /**
+     * Контекст диалога (prompt), null - диалог еще не начат
+     */
+    public synchronized String getPrompt() {
+        return prompt != null ? prompt.getContent() : null;
+    }
+
+    /**
+     * Вопросы и ответы без prompt и summary
+     */
+    public synchronized List<Message> getTurns() {
+        return List.copyOf(turns);
+    }
+
+    public synchronized int getTokenCount() {
+        return tokens;
+    }
+
+    public synchronized String getSummary() {
+        return summary;
+    }
+
+    /**
+     * Заменяет краткое содержание удаленных сообщений
+     */
+    public synchronized void setSummary(String summary) {
+        version++;
+        if (this.summary != null)
+            tokens -= TokenCounter.count(Message.ofSystem(this.summary));
+        this.summary = summary;
+        if (summary != null)
+            tokens += TokenCounter.count(Message.ofSystem(summary));
+    }
+
+    /**
+     * Удаляет самые старые вопросы/ответы, пока история не поместится в бюджет токенов.
+     * Последний вопрос не удаляется никогда.
+     * Возвращает удаленные сообщения - из них можно составить summary.
+     */
+    public synchronized List<Message> trimToBudget() {
+        List<Message> removed = new ArrayList<>();
+        while (tokens > maxTokens && turns.size() > 1)
+            removed.addAll(removeOldestTurn());
+        if (!removed.isEmpty())
+            version++;
+        return removed;
+    }
+
+    /**
+     * Удаляет последнее сообщение, если это message - например, вопрос, на который ChatGPT не ответил
+     */
+    public synchronized boolean removeLast(Message message) {
+        int last = turns.size() - 1;
+        if (last < 0 || turns.get(last) != message)
+            return false;
+
+        tokens -= turnTokens.remove(last);
+        turns.remove(last);
+        version++;
+        return true;
+    }
+
+    public synchronized void clear() {
+        prompt = null;
+        summary = null;
+        turns.clear();
+        turnTokens.clear();
+        tokens = 0;
+        version++;
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    private List<Message> removeOldestTurn() {
+        List<Message> removed = new ArrayList<>(2);
+        removed.add(removeFirst());
+        //история не должна начинаться с ответа, у которого удален вопрос
+        while (turns.size() > 1 && "assistant".equals(turns.get(0).getRole()))
+            removed.add(removeFirst());
+        return removed;
+    }
+
+    private Message removeFirst() {
+        tokens -= turnTokens.remove(0);
+        return turns.remove(0);
+    }
+}
@@ -0,0 +1,154 @@
+package com.javarush.telegram;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Переписка пользователя в режиме MESSAGE: кольцевой буфер с ограничением и по числу сообщений, и по размеру в байтах.
+ * Когда лимит превышен, удаляются самые старые сообщения.
+ * Сообщения хранятся одним массивом байт (UTF-8) уже через разделитель "\n\n", поэтому текст для ChatGPT
+ * получается одним декодированием буфера, без склейки списка строк и без копий сообщений на каждое нажатие кнопки.
+ */
+public class ChatTranscript {
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024; //больше в запрос к ChatGPT все равно не поместится
+    private static final byte[] SEPARATOR = "\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int maxBytes;
+    private final int[] lengths; //длины сообщений в байтах (кольцо)
+    private int first; //индекс самого старого сообщения в lengths
+    private int size;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY]; //текст (кольцо), растет до maxBytes
+    private int start; //начало самого старого сообщения в buffer
+    private int used; //занято байт вместе с разделителями
+    private long version; //растет при каждом изменении переписки (см. UserSession.version())
+
+    public ChatTranscript() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    public ChatTranscript(int maxEntries, int maxBytes) {
+        this.lengths = new int[maxEntries];
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Добавляет сообщение. Сообщение длиннее лимита обрезается - остается его конец, как самая свежая часть переписки.
+     */
+    public void add(String message) {
+        if (message == null || message.isEmpty())
+            return;
+
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int offset = 0;
+        if (bytes.length > maxBytes) {
+            offset = bytes.length - maxBytes;
+            while (offset < bytes.length && (bytes[offset] & 0xC0) == 0x80)
+                offset++; //не начинаем с середины многобайтового символа
+        }
+        int length = bytes.length - offset;
+
+        while (size == lengths.length || (size > 0 && used + SEPARATOR.length + length > maxBytes))
+            removeOldest();
+
+        ensureCapacity(used + (size > 0 ? SEPARATOR.length : 0) + length);
+        if (size > 0)
+            write(SEPARATOR, 0, SEPARATOR.length);
+        write(bytes, offset, length);
+        lengths[(first + size) % lengths.length] = length;
+        size++;
+        version++;
+    }
+
+    /**
+     * Все сообщения через пустую строку - то же, что String.join("\n\n", messages)
+     */
+    public String render() {
+        if (start + used <= buffer.length)
+            return new String(buffer, start, used, StandardCharsets.UTF_8);
+        return new String(linear(), StandardCharsets.UTF_8);
+    }
+
+    public List<String> toList() {
+        byte[] text = linear();
+        List<String> result = new ArrayList<>(size);
+        int position = 0;
+        for (int i = 0; i < size; i++) {
+            int length = lengths[(first + i) % lengths.length];
+            result.add(new String(text, position, length, StandardCharsets.UTF_8));
+            position += length + SEPARATOR.length;
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Размер текста в байтах вместе с разделителями
+     */
+    public int getByteCount() {
+        return used;
+    }
+
+    public void clear() {
+        first = 0;
+        size = 0;
+        start = 0;
+        used = 0;
+        buffer = new byte[INITIAL_CAPACITY]; //большой буфер отпускаем
+        version++;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    private void removeOldest() {
+        int removed = lengths[first] + (size > 1 ? SEPARATOR.length : 0);
+        first = (first + 1) % lengths.length;
+        size--;
+        start = (start + removed) % buffer.length;
+        used -= removed;
+        if (size == 0)
+            start = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= buffer.length)
+            return;
+
+        byte[] grown = new byte[Math.min(maxBytes, Math.max(capacity, buffer.length * 2))];
+        byte[] text = linear();
+        System.arraycopy(text, 0, grown, 0, used);
+        buffer = grown;
+        start = 0;
+    }
+
+    private void write(byte[] source, int offset, int length) {
+        int position = (start + used) % buffer.length;
+        int head = Math.min(length, buffer.length - position);
+        System.arraycopy(source, offset, buffer, position, head);
+        System.arraycopy(source, offset + head, buffer, 0, length - head);
+        used += length;
+    }
+
+    /**
+     * Текст одним куском (кольцо "разворачивается")
+     */
+    private byte[] linear() {
+        byte[] text = new byte[used];
+        int head = Math.min(used, buffer.length - start);
+        System.arraycopy(buffer, start, text, 0, head);
+        System.arraycopy(buffer, 0, text, head, used - head);
+        return text;
+    }
+}
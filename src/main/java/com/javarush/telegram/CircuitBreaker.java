@@ -0,0 +1,67 @@
+package com.javarush.telegram;
+
+/**
+ * Предохранитель (circuit breaker) для внешнего сервиса.
+ * После failureThreshold ошибок подряд "размыкается" на openMillis: запросы сразу получают отказ, не дожидаясь таймаутов.
+ * Потом пропускает один пробный запрос - если он успешен, работа восстанавливается.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Можно ли сейчас отправлять запрос
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis)
+                    return false;
+                state = State.HALF_OPEN; //пропускаем один пробный запрос
+                return true;
+            default:
+                return false; //пробный запрос уже отправлен, ждем его результата
+        }
+    }
+
+    /**
+     * То же, что allowRequest(), но без перехода в HALF_OPEN - только проверка
+     */
+    public synchronized boolean isCallPermitted() {
+        return state == State.CLOSED || (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis);
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
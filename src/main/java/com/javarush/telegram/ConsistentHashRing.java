@@ -0,0 +1,112 @@
+package com.javarush.telegram;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Консистентное хеширование chatId на узлы (процессы-воркеры бота).
+ * У каждого узла VIRTUAL_NODES точек на кольце, поэтому чаты распределяются равномерно,
+ * а при добавлении или удалении узла переезжает только ~1/N чатов.
+ * Кольцо неизменяемое: одинаковый список узлов на любом процессе дает одинаковое распределение.
+ */
+public class ConsistentHashRing {
+    public static final int VIRTUAL_NODES = 160;
+
+    private final List<String> nodes;
+    private final long[] points; //отсортированные точки кольца
+    private final String[] owners; //узел для каждой точки
+
+    public ConsistentHashRing(Collection<String> nodes) {
+        this.nodes = List.copyOf(nodes);
+
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String node : this.nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++)
+                ring.putIfAbsent(hash(node + "#" + i), node);
+        }
+
+        points = new long[ring.size()];
+        owners = new String[ring.size()];
+        int index = 0;
+        for (Map.Entry<Long, String> entry : ring.entrySet()) {
+            points[index] = entry.getKey();
+            owners[index] = entry.getValue();
+            index++;
+        }
+    }
+
+    /**
+     * Узел, которому принадлежит чат: первая точка кольца по часовой стрелке от хеша chatId
+     */
+    public String nodeFor(long chatId) {
+        if (points.length == 0)
+            throw new IllegalStateException("Hash ring is empty");
+
+        long hash = mix(chatId);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (points[middle] < hash)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * Кольцо с добавленным узлом
+     */
+    public ConsistentHashRing with(String node) {
+        List<String> result = new ArrayList<>(nodes);
+        if (!result.contains(node))
+            result.add(node);
+        return new ConsistentHashRing(result);
+    }
+
+    /**
+     * Кольцо без узла
+     */
+    public ConsistentHashRing without(String node) {
+        List<String> result = new ArrayList<>(nodes);
+        result.remove(node);
+        return new ConsistentHashRing(result);
+    }
+
+    /**
+     * 64-битный FNV-1a с перемешиванием - не зависит от String.hashCode() и одинаков на всех JVM
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Финальное перемешивание MurmurHash3 (fmix64): соседние chatId попадают в разные места кольца
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
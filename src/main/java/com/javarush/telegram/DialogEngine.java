@@ -0,0 +1,202 @@
+package com.javarush.telegram;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Диалог бота в виде таблиц переходов вместо цепочки if-ов.
+ * Команды (/start, /date, ...) и кнопки (date_*, message_*) ищутся в HashMap, состояние режима - в EnumMap,
+ * поэтому обработка обновления не зависит от количества режимов.
+ * Таблицы собираются один раз через Builder и дальше не меняются.
+ * <p>
+ * Порядок обработки обновления:
+ * 1. команда из таблицы команд - переключает режим и вызывает ее обработчик (и запускает анкету режима, если она есть);
+ * 2. любая другая команда - fallback;
+ * 3. кнопка, зарегистрированная в текущем режиме (по префиксу до первого '_' включительно или по полному коду);
+ * 4. анкета (DialogWizard) текущего режима или его обработчик текстовых сообщений;
+ * 5. fallback - режим ничего не обрабатывает.
+ */
+public class DialogEngine {
+    /**
+     * Обработчик: message - текст сообщения, команда или код нажатой кнопки
+     */
+    public interface Handler {
+        void handle(UserSession session, String message);
+    }
+
+    private final Map<String, Command> commands;
+    private final EnumMap<DialogMode, State> states;
+    private final Handler fallback;
+    private final Consumer<String> say;
+
+    private DialogEngine(Builder builder) {
+        this.commands = Map.copyOf(builder.commands);
+        this.states = new EnumMap<>(DialogMode.class);
+        builder.states.forEach((mode, state) -> states.put(mode, state.compile()));
+        this.fallback = builder.fallback;
+        this.say = builder.say;
+    }
+
+    /**
+     * Обрабатывает одно обновление.
+     * message - текст сообщения (пустая строка, если его нет), buttonKey - код нажатой кнопки (пустая строка, если ее нет),
+     * command - сообщение является командой Telegram (начинается с '/')
+     */
+    public void dispatch(UserSession session, String message, String buttonKey, boolean command) {
+        if (message == null)
+            message = "";
+
+        Command transition = commands.get(message);
+        if (transition != null) {
+            transition.run(session, message, say);
+            return;
+        }
+
+        State state = command || session.currentMode == null ? null : states.get(session.currentMode);
+        if (state == null) {
+            fallback.handle(session, message);
+            return;
+        }
+
+        if (!buttonKey.isEmpty()) {
+            Handler button = state.button(buttonKey);
+            if (button != null) {
+                button.handle(session, buttonKey);
+                return;
+            }
+        }
+
+        if (state.wizard != null)
+            state.wizard.answer(session, message, say);
+        else if (state.onMessage != null)
+            state.onMessage.handle(session, message);
+        else
+            fallback.handle(session, message);
+    }
+
+    public boolean hasCommand(String command) {
+        return commands.containsKey(command);
+    }
+
+    /**
+     * Сборка таблиц диалога. say - как отправлять пользователю вопросы анкет
+     */
+    public static class Builder {
+        private final Consumer<String> say;
+        private final Map<String, Command> commands = new HashMap<>();
+        private final EnumMap<DialogMode, StateBuilder> states = new EnumMap<>(DialogMode.class);
+        private Handler fallback = (session, message) -> { };
+
+        public Builder(Consumer<String> say) {
+            this.say = say;
+        }
+
+        /**
+         * Команда переключает диалог в режим mode (null - режим не меняется) и вызывает onEnter.
+         * Если у режима есть анкета, после onEnter задается ее первый вопрос.
+         */
+        public Builder command(String command, DialogMode mode, Handler onEnter) {
+            if (commands.put(command, new Command(mode, onEnter)) != null)
+                throw new IllegalStateException("Duplicate command " + command);
+            return this;
+        }
+
+        /**
+         * Кнопка в режиме mode. key - полный код кнопки или префикс, заканчивающийся на '_' (например, "date_")
+         */
+        public Builder button(DialogMode mode, String key, Handler handler) {
+            if (state(mode).buttons.put(key, handler) != null)
+                throw new IllegalStateException("Duplicate button " + key + " in " + mode);
+            return this;
+        }
+
+        /**
+         * Обработчик текстовых сообщений в режиме mode
+         */
+        public Builder onMessage(DialogMode mode, Handler handler) {
+            state(mode).onMessage = handler;
+            return this;
+        }
+
+        /**
+         * Анкета режима mode: все текстовые сообщения в этом режиме - ответы на ее вопросы
+         */
+        public Builder wizard(DialogMode mode, DialogWizard wizard) {
+            if (wizard.size() == 0)
+                throw new IllegalStateException("Wizard for " + mode + " has no questions");
+            state(mode).wizard = wizard;
+            return this;
+        }
+
+        /**
+         * Что делать с сообщением, которое никто не обработал
+         */
+        public Builder fallback(Handler fallback) {
+            this.fallback = fallback;
+            return this;
+        }
+
+        public DialogEngine build() {
+            for (Command command : commands.values()) {
+                StateBuilder state = command.mode != null ? states.get(command.mode) : null;
+                command.wizard = state != null ? state.wizard : null;
+            }
+            return new DialogEngine(this);
+        }
+
+        private StateBuilder state(DialogMode mode) {
+            return states.computeIfAbsent(mode, key -> new StateBuilder());
+        }
+    }
+
+    private static class Command {
+        final DialogMode mode;
+        final Handler onEnter;
+        DialogWizard wizard; //анкета режима mode - заполняется в build()
+
+        Command(DialogMode mode, Handler onEnter) {
+            this.mode = mode;
+            this.onEnter = onEnter;
+        }
+
+        void run(UserSession session, String message, Consumer<String> say) {
+            if (mode != null && session.currentMode != mode) {
+                session.currentMode = mode;
+                session.changed();
+            }
+            onEnter.handle(session, message);
+            if (wizard != null)
+                wizard.start(session, say);
+        }
+    }
+
+    private static class StateBuilder {
+        final Map<String, Handler> buttons = new HashMap<>();
+        Handler onMessage;
+        DialogWizard wizard;
+
+        State compile() {
+            return new State(Map.copyOf(buttons), onMessage, wizard);
+        }
+    }
+
+    private static class State {
+        final Map<String, Handler> buttons;
+        final Handler onMessage;
+        final DialogWizard wizard;
+
+        State(Map<String, Handler> buttons, Handler onMessage, DialogWizard wizard) {
+            this.buttons = buttons;
+            this.onMessage = onMessage;
+            this.wizard = wizard;
+        }
+
+        Handler button(String key) {
+            int separator = key.indexOf('_');
+            Handler handler = separator >= 0 ? buttons.get(key.substring(0, separator + 1)) : null;
+            return handler != null ? handler : buttons.get(key);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.javarush.telegram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Пошаговая анкета: вопрос -> ответ записывается в поле UserInfo -> следующий вопрос.
+ * Номер текущего вопроса хранится в session.questionCount (начиная с 1).
+ * После последнего ответа вызывается onComplete; новые ответы снова попадают в последний шаг.
+ */
+public class DialogWizard {
+    private final Function<UserSession, UserInfo> target;
+    private final List<Step> steps = new ArrayList<>();
+    private DialogEngine.Handler onComplete = (session, message) -> { };
+
+    /**
+     * target - анкета, которую заполняет мастер (например, session -> session.me)
+     */
+    public DialogWizard(Function<UserSession, UserInfo> target) {
+        this.target = target;
+    }
+
+    public DialogWizard ask(String question, BiConsumer<UserInfo, String> field) {
+        steps.add(new Step(question, field));
+        return this;
+    }
+
+    public DialogWizard onComplete(DialogEngine.Handler onComplete) {
+        this.onComplete = onComplete;
+        return this;
+    }
+
+    void start(UserSession session, Consumer<String> say) {
+        session.questionCount = 1;
+        session.changed();
+        say.accept(steps.get(0).question);
+    }
+
+    void answer(UserSession session, String message, Consumer<String> say) {
+        int index = session.questionCount - 1;
+        if (index < 0 || index >= steps.size())
+            return;
+
+        steps.get(index).field.accept(target.apply(session), message);
+        session.changed();
+        if (index + 1 < steps.size()) {
+            session.questionCount = index + 2;
+            say.accept(steps.get(index + 1).question);
+        } else {
+            onComplete.handle(session, message);
+        }
+    }
+
+    int size() {
+        return steps.size();
+    }
+
+    private static class Step {
+        final String question;
+        final BiConsumer<UserInfo, String> field;
+
+        Step(String question, BiConsumer<UserInfo, String> field) {
+            this.question = question;
+            this.field = field;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.javarush.telegram;
+
+import java.util.Set;
+
+/**
+ * Локальный детерминированный embedder без модели и без сети (feature hashing).
+ * Слова и буквенные триграммы слов хешируются в координаты вектора со знаком +-1, вектор нормируется.
+ * Перефразировки с теми же словами, другим порядком слов, опечатками и другими окончаниями дают близкие векторы,
+ * синонимы - нет (для них нужен настоящий embedder, например модель эмбеддингов OpenAI).
+ * Результат зависит только от текста, поэтому векторы можно сохранять на диск и сравнивать между запусками.
+ */
+public class HashingEmbedder implements TextEmbedder {
+    public static final int DEFAULT_DIMENSION = 256;
+    private static final float WORD_WEIGHT = 1.0f;
+    private static final float TRIGRAM_WEIGHT = 1.0f; //триграммы весят как слово: опечатка меняет мало признаков, другое слово - все
+    private static final int TRIGRAM_SEED = 0x9E3779B9;
+
+    //предлоги, союзы, частицы и вежливые обращения почти не несут смысла вопроса, но делают похожими любые два вопроса
+    private static final Set<String> STOP_WORDS = Set.of(
+            "а", "и", "в", "во", "на", "с", "со", "к", "ко", "по", "о", "об", "у", "за", "из", "от", "до", "для",
+            "но", "не", "ли", "же", "бы", "ну", "то", "это", "мне", "меня", "я", "ты",
+            "подскажи", "подскажите", "скажи", "скажите", "пожалуйста", "привет", "слушай");
+
+    private static final int MAX_STOP_WORD_LENGTH = 10; //длинные слова не проверяем
+
+    private final int dimension;
+
+    public HashingEmbedder() {
+        this(DEFAULT_DIMENSION);
+    }
+
+    /**
+     * dimension - степень двойки
+     */
+    public HashingEmbedder(int dimension) {
+        if (Integer.bitCount(dimension) != 1)
+            throw new IllegalArgumentException("Dimension must be a power of two: " + dimension);
+        this.dimension = dimension;
+    }
+
+    @Override
+    public String getId() {
+        return "hashing-v1-" + dimension;
+    }
+
+    @Override
+    public int getDimension() {
+        return dimension;
+    }
+
+    @Override
+    public float[] embed(String text) {
+        float[] vector = new float[dimension];
+        char[] chars = normalize(text);
+
+        int start = 0;
+        while (start < chars.length) {
+            while (start < chars.length && chars[start] == ' ')
+                start++;
+            int end = start;
+            while (end < chars.length && chars[end] != ' ')
+                end++;
+            if (end > start && !isStopWord(chars, start, end))
+                addWord(vector, chars, start, end);
+            start = end;
+        }
+
+        double norm = 0;
+        for (float value : vector)
+            norm += value * value;
+        if (norm > 0) {
+            float scale = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < dimension; i++)
+                vector[i] *= scale;
+        }
+        return vector;
+    }
+
+    /**
+     * Нижний регистр, ё -> е, все кроме букв и цифр - пробелы
+     */
+    private static char[] normalize(String text) {
+        char[] chars = new char[text.length()];
+        for (int i = 0; i < chars.length; i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            chars[i] = c == 'ё' ? 'е' : Character.isLetterOrDigit(c) ? c : ' ';
+        }
+        return chars;
+    }
+
+    private static boolean isStopWord(char[] chars, int start, int end) {
+        return end - start <= MAX_STOP_WORD_LENGTH && STOP_WORDS.contains(new String(chars, start, end - start));
+    }
+
+    private void addWord(float[] vector, char[] chars, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + chars[i];
+        add(vector, mix(hash), WORD_WEIGHT);
+
+        //триграммы слова с границами: "^ко", "кот", "от^" - опечатка или другое окончание меняет лишь часть из них
+        for (int i = start - 1; i + 2 <= end; i++) {
+            int trigram = TRIGRAM_SEED;
+            for (int j = i; j < i + 3; j++)
+                trigram = 31 * trigram + (j < start || j >= end ? '^' : chars[j]);
+            add(vector, mix(trigram), TRIGRAM_WEIGHT);
+        }
+    }
+
+    private void add(float[] vector, int hash, float weight) {
+        vector[hash & (dimension - 1)] += hash < 0 ? -weight : weight; //знак - старший бит, индекс - младшие
+    }
+
+    /**
+     * Перемешивание битов хеша (финализатор MurmurHash3)
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
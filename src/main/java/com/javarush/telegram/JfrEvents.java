@@ -0,0 +1,66 @@
+package com.javarush.telegram;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * События Java Flight Recorder. Пишутся только во время записи JFR
+ * (например, java -XX:StartFlightRecording=filename=bot.jfr ...), в остальное время почти ничего не стоят.
+ */
+public class JfrEvents {
+
+    /**
+     * Обработка одного обновления Telegram (span на update)
+     */
+    @Name("tinderbolt.Update")
+    @Label("Update")
+    @Category("TinderBolt")
+    @Description("Обработка одного Update от Telegram")
+    public static class Update extends Event {
+        @Label("Chat Id")
+        public long chatId;
+
+        @Label("Mode")
+        public String mode;
+    }
+
+    @Name("tinderbolt.TelegramApiCall")
+    @Label("Telegram API Call")
+    @Category("TinderBolt")
+    public static class TelegramApiCall extends Event {
+        @Label("Method")
+        public String method;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("tinderbolt.GptRequest")
+    @Label("ChatGPT Request")
+    @Category("TinderBolt")
+    public static class GptRequest extends Event {
+        @Label("Backend")
+        public String backend;
+
+        @Label("Model")
+        public String model;
+
+        @Label("Stream")
+        public boolean stream;
+
+        @Label("Time To First Token (ms)")
+        public long firstTokenMillis;
+
+        @Label("Prompt Tokens")
+        public int promptTokens;
+
+        @Label("Completion Tokens")
+        public int completionTokens;
+
+        @Label("Error")
+        public String error;
+    }
+}
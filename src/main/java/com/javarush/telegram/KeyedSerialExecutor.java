@@ -0,0 +1,71 @@
+package com.javarush.telegram;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Выполняет задачи на общем executor-е так, что задачи с одинаковым ключом идут строго по очереди,
+ * а задачи с разными ключами - параллельно.
+ * Для каждого ключа хранится только "хвост" очереди - future последней задачи.
+ */
+public class KeyedSerialExecutor {
+    private final Executor executor;
+    private final ConcurrentHashMap<Object, CompletableFuture<?>> tails = new ConcurrentHashMap<>();
+
+    public KeyedSerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Ставит задачу в очередь ключа key. Ошибка одной задачи не мешает выполнению следующих.
+     */
+    public <T> CompletableFuture<T> submit(Object key, Supplier<T> task) {
+        AtomicReference<CompletableFuture<T>> result = new AtomicReference<>();
+        tails.compute(key, (k, tail) -> {
+            CompletableFuture<T> next = tail == null
+                    ? CompletableFuture.supplyAsync(task, executor)
+                    : tail.handle((r, e) -> null).thenApplyAsync(ignored -> task.get(), executor);
+            result.set(next);
+            return next;
+        });
+
+        CompletableFuture<T> future = result.get();
+        future.whenComplete((r, e) -> tails.remove(key, future)); //очередь ключа опустела - удаляем хвост
+        return future;
+    }
+
+    public CompletableFuture<Void> execute(Object key, Runnable task) {
+        return submit(key, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Количество ключей, у которых сейчас есть незавершенные задачи
+     */
+    public int activeKeys() {
+        return tails.size();
+    }
+
+    /**
+     * Executor "поток на задачу": на Java 21+ - виртуальные потоки, на более старых JVM - пул daemon-потоков
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String threadName) {
+        try {
+            //Executors.newVirtualThreadPerTaskExecutor() появился только в Java 21
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.javarush.telegram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма длительностей в стиле HdrHistogram: логарифмические интервалы, каждый поделен на 16 равных частей
+ * (точность ~6%), значения в микросекундах от 1 мкс до нескольких дней.
+ * Запись - одно атомарное увеличение счетчика без блокировок и без выделения памяти.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int LINEAR = SUB_BUCKETS * 2; //значения меньше 32 мкс хранятся точно
+    private static final int BUCKETS = SUB_BUCKETS * 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sumMicros = new LongAdder();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(index(micros));
+        sumMicros.add(micros);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    public double getSumSeconds() {
+        return sumMicros.sum() / 1e6;
+    }
+
+    /**
+     * Значение квантиля q (0..1) в секундах, 0 - если записей нет
+     */
+    public double getQuantileSeconds(double q) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return (lowerBound(i) + lowerBound(i + 1)) / 2.0 / 1e6; //середина интервала
+        }
+        return lowerBound(BUCKETS) / 1e6;
+    }
+
+    static int index(long micros) {
+        if (micros < LINEAR)
+            return (int) micros;
+
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+        int index = (shift + 1) * SUB_BUCKETS + (int) ((micros >> shift) & (SUB_BUCKETS - 1));
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    static long lowerBound(int index) {
+        if (index < LINEAR)
+            return index;
+
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+}
@@ -0,0 +1,118 @@
+package com.javarush.telegram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Какое меню команд уже установлено в каждом чате (хеш списка команд).
+ * Позволяет не запрашивать и не устанавливать заново то же самое меню при каждом /start.
+ * Хранится в текстовом файле "ключ=хеш": новые строки дописываются в конец, при старте файл сжимается.
+ */
+public class MenuCache {
+    private static final Logger logger = LoggerFactory.getLogger(MenuCache.class);
+
+    public static final String DEFAULT_SCOPE = "default"; //меню для всех личных чатов (BotCommandScopeAllPrivateChats)
+    public static final int NO_MENU = 0; //у чата нет своего меню
+
+    private final Path file;
+    private final Map<String, Integer> menus = new ConcurrentHashMap<>();
+    private final AtomicLong apiCalls = new AtomicLong();
+    private final AtomicLong apiCallsSaved = new AtomicLong();
+    private BufferedWriter writer;
+
+    public MenuCache(Path file) {
+        this.file = file;
+        if (file != null)
+            open();
+    }
+
+    /**
+     * Хеш меню: одинаковые списки команд дают одинаковый хеш и после перезапуска
+     */
+    public static int hash(List<?> commands) {
+        int hash = commands.toString().hashCode();
+        return hash != NO_MENU ? hash : 1;
+    }
+
+    public Integer get(String key) {
+        return menus.get(key);
+    }
+
+    public void put(String key, int menuHash) {
+        Integer old = menus.put(key, menuHash);
+        if (old == null || old != menuHash)
+            append(key, menuHash);
+    }
+
+    public void recordApiCalls(int count) {
+        apiCalls.addAndGet(count);
+    }
+
+    public void recordApiCallsSaved(int count) {
+        apiCallsSaved.addAndGet(count);
+    }
+
+    public long getApiCalls() {
+        return apiCalls.get();
+    }
+
+    public long getApiCallsSaved() {
+        return apiCallsSaved.get();
+    }
+
+    private void open() {
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            if (Files.exists(file)) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    int separator = line.lastIndexOf('=');
+                    if (separator > 0) {
+                        try {
+                            menus.put(line.substring(0, separator), Integer.parseInt(line.substring(separator + 1)));
+                        } catch (NumberFormatException e) {
+                            //недописанная строка
+                        }
+                    }
+                }
+
+                //переписываем файл без устаревших строк
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    for (Map.Entry<String, Integer> entry : menus.entrySet())
+                        out.write(entry.getKey() + "=" + entry.getValue() + "\n");
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.warn("Can't open menu cache {}: {}", file, e.getMessage());
+            BotMetrics.error("menu_cache");
+        }
+    }
+
+    private synchronized void append(String key, int menuHash) {
+        if (writer == null)
+            return;
+
+        try {
+            writer.write(key + "=" + menuHash + "\n");
+            writer.flush();
+        } catch (IOException e) {
+            logger.warn("Can't save menu cache: {}", e.getMessage());
+            BotMetrics.error("menu_cache");
+        }
+    }
+}
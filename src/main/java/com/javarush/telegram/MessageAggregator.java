@@ -0,0 +1,294 @@
+package com.javarush.telegram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Склеивает несколько сообщений, которые пользователь отправил подряд, в один запрос.
+ * Сообщения чата копятся, пока пользователь пишет; если quietMillis новых сообщений нет,
+ * накопленное отдается обработчику одной пачкой (Batch).
+ * Если новое сообщение пришло, пока пачка еще обрабатывается (ChatGPT отвечает), пачка отменяется,
+ * а ее сообщения добавляются в начало следующей - ответ будет один, на все сообщения сразу.
+ * C - контекст пачки (например, последний Update чата), обработчик получает контекст последнего сообщения.
+ * У сообщения может быть onProcessed - он вызывается, когда закончена обработка пачки, в которую оно попало
+ * (у отмененной пачки - вместе со следующей).
+ */
+public class MessageAggregator<C> {
+    private static final Logger logger = LoggerFactory.getLogger(MessageAggregator.class);
+
+    public static final long DEFAULT_QUIET_MILLIS = 1500;
+    public static final long PREVIOUS_BATCH_TIMEOUT = 10_000; //сколько ждать завершения отмененной пачки
+
+    /**
+     * Обработчик пачки. Вызывается в потоке таймера, один на все чаты: обработчик не должен ни работать долго,
+     * ни ждать (например, места в очереди обновлений) - иначе задержатся пачки других чатов
+     */
+    public interface BatchHandler<C> {
+        void handle(long chatId, Batch<C> batch);
+    }
+
+    private final long quietMillis;
+    private final ScheduledExecutorService timer;
+    private final BatchHandler<C> handler;
+    private final ConcurrentHashMap<Long, ChatState<C>> chats = new ConcurrentHashMap<>();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong mergedCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+
+    public MessageAggregator(long quietMillis, BatchHandler<C> handler) {
+        this(quietMillis, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-aggregator");
+            thread.setDaemon(true);
+            return thread;
+        }), handler);
+    }
+
+    /**
+     * timer - планировщик отложенных пачек (в тестах можно подставить планировщик с виртуальным временем)
+     */
+    public MessageAggregator(long quietMillis, ScheduledExecutorService timer, BatchHandler<C> handler) {
+        this.quietMillis = quietMillis;
+        this.timer = timer;
+        this.handler = handler;
+    }
+
+    /**
+     * Добавляет сообщение чата и откладывает отправку пачки еще на quietMillis
+     */
+    public void submit(long chatId, String text, C context) {
+        submit(chatId, text, context, null);
+    }
+
+    /**
+     * То же, onProcessed вызывается, когда пачка с этим сообщением обработана (null - не нужно)
+     */
+    public void submit(long chatId, String text, C context, Runnable onProcessed) {
+        Batch<C> superseded = null;
+        while (true) {
+            ChatState<C> state = chats.computeIfAbsent(chatId, id -> new ChatState<>());
+            synchronized (state) {
+                if (state.removed)
+                    continue; //состояние только что удалили - берем новое
+
+                Batch<C> inFlight = state.inFlight;
+                if (inFlight != null && !inFlight.isDone()) {
+                    inFlight.cancel();
+                    superseded = inFlight;
+                    state.pending.addAll(0, inFlight.messages);
+                    state.callbacks.addAll(0, inFlight.takeCallbacks());
+                    state.previous = inFlight;
+                    state.inFlight = null;
+                    supersededCount.incrementAndGet();
+                }
+
+                if (!state.pending.isEmpty())
+                    mergedCount.incrementAndGet();
+                state.pending.add(text);
+                if (onProcessed != null)
+                    state.callbacks.add(onProcessed);
+                state.context = context;
+
+                if (state.flush != null)
+                    state.flush.cancel(false);
+                state.flush = timer.schedule(() -> fire(chatId, state), quietMillis, TimeUnit.MILLISECONDS);
+                break;
+            }
+        }
+
+        if (superseded != null)
+            superseded.runCancelActions(); //не под lock-ом: действия могут завершать запросы и трогать сессию чата
+    }
+
+    /**
+     * Пачки, отданные обработчику
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Сообщения, присоединенные к уже накопленным (не породившие отдельный запрос)
+     */
+    public long getMergedCount() {
+        return mergedCount.get();
+    }
+
+    /**
+     * Пачки, отмененные новым сообщением во время обработки
+     */
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    private void fire(long chatId, ChatState<C> state) {
+        Batch<C> batch;
+        synchronized (state) {
+            if (state.pending.isEmpty() || state.removed)
+                return;
+
+            batch = new Batch<>(new ArrayList<>(state.pending), state.context, previousDone(state.previous), new ArrayList<>(state.callbacks));
+            batch.done.whenComplete((r, e) -> finished(chatId, state, batch));
+            state.pending.clear();
+            state.callbacks.clear();
+            state.previous = null;
+            state.flush = null;
+            state.inFlight = batch;
+        }
+
+        batchCount.incrementAndGet();
+        try {
+            handler.handle(chatId, batch);
+        } catch (RuntimeException e) {
+            batch.finish();
+            logger.error("Message batch handler failed", e);
+        }
+    }
+
+    /**
+     * Завершается, когда обработана отмененная пачка previous, но не позже PREVIOUS_BATCH_TIMEOUT (по таймеру агрегатора)
+     */
+    private CompletableFuture<Void> previousDone(Batch<C> previous) {
+        if (previous == null || previous.isDone())
+            return CompletableFuture.completedFuture(null);
+
+        CompletableFuture<Void> done = previous.done.copy();
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (done.complete(null))
+                logger.warn("Previous message batch is not finished in {} ms", PREVIOUS_BATCH_TIMEOUT);
+        }, PREVIOUS_BATCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        done.whenComplete((result, error) -> timeout.cancel(false));
+        return done;
+    }
+
+    /**
+     * Пачка обработана - если новых сообщений нет, состояние чата больше не нужно
+     */
+    private void finished(long chatId, ChatState<C> state, Batch<C> batch) {
+        synchronized (state) {
+            if (state.inFlight == batch)
+                state.inFlight = null;
+            if (state.inFlight == null && state.pending.isEmpty() && state.flush == null) {
+                state.removed = true;
+                chats.remove(chatId, state);
+            }
+        }
+    }
+
+    private static class ChatState<C> {
+        final List<String> pending = new ArrayList<>();
+        final List<Runnable> callbacks = new ArrayList<>(); //onProcessed сообщений из pending
+        C context;
+        ScheduledFuture<?> flush;
+        Batch<C> inFlight;
+        Batch<C> previous; //отмененная пачка, сообщения которой вошли в следующую
+        boolean removed;
+    }
+
+    /**
+     * Пачка сообщений одного чата. Обработчик должен вызвать finish(), когда закончит с ней работать
+     */
+    public static class Batch<C> {
+        private final List<String> messages;
+        private final C context;
+        private final CompletableFuture<Void> previousDone;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final CompletableFuture<Void> cancellation = new CompletableFuture<>(); //для onCancel()
+        private volatile boolean cancelled;
+        private List<Runnable> callbacks;
+
+        Batch(List<String> messages, C context, CompletableFuture<Void> previousDone, List<Runnable> callbacks) {
+            this.messages = List.copyOf(messages);
+            this.context = context;
+            this.previousDone = previousDone;
+            this.callbacks = callbacks;
+        }
+
+        public List<String> getMessages() {
+            return messages;
+        }
+
+        /**
+         * Все сообщения пачки одним текстом, каждое с новой строки
+         */
+        public String getText() {
+            return String.join("\n", messages);
+        }
+
+        public C getContext() {
+            return context;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Бросает CancellationException, если пачку заменила более новая - удобно вызывать
+         * из onUpdate потокового ответа, чтобы прервать уже ненужный запрос к ChatGPT
+         */
+        public void checkNotCancelled() {
+            if (cancelled)
+                throw new CancellationException("Superseded by newer messages");
+        }
+
+        public void finish() {
+            done.complete(null);
+            for (Runnable callback : takeCallbacks()) {
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    logger.error("Message batch callback failed", e);
+                }
+            }
+        }
+
+        public boolean isDone() {
+            return done.isDone();
+        }
+
+        /**
+         * Завершается, когда закончена обработка отмененной предыдущей пачки (например, ее запрос убрал
+         * свой вопрос из истории) - ответ на эту пачку стоит начинать после него, чтобы две пачки
+         * не меняли состояние чата одновременно. Не ждет дольше PREVIOUS_BATCH_TIMEOUT.
+         */
+        public CompletableFuture<Void> previousDone() {
+            return previousDone;
+        }
+
+        /**
+         * action выполнится, когда пачку заменит более новая (сразу, если уже заменила) - например,
+         * чтобы отменить еще не начатый запрос к ChatGPT
+         */
+        public void onCancel(Runnable action) {
+            cancellation.thenRun(action);
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        void runCancelActions() {
+            cancellation.complete(null);
+        }
+
+        /**
+         * onProcessed сообщений пачки - их вызовет либо finish(), либо следующая пачка, если эту отменили
+         */
+        synchronized List<Runnable> takeCallbacks() {
+            List<Runnable> taken = callbacks;
+            callbacks = List.of();
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.javarush.telegram;
+
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Подготовка текста и кнопок к отправке в Telegram.
+ * - проверка markdown-разметки за один проход; для статических текстов из messages/ результат посчитан заранее
+ *   (при загрузке ресурсов) и ищется по ссылке на строку, без прохода по тексту;
+ * - экранирование произвольного текста (ответов ChatGPT, сообщений пользователя) для Markdown и HTML за один проход;
+ * - готовые клавиатуры (InlineKeyboardMarkup) для повторяющихся наборов кнопок.
+ */
+public class MessageRenderer {
+    public static final int MAX_CACHED_KEYBOARDS = 256; //наборы кнопок сверх лимита собираются каждый раз
+
+    private static final ConcurrentHashMap<List<String>, InlineKeyboardMarkup> keyboards = new ConcurrentHashMap<>();
+    private static volatile Map<String, Boolean> staticTexts = new IdentityHashMap<>();
+
+    /**
+     * Запоминает, валидна ли разметка у статических текстов (вызывается при каждой загрузке ресурсов).
+     * Карта заменяется целиком и после публикации не меняется, поэтому читается без блокировок.
+     */
+    public static void precompute(Collection<String> texts) {
+        Map<String, Boolean> result = new IdentityHashMap<>(texts.size() * 2);
+        for (String text : texts)
+            result.put(text, scanMarkdown(text));
+        staticTexts = result;
+    }
+
+    /**
+     * Можно ли отправить текст с parse_mode=markdown: непарные "_" Telegram не примет
+     */
+    public static boolean isValidMarkdown(String text) {
+        if (text == null)
+            return true;
+        Boolean known = staticTexts.get(text);
+        return known != null ? known : scanMarkdown(text);
+    }
+
+    /**
+     * Экранирует служебные символы Markdown (_ * ` [) - текст покажется как есть
+     */
+    public static String escapeMarkdown(String text) {
+        return escape(text, false);
+    }
+
+    /**
+     * Экранирует &, < и > для parse_mode=html
+     */
+    public static String escapeHtml(String text) {
+        return escape(text, true);
+    }
+
+    /**
+     * Клавиатура из пар "текст кнопки", "код кнопки" - по одной кнопке в ряд.
+     * Одинаковые наборы кнопок получают один и тот же объект, поэтому менять его нельзя.
+     */
+    public static InlineKeyboardMarkup keyboard(List<String> buttons) {
+        InlineKeyboardMarkup markup = keyboards.get(buttons);
+        if (markup != null)
+            return markup;
+
+        markup = createKeyboard(buttons);
+        if (keyboards.size() < MAX_CACHED_KEYBOARDS)
+            keyboards.putIfAbsent(List.copyOf(buttons), markup);
+        return markup;
+    }
+
+    private static InlineKeyboardMarkup createKeyboard(List<String> buttons) {
+        List<List<InlineKeyboardButton>> keyboard = new ArrayList<>(buttons.size() / 2);
+        for (int i = 0; i < buttons.size(); i += 2) {
+            InlineKeyboardButton button = new InlineKeyboardButton();
+            button.setText(buttons.get(i));
+            button.setCallbackData(buttons.get(i + 1));
+            keyboard.add(List.of(button));
+        }
+
+        InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
+        markup.setKeyboard(List.copyOf(keyboard));
+        return markup;
+    }
+
+    /**
+     * Считает "_" вне экранирования: "\_" (как его пишет escapeMarkdown()) Telegram показывает как обычный символ.
+     * Обратная косая черта экранирует только служебные символы, перед остальными это просто символ
+     */
+    private static boolean scanMarkdown(String text) {
+        int underscores = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length() && markdownEscape(text.charAt(i + 1)) != null)
+                i++; //экранированный символ
+            else if (c == '_')
+                underscores++;
+        }
+        return underscores % 2 == 0;
+    }
+
+    /**
+     * Один проход: пока экранировать нечего, ничего не копируется; если нечего совсем - возвращается сама строка
+     */
+    private static String escape(String text, boolean html) {
+        if (text == null)
+            return null;
+
+        StringBuilder result = null;
+        int copied = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement = html ? htmlEntity(c) : markdownEscape(c);
+            if (replacement == null)
+                continue;
+
+            if (result == null)
+                result = new StringBuilder(text.length() + 16);
+            result.append(text, copied, i).append(replacement);
+            copied = i + 1;
+        }
+
+        if (result == null)
+            return text;
+        return result.append(text, copied, text.length()).toString();
+    }
+
+    private static String htmlEntity(char c) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            default:
+                return null;
+        }
+    }
+
+    private static String markdownEscape(char c) {
+        switch (c) {
+            case '_':
+                return "\\_";
+            case '*':
+                return "\\*";
+            case '`':
+                return "\\`";
+            case '[':
+                return "\\[";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.javarush.telegram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Реестр метрик бота: счетчики, гистограммы длительностей и значения, вычисляемые при чтении.
+ * Метрика задается именем и метками (labels) - парами "имя", "значение".
+ * Все метрики можно выгрузить в текстовом формате Prometheus (см. MetricsServer).
+ */
+public class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    private static class Holder {
+        private static final Metrics INSTANCE = new Metrics();
+    }
+
+    public static Metrics getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Счетчик событий (тип counter). Имя по правилам Prometheus должно заканчиваться на _total
+     */
+    public LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) family(name, help, "counter").metrics.computeIfAbsent(labels(labels), key -> new LongAdder());
+    }
+
+    /**
+     * Счетчик, значение которого хранится где-то еще (например, ResponseCache.getHits())
+     */
+    public void counter(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "counter").metrics.put(labels(labels), value);
+    }
+
+    /**
+     * Текущее значение (тип gauge): размер кеша, число сессий и т.п.
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").metrics.put(labels(labels), value);
+    }
+
+    /**
+     * Гистограмма длительностей (выгружается как summary: квантили, _sum и _count, в секундах)
+     */
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, "summary").metrics.computeIfAbsent(labels(labels), key -> new LatencyHistogram());
+    }
+
+    /**
+     * Все метрики в текстовом формате Prometheus (text/plain; version=0.0.4)
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+            for (Map.Entry<String, Object> metric : family.metrics.entrySet()) {
+                String labels = metric.getKey();
+                Object value = metric.getValue();
+                if (value instanceof LatencyHistogram histogram) {
+                    for (double quantile : QUANTILES) {
+                        String quantileLabel = "quantile=\"" + quantile + "\"";
+                        out.append(name).append(labels.isEmpty() ? "{" + quantileLabel + "}" : labels.substring(0, labels.length() - 1) + "," + quantileLabel + "}")
+                                .append(' ').append(histogram.getQuantileSeconds(quantile)).append('\n');
+                    }
+                    out.append(name).append("_sum").append(labels).append(' ').append(histogram.getSumSeconds()).append('\n');
+                    out.append(name).append("_count").append(labels).append(' ').append(histogram.getCount()).append('\n');
+                } else if (value instanceof LongAdder counter) {
+                    out.append(name).append(labels).append(' ').append(counter.sum()).append('\n');
+                } else if (value instanceof DoubleSupplier supplier) {
+                    out.append(name).append(labels).append(' ').append(supplier.getAsDouble()).append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if (!family.type.equals(type))
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        return family;
+    }
+
+    /**
+     * Метки в виде {name="value",...} - сразу в формате Prometheus, он же ключ метрики внутри семейства
+     */
+    private static String labels(String... labels) {
+        if (labels.length == 0)
+            return "";
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+
+        StringBuilder result = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0)
+                result.append(',');
+            result.append(labels[i]).append("=\"");
+            String value = String.valueOf(labels[i + 1]);
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"')
+                    result.append('\\').append(c);
+                else if (c == '\n')
+                    result.append("\\n");
+                else
+                    result.append(c);
+            }
+            result.append('"');
+        }
+        return result.append('}').toString();
+    }
+
+    private static class Family {
+        final String help;
+        final String type;
+        final ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.javarush.telegram;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
 import org.telegram.telegrambots.meta.api.methods.GetMe;
@@ -14,33 +17,56 @@ import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.*;
 import org.telegram.telegrambots.meta.api.objects.commands.BotCommand;
+import org.telegram.telegrambots.meta.api.objects.commands.scope.BotCommandScope;
 import org.telegram.telegrambots.meta.api.objects.commands.scope.BotCommandScopeAllPrivateChats;
 import org.telegram.telegrambots.meta.api.objects.commands.scope.BotCommandScopeChat;
 import org.telegram.telegrambots.meta.api.objects.menubutton.MenuButtonCommands;
 import org.telegram.telegrambots.meta.api.objects.menubutton.MenuButtonDefault;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 
-import java.io.IOException;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.Serializable;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 public class MultiSessionTelegramBot extends TelegramLongPollingBot {
+    private static final Logger logger = LoggerFactory.getLogger(MultiSessionTelegramBot.class);
 
     private String name;
     private String token;
 
     private ThreadLocal<Update> updateEvent = new ThreadLocal<>();
+    private ThreadLocal<Runnable> updateCompletion = new ThreadLocal<>(); //отмечает текущий update обработанным
+
+    private UpdateDispatcher dispatcher; //null - обновления обрабатываются прямо в потоке long polling
+    private PhotoFileIdCache photoFileIds; //null - картинки каждый раз загружаются заново
+    private TelegramSendQueue sendQueue; //null - запросы к Telegram отправляются сразу, без учета лимитов
+    private MenuCache menuCache; //null - меню сверяется с Telegram при каждом showMainMenu()
+    private ProfilePhotoCache profilePhotos; //null - аватарка запрашивается у Telegram при каждом показе
+    private volatile User botUser; //сам бот (GetMe) не меняется - запрашивается один раз
+    private UpdateDeduplicator deduplicator; //null - повторно присланные обновления обрабатываются снова
+    private UpdateCheckpoint checkpoint; //null - не отслеживается, какие обновления обработаны до конца
 
     public MultiSessionTelegramBot(String name, String token) {
         this.name = name;
         this.token = token;
     }
 
+    /**
+     * options - например, другой адрес Bot API (DefaultBotOptions.setBaseUrl) для локального сервера или заглушки Telegram
+     */
+    public MultiSessionTelegramBot(String name, String token, DefaultBotOptions options) {
+        super(options, token);
+        this.name = name;
+        this.token = token;
+    }
+
     @Override
     public String getBotUsername() {
         return name;
@@ -51,30 +77,192 @@ public class MultiSessionTelegramBot extends TelegramLongPollingBot {
         return token;
     }
 
+    /**
+     * Включает асинхронную обработку обновлений: каждый Update обрабатывается в отдельном потоке,
+     * порядок сохраняется только внутри одного чата.
+     * maxInFlight - сколько обновлений может одновременно ждать обработки, дальше long polling притормаживается.
+     */
+    public void enableAsyncDispatch(int maxInFlight) {
+        dispatcher = new UpdateDispatcher(maxInFlight);
+    }
+
+    /**
+     * Включает повторное использование уже загруженных в Telegram картинок (по file_id)
+     */
+    public void setPhotoFileIdCache(PhotoFileIdCache photoFileIds) {
+        this.photoFileIds = photoFileIds;
+    }
+
+    /**
+     * Включает очередь исходящих запросов с учетом лимитов Telegram (сообщений в секунду на бота и на чат)
+     */
+    public void setSendQueue(TelegramSendQueue sendQueue) {
+        this.sendQueue = sendQueue;
+    }
+
+    /**
+     * Включает отсев повторно присланных Telegram обновлений (по update_id и ID нажатия кнопки)
+     */
+    public void setUpdateDeduplicator(UpdateDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    /**
+     * Включает учет полностью обработанных обновлений (см. UpdatePoller). Обработанные до перезапуска
+     * обновления сразу запоминаются в UpdateDeduplicator, поэтому его нужно включить раньше
+     */
+    public void setUpdateCheckpoint(UpdateCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        if (checkpoint != null && deduplicator != null)
+            checkpoint.restore(deduplicator);
+    }
+
     @Override
     public final void onUpdateReceived(Update updateEvent) {
+        if (deduplicator != null && !deduplicator.markSeen(updateEvent))
+            return; //это обновление уже принято
+
+        Runnable completion = beginUpdate(updateEvent);
+        if (dispatcher == null) {
+            handleUpdate(updateEvent, completion);
+            return;
+        }
+
+        Long chatId = getChatId(updateEvent);
+        dispatcher.dispatch(chatId != null ? chatId : 0, () -> handleUpdate(updateEvent, completion));
+    }
+
+    private Runnable beginUpdate(Update updateEvent) {
+        UpdateCheckpoint checkpoint = this.checkpoint;
+        if (checkpoint == null || updateEvent.getUpdateId() == null)
+            return null;
+
+        long updateId = updateEvent.getUpdateId();
+        checkpoint.begin(updateEvent);
+        return () -> checkpoint.complete(updateId);
+    }
+
+    /**
+     * Обработка текущего update закончится позже, чем onUpdateEventReceived (например, когда ChatGPT ответит):
+     * update будет считаться обработанным только после вызова возвращенного Runnable (один раз).
+     * Если бот упадет раньше, после перезапуска update обработается снова
+     */
+    public Runnable holdCurrentUpdate() {
+        Runnable completion = updateCompletion.get();
+        updateCompletion.remove();
+        return completion != null ? completion : () -> {
+        };
+    }
+
+    /**
+     * Выполняет action так, будто это обработка update: в очереди его чата и с доступом к getCurrentChatId(),
+     * sendTextMessage() и т.п. Нужно для отложенной работы, например, ответа на пачку сообщений.
+     */
+    public void runInUpdateContext(Update update, Runnable action) {
+        Runnable task = inUpdateContext(update, action);
+        if (dispatcher == null) {
+            task.run();
+            return;
+        }
+
+        Long chatId = getChatId(update);
+        dispatcher.dispatch(chatId != null ? chatId : 0, task);
+    }
+
+    /**
+     * То же, но не ждет освобождения места при асинхронной обработке: если обновлений в работе уже maxInFlight,
+     * action не выполняется и возвращается false - вызывающий сам решает, повторить попытку позже или отказаться
+     */
+    public boolean tryRunInUpdateContext(Update update, Runnable action) {
+        Runnable task = inUpdateContext(update, action);
+        if (dispatcher == null) {
+            task.run();
+            return true;
+        }
+
+        Long chatId = getChatId(update);
+        return dispatcher.tryDispatch(chatId != null ? chatId : 0, task) != null;
+    }
+
+    private Runnable inUpdateContext(Update update, Runnable action) {
+        return () -> {
+            this.updateEvent.set(update);
+            try {
+                action.run();
+            } finally {
+                this.updateEvent.remove();
+            }
+        };
+    }
+
+    private void handleUpdate(Update updateEvent, Runnable completion) {
         try {
             this.updateEvent.set(updateEvent);
+            this.updateCompletion.set(completion);
             onUpdateEventReceived(this.updateEvent.get());
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            this.updateEvent.remove();
+            //с ошибкой update тоже обработан - повторять его нет смысла
+            Runnable notHeld = this.updateCompletion.get();
+            this.updateCompletion.remove();
+            if (notHeld != null)
+                notHeld.run();
         }
     }
 
+    /**
+     * Ждет, пока будут обработаны все принятые обновления (при асинхронной обработке).
+     * Возвращает false, если за timeoutMillis это не произошло.
+     */
+    public boolean awaitUpdatesProcessed(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (dispatcher != null && dispatcher.getInFlightCount() > 0) {
+            if (System.currentTimeMillis() >= deadline)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    @Override
+    public void onClosing() {
+        super.onClosing();
+        if (dispatcher != null)
+            dispatcher.shutdown();
+        if (sendQueue != null)
+            sendQueue.shutdown();
+    }
+
     public void onUpdateEventReceived(Update updateEvent) throws Exception {
         //do nothing
     }
 
+    /**
+     * Метод возвращает обрабатываемый сейчас update
+     */
+    public Update getCurrentUpdate() {
+        return updateEvent.get();
+    }
+
     /**
      * Метод возвращает ID текущего Telegram-чата
      */
     public Long getCurrentChatId() {
-        if (updateEvent.get().hasMessage()) {
-            return updateEvent.get().getMessage().getFrom().getId();
+        return getChatId(updateEvent.get());
+    }
+
+    /**
+     * Метод возвращает ID Telegram-чата, к которому относится update
+     */
+    public static Long getChatId(Update update) {
+        if (update.hasMessage()) {
+            return update.getMessage().getFrom().getId();
         }
 
-        if (updateEvent.get().hasCallbackQuery()) {
-            return updateEvent.get().getCallbackQuery().getFrom().getId();
+        if (update.hasCallbackQuery()) {
+            return update.getCallbackQuery().getFrom().getId();
         }
 
         return null;
@@ -105,13 +293,12 @@ public class MultiSessionTelegramBot extends TelegramLongPollingBot {
      * Поддерживается markdown-разметка.
      */
     public Message sendTextMessage(String text) {
-        long underscoreCount = text != null ? text.chars().filter(c -> c == '_').count() : 0;
-        if (underscoreCount % 2 == 0) {
+        if (MessageRenderer.isValidMarkdown(text)) {
             SendMessage command = createApiSendMessageCommand(String.valueOf(text));
             return executeTelegramApiMethod(command);
         } else {
-            var message = "Строка '%s' является невалидной с точки зрения markdown. Воспользуйтесь методом sendHtmlMessage()".formatted(text);
-            System.out.println(message);
+            var message = "Строка '%s' является невалидной с точки зрения markdown. Воспользуйтесь методом sendHtmlMessage()".formatted(MessageRenderer.escapeHtml(text));
+            logger.warn(message);
             return sendHtmlMessage(message);
         }
     }
@@ -122,7 +309,7 @@ public class MultiSessionTelegramBot extends TelegramLongPollingBot {
      */
     public Message sendHtmlMessage(String text) {
         SendMessage message = new SendMessage();
-        message.setText(new String(text.getBytes(), StandardCharsets.UTF_8));
+        message.setText(text);
         message.setParseMode("html");
         message.setChatId(getCurrentChatId());
         return executeTelegramApiMethod(message);
@@ -134,8 +321,7 @@ public class MultiSessionTelegramBot extends TelegramLongPollingBot {
      * Все картинки содержатся в папке resources/images
      */
     public Message sendPhotoMessage(String photoKey) {
-        SendPhoto command = createApiPhotoMessageCommand(photoKey, null);
-        return executeTelegramApiMethod(command);
+        return sendPhoto(photoKey, null);
     }
 
     /**
@@ -144,19 +330,56 @@ public class MultiSessionTelegramBot extends TelegramLongPollingBot {
      * Все картинки содержатся в папке resources/images
      */
     public Message sendPhotoTextMessage(String photoKey, String text)  {
-        SendPhoto command = createApiPhotoMessageCommand(photoKey, text);
-        return executeTelegramApiMethod(command);
+        return sendPhoto(photoKey, text);
+    }
+
+    /**
+     * Если картинка уже загружалась в Telegram - отправляем ее по file_id.
+     * Иначе (или если Telegram не принял file_id) загружаем jpg-файл и запоминаем полученный file_id.
+     */
+    private Message sendPhoto(String photoKey, String text) {
+        Long chatId = getCurrentChatId();
+        String fileId = photoFileIds != null ? photoFileIds.get(photoKey) : null;
+        if (fileId != null) {
+            try {
+                return executeTelegramApiMethod(chatId, () -> createApiPhotoMessageCommand(chatId, new InputFile(fileId), text));
+            } catch (RuntimeException e) {
+                if (!(e.getCause() instanceof TelegramApiRequestException requestException)
+                        || !Integer.valueOf(400).equals(requestException.getErrorCode()))
+                    throw e;
+                photoFileIds.remove(photoKey); //file_id устарел - загрузим картинку заново
+            }
+        }
+
+        Message message = executeTelegramApiMethod(chatId, () -> createApiPhotoMessageCommand(chatId, photoKey, text));
+        if (photoFileIds != null && message != null && message.hasPhoto()) {
+            message.getPhoto().stream()
+                    .max(Comparator.comparingInt(photo -> photo.getWidth() * photo.getHeight()))
+                    .ifPresent(photo -> photoFileIds.put(photoKey, photo.getFileId()));
+        }
+        return message;
     }
 
     /**
      * Метод изменяет ТЕКСТ в уже отправленном сообщении.
      */
     public void updateTextMessage(Message message, String text) {
+        executeTelegramApiMethod(createEditMessageCommand(message, text));
+    }
+
+    /**
+     * То же, но не дожидаясь отправки: future завершается, когда Telegram принял правку
+     */
+    public CompletableFuture<Serializable> updateTextMessageAsync(Message message, String text) {
+        return executeTelegramApiMethodAsync(createEditMessageCommand(message, text));
+    }
+
+    private static EditMessageText createEditMessageCommand(Message message, String text) {
         EditMessageText command = new EditMessageText();
         command.setChatId(message.getChatId());
         command.setMessageId(message.getMessageId());
         command.setText(text);
-        executeTelegramApiMethod(command);
+        return command;
     }
 
     /**
@@ -181,42 +404,91 @@ public class MultiSessionTelegramBot extends TelegramLongPollingBot {
         executeTelegramApiMethod(command);
     }
 
-    public void showMainMenu(String... commands) {
-        ArrayList<BotCommand> list = new ArrayList<BotCommand>();
-
-        //convert strings to command list
-        for (int i = 0; i < commands.length; i += 2) {
-            String description = commands[i];
-            String key = commands[i+1];
+    /**
+     * Включает кеш уже установленных меню: одинаковое меню не запрашивается и не устанавливается повторно
+     */
+    public void setMenuCache(MenuCache menuCache) {
+        this.menuCache = menuCache;
+    }
 
-            if (key.startsWith("/")) //remove first /
-                key = key.substring(1);
+    /**
+     * Включает кеш последних фотографий профиля (см. getUserAvatar())
+     */
+    public void setProfilePhotoCache(ProfilePhotoCache profilePhotos) {
+        this.profilePhotos = profilePhotos;
+    }
 
-            BotCommand bc = new BotCommand(key, description);
-            list.add(bc);
+    public void showMainMenu(String... commands) {
+        ArrayList<BotCommand> list = toBotCommands(commands);
+        var chatId = getCurrentChatId();
+        String chatKey = String.valueOf(chatId);
+
+        if (menuCache != null) {
+            int menuHash = MenuCache.hash(list);
+            Integer chatMenu = menuCache.get(chatKey);
+            Integer defaultMenu = menuCache.get(MenuCache.DEFAULT_SCOPE);
+
+            //это меню уже есть в чате - свое или общее для всех личных чатов
+            if ((chatMenu != null && chatMenu == menuHash) || (chatMenu == null && defaultMenu != null && defaultMenu == menuHash)) {
+                menuCache.recordApiCallsSaved(chatMenu == null ? 1 : 3);
+                return;
+            }
+
+            //меню чата известно и отличается - сразу устанавливаем новое, без GetMyCommands
+            if (chatMenu != null) {
+                setChatMenu(chatId, list);
+                menuCache.recordApiCalls(2);
+                menuCache.recordApiCallsSaved(1);
+                menuCache.put(chatKey, menuHash);
+                return;
+            }
         }
 
         //get commands list
-        var chatId = getCurrentChatId();
         GetMyCommands gmcs = new GetMyCommands();
         gmcs.setScope(BotCommandScopeChat.builder().chatId(chatId).build());
         ArrayList<BotCommand> oldCommands = executeTelegramApiMethod(gmcs);
 
         //ignore commands change for same command list
-        if (oldCommands.equals(list))
-            return;
+        if (!oldCommands.equals(list))
+            setChatMenu(chatId, list);
+
+        if (menuCache != null) {
+            menuCache.recordApiCalls(oldCommands.equals(list) ? 1 : 3);
+            menuCache.put(chatKey, MenuCache.hash(list));
+        }
+    }
+
+    /**
+     * Устанавливает меню сразу для всех личных чатов бота (BotCommandScopeAllPrivateChats).
+     * Чаты без своего меню получают его без отдельных запросов. При включенном кеше то же меню повторно не устанавливается.
+     */
+    public void showDefaultMainMenu(String... commands) {
+        ArrayList<BotCommand> list = toBotCommands(commands);
+        int menuHash = MenuCache.hash(list);
+        if (menuCache != null) {
+            Integer defaultMenu = menuCache.get(MenuCache.DEFAULT_SCOPE);
+            if (defaultMenu != null && defaultMenu == menuHash) {
+                menuCache.recordApiCallsSaved(2);
+                return;
+            }
+        }
 
         //set commands list
         SetMyCommands cmds = new SetMyCommands();
         cmds.setCommands(list);
-        cmds.setScope(BotCommandScopeChat.builder().chatId(chatId).build());
+        cmds.setScope(BotCommandScopeAllPrivateChats.builder().build());
         executeTelegramApiMethod(cmds);
 
-        //show menu button
+        //show menu button (без chatId - для всех чатов)
         var ex = new SetChatMenuButton();
-        ex.setChatId(chatId);
         ex.setMenuButton(MenuButtonCommands.builder().build());
         executeTelegramApiMethod(ex);
+
+        if (menuCache != null) {
+            menuCache.recordApiCalls(2);
+            menuCache.put(MenuCache.DEFAULT_SCOPE, menuHash);
+        }
     }
 
     public void hideMainMenu() {
@@ -231,8 +503,62 @@ public class MultiSessionTelegramBot extends TelegramLongPollingBot {
         ex.setChatId(chatId);
         ex.setMenuButton(MenuButtonDefault.builder().build());
         executeTelegramApiMethod(ex);
+
+        if (menuCache != null) {
+            menuCache.recordApiCalls(2);
+            menuCache.put(String.valueOf(chatId), MenuCache.NO_MENU);
+        }
     }
 
+    private void setChatMenu(Long chatId, List<BotCommand> list) {
+        //set commands list
+        SetMyCommands cmds = new SetMyCommands();
+        cmds.setCommands(list);
+        cmds.setScope(BotCommandScopeChat.builder().chatId(chatId).build());
+        executeTelegramApiMethod(cmds);
+
+        //show menu button
+        var ex = new SetChatMenuButton();
+        ex.setChatId(chatId);
+        ex.setMenuButton(MenuButtonCommands.builder().build());
+        executeTelegramApiMethod(ex);
+    }
+
+    private static ArrayList<BotCommand> toBotCommands(String... commands) {
+        ArrayList<BotCommand> list = new ArrayList<BotCommand>();
+
+        //convert strings to command list
+        for (int i = 0; i < commands.length; i += 2) {
+            String description = commands[i];
+            String key = commands[i+1];
+
+            if (key.startsWith("/")) //remove first /
+                key = key.substring(1);
+
+            BotCommand bc = new BotCommand(key, description);
+            list.add(bc);
+        }
+        return list;
+    }
+
+    /**
+     * Сам бот (id, username). Запрашивается у Telegram при первом вызове, дальше берется из памяти
+     */
+    public User getBotUser() {
+        User user = botUser;
+        if (user == null) {
+            synchronized (this) {
+                user = botUser;
+                if (user == null)
+                    botUser = user = executeTelegramApiMethod(new GetMe());
+            }
+        }
+        return user;
+    }
+
+    /**
+     * До 100 фотографий профиля одним запросом. Если нужна только аватарка - getUserAvatar(), если перебор - getProfilePhotoIterator()
+     */
     public List<List<PhotoSize>> getUserProfilePhotos() {
         var userId = getCurrentChatId();
         var request = GetUserProfilePhotos.builder().userId(userId).offset(0).limit(100).build();
@@ -241,100 +567,179 @@ public class MultiSessionTelegramBot extends TelegramLongPollingBot {
     }
 
     public List<List<PhotoSize>> getChatBotProfilePhotos() {
-        var me = executeTelegramApiMethod(new GetMe());
-        var userId = me.getId();
+        var userId = getBotUser().getId();
         var request = GetUserProfilePhotos.builder().userId(userId).offset(0).limit(100).build();
         UserProfilePhotos userProfilePhotos = executeTelegramApiMethod(request);
         return userProfilePhotos.getPhotos();
     }
 
+    /**
+     * Фотографии профиля userId от новых к старым. Страницы по pageSize фотографий запрашиваются по мере перебора
+     */
+    public ProfilePhotoIterator getProfilePhotoIterator(long userId, int pageSize) {
+        return new ProfilePhotoIterator(userId, pageSize, this::executeTelegramApiMethod);
+    }
+
+    /**
+     * Аватарка текущего пользователя в размере не меньше minSide пикселей (или самом большом), null - аватарки нет
+     */
+    public PhotoSize getUserAvatar(int minSide) {
+        return selectPhotoSize(getLatestProfilePhoto(getCurrentChatId()), minSide);
+    }
+
+    public PhotoSize getChatBotAvatar(int minSide) {
+        return selectPhotoSize(getLatestProfilePhoto(getBotUser().getId()), minSide);
+    }
+
+    /**
+     * Самый маленький вариант фотографии, у которого обе стороны не меньше minSide, иначе самый большой. null - вариантов нет
+     */
+    public static PhotoSize selectPhotoSize(List<PhotoSize> sizes, int minSide) {
+        PhotoSize smallestFitting = null;
+        PhotoSize largest = null;
+        for (PhotoSize size : sizes) {
+            if (largest == null || area(size) > area(largest))
+                largest = size;
+            if (Math.min(size.getWidth(), size.getHeight()) >= minSide && (smallestFitting == null || area(size) < area(smallestFitting)))
+                smallestFitting = size;
+        }
+        return smallestFitting != null ? smallestFitting : largest;
+    }
+
+    private static long area(PhotoSize size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+
+    /**
+     * Варианты размера последней фотографии профиля: из кеша или одним запросом с limit = 1
+     */
+    private List<PhotoSize> getLatestProfilePhoto(long userId) {
+        List<PhotoSize> sizes = profilePhotos != null ? profilePhotos.get(userId) : null;
+        if (sizes != null)
+            return sizes;
+
+        ProfilePhotoIterator photos = getProfilePhotoIterator(userId, 1);
+        sizes = photos.hasNext() ? photos.next() : List.of();
+        if (profilePhotos != null)
+            profilePhotos.put(userId, sizes);
+        return sizes;
+    }
+
     private SendMessage createApiSendMessageCommand(String text) {
         SendMessage message = new SendMessage();
-        message.setText(new String(text.getBytes(), StandardCharsets.UTF_8));
+        message.setText(text);
         message.setParseMode("markdown");
         message.setChatId(getCurrentChatId());
         return message;
     }
 
     private void attachButtons(SendMessage message, List<String> buttons) {
-        InlineKeyboardMarkup markup = new InlineKeyboardMarkup();
-        List<List<InlineKeyboardButton>> keyboard = new ArrayList<>();
-
-        for (int i = 0; i < buttons.size(); i += 2) {
-            String buttonName = buttons.get(i);
-            String buttonValue = buttons.get(i + 1);
-
-            InlineKeyboardButton button = new InlineKeyboardButton();
-            button.setText(new String(buttonName.getBytes(), StandardCharsets.UTF_8));
-            button.setCallbackData(buttonValue);
-
-            keyboard.add(List.of(button));
-        }
-
-        markup.setKeyboard(keyboard);
-        message.setReplyMarkup(markup);
+        message.setReplyMarkup(MessageRenderer.keyboard(buttons));
     }
 
-    private SendPhoto createApiPhotoMessageCommand(String photoKey, String text) {
+    private SendPhoto createApiPhotoMessageCommand(Long chatId, String photoKey, String text) {
         try {
             InputFile inputFile = new InputFile();
             var is = loadImage(photoKey);
             inputFile.setMedia(is, photoKey);
 
-            SendPhoto photo = new SendPhoto();
-            photo.setPhoto(inputFile);
-            photo.setChatId(getCurrentChatId());
-
-            if (text != null && !text.isEmpty())
-                photo.setCaption(text);
-
-            return photo;
+            return createApiPhotoMessageCommand(chatId, inputFile, text);
         } catch (Exception e) {
             throw new RuntimeException("Can't create photo message!");
         }
     }
 
+    private SendPhoto createApiPhotoMessageCommand(Long chatId, InputFile inputFile, String text) {
+        SendPhoto photo = new SendPhoto();
+        photo.setPhoto(inputFile);
+        photo.setChatId(chatId);
+
+        if (text != null && !text.isEmpty())
+            photo.setCaption(text);
+
+        return photo;
+    }
+
 
     public static String loadPrompt(String name) {
-        try {
-            var is = ClassLoader.getSystemResourceAsStream("prompts/" + name + ".txt");
-            return new String(is.readAllBytes());
-        } catch (IOException e) {
-            throw new RuntimeException("Can't load GPT prompt!");
-        }
+        return ResourceRegistry.getInstance().getPrompt(name);
     }
 
     public static String loadMessage(String name) {
-        try {
-            var is = ClassLoader.getSystemResourceAsStream("messages/" + name + ".txt");
-            return new String(is.readAllBytes());
-        } catch (IOException e) {
-            throw new RuntimeException("Can't load message!");
-        }
+        return ResourceRegistry.getInstance().getMessage(name);
     }
 
     public static InputStream loadImage(String name) {
-        try {
-            return ClassLoader.getSystemResourceAsStream("images/" + name + ".jpg");
-        } catch (Exception e) {
-            throw new RuntimeException("Can't load photo!");
-        }
+        return new ByteArrayInputStream(ResourceRegistry.getInstance().getImage(name));
     }
 
 
+    /**
+     * Отправляет запрос к Telegram API и не ждет результата (fire-and-forget).
+     * Если включена очередь отправки - запрос встанет в очередь своего чата с учетом лимитов Telegram.
+     */
+    public <T extends Serializable, Method extends BotApiMethod<T>> CompletableFuture<T> executeTelegramApiMethodAsync(Method method) {
+        if (sendQueue == null)
+            return BotMetrics.telegramCallAsync(method.getMethod(), sendApiMethodAsync(method), System.nanoTime());
+
+        return sendQueue.submit(getMethodChatId(method), () -> BotMetrics.telegramCall(method.getMethod(), () -> sendApiMethod(method)));
+    }
+
     private <T extends Serializable, Method extends BotApiMethod<T>> T executeTelegramApiMethod(Method method) {
         try {
-            return super.sendApiMethod(method);
+            if (sendQueue == null)
+                return BotMetrics.telegramCall(method.getMethod(), () -> super.sendApiMethod(method));
+
+            return sendQueue.submit(getMethodChatId(method), () -> BotMetrics.telegramCall(method.getMethod(), () -> sendApiMethod(method))).join();
         } catch (TelegramApiException e) {
             throw new RuntimeException(e);
+        } catch (CompletionException e) {
+            throw new RuntimeException(e.getCause());
         }
     }
 
-    private Message executeTelegramApiMethod(SendPhoto message) {
+    /**
+     * Каждая попытка (в том числе повтор после 429) отправляет новый SendPhoto: картинка загружается из потока,
+     * а прочитанный поток при повторе отправил бы пустой файл
+     */
+    private Message executeTelegramApiMethod(Long chatId, Supplier<SendPhoto> message) {
         try {
-            return super.execute(message);
+            if (sendQueue == null)
+                return BotMetrics.telegramCall("sendPhoto", () -> super.execute(message.get()));
+
+            return sendQueue.submit(String.valueOf(chatId), () -> BotMetrics.telegramCall("sendPhoto", () -> execute(message.get()))).join();
         } catch (TelegramApiException e) {
             throw new RuntimeException(e);
+        } catch (CompletionException e) {
+            throw new RuntimeException(e.getCause());
         }
     }
+
+    /**
+     * ID чата, к которому относится запрос - нужен, чтобы соблюдать лимиты Telegram для каждого чата.
+     * null - запрос общий для бота (например, меню по умолчанию)
+     */
+    static String getMethodChatId(BotApiMethod<?> method) {
+        if (method instanceof SendMessage sendMessage)
+            return sendMessage.getChatId();
+        if (method instanceof EditMessageText editMessageText)
+            return editMessageText.getChatId();
+        if (method instanceof SetChatMenuButton setChatMenuButton)
+            return setChatMenuButton.getChatId();
+        if (method instanceof SetMessageReaction setMessageReaction)
+            return setMessageReaction.getChatId();
+        if (method instanceof SetMyCommands setMyCommands)
+            return getScopeChatId(setMyCommands.getScope());
+        if (method instanceof GetMyCommands getMyCommands)
+            return getScopeChatId(getMyCommands.getScope());
+        if (method instanceof DeleteMyCommands deleteMyCommands)
+            return getScopeChatId(deleteMyCommands.getScope());
+        if (method instanceof GetUserProfilePhotos getUserProfilePhotos)
+            return String.valueOf(getUserProfilePhotos.getUserId()); //в личном чате ID чата совпадает с ID пользователя
+        return null;
+    }
+
+    private static String getScopeChatId(BotCommandScope scope) {
+        return scope instanceof BotCommandScopeChat chatScope ? chatScope.getChatId() : null;
+    }
 }
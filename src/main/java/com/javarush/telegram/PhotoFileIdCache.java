@@ -0,0 +1,81 @@
+package com.javarush.telegram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Соответствие photoKey -> file_id картинки, уже загруженной на сервера Telegram.
+ * Повторная отправка по file_id не требует заново загружать jpg-файл.
+ * Сохраняется в properties-файл, чтобы переживать перезапуск бота.
+ */
+public class PhotoFileIdCache {
+    private static final Logger logger = LoggerFactory.getLogger(PhotoFileIdCache.class);
+
+    private final Path file;
+    private final Map<String, String> fileIds = new ConcurrentHashMap<>();
+
+    public PhotoFileIdCache(Path file) {
+        this.file = file;
+        load();
+    }
+
+    public String get(String photoKey) {
+        return fileIds.get(photoKey);
+    }
+
+    public void put(String photoKey, String fileId) {
+        if (!fileId.equals(fileIds.put(photoKey, fileId)))
+            save();
+    }
+
+    public void remove(String photoKey) {
+        if (fileIds.remove(photoKey) != null)
+            save();
+    }
+
+    private void load() {
+        if (file == null || !Files.exists(file))
+            return;
+
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Properties properties = new Properties();
+            properties.load(reader);
+            for (String key : properties.stringPropertyNames())
+                fileIds.put(key, properties.getProperty(key));
+        } catch (IOException e) {
+            logger.warn("Can't load photo file ids: {}", e.getMessage());
+            BotMetrics.error("photo_file_ids");
+        }
+    }
+
+    private synchronized void save() {
+        if (file == null)
+            return;
+
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Properties properties = new Properties();
+            properties.putAll(fileIds);
+
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                properties.store(writer, "photoKey -> Telegram file_id");
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Can't save photo file ids: {}", e.getMessage());
+            BotMetrics.error("photo_file_ids");
+        }
+    }
+}
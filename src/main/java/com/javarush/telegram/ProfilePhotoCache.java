@@ -0,0 +1,70 @@
+package com.javarush.telegram;
+
+import org.telegram.telegrambots.meta.api.objects.PhotoSize;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Последняя фотография профиля (все варианты размера) для каждого пользователя, на ttlMillis.
+ * Аватарки меняются редко, поэтому повторные показы не делают запросов к Telegram.
+ * "Аватарки нет" тоже запоминается (пустой список). Размер ограничен, вытесняются давно неиспользуемые записи (LRU).
+ */
+public class ProfilePhotoCache {
+    private record Entry(List<PhotoSize> sizes, long expiresAt) {
+    }
+
+    private final long ttlNanos;
+    private final LinkedHashMap<Long, Entry> entries;
+
+    private long hits;
+    private long misses;
+
+    public ProfilePhotoCache(int maxEntries, long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Варианты размера последней фотографии userId, пустой список - фотографии нет, null - нет в кеше или устарело
+     */
+    public synchronized List<PhotoSize> get(long userId) {
+        Entry entry = entries.get(userId);
+        if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+            hits++;
+            return entry.sizes;
+        }
+
+        if (entry != null)
+            entries.remove(userId);
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(long userId, List<PhotoSize> sizes) {
+        entries.put(userId, new Entry(List.copyOf(sizes), System.nanoTime() + ttlNanos));
+    }
+
+    public synchronized void remove(long userId) {
+        entries.remove(userId);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,76 @@
+package com.javarush.telegram;
+
+import org.telegram.telegrambots.meta.api.methods.GetUserProfilePhotos;
+import org.telegram.telegrambots.meta.api.objects.PhotoSize;
+import org.telegram.telegrambots.meta.api.objects.UserProfilePhotos;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * Фотографии профиля пользователя от новых к старым (каждая - список вариантов размера PhotoSize).
+ * Страницы по pageSize фотографий запрашиваются у Telegram только тогда, когда до них дошел перебор:
+ * чтобы получить последнюю аватарку, достаточно одного запроса с limit = 1 вместо 100 фотографий сразу.
+ */
+public class ProfilePhotoIterator implements Iterator<List<PhotoSize>> {
+    public static final int MAX_PAGE_SIZE = 100; //больше Telegram за один запрос не отдает
+
+    private final long userId;
+    private final int pageSize;
+    private final Function<GetUserProfilePhotos, UserProfilePhotos> api;
+
+    private List<List<PhotoSize>> page = List.of();
+    private int pageIndex;
+    private int offset; //сколько фотографий уже получено
+    private Integer totalCount; //null - еще не было ни одного запроса
+
+    /**
+     * api - выполняет запрос к Telegram (например, через очередь отправки бота)
+     */
+    public ProfilePhotoIterator(long userId, int pageSize, Function<GetUserProfilePhotos, UserProfilePhotos> api) {
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("Page size must be 1.." + MAX_PAGE_SIZE + ": " + pageSize);
+        this.userId = userId;
+        this.pageSize = pageSize;
+        this.api = api;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (pageIndex < page.size())
+            return true;
+        if (totalCount != null && offset >= totalCount)
+            return false;
+
+        fetchPage();
+        return pageIndex < page.size();
+    }
+
+    @Override
+    public List<PhotoSize> next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return page.get(pageIndex++);
+    }
+
+    /**
+     * Сколько всего фотографий в профиле. Если еще ничего не запрашивалось - запрашивает первую страницу
+     */
+    public int getTotalCount() {
+        if (totalCount == null)
+            fetchPage();
+        return totalCount;
+    }
+
+    private void fetchPage() {
+        var request = GetUserProfilePhotos.builder().userId(userId).offset(offset).limit(pageSize).build();
+        UserProfilePhotos result = api.apply(request);
+        page = result.getPhotos() != null ? result.getPhotos() : List.of();
+        pageIndex = 0;
+        offset += page.size();
+        //пустая страница раньше total_count (фото удалили во время перебора) тоже означает конец
+        totalCount = page.isEmpty() || result.getTotalCount() == null ? offset : result.getTotalCount();
+    }
+}
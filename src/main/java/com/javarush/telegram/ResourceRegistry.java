@@ -0,0 +1,215 @@
+package com.javarush.telegram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Все prompt-ы, сообщения и картинки бота, загруженные в память один раз при старте.
+ * Файлы берутся из папок prompts, messages и images - в classpath (resources) или в отдельной папке,
+ * заданной системным свойством tinderbolt.resources. Тексты читаются в UTF-8.
+ * Для папки на диске можно включить слежение за изменениями (startWatching) - отредактированные файлы подхватятся без перезапуска.
+ */
+public class ResourceRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(ResourceRegistry.class);
+
+    public static final String RESOURCES_DIR_PROPERTY = "tinderbolt.resources";
+
+    private static final String PROMPTS = "prompts";
+    private static final String MESSAGES = "messages";
+    private static final String IMAGES = "images";
+
+    private final Path root; //папка с prompts/messages/images или null, если ресурсы лежат в classpath
+
+    private volatile Map<String, String> prompts;
+    private volatile Map<String, String> messages;
+    private volatile Map<String, byte[]> images;
+
+    private Thread watcher;
+
+    private static class Holder {
+        static final ResourceRegistry INSTANCE = createDefault();
+    }
+
+    public ResourceRegistry(Path root) {
+        this.root = root;
+        reload();
+    }
+
+    /**
+     * Общий реестр ресурсов приложения
+     */
+    public static ResourceRegistry getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    public String getPrompt(String name) {
+        String prompt = prompts.get(name);
+        if (prompt == null)
+            throw new RuntimeException("Can't load GPT prompt!");
+        return prompt;
+    }
+
+    public String getMessage(String name) {
+        String message = messages.get(name);
+        if (message == null)
+            throw new RuntimeException("Can't load message!");
+        return message;
+    }
+
+    /**
+     * Содержимое картинки images/name.jpg. Массив общий для всех - менять его нельзя
+     */
+    public byte[] getImage(String name) {
+        byte[] image = images.get(name);
+        if (image == null)
+            throw new RuntimeException("Can't load photo!");
+        return image;
+    }
+
+    public Map<String, String> getPrompts() {
+        return prompts;
+    }
+
+    public Map<String, String> getMessages() {
+        return messages;
+    }
+
+    public Map<String, byte[]> getImages() {
+        return images;
+    }
+
+    /**
+     * Перечитывает все ресурсы. Читатели видят либо старый, либо новый набор целиком:
+     * если какой-то файл прочитать не удалось, остаются прежние ресурсы
+     */
+    public synchronized void reload() {
+        long startNanos = System.nanoTime();
+        Path base = root != null ? root : classpathRoot();
+        Map<String, String> prompts = readTexts(base.resolve(PROMPTS));
+        Map<String, String> messages = readTexts(base.resolve(MESSAGES));
+        Map<String, byte[]> images = readImages(base.resolve(IMAGES));
+
+        MessageRenderer.precompute(messages.values()); //проверка разметки - один раз при загрузке, а не на каждую отправку
+        this.prompts = prompts;
+        this.messages = messages;
+        this.images = images;
+        BotMetrics.resourcesLoaded(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Запускает фоновое слежение за папками ресурсов. Работает только для ресурсов на диске (не в jar-файле)
+     */
+    public synchronized void startWatching() {
+        Path base = root != null ? root : classpathRoot();
+        if (watcher != null || !"file".equals(base.toUri().getScheme()))
+            return;
+
+        try {
+            WatchService watchService = base.getFileSystem().newWatchService();
+            for (String dir : new String[]{PROMPTS, MESSAGES, IMAGES}) {
+                Path path = base.resolve(dir);
+                if (Files.isDirectory(path))
+                    path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+
+            watcher = new Thread(() -> watch(watchService), "resource-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            logger.warn("Can't watch resources: {}", e.getMessage());
+            BotMetrics.error("resources");
+        }
+    }
+
+    private void watch(WatchService watchService) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                key.pollEvents();
+                key.reset();
+                try {
+                    reload();
+                    logger.info("Resources reloaded");
+                } catch (RuntimeException e) {
+                    //файл могли удалить или еще не дописать - следующее изменение перечитает ресурсы снова
+                    logger.error("Can't reload resources, keeping the previous ones", e);
+                    BotMetrics.error("resources");
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //поток слежения остановлен
+        }
+    }
+
+    private static ResourceRegistry createDefault() {
+        String dir = System.getProperty(RESOURCES_DIR_PROPERTY);
+        return new ResourceRegistry(dir != null ? Path.of(dir) : null);
+    }
+
+    private static Path classpathRoot() {
+        URL url = ClassLoader.getSystemResource(PROMPTS);
+        if (url == null)
+            throw new RuntimeException("Can't find resources!");
+
+        try {
+            URI uri = url.toURI();
+            if ("jar".equals(uri.getScheme())) {
+                try {
+                    FileSystems.getFileSystem(uri);
+                } catch (FileSystemNotFoundException e) {
+                    FileSystems.newFileSystem(uri, Collections.emptyMap());
+                }
+            }
+            return Path.of(uri).getParent();
+        } catch (URISyntaxException | IOException e) {
+            throw new RuntimeException("Can't find resources!", e);
+        }
+    }
+
+    private static Map<String, String> readTexts(Path dir) {
+        Map<String, String> result = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : readFiles(dir, ".txt").entrySet())
+            result.put(entry.getKey(), new String(entry.getValue(), StandardCharsets.UTF_8));
+        return Map.copyOf(result);
+    }
+
+    private static Map<String, byte[]> readImages(Path dir) {
+        return Map.copyOf(readFiles(dir, ".jpg"));
+    }
+
+    private static Map<String, byte[]> readFiles(Path dir, String extension) {
+        Map<String, byte[]> result = new HashMap<>();
+        if (!Files.isDirectory(dir))
+            return result;
+
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(extension) && Files.isRegularFile(file))
+                    result.put(fileName.substring(0, fileName.length() - extension.length()), Files.readAllBytes(file));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Can't load resources from " + dir, e);
+        }
+        return result;
+    }
+}
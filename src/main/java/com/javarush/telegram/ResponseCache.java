@@ -0,0 +1,209 @@
+package com.javarush.telegram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Кеш ответов ChatGPT для повторяющихся запросов (profile, opener, message_next ...).
+ * Ключ - SHA-256 от модели, prompt-а, вопроса и temperature. Размер ограничен, вытесняются давно неиспользуемые ответы (LRU).
+ * Если задан файл, кеш переживает перезапуск: новые ответы дописываются в конец файла,
+ * при старте файл читается через memory-mapped буфер и при необходимости сжимается.
+ * Недописанная при падении последняя запись при старте отрезается (файл переписывается без нее) -
+ * иначе новые записи оказались бы за ней и при следующем старте не прочитались бы.
+ */
+public class ResponseCache {
+    private static final Logger logger = LoggerFactory.getLogger(ResponseCache.class);
+
+    private final int maxEntries;
+    private final Path file;
+    private final LinkedHashMap<String, String> entries;
+
+    private FileChannel channel;
+    private int fileRecords; //сколько записей сейчас в файле (включая устаревшие)
+    private boolean damaged; //в конце файла недописанная запись
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ResponseCache(int maxEntries) {
+        this(maxEntries, null);
+    }
+
+    public ResponseCache(int maxEntries, Path file) {
+        this.maxEntries = maxEntries;
+        this.file = file;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() <= ResponseCache.this.maxEntries)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+
+        if (file != null)
+            open();
+    }
+
+    /**
+     * Ключ кеша для запроса
+     */
+    public static String key(String model, String prompt, String question, double temperature) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[]{model, prompt, question, String.valueOf(temperature)}) {
+                digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest())
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized String get(String key) {
+        String value = entries.get(key);
+        if (value != null)
+            hits++;
+        else
+            misses++;
+        return value;
+    }
+
+    public synchronized void put(String key, String value) {
+        entries.put(key, value);
+        if (channel == null)
+            return;
+
+        try {
+            writeRecord(channel, key, value);
+            fileRecords++;
+            if (fileRecords > 2 * maxEntries)
+                compact();
+        } catch (IOException e) {
+            logger.warn("Can't write GPT cache: {}", e.getMessage());
+            BotMetrics.error("gpt_cache");
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void open() {
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            if (Files.exists(file))
+                load();
+            if (damaged || fileRecords > entries.size())
+                compact();
+            else
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.warn("Can't open GPT cache file {}: {}", file, e.getMessage());
+            BotMetrics.error("gpt_cache");
+        }
+    }
+
+    private void load() throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            int end = 0; //конец последней целой записи
+            while (true) {
+                String key = readString(buffer);
+                String value = key != null && !key.isEmpty() ? readString(buffer) : null; //пустой ключ - файл дополнен нулями
+                if (value == null)
+                    break; //конец файла или недописанная запись
+                entries.put(key, value);
+                fileRecords++;
+                end = buffer.position();
+            }
+
+            //отрезать хвост через truncate нельзя, пока файл отображен в память (Windows это запрещает) - файл перепишет compact()
+            if (end < buffer.limit()) {
+                logger.warn("GPT cache file {} is damaged at {}, rewriting it", file, end);
+                BotMetrics.error("gpt_cache");
+                damaged = true;
+            }
+        }
+        evictions = 0;
+    }
+
+    /**
+     * Переписывает файл, оставляя только актуальные записи
+     */
+    private void compact() throws IOException {
+        if (channel != null)
+            channel.close();
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, String> entry : entries.entrySet())
+                writeRecord(out, entry.getKey(), entry.getValue());
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        fileRecords = entries.size();
+        damaged = false;
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void writeRecord(FileChannel out, String key, String value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + keyBytes.length + valueBytes.length);
+        buffer.putInt(keyBytes.length).put(keyBytes).putInt(valueBytes.length).put(valueBytes).flip();
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        if (buffer.remaining() < 4)
+            return null;
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            return null;
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
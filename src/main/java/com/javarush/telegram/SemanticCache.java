@@ -0,0 +1,353 @@
+package com.javarush.telegram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Семантический кеш ответов ChatGPT: ответ на вопрос, похожий на уже заданный (перефразировка, опечатка,
+ * другой порядок слов), берется из кеша. Вопросы превращаются в векторы через TextEmbedder,
+ * похожесть - косинусное сходство, ответ возвращается, если оно не меньше threshold.
+ *
+ * Индекс плоский: все векторы лежат подряд в одном массиве и при поиске просматриваются целиком, поэтому
+ * (в отличие от приближенных индексов вроде HNSW) всегда находится самый похожий вопрос. Координаты хранятся
+ * байтами с общим множителем на вектор: памяти в 4 раза меньше, чем для float, просмотр быстрее,
+ * а сходство отличается от точного на тысячные. Поиск среди десятков тысяч записей - миллисекунды,
+ * на порядки меньше ответа ChatGPT.
+ *
+ * Ответы разных prompt-ов/моделей не смешиваются: каждая запись принадлежит своей области (scope).
+ * Размер ограничен, вытесняются давно неиспользуемые ответы (LRU). Если задан файл, кеш переживает перезапуск
+ * так же, как ResponseCache: новые записи дописываются в конец файла, при старте файл читается целиком
+ * и при необходимости сжимается. Файл другого embedder-а игнорируется и перезаписывается.
+ */
+public class SemanticCache {
+    private static final Logger logger = LoggerFactory.getLogger(SemanticCache.class);
+
+    private static final int FILE_MAGIC = 0x53454D31; //"SEM1"
+
+    private final TextEmbedder embedder;
+    private final int dimension;
+    private final int maxEntries;
+    private final float threshold;
+    private final Path file;
+
+    private final byte[] vectors; //вектор записи i - vectors[i * dimension ... (i + 1) * dimension) * scales[i]
+    private final float[] scales;
+    private final int[] scopes;
+    private final String[] answers;
+    private final long[] lastUsed;
+    private final Map<String, Integer> scopeIds = new HashMap<>();
+    private final List<String> scopeNames = new ArrayList<>();
+    private int size;
+    private final AtomicLong clock = new AtomicLong();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock(); //поиски идут параллельно, добавление - монопольно
+
+    private FileChannel channel;
+    private int fileRecords; //сколько записей сейчас в файле (включая вытесненные)
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public SemanticCache(TextEmbedder embedder, int maxEntries, double threshold) {
+        this(embedder, maxEntries, threshold, null);
+    }
+
+    public SemanticCache(TextEmbedder embedder, int maxEntries, double threshold, Path file) {
+        this.embedder = embedder;
+        this.dimension = embedder.getDimension();
+        this.maxEntries = maxEntries;
+        this.threshold = (float) threshold;
+        this.file = file;
+        this.vectors = new byte[maxEntries * dimension];
+        this.scales = new float[maxEntries];
+        this.scopes = new int[maxEntries];
+        this.answers = new String[maxEntries];
+        this.lastUsed = new long[maxEntries];
+
+        if (file != null)
+            open();
+    }
+
+    public TextEmbedder getEmbedder() {
+        return embedder;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public float[] embed(String question) {
+        return embedder.embed(question);
+    }
+
+    /**
+     * Ответ на самый похожий вопрос области scope или null, если похожих (сходство >= threshold) нет
+     */
+    public String get(String scope, float[] vector) {
+        byte[] query = new byte[dimension];
+        float queryScale = quantize(vector, query);
+
+        lock.readLock().lock();
+        try {
+            Integer scopeId = scopeIds.get(scope);
+            int best = scopeId != null ? findNearest(scopeId, query, queryScale) : -1;
+            if (best < 0) {
+                misses.increment();
+                return null;
+            }
+            lastUsed[best] = clock.incrementAndGet(); //гонка записей безопасна: LRU и так приблизительный
+            hits.increment();
+            return answers[best];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String get(String scope, String question) {
+        return get(scope, embed(question));
+    }
+
+    /**
+     * Сохраняет ответ на вопрос с вектором vector (см. embed()). Если кеш заполнен, вытесняется давно неиспользуемая запись
+     */
+    public void put(String scope, float[] vector, String answer) {
+        if (vector.length != dimension)
+            throw new IllegalArgumentException("Vector dimension " + vector.length + " != " + dimension);
+        byte[] quantized = new byte[dimension];
+        float scale = quantize(vector, quantized);
+
+        lock.writeLock().lock();
+        try {
+            int scopeId = scopeIds.computeIfAbsent(scope, name -> {
+                scopeNames.add(name);
+                return scopeNames.size() - 1;
+            });
+            store(scopeId, quantized, scale, answer);
+            if (channel == null)
+                return;
+
+            try {
+                writeRecord(channel, scope, answer, quantized, scale);
+                fileRecords++;
+                if (fileRecords > 2 * maxEntries)
+                    compact();
+            } catch (IOException e) {
+                logger.warn("Can't write GPT semantic cache: {}", e.getMessage());
+                BotMetrics.error("gpt_semantic_cache");
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void put(String scope, String question, String answer) {
+        put(scope, embed(question), answer);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Номер самой похожей записи области scopeId со сходством не меньше threshold, -1 - если такой нет
+     */
+    private int findNearest(int scopeId, byte[] query, float queryScale) {
+        int best = -1;
+        float bestSimilarity = threshold;
+        for (int i = 0; i < size; i++) {
+            if (scopes[i] != scopeId)
+                continue;
+            float similarity = dot(vectors, i * dimension, query) * scales[i] * queryScale;
+            if (similarity >= bestSimilarity) {
+                best = i;
+                bestSimilarity = similarity;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Скалярное произведение байтовых векторов: простой цикл по int без ветвлений, который JIT раскручивает
+     */
+    static int dot(byte[] vectors, int offset, byte[] query) {
+        int sum = 0;
+        for (int i = 0; i < query.length; i++)
+            sum += vectors[offset + i] * query[i];
+        return sum;
+    }
+
+    /**
+     * Координаты вектора в байтах от -127 до 127 и множитель, возвращающий их к исходному масштабу
+     */
+    static float quantize(float[] vector, byte[] target) {
+        float max = 0;
+        for (float value : vector)
+            max = Math.max(max, Math.abs(value));
+        if (max == 0)
+            return 0;
+
+        for (int i = 0; i < vector.length; i++)
+            target[i] = (byte) Math.round(vector[i] * 127 / max);
+        return max / 127;
+    }
+
+    private void store(int scopeId, byte[] vector, float scale, String answer) {
+        int slot;
+        if (size < maxEntries) {
+            slot = size++;
+        } else {
+            slot = leastRecentlyUsed();
+            evictions.increment();
+        }
+        System.arraycopy(vector, 0, vectors, slot * dimension, dimension);
+        scales[slot] = scale;
+        scopes[slot] = scopeId;
+        answers[slot] = answer;
+        lastUsed[slot] = clock.incrementAndGet();
+    }
+
+    private int leastRecentlyUsed() {
+        int oldest = 0;
+        for (int i = 1; i < size; i++)
+            if (lastUsed[i] < lastUsed[oldest])
+                oldest = i;
+        return oldest;
+    }
+
+    private void open() {
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            if (!Files.exists(file) || !load() || fileRecords > size)
+                compact(); //новый файл начинается с заголовка, чужой или разросшийся - переписывается
+            else
+                channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.warn("Can't open GPT semantic cache file {}: {}", file, e.getMessage());
+            BotMetrics.error("gpt_semantic_cache");
+        }
+    }
+
+    /**
+     * Читает файл. false - файл записан другим embedder-ом (или испорчен заголовок), его нужно перезаписать
+     */
+    private boolean load() throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (buffer.remaining() < 4 || buffer.getInt() != FILE_MAGIC || !embedder.getId().equals(readString(buffer)))
+                return false;
+
+            byte[] vector = new byte[dimension];
+            while (true) {
+                String scope = readString(buffer);
+                String answer = scope != null ? readString(buffer) : null;
+                if (answer == null || buffer.remaining() < 4 + dimension)
+                    break; //конец файла или недописанная запись
+                float scale = buffer.getFloat();
+                buffer.get(vector);
+
+                int scopeId = scopeIds.computeIfAbsent(scope, name -> {
+                    scopeNames.add(name);
+                    return scopeNames.size() - 1;
+                });
+                store(scopeId, vector, scale, answer);
+                fileRecords++;
+            }
+        }
+        evictions.reset();
+        return true;
+    }
+
+    /**
+     * Переписывает файл, оставляя только актуальные записи (от давно использованных к недавним)
+     */
+    private void compact() throws IOException {
+        if (channel != null)
+            channel.close();
+
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(lastUsed[a], lastUsed[b]));
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        byte[] vector = new byte[dimension];
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(out);
+            for (int i : order) {
+                System.arraycopy(vectors, i * dimension, vector, 0, dimension);
+                writeRecord(out, scopeNames.get(scopes[i]), answers[i], vector, scales[i]);
+            }
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        fileRecords = size;
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void writeHeader(FileChannel out) throws IOException {
+        byte[] id = embedder.getId().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + id.length);
+        buffer.putInt(FILE_MAGIC).putInt(id.length).put(id).flip();
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    private static void writeRecord(FileChannel out, String scope, String answer, byte[] vector, float scale) throws IOException {
+        byte[] scopeBytes = scope.getBytes(StandardCharsets.UTF_8);
+        byte[] answerBytes = answer.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(12 + scopeBytes.length + answerBytes.length + vector.length);
+        buffer.putInt(scopeBytes.length).put(scopeBytes).putInt(answerBytes.length).put(answerBytes)
+                .putFloat(scale).put(vector).flip();
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        if (buffer.remaining() < 4)
+            return null;
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            return null;
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
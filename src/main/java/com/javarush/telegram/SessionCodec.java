@@ -0,0 +1,87 @@
+package com.javarush.telegram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.plexpt.chatgpt.entity.chat.Message;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Сериализация UserSession в JSON для SessionLog: режим, переписка MESSAGE, анкеты me/she и история ChatGPT
+ */
+public class SessionCodec {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public static byte[] encode(UserSession session) {
+        ObjectNode root = MAPPER.createObjectNode();
+        if (session.currentMode != null)
+            root.put("mode", session.currentMode.name());
+        root.put("questionCount", session.questionCount);
+
+        ArrayNode list = root.putArray("list");
+        session.transcript.toList().forEach(list::add);
+
+        if (session.me != null)
+            root.set("me", MAPPER.valueToTree(session.me));
+        if (session.she != null)
+            root.set("she", MAPPER.valueToTree(session.she));
+
+        ObjectNode history = root.putObject("history");
+        history.put("prompt", session.history.getPrompt());
+        history.put("summary", session.history.getSummary());
+        ArrayNode turns = history.putArray("turns");
+        for (Message message : session.history.getTurns())
+            turns.addObject().put("role", message.getRole()).put("content", message.getContent());
+
+        try {
+            return MAPPER.writeValueAsBytes(root);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't encode session " + session.chatId, e);
+        }
+    }
+
+    public static UserSession decode(long chatId, byte[] data) {
+        try {
+            JsonNode root = MAPPER.readTree(data);
+            UserSession session = new UserSession(chatId);
+            if (root.hasNonNull("mode"))
+                session.currentMode = DialogMode.valueOf(root.get("mode").asText());
+            session.questionCount = root.path("questionCount").asInt();
+
+            for (JsonNode message : root.path("list"))
+                session.transcript.add(message.asText());
+
+            if (root.hasNonNull("me"))
+                session.me = MAPPER.treeToValue(root.get("me"), UserInfo.class);
+            if (root.hasNonNull("she"))
+                session.she = MAPPER.treeToValue(root.get("she"), UserInfo.class);
+
+            JsonNode history = root.path("history");
+            if (history.hasNonNull("prompt"))
+                session.history.setPrompt(history.get("prompt").asText());
+            if (history.hasNonNull("summary"))
+                session.history.setSummary(history.get("summary").asText());
+            for (JsonNode turn : history.path("turns"))
+                session.history.add(toMessage(turn.path("role").asText(), turn.path("content").asText()));
+
+            session.savedVersion = session.version(); //это состояние уже в журнале
+            return session;
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalStateException("Can't decode session " + chatId, e);
+        }
+    }
+
+    private static Message toMessage(String role, String content) {
+        switch (role) {
+            case "system":
+                return Message.ofSystem(content);
+            case "assistant":
+                return Message.ofAssistant(content);
+            default:
+                return Message.of(content);
+        }
+    }
+}
@@ -0,0 +1,678 @@
+package com.javarush.telegram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал сессий на диске (по схеме Bitcask): каждое сохранение сессии дописывается в конец текущего сегмента,
+ * а в памяти хранится только индекс chatId -> место последней записи (keydir).
+ * Записи пишет один поток: все, что накопилось за время предыдущего fsync, пишется одной пачкой и одним fsync (group commit).
+ * Заполненные сегменты периодически сжимаются в один (остаются только последние записи сессий)
+ * и рядом с ним кладется hint-файл с индексом - поэтому при старте читаются только индексы, а не сами сессии.
+ * Сессия читается с диска лениво - при первом обращении к чату.
+ * <p>
+ * Формат записи: [int длина данных][int CRC32][long chatId][данные - SessionCodec], длина 0 - сессия удалена.
+ */
+public class SessionLog {
+    private static final Logger logger = LoggerFactory.getLogger(SessionLog.class);
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20; //64 МБ
+    public static final int DEFAULT_COMPACT_SEGMENTS = 4; //сколько заполненных сегментов запускают сжатие
+
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_BATCH = 4096;
+    private static final int READ_ATTEMPTS = 5;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    private final Path dir;
+    private final long segmentSize;
+    private final int compactSegments;
+    private final boolean fsync;
+
+    private final ConcurrentHashMap<Long, Location> keydir = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, byte[]> pending = new ConcurrentHashMap<>(); //уже в очереди, но еще не записано
+    private final ConcurrentHashMap<Long, FileChannel> segments = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "session-log-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    private final AtomicLong appendCount = new AtomicLong();
+    private final AtomicLong fsyncCount = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+
+    private volatile long activeId;
+    private FileChannel active; //пишет только поток writer
+    private long activeSize;
+    private Thread writer;
+    private volatile boolean closed;
+
+    public SessionLog(Path dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACT_SEGMENTS, true);
+    }
+
+    /**
+     * fsync = false - записи не сбрасываются на диск принудительно (быстрее, но при сбое ОС последние записи могут пропасть)
+     */
+    public SessionLog(Path dir, long segmentSize, int compactSegments, boolean fsync) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.compactSegments = compactSegments;
+        this.fsync = fsync;
+        open();
+    }
+
+    /**
+     * Сохраняет текущее состояние сессии. Вызывать под lock-ом сессии, чтобы записи одного чата шли по порядку.
+     * Future завершается, когда запись попала на диск.
+     */
+    public CompletableFuture<Void> append(UserSession session) {
+        return appendRecord(session.chatId, SessionCodec.encode(session));
+    }
+
+    /**
+     * То же, но с уже закодированными (SessionCodec) данными сессии
+     */
+    public CompletableFuture<Void> append(long chatId, byte[] data) {
+        return appendRecord(chatId, data);
+    }
+
+    /**
+     * Удаляет сессию из журнала
+     */
+    public CompletableFuture<Void> remove(long chatId) {
+        return appendRecord(chatId, TOMBSTONE);
+    }
+
+    /**
+     * Читает последнее сохраненное состояние сессии, null - сессии в журнале нет
+     */
+    public UserSession load(long chatId) {
+        byte[] data = read(chatId);
+        if (data == null || data.length == 0)
+            return null;
+
+        try {
+            return SessionCodec.decode(chatId, data);
+        } catch (IllegalStateException e) {
+            logger.warn("{}: {}", e.getMessage(), String.valueOf(e.getCause()));
+            BotMetrics.error("session_log");
+            return null;
+        }
+    }
+
+    /**
+     * Метка последней записи сессии: меняется при каждом сохранении (и при переносе записи сжатием).
+     * Сравнив метки до и после load(), можно понять, что прочитанная сессия уже не последняя
+     */
+    Object version(long chatId) {
+        byte[] data = pending.get(chatId);
+        return data != null ? data : keydir.get(chatId);
+    }
+
+    public boolean contains(long chatId) {
+        byte[] data = pending.get(chatId);
+        return data != null ? data.length > 0 : keydir.containsKey(chatId);
+    }
+
+    /**
+     * chatId всех сессий в журнале, включая еще не записанные на диск
+     */
+    public Set<Long> chatIds() {
+        Set<Long> result = new HashSet<>(keydir.keySet());
+        pending.forEach((chatId, data) -> {
+            if (data.length > 0)
+                result.add(chatId);
+            else
+                result.remove(chatId);
+        });
+        return result;
+    }
+
+    /**
+     * Количество сессий в журнале
+     */
+    public int size() {
+        return keydir.size();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getAppendCount() {
+        return appendCount.get();
+    }
+
+    /**
+     * Сколько раз выполнялся fsync - appendCount / fsyncCount показывает, сколько записей в среднем попадает в одну пачку
+     */
+    public long getFsyncCount() {
+        return fsyncCount.get();
+    }
+
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    /**
+     * Сжимает все заполненные сегменты в один. Обычно запускается сам, когда их набирается compactSegments.
+     */
+    public CompletableFuture<Void> compact() {
+        return CompletableFuture.runAsync(this::compactSegments, compactor);
+    }
+
+    /**
+     * Дописывает оставшиеся записи и закрывает файлы
+     */
+    public void close() {
+        closed = true;
+        try {
+            if (writer != null)
+                writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (FileChannel channel : segments.values())
+            closeQuietly(channel);
+    }
+
+    private CompletableFuture<Void> appendRecord(long chatId, byte[] data) {
+        if (writer == null)
+            return CompletableFuture.completedFuture(null); //журнал не открылся - работаем только в памяти
+        if (closed)
+            return CompletableFuture.failedFuture(new IllegalStateException("Session log is closed"));
+
+        Write write = new Write(chatId, data);
+        pending.put(chatId, data);
+        queue.add(write);
+        return write.done;
+    }
+
+    private byte[] read(long chatId) {
+        byte[] data = pending.get(chatId);
+        if (data != null)
+            return data;
+
+        //запись могли перенести при сжатии, пока мы ее читали - тогда берем новое место из keydir и читаем еще раз
+        for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+            Location location = keydir.get(chatId);
+            if (location == null)
+                return null;
+
+            try {
+                data = readRecord(segments.get(location.segment), location, chatId);
+                if (data != null)
+                    return data;
+            } catch (IOException e) {
+                //канал закрыли при сжатии
+            }
+            Thread.yield();
+        }
+
+        logger.warn("Can't read session {} from session log", chatId);
+        BotMetrics.error("session_log");
+        return null;
+    }
+
+    /**
+     * Читает данные записи и проверяет, что это действительно запись chatId с правильной CRC
+     */
+    private static byte[] readRecord(FileChannel channel, Location location, long chatId) throws IOException {
+        if (channel == null)
+            return null;
+
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        readFully(channel, buffer, location.offset);
+        buffer.flip();
+
+        int length = buffer.getInt();
+        int crc = buffer.getInt();
+        if (length != location.length - HEADER_SIZE || buffer.getLong(HEADER_SIZE - Long.BYTES) != chatId)
+            return null;
+        if (crc != crc(buffer.array(), HEADER_SIZE - Long.BYTES, Long.BYTES + length))
+            return null;
+
+        byte[] data = new byte[length];
+        System.arraycopy(buffer.array(), HEADER_SIZE, data, 0, length);
+        return data;
+    }
+
+    private void open() {
+        try {
+            Files.createDirectories(dir);
+
+            TreeSet<Long> ids = new TreeSet<>();
+            try (Stream<Path> files = Files.list(dir)) {
+                files.forEach(file -> {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(SEGMENT_SUFFIX))
+                        ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                });
+            }
+
+            for (long id : ids) {
+                FileChannel channel = FileChannel.open(segmentFile(id), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segments.put(id, channel);
+                if (!loadHint(id, channel))
+                    scan(id, channel, id == ids.last());
+            }
+
+            //каждый запуск пишет в новый сегмент - старые больше не меняются
+            activeId = ids.isEmpty() ? 1 : ids.last() + 1;
+            active = FileChannel.open(segmentFile(activeId), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.put(activeId, active);
+
+            writer = new Thread(this::writeLoop, "session-log-writer");
+            writer.setDaemon(true);
+            writer.start();
+
+            if (segments.size() > compactSegments)
+                compactLater();
+        } catch (IOException | NumberFormatException e) {
+            logger.error("Can't open session log {}: {}", dir, e.getMessage());
+            BotMetrics.error("session_log");
+        }
+    }
+
+    /**
+     * Индекс сжатого сегмента из hint-файла. false - hint-файла нет или он не от этой версии сегмента
+     */
+    private boolean loadHint(long id, FileChannel channel) throws IOException {
+        Path hint = hintFile(id);
+        if (!Files.exists(hint))
+            return false;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(hint)))) {
+            if (in.readLong() != channel.size())
+                return false;
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long chatId = in.readLong();
+                long offset = in.readLong();
+                int length = in.readInt();
+                if (length == HEADER_SIZE)
+                    keydir.remove(chatId); //перенесенная при сжатии запись об удалении
+                else
+                    keydir.put(chatId, new Location(id, offset, length));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Строит индекс по самим записям сегмента. Данные читаются и проверяются только в последнем сегменте:
+     * в нем может оказаться недописанная при сбое запись - ее (и все после нее) отрезаем.
+     */
+    private void scan(long id, FileChannel channel, boolean verify) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        while (position < size) {
+            header.clear();
+            if (position + HEADER_SIZE > size || channel.read(header, position) < HEADER_SIZE)
+                break;
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            long chatId = header.getLong();
+            if (length < 0 || position + HEADER_SIZE + length > size)
+                break;
+
+            if (verify) {
+                ByteBuffer record = ByteBuffer.allocate(Long.BYTES + length);
+                record.putLong(chatId);
+                readFully(channel, record, position + HEADER_SIZE);
+                if (crc != crc(record.array(), 0, record.capacity()))
+                    break;
+            }
+
+            if (length == 0)
+                keydir.remove(chatId);
+            else
+                keydir.put(chatId, new Location(id, position, HEADER_SIZE + length));
+            position += HEADER_SIZE + length;
+        }
+
+        if (position < size) {
+            logger.warn("Session log segment {} is damaged at {}, truncating", id, position);
+            BotMetrics.error("session_log");
+            channel.truncate(position);
+        }
+    }
+
+    private void writeLoop() {
+        List<Write> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+            } catch (InterruptedException e) {
+                continue; //закрываемся только через close()
+            }
+
+            try {
+                writeBatch(batch);
+                for (Write write : batch)
+                    write.done.complete(null);
+            } catch (IOException e) {
+                logger.error("Can't write session log: {}", e.getMessage());
+                BotMetrics.error("session_log");
+                for (Write write : batch)
+                    write.done.completeExceptionally(e);
+            }
+
+            for (Write write : batch)
+                pending.remove(write.chatId, write.data); //в очереди нет более новой записи этого чата
+            batch.clear();
+
+            try {
+                if (activeSize >= segmentSize)
+                    roll();
+            } catch (IOException e) {
+                logger.error("Can't start new session log segment: {}", e.getMessage());
+                BotMetrics.error("session_log");
+            }
+        }
+
+        try {
+            if (active != null)
+                active.force(true);
+        } catch (IOException e) {
+            logger.error("Can't flush session log: {}", e.getMessage());
+            BotMetrics.error("session_log");
+        }
+    }
+
+    /**
+     * Вся пачка пишется одним буфером и сбрасывается на диск одним fsync
+     */
+    private void writeBatch(List<Write> batch) throws IOException {
+        int total = 0;
+        for (Write write : batch)
+            total += HEADER_SIZE + write.data.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        List<Location> locations = new ArrayList<>(batch.size());
+        for (Write write : batch) {
+            int start = buffer.position();
+            buffer.putInt(write.data.length);
+            buffer.putInt(0); //CRC заполним после данных
+            buffer.putLong(write.chatId);
+            buffer.put(write.data);
+            buffer.putInt(start + Integer.BYTES, crc(buffer.array(), start + HEADER_SIZE - Long.BYTES, Long.BYTES + write.data.length));
+            locations.add(new Location(activeId, activeSize + start, HEADER_SIZE + write.data.length));
+        }
+        buffer.flip();
+
+        while (buffer.hasRemaining())
+            activeSize += active.write(buffer, activeSize);
+        if (fsync)
+            active.force(false);
+        fsyncCount.incrementAndGet();
+        appendCount.addAndGet(batch.size());
+
+        for (int i = 0; i < batch.size(); i++) {
+            Write write = batch.get(i);
+            if (write.data.length == 0)
+                keydir.remove(write.chatId);
+            else
+                keydir.put(write.chatId, locations.get(i));
+        }
+    }
+
+    private void roll() throws IOException {
+        active.force(true);
+        long id = activeId + 1;
+        FileChannel channel = FileChannel.open(segmentFile(id), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(id, channel);
+        active = channel;
+        activeSize = 0;
+        activeId = id;
+
+        if (segments.size() > compactSegments)
+            compactLater();
+    }
+
+    private void compactLater() {
+        if (compacting.compareAndSet(false, true))
+            compactor.execute(() -> {
+                try {
+                    compactSegments();
+                } finally {
+                    compacting.set(false);
+                }
+            });
+    }
+
+    /**
+     * Сжатие: последние записи сессий из всех заполненных сегментов копируются в новый файл,
+     * который заменяет самый новый из них (его номер сохраняет порядок сегментов при следующем запуске), остальные удаляются.
+     * Записи об удалении тоже переносятся, если в сжимаемых сегментах есть более старая запись этой сессии:
+     * при сбое до удаления старых сегментов удаленная сессия не должна ожить при следующем запуске
+     */
+    private void compactSegments() {
+        long currentActive = activeId;
+        TreeSet<Long> inputs = new TreeSet<>();
+        for (long id : segments.keySet()) {
+            if (id < currentActive)
+                inputs.add(id);
+        }
+        if (inputs.isEmpty())
+            return;
+
+        long target = inputs.last();
+        Path tmp = segmentFile(target).resolveSibling(target + SEGMENT_SUFFIX + TMP_SUFFIX);
+        Path hintTmp = hintFile(target).resolveSibling(target + HINT_SUFFIX + TMP_SUFFIX);
+        Map<Long, Location> moved = new HashMap<>();
+        Map<Long, Location> removed = new HashMap<>();
+
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = 0;
+                for (Map.Entry<Long, Location> entry : keydir.entrySet()) {
+                    Location location = entry.getValue();
+                    if (!inputs.contains(location.segment))
+                        continue;
+
+                    ByteBuffer record = ByteBuffer.allocate(location.length);
+                    readFully(segments.get(location.segment), record, location.offset);
+                    record.flip();
+                    while (record.hasRemaining())
+                        position += out.write(record, position);
+                    moved.put(entry.getKey(), new Location(target, position - location.length, location.length));
+                }
+                for (long chatId : findRemoved(inputs)) {
+                    if (keydir.containsKey(chatId))
+                        continue; //сессию после удаления сохранили заново
+                    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE);
+                    record.putInt(0);
+                    record.putInt(0);
+                    record.putLong(chatId);
+                    record.putInt(Integer.BYTES, crc(record.array(), HEADER_SIZE - Long.BYTES, Long.BYTES));
+                    record.flip();
+                    while (record.hasRemaining())
+                        position += out.write(record, position);
+                    removed.put(chatId, new Location(target, position - HEADER_SIZE, HEADER_SIZE));
+                }
+                out.force(true);
+
+                try (DataOutputStream hint = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(hintTmp)))) {
+                    hint.writeLong(position);
+                    hint.writeInt(moved.size() + removed.size());
+                    for (Map<Long, Location> locations : List.of(moved, removed)) {
+                        for (Map.Entry<Long, Location> entry : locations.entrySet()) {
+                            hint.writeLong(entry.getKey());
+                            hint.writeLong(entry.getValue().offset);
+                            hint.writeInt(entry.getValue().length);
+                        }
+                    }
+                }
+            }
+
+            Files.move(hintTmp, hintFile(target), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmp, segmentFile(target), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            FileChannel previous = segments.put(target, FileChannel.open(segmentFile(target), StandardOpenOption.READ, StandardOpenOption.WRITE));
+            for (Map.Entry<Long, Location> entry : moved.entrySet()) {
+                //за время сжатия сессию могли сохранить заново (в активный сегмент) - такую запись не трогаем
+                keydir.computeIfPresent(entry.getKey(), (chatId, location) -> inputs.contains(location.segment) ? entry.getValue() : location);
+            }
+            closeQuietly(previous);
+
+            for (long id : inputs) { //по возрастанию: оставшиеся после сбоя сегменты всегда новее удаленных
+                if (id == target)
+                    continue;
+                closeQuietly(segments.remove(id));
+                Files.deleteIfExists(segmentFile(id));
+                Files.deleteIfExists(hintFile(id));
+            }
+            compactionCount.incrementAndGet();
+        } catch (IOException e) {
+            logger.warn("Can't compact session log: {}", e.getMessage());
+            BotMetrics.error("session_log");
+            try {
+                Files.deleteIfExists(tmp);
+                Files.deleteIfExists(hintTmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Сессии, последняя запись которых в сегментах inputs - удаление, а до него в этих же сегментах есть запись самой сессии.
+     * Читаются только заголовки записей
+     */
+    private Set<Long> findRemoved(TreeSet<Long> inputs) throws IOException {
+        Set<Long> saved = new HashSet<>();
+        Set<Long> removed = new HashSet<>();
+        for (long id : inputs) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentFile(id))))) {
+                long size = Files.size(segmentFile(id));
+                long position = 0;
+                while (position + HEADER_SIZE <= size) {
+                    int length = in.readInt();
+                    in.readInt(); //CRC
+                    long chatId = in.readLong();
+                    if (length < 0 || position + HEADER_SIZE + length > size)
+                        break; //оборванная запись в конце сегмента
+                    if (length == 0) {
+                        if (saved.contains(chatId))
+                            removed.add(chatId);
+                    } else {
+                        saved.add(chatId);
+                        removed.remove(chatId);
+                    }
+                    in.skipNBytes(length);
+                    position += HEADER_SIZE + length;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private Path segmentFile(long id) {
+        return dir.resolve(id + SEGMENT_SUFFIX);
+    }
+
+    private Path hintFile(long id) {
+        return dir.resolve(id + HINT_SUFFIX);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of session log segment");
+            position += read;
+        }
+    }
+
+    private static int crc(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Место записи: номер сегмента, смещение и длина вместе с заголовком
+     */
+    private static class Location {
+        final long segment;
+        final long offset;
+        final int length;
+
+        Location(long segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Write {
+        final long chatId;
+        final byte[] data;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Write(long chatId, byte[] data) {
+            this.chatId = chatId;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.javarush.telegram;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Хранилище сессий пользователей: chatId -> UserSession.
+ * Построено на ConcurrentHashMap (блокировки по сегментам/корзинам), поэтому разные чаты не мешают друг другу.
+ * Обработка одного чата сериализуется собственным lock-ом сессии.
+ * Неактивные сессии удаляются по idle-TTL, при превышении maxSessions удаляются самые давно неактивные.
+ * Если задан SessionLog, после обновления, изменившего сессию, она сохраняется в журнал, а удаленная из памяти
+ * (или еще не прочитанная после перезапуска) сессия читается из журнала при первом обращении к чату.
+ */
+public class SessionStore {
+    private record Candidate(UserSession session, long lastAccessTime) {
+    }
+
+    public static final long DEFAULT_IDLE_TTL = TimeUnit.HOURS.toMillis(24);
+    public static final int DEFAULT_MAX_SESSIONS = 100_000;
+
+    private static final int CLEANUP_INTERVAL = 1024; //как часто (в обращениях) проверять устаревшие сессии
+
+    private final ConcurrentHashMap<Long, UserSession> sessions = new ConcurrentHashMap<>();
+    private final long idleTtlMillis;
+    private final int maxSessions;
+    private final AtomicLong accessCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private SessionLog log; //null - сессии живут только в памяти
+
+    public SessionStore() {
+        this(DEFAULT_IDLE_TTL, DEFAULT_MAX_SESSIONS);
+    }
+
+    public SessionStore(long idleTtlMillis, int maxSessions) {
+        this.idleTtlMillis = idleTtlMillis;
+        this.maxSessions = maxSessions;
+    }
+
+    public void setSessionLog(SessionLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Возвращает сессию чата, при необходимости читает ее из журнала или создает новую
+     */
+    public UserSession get(long chatId) {
+        UserSession session = sessions.get(chatId);
+        while (session == null) {
+            //читаем с диска вне computeIfAbsent, чтобы не держать блокировку корзины ConcurrentHashMap.
+            //Пока мы читали, сессию могли загрузить, изменить и снова вытеснить - тогда копия устарела, читаем заново
+            SessionLog log = this.log;
+            Object version = log != null ? log.version(chatId) : null;
+            UserSession saved = log != null ? log.load(chatId) : null;
+            session = sessions.computeIfAbsent(chatId, id -> log != null && log.version(id) != version ? null
+                    : saved != null ? saved : new UserSession(id));
+        }
+        session.lastAccessTime = System.currentTimeMillis();
+
+        if (accessCount.incrementAndGet() % CLEANUP_INTERVAL == 0 || sessions.size() > maxSessions)
+            evict();
+
+        return session;
+    }
+
+    /**
+     * Выполняет action над сессией чата, пока другие обновления этого же чата ждут своей очереди
+     */
+    public <T> T withSession(long chatId, Function<UserSession, T> action) {
+        while (true) {
+            UserSession session = get(chatId);
+            session.lock.lock();
+            try {
+                //сессию могли удалить (evict) пока мы ждали lock - тогда берем новую
+                if (sessions.get(chatId) != session)
+                    continue;
+
+                session.lastAccessTime = System.currentTimeMillis();
+                T result = action.apply(session);
+                if (log != null)
+                    save(session);
+                return result;
+            } finally {
+                session.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * chatId всех сессий: в памяти и в журнале
+     */
+    public Set<Long> chatIds() {
+        Set<Long> result = new HashSet<>(sessions.keySet());
+        if (log != null)
+            result.addAll(log.chatIds());
+        return result;
+    }
+
+    /**
+     * Забирает сессию из хранилища (для переезда на другой процесс): возвращает ее в виде SessionCodec
+     * и удаляет из памяти и журнала. Обработка обновления этого чата, если она идет, сначала завершается.
+     */
+    public byte[] detach(long chatId) {
+        while (true) {
+            UserSession session = get(chatId);
+            session.lock.lock();
+            try {
+                if (sessions.get(chatId) != session)
+                    continue;
+
+                byte[] data = SessionCodec.encode(session);
+                remove(chatId);
+                return data;
+            } finally {
+                session.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Принимает сессию, приехавшую с другого процесса (данные SessionCodec), вместо текущей
+     */
+    public void attach(long chatId, byte[] data) {
+        UserSession session = SessionCodec.decode(chatId, data);
+        session.lastAccessTime = System.currentTimeMillis();
+        sessions.put(chatId, session);
+        if (log != null)
+            log.append(session);
+    }
+
+    /**
+     * Дописывает в журнал сессии, которые еще не записаны, и закрывает его
+     */
+    public void close() {
+        if (log != null)
+            log.close();
+    }
+
+    public void remove(long chatId) {
+        sessions.remove(chatId);
+        if (log != null)
+            log.remove(chatId);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Удаляет сессии, неактивные дольше idle-TTL, а затем самые старые сессии сверх лимита maxSessions.
+     * Сессии, которые сейчас обрабатываются (lock захвачен), не трогаем.
+     */
+    public synchronized int evict() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+
+        for (Map.Entry<Long, UserSession> entry : sessions.entrySet()) {
+            if (now - entry.getValue().lastAccessTime > idleTtlMillis && removeIfIdle(entry.getValue()))
+                removed++;
+        }
+
+        int excess = sessions.size() - maxSessions;
+        if (excess > 0) {
+            //удаляем с запасом (10%), чтобы не сортировать всю карту на каждом новом чате
+            int toRemove = excess + maxSessions / 10;
+            //время обращения запоминаем до сортировки: другие потоки меняют его, и сортировка по живому полю
+            //нарушает контракт компаратора
+            List<Candidate> all = new ArrayList<>(sessions.size());
+            for (UserSession session : sessions.values())
+                all.add(new Candidate(session, session.lastAccessTime));
+            all.sort(Comparator.comparingLong(Candidate::lastAccessTime));
+            for (int i = 0; i < all.size() && toRemove > 0; i++) {
+                if (removeIfIdle(all.get(i).session())) {
+                    removed++;
+                    toRemove--;
+                }
+            }
+        }
+
+        evictionCount.addAndGet(removed);
+        return removed;
+    }
+
+    /**
+     * Сохраняет сессию, только если она изменилась с прошлого сохранения: большинство обращений (проверки,
+     * нажатия без смены состояния) не должны стоить кодирования сессии, записи в журнал и fsync
+     */
+    private void save(UserSession session) {
+        long version = session.version();
+        if (version == session.savedVersion)
+            return;
+
+        log.append(session);
+        session.savedVersion = version;
+    }
+
+    private boolean removeIfIdle(UserSession session) {
+        if (!session.lock.tryLock())
+            return false;
+
+        try {
+            return sessions.remove(session.chatId, session);
+        } finally {
+            session.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.javarush.telegram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Входная точка шардированного режима: принимает обновления (long polling или webhook, как обычный бот)
+ * и пересылает каждое воркеру-владельцу чата по консистентному хешу chatId.
+ * Воркеры - обычные процессы TinderBoltApp в режиме webhook, сессии чата живут только на его воркере.
+ * Обновления одного чата пересылаются строго по порядку.
+ * При изменении состава воркеров пересылка приостанавливается, воркеры передают сессии новым владельцам
+ * (ShardWorker), и только потом ingress переключается на новое кольцо.
+ */
+public class ShardIngress extends MultiSessionTelegramBot {
+    private static final Logger logger = LoggerFactory.getLogger(ShardIngress.class);
+
+    public static final String WORKERS_PATH = "/shard/workers";
+    public static final int MAX_RETRIES = 3;
+    public static final long RETRY_DELAY = 500;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final ExecutorService executor = KeyedSerialExecutor.newThreadPerTaskExecutor("shard-ingress");
+    private final KeyedSerialExecutor chatQueues = new KeyedSerialExecutor(executor);
+    private final ReentrantReadWriteLock ringLock = new ReentrantReadWriteLock(); //write - идет перебалансировка
+    private final String webhookPath;
+    private final String secretToken;
+
+    private volatile ConsistentHashRing ring;
+
+    /**
+     * workers - базовые адреса воркеров (например, http://127.0.0.1:9001), обновления уходят на адрес + webhookPath.
+     * secretToken - secret_token webhook-а воркеров (null - не передавать)
+     */
+    public ShardIngress(String name, String token, DefaultBotOptions options, List<String> workers, String webhookPath, String secretToken) {
+        super(name, token, options);
+        this.ring = new ConsistentHashRing(workers);
+        this.webhookPath = webhookPath;
+        this.secretToken = secretToken;
+    }
+
+    @Override
+    public void onUpdateEventReceived(Update update) throws Exception {
+        Long chatId = getChatId(update);
+        long key = chatId != null ? chatId : 0;
+        byte[] body = mapper.writeValueAsBytes(update);
+        chatQueues.execute(key, () -> forward(key, body));
+    }
+
+    public ConsistentHashRing getRing() {
+        return ring;
+    }
+
+    public boolean addWorker(String worker) {
+        return rebalance(ring.with(worker));
+    }
+
+    public boolean removeWorker(String worker) {
+        return rebalance(ring.without(worker));
+    }
+
+    /**
+     * Переход на новое кольцо: ждем окончания текущих пересылок, просим каждого старого воркера
+     * отдать чужие сессии и только после этого переключаемся. Если хоть один воркер не справился -
+     * остаемся на старом кольце (уже переехавшие сессии этого не ломают: новые владельцы получат их снова).
+     */
+    public boolean rebalance(ConsistentHashRing next) {
+        ringLock.writeLock().lock();
+        try {
+            String members = String.join("\n", next.getNodes());
+            boolean success = true;
+            for (String worker : ring.getNodes()) {
+                try {
+                    HttpRequest request = HttpRequest.newBuilder(URI.create(worker + ShardWorker.REBALANCE_PATH))
+                            .timeout(Duration.ofMinutes(5))
+                            .POST(HttpRequest.BodyPublishers.ofString(worker + "\n" + members))
+                            .build();
+                    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                    logger.info("Shard {}: {} {}", worker, response.statusCode(), response.body());
+                    success &= response.statusCode() == 200;
+                } catch (IOException e) {
+                    logger.warn("Shard {} is unavailable: {}", worker, e.getMessage());
+                    success = false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            if (success)
+                ring = next;
+            return success;
+        } finally {
+            ringLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Служебный запрос: GET - текущие воркеры, POST add=адрес или remove=адрес - изменение состава
+     */
+    public void handleWorkers(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                String command;
+                try (InputStream in = exchange.getRequestBody()) {
+                    command = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+                }
+
+                boolean success;
+                if (command.startsWith("add="))
+                    success = addWorker(command.substring("add=".length()));
+                else if (command.startsWith("remove="))
+                    success = removeWorker(command.substring("remove=".length()));
+                else {
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+                if (!success) {
+                    exchange.sendResponseHeaders(500, -1);
+                    return;
+                }
+            }
+
+            byte[] body = String.join("\n", ring.getNodes()).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    @Override
+    public void onClosing() {
+        super.onClosing();
+        executor.shutdown();
+    }
+
+    /**
+     * Пересылка обновления воркеру. Воркер отвечает сразу после приема, поэтому держать ringLock недолго
+     */
+    private void forward(long chatId, byte[] body) {
+        for (int attempt = 0; ; attempt++) {
+            String worker;
+            ringLock.readLock().lock();
+            try {
+                worker = ring.nodeFor(chatId);
+                HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(worker + webhookPath))
+                        .timeout(Duration.ofSeconds(10))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+                if (secretToken != null)
+                    request.header(WebhookServer.SECRET_TOKEN_HEADER, secretToken);
+                int status = client.send(request.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+                if (status == 200)
+                    return;
+                logger.warn("Shard {} rejected update: {}", worker, status);
+            } catch (IOException e) {
+                logger.warn("Can't forward update to shard: {}", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                ringLock.readLock().unlock();
+            }
+
+            if (attempt >= MAX_RETRIES) {
+                logger.error("Update for chat {} is dropped", chatId);
+                BotMetrics.error("shard_ingress");
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_DELAY * (attempt + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.javarush.telegram;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Служебные запросы шардирования на процессе-воркере (регистрируются в WebhookServer воркера):
+ * POST /shard/rebalance - новый состав воркеров; воркер отдает новым владельцам сессии чатов, которые ему больше не принадлежат;
+ * POST /shard/session - прием пачки сессий от другого воркера.
+ * Порты воркеров не должны быть доступны снаружи: запросы не проверяют, кто их прислал.
+ */
+public class ShardWorker {
+    private static final Logger logger = LoggerFactory.getLogger(ShardWorker.class);
+
+    public static final String REBALANCE_PATH = "/shard/rebalance";
+    public static final String SESSION_PATH = "/shard/session";
+    public static final int MAX_BATCH = 500;
+    public static final long DRAIN_TIMEOUT = 30_000; //сколько ждать окончания обработки уже принятых обновлений
+
+    private final MultiSessionTelegramBot bot;
+    private final SessionStore sessions;
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+    public ShardWorker(MultiSessionTelegramBot bot, SessionStore sessions) {
+        this.bot = bot;
+        this.sessions = sessions;
+    }
+
+    public void register(WebhookServer server) {
+        server.addContext(REBALANCE_PATH, this::handleRebalance);
+        server.addContext(SESSION_PATH, this::handleSession);
+    }
+
+    /**
+     * Тело запроса: первая строка - адрес этого воркера, остальные - адреса всех воркеров нового кольца
+     */
+    private void handleRebalance(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            List<String> lines = readLines(exchange);
+            if (lines.isEmpty()) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            try {
+                int moved = rebalance(lines.get(0), new ConsistentHashRing(lines.subList(1, lines.size())));
+                reply(exchange, 200, "moved " + moved);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                logger.warn("Shard rebalance failed: {}", String.valueOf(e));
+                reply(exchange, 500, String.valueOf(e));
+            }
+        }
+    }
+
+    /**
+     * Отдает новым владельцам чужие по новому кольцу сессии. Ingress в это время не присылает обновлений,
+     * но уже принятые могут еще обрабатываться - их дожидаемся, чтобы не потерять изменения сессий.
+     * Сессии отправляются пачками по MAX_BATCH штук.
+     */
+    int rebalance(String self, ConsistentHashRing ring) throws IOException, InterruptedException {
+        if (!bot.awaitUpdatesProcessed(DRAIN_TIMEOUT))
+            throw new IOException("Updates are still being processed");
+
+        Map<String, List<Long>> moving = new HashMap<>();
+        for (long chatId : sessions.chatIds()) {
+            String owner = ring.isEmpty() ? self : ring.nodeFor(chatId);
+            if (!owner.equals(self))
+                moving.computeIfAbsent(owner, key -> new ArrayList<>()).add(chatId);
+        }
+
+        int moved = 0;
+        for (Map.Entry<String, List<Long>> entry : moving.entrySet()) {
+            List<Long> chatIds = entry.getValue();
+            for (int from = 0; from < chatIds.size(); from += MAX_BATCH) {
+                List<Long> batch = chatIds.subList(from, Math.min(from + MAX_BATCH, chatIds.size()));
+                Map<Long, byte[]> detached = new LinkedHashMap<>();
+                for (long chatId : batch)
+                    detached.put(chatId, sessions.detach(chatId));
+
+                try {
+                    send(entry.getKey(), detached);
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    detached.forEach(sessions::attach); //сессии остаются здесь, ingress сохранит старое кольцо
+                    throw e;
+                }
+                moved += batch.size();
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Тело запроса: пачка сессий в формате [long chatId][int длина][данные SessionCodec]...
+     */
+    private void handleSession(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Map<Long, byte[]> received = new LinkedHashMap<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(exchange.getRequestBody()))) {
+                while (true) {
+                    long chatId;
+                    try {
+                        chatId = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    received.put(chatId, data);
+                }
+            }
+
+            try {
+                received.forEach(sessions::attach);
+            } catch (IllegalStateException e) {
+                reply(exchange, 400, e.getMessage());
+                return;
+            }
+            exchange.sendResponseHeaders(200, -1);
+        }
+    }
+
+    private void send(String worker, Map<Long, byte[]> batch) throws IOException, InterruptedException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            for (Map.Entry<Long, byte[]> entry : batch.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        }
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(worker + SESSION_PATH))
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200)
+            throw new IOException("Worker " + worker + " rejected sessions: " + response.statusCode() + " " + response.body());
+    }
+
+    private static List<String> readLines(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            List<String> lines = new ArrayList<>();
+            for (String line : Arrays.asList(new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n"))) {
+                if (!line.isBlank())
+                    lines.add(line.trim());
+            }
+            return lines;
+        }
+    }
+
+    private static void reply(HttpExchange exchange, int code, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, body.length);
+        exchange.getResponseBody().write(body);
+    }
+}
@@ -0,0 +1,119 @@
+package com.javarush.telegram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Объединение одинаковых одновременных запросов ("single-flight").
+ * Пока запрос с ключом key выполняется, новые запросы с тем же ключом не запускаются заново,
+ * а присоединяются к уже идущему и получают тот же результат.
+ * Промежуточные результаты (progress) рассылаются всем присоединившимся, опоздавшие сразу получают последний из них.
+ */
+public class SingleFlight<K, P, V> {
+    private static final Logger logger = LoggerFactory.getLogger(SingleFlight.class);
+
+    private final ConcurrentHashMap<K, Flight<P, V>> flights = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Выполняет call, если запроса с таким ключом сейчас нет, иначе присоединяется к нему.
+     * call получает Consumer, через который сообщает промежуточные результаты; onProgress может быть null.
+     * Каждый вызывающий получает свою копию future - ее отмена не отменяет общий запрос.
+     */
+    public CompletableFuture<V> execute(K key, Function<Consumer<P>, CompletableFuture<V>> call, Consumer<P> onProgress) {
+        Flight<P, V> flight = new Flight<>();
+        Flight<P, V> current = flights.putIfAbsent(key, flight);
+        if (current != null) {
+            shared.incrementAndGet();
+            current.subscribe(onProgress);
+            return current.result.thenApply(value -> value);
+        }
+
+        calls.incrementAndGet();
+        flight.subscribe(onProgress);
+        flight.result.whenComplete((value, error) -> flights.remove(key, flight)); //следующий такой же запрос пойдет заново
+
+        CompletableFuture<V> upstream;
+        try {
+            upstream = call.apply(flight::publish);
+        } catch (RuntimeException e) {
+            upstream = CompletableFuture.failedFuture(e);
+        }
+        upstream.whenComplete((value, error) -> {
+            if (error != null)
+                flight.result.completeExceptionally(error);
+            else
+                flight.result.complete(value);
+        });
+        return flight.result.thenApply(value -> value);
+    }
+
+    /**
+     * Сколько запросов реально выполнено
+     */
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    /**
+     * Сколько запросов присоединилось к уже выполняющимся
+     */
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    /**
+     * Количество выполняющихся сейчас запросов
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    private static class Flight<P, V> {
+        final CompletableFuture<V> result = new CompletableFuture<>();
+        private final List<Consumer<P>> listeners = new ArrayList<>();
+        private int passive; //вызывающие без onProgress - им нужен только итоговый результат
+        private P last;
+
+        synchronized void subscribe(Consumer<P> listener) {
+            if (listener == null)
+                passive++;
+            else if (last == null || deliver(listener, last))
+                listeners.add(listener);
+        }
+
+        /**
+         * Если все подписчики отказались от результата, прерывает сам запрос (исключение уходит в call)
+         */
+        synchronized void publish(P progress) {
+            last = progress;
+            boolean cancelled = listeners.removeIf(listener -> !deliver(listener, progress));
+            if (cancelled && listeners.isEmpty() && passive == 0)
+                throw new CancellationException("Nobody is waiting for the result");
+        }
+
+        /**
+         * false - подписчику результат больше не нужен (он бросил CancellationException)
+         */
+        private static <P> boolean deliver(Consumer<P> listener, P progress) {
+            try {
+                listener.accept(progress);
+            } catch (CancellationException e) {
+                return false;
+            } catch (RuntimeException e) {
+                logger.error("Subscriber of a shared request failed", e); //ошибка одного подписчика не должна ломать запрос остальным
+            }
+            return true;
+        }
+    }
+}
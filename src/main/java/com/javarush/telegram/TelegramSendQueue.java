@@ -0,0 +1,115 @@
+package com.javarush.telegram;
+
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Очередь исходящих запросов к Telegram Bot API с соблюдением лимитов Telegram:
+ * не больше ~30 сообщений в секунду на бота и ~1 сообщения в секунду в один чат (короткие всплески допустимы).
+ * Запросы одного чата выполняются строго по порядку.
+ * При ответе 429 Too Many Requests чат ставится на паузу на retry_after секунд и запрос повторяется.
+ */
+public class TelegramSendQueue {
+    public static final double GLOBAL_PER_SECOND = 30;
+    public static final double CHAT_PER_SECOND = 1;
+    public static final double CHAT_BURST = 3;
+    public static final int MAX_RETRIES = 3;
+
+    private static final int CLEANUP_INTERVAL = 1024; //как часто (в запросах) удалять корзины неактивных чатов
+
+    /**
+     * Запрос к Telegram API, который может выбросить TelegramApiException
+     */
+    public interface ApiCall<T> {
+        T call() throws TelegramApiException;
+    }
+
+    private final ExecutorService executor = KeyedSerialExecutor.newThreadPerTaskExecutor("telegram-send-queue");
+    private final KeyedSerialExecutor chatQueues = new KeyedSerialExecutor(executor);
+    private final TokenBucket globalBucket;
+    private final ConcurrentHashMap<Object, TokenBucket> chatBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Object, Long> pausedUntil = new ConcurrentHashMap<>();
+    private final double chatPerSecond;
+    private final double chatBurst;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong tooManyRequestsCount = new AtomicLong();
+
+    public TelegramSendQueue() {
+        this(GLOBAL_PER_SECOND, CHAT_PER_SECOND, CHAT_BURST);
+    }
+
+    public TelegramSendQueue(double globalPerSecond, double chatPerSecond, double chatBurst) {
+        this.globalBucket = new TokenBucket(globalPerSecond, globalPerSecond);
+        this.chatPerSecond = chatPerSecond;
+        this.chatBurst = chatBurst;
+    }
+
+    /**
+     * Ставит запрос в очередь чата chatKey (null - запрос не относится к конкретному чату).
+     * Future завершается результатом запроса или TelegramApiException.
+     */
+    public <T> CompletableFuture<T> submit(Object chatKey, ApiCall<T> call) {
+        Object key = chatKey != null ? chatKey : "";
+        if (requestCount.incrementAndGet() % CLEANUP_INTERVAL == 0)
+            chatBuckets.values().removeIf(TokenBucket::isIdle);
+
+        return chatQueues.submit(key, () -> {
+            try {
+                return execute(key, call);
+            } catch (TelegramApiException e) {
+                throw new CompletionException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    public long getTooManyRequestsCount() {
+        return tooManyRequestsCount.get();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private <T> T execute(Object key, ApiCall<T> call) throws TelegramApiException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            waitForPause(key);
+            if (!"".equals(key))
+                chatBuckets.computeIfAbsent(key, k -> new TokenBucket(chatBurst, chatPerSecond)).acquire();
+            globalBucket.acquire();
+
+            try {
+                return call.call();
+            } catch (TelegramApiRequestException e) {
+                Integer retryAfter = e.getParameters() != null ? e.getParameters().getRetryAfter() : null;
+                if (!Integer.valueOf(429).equals(e.getErrorCode()) || attempt >= MAX_RETRIES)
+                    throw e;
+
+                tooManyRequestsCount.incrementAndGet();
+                long pauseMillis = TimeUnit.SECONDS.toMillis(retryAfter != null ? retryAfter : 1);
+                pausedUntil.merge(key, System.currentTimeMillis() + pauseMillis, Math::max);
+            }
+        }
+    }
+
+    private void waitForPause(Object key) throws InterruptedException {
+        Long until = pausedUntil.get(key);
+        if (until == null)
+            return;
+
+        long delay = until - System.currentTimeMillis();
+        if (delay > 0)
+            Thread.sleep(delay);
+        pausedUntil.remove(key, until);
+    }
+}
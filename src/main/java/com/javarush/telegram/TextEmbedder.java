@@ -0,0 +1,16 @@
+package com.javarush.telegram;
+
+/**
+ * Превращает текст в вектор фиксированной длины (embedding) для поиска похожих вопросов (см. SemanticCache).
+ * Вектор должен быть нормирован (длина 1), тогда скалярное произведение двух векторов - их косинусное сходство.
+ */
+public interface TextEmbedder {
+    /**
+     * Идентификатор модели: векторы разных моделей (и разных версий одной модели) сравнивать нельзя
+     */
+    String getId();
+
+    int getDimension();
+
+    float[] embed(String text);
+}
@@ -0,0 +1,167 @@
+package com.javarush.telegram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Message;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Постепенно обновляет текст уже отправленного сообщения (например "ChatGPT думает...")
+ * по мере того, как ChatGPT присылает ответ.
+ * Правки сообщения склеиваются: не чаще одной правки за intervalMillis, отправляется только последний текст.
+ * Правки отправляются асинхронно и строго по одной: следующая планируется, когда Telegram принял предыдущую,
+ * поэтому потоки планировщика не ждут очередь отправки (лимиты Telegram, 429) и не задерживают правки других чатов.
+ */
+public class ThrottledMessageEditor implements Consumer<String> {
+    private static final Logger logger = LoggerFactory.getLogger(ThrottledMessageEditor.class);
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "message-editor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final MultiSessionTelegramBot bot;
+    private final Message message;
+    private final long intervalMillis;
+    private final CompletableFuture<Void> finished = new CompletableFuture<>();
+
+    //все поля ниже защищены this
+    private String pendingText;
+    private String lastSentText;
+    private boolean scheduled;
+    private boolean sending; //правка отправлена, Telegram ее еще не принял
+    private String finalText; //не null - вызван finish()
+    private boolean finalSent;
+    private ScheduledFuture<?> flushTask;
+    private long lastEditTime;
+    private volatile int editCount;
+
+    public ThrottledMessageEditor(MultiSessionTelegramBot bot, Message message, long intervalMillis) {
+        this.bot = bot;
+        this.message = message;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Новый (накопленный) текст сообщения. Сама правка будет отправлена позже - не чаще раза в intervalMillis
+     */
+    @Override
+    public synchronized void accept(String text) {
+        if (finalText != null)
+            return;
+
+        pendingText = text;
+        scheduleFlush();
+    }
+
+    /**
+     * Отменяет отложенные правки и записывает в сообщение окончательный текст (после уже отправленной правки).
+     * Future завершается, когда окончательный текст показан (или его не удалось показать - ошибка только в логе)
+     */
+    public CompletableFuture<Void> finish(String text) {
+        String next;
+        synchronized (this) {
+            if (finalText != null)
+                return finished;
+
+            finalText = text != null ? text : "";
+            if (flushTask != null)
+                flushTask.cancel(false);
+            scheduled = false;
+            next = sending ? null : startFinal();
+        }
+
+        if (next != null)
+            send(next);
+        return finished;
+    }
+
+    public int getEditCount() {
+        return editCount;
+    }
+
+    private void flush() {
+        String text;
+        synchronized (this) {
+            scheduled = false;
+            if (finalText != null || sending || !isChanged(pendingText))
+                return;
+            text = pendingText;
+            sending = true;
+        }
+        send(text);
+    }
+
+    private void send(String text) {
+        CompletableFuture<?> request;
+        try {
+            request = bot.updateTextMessageAsync(message, text);
+        } catch (RuntimeException e) {
+            request = CompletableFuture.failedFuture(e);
+        }
+        request.whenComplete((result, error) -> onSent(text, error));
+    }
+
+    private void onSent(String text, Throwable error) {
+        String next = null;
+        synchronized (this) {
+            sending = false;
+            lastEditTime = System.currentTimeMillis();
+            if (error == null) {
+                lastSentText = text;
+                editCount++;
+            } else {
+                logger.warn("Can't update message: {}", error.getMessage());
+            }
+
+            if (finalText == null)
+                scheduleFlush();
+            else if (!finalSent)
+                next = startFinal();
+            else
+                finished.complete(null);
+        }
+
+        if (next != null)
+            send(next);
+    }
+
+    /**
+     * Планирует следующую правку, если текст изменился и правка еще не запланирована и не отправляется (вызывать под this)
+     */
+    private void scheduleFlush() {
+        if (scheduled || sending || !isChanged(pendingText))
+            return;
+
+        scheduled = true;
+        long delay = Math.max(0, lastEditTime + intervalMillis - System.currentTimeMillis());
+        flushTask = scheduler.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Окончательный текст для отправки или null, если он уже показан (вызывать под this)
+     */
+    private String startFinal() {
+        finalSent = true;
+        if (!isChanged(finalText)) {
+            finished.complete(null);
+            return null;
+        }
+        sending = true;
+        return finalText;
+    }
+
+    /**
+     * Telegram возвращает ошибку, если текст сообщения не изменился
+     */
+    private boolean isChanged(String text) {
+        return text != null && !text.isBlank() && !text.equals(lastSentText);
+    }
+}
@@ -4,71 +4,255 @@ import com.javarush.telegram.ChatGPTService;
 import com.javarush.telegram.DialogMode;
 import com.javarush.telegram.MultiSessionTelegramBot;
 import com.javarush.telegram.UserInfo;
+import com.plexpt.chatgpt.entity.chat.ChatCompletion;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
 import org.telegram.telegrambots.meta.api.objects.*;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class TinderBoltApp extends MultiSessionTelegramBot {
+    private static final Logger logger = LoggerFactory.getLogger(TinderBoltApp.class);
+
     public static final String TELEGRAM_BOT_NAME = "******"; //TODO: добавь имя бота в кавычках
     public static final String TELEGRAM_BOT_TOKEN = "***************"; //TODO: добавь токен бота в кавычках
     public static final String OPEN_AI_TOKEN = "******************"; //TODO: добавь токен ChatGPT в кавычках
+    public static final int MAX_UPDATES_IN_FLIGHT = 1000; //сколько обновлений может одновременно ждать обработки
+    public static final long ANSWER_EDIT_INTERVAL = 1000; //как часто (мс) обновлять сообщение с ответом ChatGPT
+    public static final long MESSAGE_QUIET_MILLIS = 1500; //сколько ждать следующего сообщения, прежде чем отвечать
+    public static final long BATCH_RETRY_MILLIS = 100; //пауза перед новой попыткой, если обновлений в работе уже MAX_UPDATES_IN_FLIGHT
+    public static final long BATCH_HANDOFF_TIMEOUT = 30_000; //сколько пачка сообщений может ждать места в очереди обновлений
+    public static final long PROFILE_PHOTO_TTL_MILLIS = 10 * 60 * 1000; //сколько помнить аватарку пользователя
+    public static final int PROFILE_PHOTO_CACHE_SIZE = 10_000;
+    public static final String QUOTA_EXCEEDED_MESSAGE = "Слишком много запросов к ChatGPT, попробуйте еще раз через %d сек.";
+    public static final String REQUEST_REPLACED_MESSAGE = "Отвечаю на ваше следующее сообщение...";
+
+    //режим webhook включается системным свойством -Dtinderbolt.webhook.port=8443, без него работает long polling
+    public static final String WEBHOOK_PORT_PROPERTY = "tinderbolt.webhook.port";
+    public static final String WEBHOOK_PATH = "/webhook";
+    public static final int WEBHOOK_THREADS = 16;
+    //secret_token, указанный при setWebhook: -Dtinderbolt.webhook.secret=... или переменная окружения TINDERBOLT_WEBHOOK_SECRET.
+    //Без него режим webhook (и шардирование, где воркеры принимают обновления по webhook) не запускается
+    public static final String WEBHOOK_SECRET_PROPERTY = "tinderbolt.webhook.secret";
+    public static final String WEBHOOK_SECRET_ENV = "TINDERBOLT_WEBHOOK_SECRET";
+
+    //метрики Prometheus (GET /metrics) включаются системным свойством -Dtinderbolt.metrics.port=9090
+    public static final String METRICS_PORT_PROPERTY = "tinderbolt.metrics.port";
+
+    public static final String FAST_MODEL = ChatCompletion.Model.GPT_3_5_TURBO.getName();
+    public static final String PREMIUM_MODEL = ChatCompletion.Model.GPT4Turbo.getName();
+    //файлы бота лежат в папке data, ее можно поменять свойством -Dtinderbolt.data.dir (у каждого воркера - своя папка)
+    public static final String DATA_DIR_PROPERTY = "tinderbolt.data.dir";
+    public static final Path DATA_DIR = Path.of(System.getProperty(DATA_DIR_PROPERTY, "data"));
+    public static final Path GPT_CACHE_FILE = DATA_DIR.resolve("gpt-cache.bin");
+    public static final int GPT_CACHE_SIZE = 10_000;
+    //семантический кеш ответов на похожие вопросы /gpt включается свойством -Dtinderbolt.gpt.semantic.threshold=0.93
+    //(минимальное косинусное сходство вопросов, 0..1: чем больше, тем меньше похожих вопросов получат готовый ответ)
+    public static final String GPT_SEMANTIC_THRESHOLD_PROPERTY = "tinderbolt.gpt.semantic.threshold";
+    public static final Path GPT_SEMANTIC_CACHE_FILE = DATA_DIR.resolve("gpt-semantic-cache.bin");
+    public static final int GPT_SEMANTIC_CACHE_SIZE = 10_000;
+    public static final Path MENU_CACHE_FILE = DATA_DIR.resolve("menu-cache.txt");
+    public static final Path PHOTO_FILE_IDS_FILE = DATA_DIR.resolve("photo-file-ids.properties");
+    public static final Path SESSION_LOG_DIR = DATA_DIR.resolve("sessions"); //сессии переживают перезапуск бота
+    public static final Path UPDATE_CHECKPOINT_FILE = DATA_DIR.resolve("update-journal.txt"); //недообработанные обновления (long polling)
 
-    private ChatGPTService chatGPT = new ChatGPTService(OPEN_AI_TOKEN);
+    //адрес Bot API, например заглушки Telegram для локальной проверки: -Dtinderbolt.telegram.url=http://127.0.0.1:8081/bot
+    public static final String TELEGRAM_URL_PROPERTY = "tinderbolt.telegram.url";
+    //адрес OpenAI-совместимого API (без прокси), например заглушки для нагрузочного теста: -Dtinderbolt.openai.url=http://127.0.0.1:8082/
+    public static final String OPENAI_URL_PROPERTY = "tinderbolt.openai.url";
+    //дополнительные ключи и адреса OpenAI: -Dtinderbolt.openai.backends=... или переменная окружения TINDERBOLT_OPENAI_BACKENDS
+    //(ключи лучше передавать переменной окружения). Бэкенды через ';', поля бэкенда через ',':
+    //name=fast2,route=FAST,model=gpt-3.5-turbo,key=sk-...,url=https://host/,weight=2,tpm=90000
+    //Все поля необязательные: без route бэкенд принимает любые запросы, без key - OPEN_AI_TOKEN, без model - модель его route,
+    //url - адрес без прокси. Запросы распределяются между этими бэкендами и двумя основными
+    public static final String OPENAI_BACKENDS_PROPERTY = "tinderbolt.openai.backends";
+    public static final String OPENAI_BACKENDS_ENV = "TINDERBOLT_OPENAI_BACKENDS";
 
-    private DialogMode currentMode = null;
-    private ArrayList<String>list = new ArrayList<>();
+    //шардирование: процесс с -Dtinderbolt.shard.workers=http://127.0.0.1:9001,http://127.0.0.1:9002 работает как ingress
+    //и пересылает обновления воркерам; воркер - обычный бот в режиме webhook с -Dtinderbolt.shard.worker=true
+    public static final String SHARD_WORKERS_PROPERTY = "tinderbolt.shard.workers";
+    public static final String SHARD_WORKER_PROPERTY = "tinderbolt.shard.worker";
+    public static final String SHARD_ADMIN_PORT_PROPERTY = "tinderbolt.shard.admin.port"; //управление составом воркеров при long polling
 
-    private UserInfo me;
+    private static final Set<String> BACKEND_FIELDS = Set.of("name", "route", "model", "key", "url", "weight", "tpm");
 
-    private UserInfo she;
+    private static final String[] MAIN_MENU = {
+            "главное меню бота", "/start",
+            "генерация Tinder-профля \uD83D\uDE0E", "/profile",
+            "сообщение для знакомства \uD83E\uDD70", "/opener",
+            "переписка от вашего имени \uD83D\uDE08", "/message",
+            "переписка со звездами \uD83D\uDD25", "/date",
+            "задать вопрос чату GPT \uD83E\uDDE0", "/gpt"};
 
-    private int questionCount;
+    //режимы, в которых одинаковые запросы к ChatGPT можно брать из кеша. /date и /gpt должны отвечать "живо"
+    //(для /gpt есть отдельный кеш похожих вопросов, см. GPT_SEMANTIC_THRESHOLD_PROPERTY)
+    private static final Set<DialogMode> CACHED_MODES = EnumSet.of(DialogMode.PROFILE, DialogMode.OPENER, DialogMode.MESSAGE);
+
+    //какая модель отвечает в каждом режиме: живая переписка - быстрая, профиль и первое сообщение - самая качественная
+    private static final Map<DialogMode, ChatGPTRoute> ROUTES = Map.of(
+            DialogMode.GPT, ChatGPTRoute.PREMIUM,
+            DialogMode.PROFILE, ChatGPTRoute.PREMIUM,
+            DialogMode.OPENER, ChatGPTRoute.PREMIUM,
+            DialogMode.MESSAGE, ChatGPTRoute.FAST,
+            DialogMode.DATE, ChatGPTRoute.FAST);
+
+    private ChatGPTService chatGPT = new ChatGPTService(new ChatGPTBackendPool(createBackends()));
+
+    private ChatGPTScheduler gptScheduler = new ChatGPTScheduler(); //квоты и очередь запросов к ChatGPT по чатам
+    //сообщения, отправленные подряд в режимах GPT и DATE, получают один общий ответ
+    private final MessageAggregator<Update> messageBatches = new MessageAggregator<>(MESSAGE_QUIET_MILLIS,
+            this::onMessageBatch);
+    private SessionStore sessions = new SessionStore(); //состояние диалога отдельно для каждого чата
+    private final DialogEngine dialog = createDialog();
 
     public TinderBoltApp() {
-        super(TELEGRAM_BOT_NAME, TELEGRAM_BOT_TOKEN);
+        super(TELEGRAM_BOT_NAME, TELEGRAM_BOT_TOKEN, createBotOptions());
+        enableAsyncDispatch(MAX_UPDATES_IN_FLIGHT);
+        UpdateDeduplicator deduplicator = new UpdateDeduplicator();
+        setUpdateDeduplicator(deduplicator);
+        sessions.setSessionLog(new SessionLog(SESSION_LOG_DIR));
+        chatGPT.setScheduler(gptScheduler);
+        chatGPT.setResponseCache(new ResponseCache(GPT_CACHE_SIZE, GPT_CACHE_FILE));
+        String semanticThreshold = System.getProperty(GPT_SEMANTIC_THRESHOLD_PROPERTY);
+        if (semanticThreshold != null)
+            chatGPT.setSemanticCache(new SemanticCache(new HashingEmbedder(), GPT_SEMANTIC_CACHE_SIZE, Double.parseDouble(semanticThreshold), GPT_SEMANTIC_CACHE_FILE));
+        setPhotoFileIdCache(new PhotoFileIdCache(PHOTO_FILE_IDS_FILE));
+        ProfilePhotoCache profilePhotos = new ProfilePhotoCache(PROFILE_PHOTO_CACHE_SIZE, PROFILE_PHOTO_TTL_MILLIS);
+        setProfilePhotoCache(profilePhotos);
+        TelegramSendQueue sendQueue = new TelegramSendQueue();
+        setSendQueue(sendQueue);
+        MenuCache menuCache = new MenuCache(MENU_CACHE_FILE);
+        setMenuCache(menuCache);
+        registerMetrics(sendQueue, menuCache, profilePhotos, deduplicator);
+    }
+
+    /**
+     * Счетчики, которые уже ведут сами компоненты бота, публикуются в Metrics (их видно на /metrics)
+     */
+    private void registerMetrics(TelegramSendQueue sendQueue, MenuCache menuCache, ProfilePhotoCache profilePhotos, UpdateDeduplicator deduplicator) {
+        Metrics metrics = Metrics.getInstance();
+        metrics.counter("tinderbolt_updates_duplicate_total", "Повторно присланные Telegram обновления, которые не обрабатывались", deduplicator::getDuplicateCount);
+        ResponseCache cache = chatGPT.getResponseCache();
+        metrics.counter("tinderbolt_gpt_cache_hits_total", "Ответы ChatGPT, взятые из кеша", cache::getHits);
+        metrics.counter("tinderbolt_gpt_cache_misses_total", "Запросы к ChatGPT, которых не было в кеше", cache::getMisses);
+        metrics.counter("tinderbolt_gpt_cache_evictions_total", "Ответы ChatGPT, вытесненные из кеша", cache::getEvictions);
+        metrics.counter("tinderbolt_gpt_coalesced_total", "Запросы к ChatGPT, присоединенные к такому же выполняющемуся запросу",
+                chatGPT.getInFlightRequests()::getSharedCount);
+        SemanticCache semanticCache = chatGPT.getSemanticCache();
+        if (semanticCache != null) {
+            metrics.counter("tinderbolt_gpt_semantic_hits_total", "Вопросы /gpt, ответ на которые взят из семантического кеша", semanticCache::getHits);
+            metrics.counter("tinderbolt_gpt_semantic_misses_total", "Вопросы /gpt без похожего вопроса в семантическом кеше", semanticCache::getMisses);
+            metrics.counter("tinderbolt_gpt_semantic_evictions_total", "Ответы, вытесненные из семантического кеша", semanticCache::getEvictions);
+            metrics.gauge("tinderbolt_gpt_semantic_entries", "Ответы в семантическом кеше", semanticCache::size);
+        }
+        for (ChatGPTBackend backend : chatGPT.getBackends().getBackends()) {
+            metrics.gauge("tinderbolt_gpt_outstanding", "Выполняющиеся запросы к бэкенду ChatGPT", backend::getOutstanding, "backend", backend.getName());
+            metrics.counter("tinderbolt_gpt_ejections_total", "Исключения бэкенда ChatGPT из-за 429", backend::getEjectionCount, "backend", backend.getName());
+        }
+
+        metrics.counter("tinderbolt_gpt_quota_rejected_total", "Запросы к ChatGPT, отклоненные по квоте чата", gptScheduler::getRejectedCount);
+        metrics.counter("tinderbolt_gpt_superseded_total", "Запросы к ChatGPT, замененные более новым запросом того же чата", gptScheduler::getSupersededCount);
+        metrics.gauge("tinderbolt_gpt_queued", "Запросы к ChatGPT в очереди планировщика", gptScheduler::getQueued);
+
+        metrics.counter("tinderbolt_message_batches_total", "Пачки сообщений GPT/DATE, отправленные в ChatGPT", messageBatches::getBatchCount);
+        metrics.counter("tinderbolt_messages_merged_total", "Сообщения, присоединенные к пачке вместо отдельного запроса", messageBatches::getMergedCount);
+        metrics.counter("tinderbolt_message_batches_superseded_total", "Пачки, отмененные новыми сообщениями во время ответа", messageBatches::getSupersededCount);
+
+        metrics.counter("tinderbolt_telegram_429_total", "Ответы 429 Too Many Requests от Telegram", sendQueue::getTooManyRequestsCount);
+        metrics.counter("tinderbolt_menu_api_calls_saved_total", "Запросы к Telegram, сэкономленные MenuCache", menuCache::getApiCallsSaved);
+        metrics.counter("tinderbolt_profile_photo_cache_hits_total", "Аватарки, взятые из кеша без запроса к Telegram", profilePhotos::getHits);
+        metrics.counter("tinderbolt_profile_photo_cache_misses_total", "Аватарки, запрошенные у Telegram", profilePhotos::getMisses);
+
+        metrics.gauge("tinderbolt_sessions", "Сессии в памяти", sessions::size);
+        metrics.counter("tinderbolt_session_evictions_total", "Сессии, вытесненные из памяти", sessions::getEvictionCount);
+    }
+
+    /**
+     * Главное меню бота как общее меню всех личных чатов. Вызывается один раз при старте
+     */
+    public void showDefaultMainMenu() {
+        showDefaultMainMenu(MAIN_MENU);
+    }
+
+    /**
+     * Остановка бота: сессии, еще не записанные в журнал, дописываются на диск
+     */
+    @Override
+    public void onClosing() {
+        super.onClosing();
+        sessions.close();
+    }
+
+    /**
+     * Сессии чатов (для тестов)
+     */
+    SessionStore getSessions() {
+        return sessions;
     }
 
     @Override
     public void onUpdateEventReceived(Update update) {
-        //TODO: основной функционал бота будем писать здесь
-        String message = getMessageText();
+        Long chatId = getCurrentChatId();
+        if (chatId == null)
+            return;
+
+        BotMetrics.UpdateSpan span = BotMetrics.startUpdate(chatId);
+        sessions.withSession(chatId, session -> {
+            try {
+                onSessionUpdate(session);
+            } finally {
+                span.end(session.currentMode);
+            }
+            return null;
+        });
+    }
+
+    private void onSessionUpdate(UserSession session) {
+        dialog.dispatch(session, getMessageText(), getCallbackQueryButtonKey(), isMessageCommand());
+    }
+
+    /**
+     * Таблицы диалога: команды переключают режимы, в каждом режиме - свои кнопки, анкета или обработчик сообщений
+     */
+    private DialogEngine createDialog() {
+        DialogEngine.Builder dialog = new DialogEngine.Builder(this::sendTextMessage);
 
-        if (message.equals("/start")){
-            currentMode = DialogMode.MAIN;
+        dialog.command("/start", DialogMode.MAIN, (session, message) -> {
             sendPhotoMessage("main");
             String text = loadMessage("main");
             sendTextMessage(text);
-            showMainMenu("главное меню бота", "/start",
-                    "генерация Tinder-профля \uD83D\uDE0E", "/profile",
-                    "сообщение для знакомства \uD83E\uDD70", "/opener",
-                    "переписка от вашего имени \uD83D\uDE08", "/message",
-                    "переписка со звездами \uD83D\uDD25", "/date",
-                    "задать вопрос чату GPT \uD83E\uDDE0", "/gpt");
-            return;
-        }
+            showMainMenu(MAIN_MENU);
+        });
 
-        if (message.equals("/gpt")) {
-            currentMode = DialogMode.GPT;
+        //command GPT
+        dialog.command("/gpt", DialogMode.GPT, (session, message) -> {
             sendPhotoMessage("gpt");
             String text = loadMessage("gpt");
             sendTextMessage(text);
-            return;
-        }
-
-        if (currentMode == DialogMode.GPT && !isMessageCommand()) {
-            String prompt = loadPrompt("gpt");
-            Message msg = sendTextMessage("Подождите пару секунд - ChatGPT думает...");
-            String answer = chatGPT.sendMessage(prompt, message);
-            updateTextMessage(msg, answer);
-            return;
-        }
+        });
+        dialog.onMessage(DialogMode.GPT, (session, message) -> messageBatches.submit(session.chatId, message, getCurrentUpdate(), holdCurrentUpdate()));
 
         //command DATE
-        if (message.equals("/date")) {
-            currentMode = DialogMode.DATE;
+        dialog.command("/date", DialogMode.DATE, (session, message) -> {
             sendPhotoMessage("date");
             String text = loadMessage("date");
             sendTextButtonsMessage(text,
@@ -77,149 +261,353 @@ public class TinderBoltApp extends MultiSessionTelegramBot {
                     "Зендея", "date_zendaya",
                     "Райн Гослинг", "date_gosling",
                     "Том Харди", "date_hardy");
-            return;
-        }
-
-        if (currentMode == DialogMode.DATE && !isMessageCommand()) {
-            String query = getCallbackQueryButtonKey();
-            if (query.startsWith("date_")){
-                sendPhotoMessage(query);
-                sendTextMessage(" Отличный выбор! \nТвоя задача пригласить девушку/парня на свидание ❤\uFE0F за 5 сообщений.");
-                String prompt = loadPrompt(query);
-                chatGPT.setPrompt(prompt);
-                return;
-            }
-
-            Message msg = sendTextMessage("Подождите, девушка набирает текст...");
-            String answer = chatGPT.addMessage(message);
-            updateTextMessage(msg, answer);
-            return;
-        }
+        });
+        dialog.button(DialogMode.DATE, "date_", (session, query) -> {
+            sendPhotoMessage(query);
+            sendTextMessage(" Отличный выбор! \nТвоя задача пригласить девушку/парня на свидание ❤\uFE0F за 5 сообщений.");
+            String prompt = loadPrompt(query);
+            session.history.setPrompt(prompt);
+        });
+        dialog.onMessage(DialogMode.DATE, (session, message) -> messageBatches.submit(session.chatId, message, getCurrentUpdate(), holdCurrentUpdate()));
 
         //command MESSAGE
-        if (message.equals("/message")){
-            currentMode = DialogMode.MESSAGE;
+        dialog.command("/message", DialogMode.MESSAGE, (session, message) -> {
+            session.transcript.clear(); //новая переписка - старую в запрос не подмешиваем
             sendPhotoMessage("message");
             sendTextButtonsMessage("Пришлите в чат вашу переписку",
                     "Следующее сообщение", "message_next",
                     "Пригласить на свидание", "message_date");
+        });
+        dialog.button(DialogMode.MESSAGE, "message_", (session, query) -> {
+            String prompt = loadPrompt(query);
+            String userChatHistory = session.transcript.render();
+            Message msg = sendTextMessage("Подождите пару секунд - ChatGPT думает...");
+            showAnswer(msg, editor -> chatGPT.sendMessageAsync(session.chatId, route(session), prompt, userChatHistory, editor, CACHED_MODES.contains(session.currentMode)));
+        });
+        dialog.onMessage(DialogMode.MESSAGE, (session, message) -> session.transcript.add(message));
+
+        //command PROFILE
+        dialog.command("/profile", DialogMode.PROFILE, (session, message) -> {
+            sendPhotoMessage("profile");
+            session.me = new UserInfo();
+            session.changed();
+        });
+        dialog.wizard(DialogMode.PROFILE, new DialogWizard(session -> session.me)
+                .ask("Сколько вам лет?", (info, answer) -> info.age = answer)
+                .ask("Кем вы работаете?", (info, answer) -> info.occupation = answer)
+                .ask("Есть ли у вас хобби?", (info, answer) -> info.hobby = answer)
+                .ask("Что вам НЕ нравится в людях?", (info, answer) -> info.annoys = answer)
+                .ask("Цель знакомства?", (info, answer) -> info.goals = answer)
+                .onComplete((session, message) -> {
+                    String aboutMyself = session.me.toString();
+                    String prompt = loadPrompt("profile");
+                    Message msg = sendTextMessage("Подождите пару секунд - ChatGPT \uD83E\uDDE0 думает...");
+                    showAnswer(msg, editor -> chatGPT.sendMessageAsync(session.chatId, route(session), prompt, aboutMyself, editor, CACHED_MODES.contains(session.currentMode)));
+                }));
+
+        //command OPENER
+        dialog.command("/opener", DialogMode.OPENER, (session, message) -> {
+            sendPhotoMessage("opener");
+            session.she = new UserInfo();
+            session.changed();
+        });
+        dialog.wizard(DialogMode.OPENER, new DialogWizard(session -> session.she)
+                .ask("Имя девушки?", (info, answer) -> info.name = answer)
+                .ask("Сколько ей лет?", (info, answer) -> info.age = answer)
+                .ask("Есть ли у нее хобби и какие?", (info, answer) -> info.hobby = answer)
+                .ask("Кем она работает?", (info, answer) -> info.occupation = answer)
+                .ask("Цель знакомства?", (info, answer) -> info.goals = answer)
+                .onComplete((session, message) -> {
+                    String aboutFriend = message;
+                    String prompt = loadPrompt("opener");
+                    Message msg = sendTextMessage("Подождите пару секунд - ChatGPT \uD83E\uDDE0 думает...");
+                    showAnswer(msg, editor -> chatGPT.sendMessageAsync(session.chatId, route(session), prompt, aboutFriend, editor, CACHED_MODES.contains(session.currentMode)));
+                }));
+
+        dialog.fallback((session, message) -> {
+            sendTextMessage("*Привет!*");
+            sendTextMessage("_Привет!_");
+            sendTextMessage("Вы написали " + MessageRenderer.escapeMarkdown(message));
+            sendTextButtonsMessage("Выберите режим работы:",
+                    "Старт", "start",
+                    "Стоп", "stop");
+        });
+
+        return dialog.build();
+    }
+
+    private static ChatGPTRoute route(UserSession session) {
+        return ROUTES.getOrDefault(session.currentMode, ChatGPTRoute.PREMIUM);
+    }
+
+    /**
+     * Пачка сообщений готова. Если она заменила отмененную, отмененный запрос сначала должен убрать свой вопрос
+     * из истории - ответ начинается после этого, но поток его не ждет
+     */
+    private void onMessageBatch(long chatId, MessageAggregator.Batch<Update> batch) {
+        batch.previousDone()
+                .thenRun(() -> handOffBatch(chatId, batch, System.currentTimeMillis() + BATCH_HANDOFF_TIMEOUT))
+                .exceptionally(error -> {
+                    logger.error("Can't answer message batch in chat {}", chatId, error);
+                    batch.finish();
+                    return null;
+                });
+    }
+
+    /**
+     * Передает пачку в очередь чата, не дожидаясь места в очереди обновлений: здесь поток таймера агрегатора
+     * (или поток, завершивший предыдущую пачку), и его остановка задержала бы пачки других чатов.
+     * Если места нет, попытка повторяется через BATCH_RETRY_MILLIS, после BATCH_HANDOFF_TIMEOUT пачка отбрасывается
+     */
+    private void handOffBatch(long chatId, MessageAggregator.Batch<Update> batch, long deadline) {
+        if (batch.isCancelled()) {
+            batch.finish(); //ее сообщения уже в следующей пачке
             return;
         }
 
-        if (currentMode == DialogMode.MESSAGE && !isMessageCommand()){
-            String query = getCallbackQueryButtonKey();
-            if (query.startsWith("message_")){
-                String prompt = loadPrompt(query);
-                String userChatHistory = String.join("\n\n", list);
-                Message msg = sendTextMessage("Подождите пару секунд - ChatGPT думает...");
-                String answer = chatGPT.sendMessage(prompt, userChatHistory); //10sec
-                updateTextMessage(msg, answer);
+        try {
+            if (tryRunInUpdateContext(batch.getContext(), () -> answerBatch(chatId, batch)))
                 return;
-            }
-            list.add(message);
+        } catch (RuntimeException e) {
+            logger.error("Can't answer message batch in chat {}", chatId, e);
+            batch.finish();
             return;
         }
 
-        //command PROFILE
-        if (message.equals("/profile")){
-            currentMode = DialogMode.PROFILE;
-            sendPhotoMessage("profile");
-            me = new UserInfo();
-            questionCount = 1;
-            sendTextMessage("Сколько вам лет?");
+        if (System.currentTimeMillis() >= deadline) {
+            logger.warn("Message batch in chat {} is dropped: {} updates are in flight", chatId, MAX_UPDATES_IN_FLIGHT);
+            BotMetrics.error("message_batch");
+            batch.finish();
             return;
         }
+        CompletableFuture.delayedExecutor(BATCH_RETRY_MILLIS, TimeUnit.MILLISECONDS)
+                .execute(() -> handOffBatch(chatId, batch, deadline));
+    }
 
+    /**
+     * Ответ ChatGPT на пачку сообщений, которые пользователь отправил подряд в режимах GPT и DATE.
+     * Выполняется в очереди чата, но ответа не ждет: пока ChatGPT отвечает, новые сообщения чата
+     * обрабатываются и могут отменить этот ответ (тогда их пачка ответит и на эти сообщения),
+     * а еще не начатый запрос к ChatGPT убирается из очереди планировщика.
+     */
+    private void answerBatch(long chatId, MessageAggregator.Batch<Update> batch) {
+        batch.onCancel(() -> gptScheduler.cancelQueued(chatId));
 
-        if (currentMode == DialogMode.PROFILE && !isMessageCommand()) {
-            switch (questionCount) {
-                case 1 :
-                    me.age = message;
-                    questionCount = 2;
-                    sendTextMessage("Кем вы работаете?");
-                    return;
-                case 2 :
-                    me.occupation = message;
-                    questionCount = 3;
-                    sendTextMessage("Есть ли у вас хобби?");
-                    return;
-                case 3 :
-                    me.hobby = message;
-                    questionCount = 4;
-                    sendTextMessage("Что вам НЕ нравится в людях?");
-                    return;
-                case 4 :
-                    me.annoys = message;
-                    questionCount = 5;
-                    sendTextMessage("Цель знакомства?");
-                    return;
-                case 5 :
-                    me.goals = message;
-                    String aboutMyself = me.toString();
-                    String prompt = loadPrompt("profile");
-                    Message msg = sendTextMessage("Подождите пару секунд - ChatGPT \uD83E\uDDE0 думает...");
-                    String answer = chatGPT.sendMessage(prompt, aboutMyself);
-                    updateTextMessage(msg, answer);
-                    return;
+        CompletableFuture<Void> answer = sessions.withSession(chatId, session -> {
+            if (batch.isCancelled())
+                return CompletableFuture.<Void>completedFuture(null);
+
+            String message = batch.getText();
+            if (session.currentMode == DialogMode.GPT) {
+                String prompt = loadPrompt("gpt");
+                Message msg = sendTextMessage("Подождите пару секунд - ChatGPT думает...");
+                return showAnswerAsync(msg, batch, editor -> chatGPT.sendQuestionAsync(session.chatId, route(session), prompt, message, editor));
+            }
+            if (session.currentMode == DialogMode.DATE) {
+                Message msg = sendTextMessage("Подождите, девушка набирает текст...");
+                return showAnswerAsync(msg, batch, editor -> chatGPT.addMessageAsync(session.chatId, route(session), session.history, message, editor));
+            }
+            return CompletableFuture.<Void>completedFuture(null); //пользователь уже сменил режим
+        });
+
+        answer.whenComplete((result, error) -> {
+            if (error != null)
+                logger.error("Can't answer message batch in chat {}", chatId, error);
+            sessions.withSession(chatId, session -> null); //история изменилась после ответа - сохраняем сессию
+            batch.finish();
+        });
+    }
+
+    /**
+     * Показывает ответ ChatGPT в сообщении msg по мере его генерации. Поток (и сессию чата) не держит:
+     * обновление считается обработанным, когда ответ показан полностью
+     */
+    private void showAnswer(Message msg, Function<Consumer<String>, CompletableFuture<String>> request) {
+        Runnable updateDone = holdCurrentUpdate();
+        showAnswerAsync(msg, null, request).whenComplete((result, error) -> {
+            if (error != null)
+                logger.error("Can't show ChatGPT answer", error);
+            updateDone.run();
+        });
+    }
+
+    /**
+     * То же, но не дожидаясь ответа. Если batch отменен, запрос прерывается на следующем кусочке ответа
+     */
+    private CompletableFuture<Void> showAnswerAsync(Message msg, MessageAggregator.Batch<?> batch, Function<Consumer<String>, CompletableFuture<String>> request) {
+        ThrottledMessageEditor editor = new ThrottledMessageEditor(this, msg, ANSWER_EDIT_INTERVAL);
+        Consumer<String> onUpdate = batch == null ? editor : text -> {
+            batch.checkNotCancelled();
+            editor.accept(text);
+        };
+
+        CompletableFuture<String> answer;
+        try {
+            answer = request.apply(onUpdate);
+        } catch (RuntimeException e) {
+            answer = CompletableFuture.failedFuture(e);
+        }
+
+        return answer.handle((text, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof CancellationException || (batch != null && batch.isCancelled()))
+                text = REQUEST_REPLACED_MESSAGE;
+            else if (cause instanceof ChatGPTQuotaExceededException quota)
+                text = String.format(QUOTA_EXCEEDED_MESSAGE, TimeUnit.MILLISECONDS.toSeconds(quota.getRetryAfterMillis()) + 1);
+            else if (cause != null)
+                throw new CompletionException(cause);
+            return text;
+        }).thenCompose(editor::finish);
+    }
+
+    /**
+     * secret_token webhook-а из системного свойства или переменной окружения. Без него бот не запускается
+     */
+    private static String getWebhookSecret() {
+        String secret = System.getProperty(WEBHOOK_SECRET_PROPERTY, System.getenv(WEBHOOK_SECRET_ENV));
+        if (secret == null || secret.isBlank())
+            throw new IllegalStateException("Webhook mode needs a secret token: set -D" + WEBHOOK_SECRET_PROPERTY + " or " + WEBHOOK_SECRET_ENV);
+        return secret;
+    }
+
+    private static DefaultBotOptions createBotOptions() {
+        DefaultBotOptions options = new DefaultBotOptions();
+        String url = System.getProperty(TELEGRAM_URL_PROPERTY);
+        if (url != null)
+            options.setBaseUrl(url);
+        return options;
+    }
+
+    /**
+     * Основные бэкенды ChatGPT и дополнительные из OPENAI_BACKENDS_PROPERTY / OPENAI_BACKENDS_ENV
+     */
+    private static List<ChatGPTBackend> createBackends() {
+        List<ChatGPTBackend> backends = new ArrayList<>();
+        backends.add(new ChatGPTBackend("fast", OPEN_AI_TOKEN, createTransportSettings(), FAST_MODEL, ChatGPTRoute.FAST, 1, 0));
+        backends.add(new ChatGPTBackend("premium", OPEN_AI_TOKEN, createTransportSettings(), PREMIUM_MODEL, ChatGPTRoute.PREMIUM, 1, 0));
+        backends.addAll(parseBackends(System.getProperty(OPENAI_BACKENDS_PROPERTY, System.getenv(OPENAI_BACKENDS_ENV))));
+        return backends;
+    }
+
+    /**
+     * Бэкенды из строки настроек (формат - см. OPENAI_BACKENDS_PROPERTY). Ошибка в настройках - IllegalArgumentException,
+     * чтобы опечатка в ключе или адресе не осталась незамеченной
+     */
+    static List<ChatGPTBackend> parseBackends(String config) {
+        List<ChatGPTBackend> backends = new ArrayList<>();
+        if (config == null || config.isBlank())
+            return backends;
+
+        for (String entry : config.split(";")) {
+            if (entry.isBlank())
+                continue;
+
+            Map<String, String> fields = new HashMap<>();
+            for (String field : entry.split(",")) {
+                int separator = field.indexOf('=');
+                String name = separator > 0 ? field.substring(0, separator).strip() : "";
+                if (!BACKEND_FIELDS.contains(name))
+                    throw new IllegalArgumentException("Invalid OpenAI backend field \"" + field.strip() + "\", expected one of " + BACKEND_FIELDS);
+                fields.put(name, field.substring(separator + 1).strip());
             }
+
+            ChatGPTRoute route = fields.containsKey("route") ? ChatGPTRoute.valueOf(fields.get("route").toUpperCase()) : null;
+            ChatGPTTransport.Settings settings = createTransportSettings();
+            if (fields.containsKey("url")) {
+                settings.apiHost = fields.get("url");
+                settings.proxy = null;
+            }
+            backends.add(new ChatGPTBackend(fields.getOrDefault("name", "extra" + (backends.size() + 1)),
+                    fields.getOrDefault("key", OPEN_AI_TOKEN), settings,
+                    fields.getOrDefault("model", route == ChatGPTRoute.PREMIUM ? PREMIUM_MODEL : FAST_MODEL), route,
+                    Integer.parseInt(fields.getOrDefault("weight", "1")), Integer.parseInt(fields.getOrDefault("tpm", "0"))));
+        }
+        return backends;
+    }
+
+    private static ChatGPTTransport.Settings createTransportSettings() {
+        ChatGPTTransport.Settings settings = new ChatGPTTransport.Settings();
+        String url = System.getProperty(OPENAI_URL_PROPERTY);
+        if (url != null) {
+            settings.apiHost = url;
+            settings.proxy = null;
+        }
+        return settings;
+    }
+
+    public static void main(String[] args) throws TelegramApiException, IOException {
+        Integer metricsPort = Integer.getInteger(METRICS_PORT_PROPERTY);
+        if (metricsPort != null) {
+            MetricsServer metricsServer = new MetricsServer(Metrics.getInstance(), metricsPort);
+            metricsServer.start();
+            logger.info("Metrics server started on port {}", metricsServer.getPort());
+        }
+
+        Integer webhookPort = Integer.getInteger(WEBHOOK_PORT_PROPERTY);
+        String shardWorkers = System.getProperty(SHARD_WORKERS_PROPERTY);
+        String webhookSecret = webhookPort != null || shardWorkers != null ? getWebhookSecret() : null;
+        if (shardWorkers != null) {
+            startShardIngress(List.of(shardWorkers.split(",")), webhookPort, webhookSecret);
             return;
         }
 
-        //command OPENER
-        if (message.equals("/opener")){
-            currentMode = DialogMode.OPENER;
-            sendPhotoMessage("opener");
-            she = new UserInfo();
-            questionCount = 1;
-            sendTextMessage("Имя девушки?");
+        ResourceRegistry.getInstance().startWatching(); //prompt-ы можно править без перезапуска бота
+        TinderBoltApp bot = new TinderBoltApp();
+        bot.showDefaultMainMenu(); //одно меню сразу для всех чатов - /start не тратит на него запросы
+        bot.getBotUser(); //кто такой бот, не меняется - GetMe один раз при старте
+
+        if (webhookPort != null) {
+            WebhookServer server = new WebhookServer(bot, webhookPort, WEBHOOK_PATH, WEBHOOK_THREADS, WebhookServer.DEFAULT_MAX_BODY_SIZE, webhookSecret);
+            if (Boolean.getBoolean(SHARD_WORKER_PROPERTY))
+                new ShardWorker(bot, bot.sessions).register(server);
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                bot.onClosing();
+            }, "shutdown"));
+            logger.info("Webhook server started on port {}", server.getPort());
             return;
         }
 
-        if (currentMode == DialogMode.OPENER && !isMessageCommand()) {
-            switch (questionCount) {
-                case 1:
-                   she.name = message;
-                   questionCount = 2;
-                   sendTextMessage("Сколько ей лет?");
-                   return;
-                case 2:
-                    she.age = message;
-                    questionCount = 3;
-                    sendTextMessage("Есть ли у нее хобби и какие?");
-                    return;
-                case 3:
-                    she.hobby = message;
-                    questionCount = 4;
-                    sendTextMessage("Кем она работает?");
-                    return;
-                case 4:
-                    she.occupation = message;
-                    questionCount = 5;
-                    sendTextMessage("Цель знакомства?");
-                    return;
-                case 5:
-                    she.goals = message;
-                    String aboutFriend = message;
-                    String prompt = loadPrompt("opener");
-                    Message msg = sendTextMessage("Подождите пару секунд - ChatGPT \uD83E\uDDE0 думает...");
-                    String answer = chatGPT.sendMessage(prompt, aboutFriend);
-                    updateTextMessage(msg, answer);
-                    return;
+        //недообработанные обновления хранятся в журнале - после падения бот продолжит с того же места
+        UpdateCheckpoint checkpoint = new UpdateCheckpoint(UPDATE_CHECKPOINT_FILE);
+        bot.setUpdateCheckpoint(checkpoint);
+        Metrics.getInstance().counter("tinderbolt_updates_forced_total", "Обновления, которые обрабатывались так долго, что журнал перестал их ждать",
+                checkpoint::getForcedCount);
+        UpdatePoller poller = new UpdatePoller(bot, checkpoint);
+        poller.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                poller.stop(); //останавливает и бота
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }, "shutdown"));
+    }
+
+    /**
+     * Шардированный режим: этот процесс только принимает обновления и пересылает их воркерам
+     */
+    private static void startShardIngress(List<String> workers, Integer webhookPort, String webhookSecret) throws TelegramApiException, IOException {
+        ShardIngress ingress = new ShardIngress(TELEGRAM_BOT_NAME, TELEGRAM_BOT_TOKEN, createBotOptions(), workers, WEBHOOK_PATH, webhookSecret);
+
+        if (webhookPort != null) {
+            WebhookServer server = new WebhookServer(ingress, webhookPort, WEBHOOK_PATH, WEBHOOK_THREADS, WebhookServer.DEFAULT_MAX_BODY_SIZE, webhookSecret);
+            server.addContext(ShardIngress.WORKERS_PATH, ingress::handleWorkers);
+            server.start();
+            logger.info("Shard ingress started on port {}, workers: {}", server.getPort(), workers);
             return;
         }
 
+        Integer adminPort = Integer.getInteger(SHARD_ADMIN_PORT_PROPERTY);
+        if (adminPort != null) {
+            HttpServer admin = HttpServer.create(new InetSocketAddress(adminPort), 0);
+            admin.createContext(ShardIngress.WORKERS_PATH, ingress::handleWorkers);
+            admin.start();
+        }
 
-        sendTextMessage("*Привет!*");
-        sendTextMessage("_Привет!_");
-        sendTextMessage("Вы написали "+message);
-        sendTextButtonsMessage("Выберите режим работы:",
-                "Старт", "start",
-                "Стоп", "stop");
-    }
-
-    public static void main(String[] args) throws TelegramApiException {
         TelegramBotsApi telegramBotsApi = new TelegramBotsApi(DefaultBotSession.class);
-        telegramBotsApi.registerBot(new TinderBoltApp());
+        telegramBotsApi.registerBot(ingress);
+        logger.info("Shard ingress started, workers: {}", workers);
     }
 }
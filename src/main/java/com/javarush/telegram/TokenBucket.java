@@ -0,0 +1,72 @@
+package com.javarush.telegram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ограничитель частоты "token bucket": в корзине не больше capacity токенов,
+ * они пополняются со скоростью refillPerSecond. Каждое действие забирает токены.
+ */
+public class TokenBucket {
+    private final double capacity;
+    private final double refillPerNano;
+
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double capacity, double refillPerSecond) {
+        this.capacity = capacity;
+        this.refillPerNano = refillPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Забирает count токенов, если они есть прямо сейчас
+     */
+    public synchronized boolean tryAcquire(double count) {
+        refill();
+        if (tokens < count)
+            return false;
+        tokens -= count;
+        return true;
+    }
+
+    /**
+     * Резервирует count токенов (корзина может уйти "в долг") и возвращает,
+     * сколько наносекунд нужно подождать, пока резерв станет честным.
+     * Так ожидающие обслуживаются по очереди, без гонки за освободившийся токен.
+     */
+    public synchronized long reserve(double count) {
+        refill();
+        tokens -= count;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / refillPerNano);
+    }
+
+    /**
+     * Ждет, пока в корзине появится один токен, и забирает его
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos = reserve(1);
+        if (waitNanos > 0)
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    /**
+     * Корзина полная и давно не использовалась - ее можно удалить
+     */
+    public synchronized boolean isIdle() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    public synchronized double getTokens() {
+        refill();
+        return tokens;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerNano);
+        lastRefill = now;
+    }
+}
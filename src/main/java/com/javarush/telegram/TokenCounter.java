@@ -0,0 +1,61 @@
+package com.javarush.telegram;
+
+import com.plexpt.chatgpt.entity.chat.Message;
+
+import java.util.List;
+
+/**
+ * Локальная оценка количества токенов в тексте без запросов к OpenAI.
+ * Приближает токенизатор cl100k (GPT-4/GPT-3.5): латиница ~4 символа на токен,
+ * кириллица и другие алфавиты ~2.5 символа на токен, знаки препинания и эмодзи - отдельные токены.
+ * Оценка чуть завышена, чтобы запрос гарантированно помещался в бюджет.
+ */
+public class TokenCounter {
+    public static final int TOKENS_PER_MESSAGE = 4; //служебные токены вокруг каждого сообщения
+    public static final int TOKENS_PER_REPLY = 3; //служебные токены перед ответом
+
+    private TokenCounter() {
+    }
+
+    public static int count(String text) {
+        if (text == null)
+            return 0;
+
+        int tokens = 0;
+        int latinRun = 0;
+        int otherRun = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 128 && Character.isLetterOrDigit(c)) {
+                latinRun++;
+            } else if (Character.isLetter(c)) {
+                otherRun++;
+            } else {
+                tokens += runTokens(latinRun, otherRun);
+                latinRun = 0;
+                otherRun = 0;
+                if (!Character.isWhitespace(c) && !Character.isLowSurrogate(c))
+                    tokens++;
+            }
+        }
+        return tokens + runTokens(latinRun, otherRun);
+    }
+
+    public static int count(Message message) {
+        return TOKENS_PER_MESSAGE + count(message.getContent());
+    }
+
+    /**
+     * Оценка размера запроса: все сообщения + служебные токены ответа
+     */
+    public static int count(List<Message> messages) {
+        int tokens = TOKENS_PER_REPLY;
+        for (Message message : messages)
+            tokens += count(message);
+        return tokens;
+    }
+
+    private static int runTokens(int latinRun, int otherRun) {
+        return (latinRun + 3) / 4 + (otherRun * 2 + 4) / 5;
+    }
+}
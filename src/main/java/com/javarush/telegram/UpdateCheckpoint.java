@@ -0,0 +1,267 @@
+package com.javarush.telegram;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Какие принятые обновления еще не обработаны до конца - чтобы после падения или перезапуска обработать их снова,
+ * ничего не потеряв и не обработав дважды.
+ * UpdatePoller подтверждает Telegram все полученные обновления сразу (offset = последний update_id + 1), поэтому
+ * повторно Telegram их не пришлет: недообработанные обновления хранятся здесь целиком (JSON) и после перезапуска
+ * обрабатываются из журнала. Обновления обрабатываются параллельно (по чатам): все до last, кроме pending, обработаны.
+ * <p>
+ * Журнал - текстовый файл, строка на событие: "+JSON" - обновление принято, "-update_id" - обработано.
+ * Строки дописываются сразу (падение процесса их не теряет), fsync делает flush() - UpdatePoller вызывает его
+ * перед тем, как подтвердить Telegram новые обновления. Когда журнал разрастается, он переписывается заново:
+ * "last=update_id" и только pending (запись во временный файл и замена). Недописанная последняя строка отбрасывается.
+ */
+public class UpdateCheckpoint {
+    private static final Logger logger = LoggerFactory.getLogger(UpdateCheckpoint.class);
+
+    public static final int WINDOW_SIZE = 1 << 16; //сколько update_id может быть между первым pending и last
+    public static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7); //потом Telegram начинает нумерацию заново
+    public static final int COMPACT_RECORDS = 10_000; //после стольких строк журнал переписывается
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Path file;
+    private final TreeMap<Long, String> pending = new TreeMap<>(); //update_id -> JSON обновления
+    private final AtomicLong forced = new AtomicLong();
+    private boolean started; //было ли хоть одно обновление
+    private long last; //последний принятый update_id
+    private FileChannel channel; //открывается при первой записи
+    private int records; //строк в журнале
+    private boolean dirty; //есть строки без fsync
+
+    public UpdateCheckpoint(Path file) {
+        this.file = file;
+        if (file != null)
+            load();
+    }
+
+    /**
+     * Обновление принято в обработку. Повторный begin для еще не обработанного обновления (повтор из журнала) ничего не меняет
+     */
+    public synchronized void begin(Update update) {
+        long updateId = update.getUpdateId();
+        if (pending.containsKey(updateId) || started && updateId <= last)
+            return; //уже в журнале или уже обработано
+
+        String json;
+        try {
+            json = mapper.writeValueAsString(update);
+        } catch (JsonProcessingException e) {
+            logger.error("Can't serialize update {}: {}", updateId, e.getMessage());
+            BotMetrics.error("update_checkpoint");
+            return;
+        }
+        write("+" + json); //до accept: если журнал при этом переписывается, обновление не попадет в него дважды
+        accept(updateId, json, false);
+    }
+
+    /**
+     * Обновление обработано (успешно или с ошибкой - повторять его нет смысла)
+     */
+    public synchronized void complete(long updateId) {
+        if (pending.remove(updateId) == null)
+            return;
+        write("-" + updateId);
+    }
+
+    /**
+     * Сбрасывает журнал на диск (fsync): принятые до этого обновления переживут и сбой ОС
+     */
+    public synchronized void flush() {
+        if (!dirty || channel == null)
+            return;
+        try {
+            channel.force(false);
+            dirty = false;
+        } catch (IOException e) {
+            logger.error("Can't flush update checkpoint: {}", e.getMessage());
+            BotMetrics.error("update_checkpoint");
+        }
+    }
+
+    /**
+     * Недообработанные обновления по порядку - их нужно обработать снова
+     */
+    public synchronized List<Update> getPendingUpdates() {
+        List<Update> updates = new ArrayList<>();
+        for (Map.Entry<Long, String> entry : pending.entrySet()) {
+            try {
+                updates.add(mapper.readValue(entry.getValue(), Update.class));
+            } catch (IOException e) {
+                logger.error("Can't read update {} from checkpoint: {}", entry.getKey(), e.getMessage());
+                BotMetrics.error("update_checkpoint");
+            }
+        }
+        return updates;
+    }
+
+    /**
+     * Первый update_id, обработка которого не закончена (или last + 1), 0 - обновлений еще не было
+     */
+    public synchronized long getOffset() {
+        if (!started)
+            return 0;
+        return pending.isEmpty() ? last + 1 : pending.firstKey();
+    }
+
+    /**
+     * Последний принятый update_id, -1 - обновлений еще не было
+     */
+    public synchronized long getLastUpdateId() {
+        return started ? last : -1;
+    }
+
+    /**
+     * Сколько обновлений пропущено без обработки: они обрабатывались так долго, что ушли за WINDOW_SIZE
+     */
+    public long getForcedCount() {
+        return forced.get();
+    }
+
+    /**
+     * Запоминает в deduplicator обработанные обновления, чтобы повторно присланные не обрабатывались снова
+     */
+    public synchronized void restore(UpdateDeduplicator deduplicator) {
+        if (!started)
+            return;
+
+        long offset = getOffset();
+        deduplicator.startAt(offset);
+        for (long id = offset; id <= last; id++) {
+            if (!pending.containsKey(id))
+                deduplicator.markSeen(id);
+        }
+    }
+
+    /**
+     * Закрывает журнал (предварительно сбросив его на диск)
+     */
+    public synchronized void close() {
+        flush();
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Can't close update checkpoint: {}", e.getMessage());
+        }
+        channel = null;
+    }
+
+    /**
+     * Обновление принято: при загрузке журнала (replay = true) молча, как и было до перезапуска
+     */
+    private void accept(long updateId, String json, boolean replay) {
+        if (!started) {
+            last = updateId - 1;
+            started = true;
+        }
+
+        //какое-то обновление обрабатывается слишком долго - не держим его вечно
+        long base = updateId - WINDOW_SIZE + 1;
+        while (!pending.isEmpty() && pending.firstKey() < base) {
+            long stuck = pending.pollFirstEntry().getKey();
+            if (!replay) {
+                logger.warn("Update {} is still being processed after {} newer updates, checkpoint drops it", stuck, WINDOW_SIZE);
+                forced.incrementAndGet();
+            }
+        }
+
+        pending.put(updateId, json);
+        last = Math.max(last, updateId);
+    }
+
+    private void write(String record) {
+        if (file == null)
+            return;
+
+        try {
+            if (channel == null || records >= COMPACT_RECORDS)
+                rewrite();
+            ByteBuffer buffer = StandardCharsets.UTF_8.encode(record + "\n");
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            records++;
+            dirty = true;
+        } catch (IOException e) {
+            logger.error("Can't write update checkpoint: {}", e.getMessage());
+            BotMetrics.error("update_checkpoint");
+        }
+    }
+
+    /**
+     * Переписывает журнал заново: last и pending. Заодно отбрасывает недописанный хвост после падения
+     */
+    private void rewrite() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        List<String> lines = new ArrayList<>();
+        if (started)
+            lines.add("last=" + last);
+        for (String json : pending.values())
+            lines.add("+" + json);
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        try (FileChannel tmpChannel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            tmpChannel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        records = lines.size();
+        dirty = false;
+    }
+
+    private void load() {
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            if (!Files.exists(file))
+                return;
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() > MAX_AGE_MILLIS) {
+                logger.info("Update checkpoint {} is too old, ignoring it", file);
+                return;
+            }
+
+            String content = Files.readString(file, StandardCharsets.UTF_8);
+            int end = content.lastIndexOf('\n') + 1; //строка без перевода строки - недописанная запись
+            for (String line : content.substring(0, end).split("\n")) {
+                if (line.startsWith("last=")) {
+                    last = Long.parseLong(line.substring("last=".length()));
+                    started = true;
+                } else if (line.startsWith("+")) {
+                    String json = line.substring(1);
+                    accept(mapper.readTree(json).get("update_id").asLong(), json, true);
+                } else if (line.startsWith("-")) {
+                    pending.remove(Long.parseLong(line.substring(1)));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Can't load update checkpoint {}: {}", file, e.getMessage());
+            BotMetrics.error("update_checkpoint");
+        }
+    }
+}
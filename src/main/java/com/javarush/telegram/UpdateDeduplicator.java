@@ -0,0 +1,137 @@
+package com.javarush.telegram;
+
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Отсеивает повторно доставленные обновления: Telegram присылает Update еще раз, если webhook не ответил вовремя
+ * или long polling не подтвердил offset (например, бот упал посреди обработки).
+ * update_id запоминаются в скользящем окне из windowSize бит (UpdateIdWindow): ID в окне проверяется по биту,
+ * ID старше окна считается уже обработанным. Первое окно ставится серединой на первый ID: webhook доставляет
+ * обновления параллельно, и более ранние ID могут прийти позже него. ID нажатий кнопок (callback query) - строки, поэтому хранятся
+ * их 64-битные хеши в двух таблицах по очереди: когда текущая заполнится наполовину, она становится предыдущей,
+ * а бывшая предыдущая очищается - помнятся последние callbackCapacity / 2 .. callbackCapacity нажатий.
+ * Проверка не выделяет памяти.
+ */
+public class UpdateDeduplicator {
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 16;
+    public static final int DEFAULT_CALLBACK_CAPACITY = 1 << 12;
+
+    private final UpdateIdWindow seen;
+    private boolean started; //первый update_id задает середину окна
+    private boolean belowBaseKnown; //ID до начала окна уже обработаны: окно сдвигалось или восстановлено из UpdateCheckpoint
+    private long[] callbacks;
+    private long[] previousCallbacks;
+    private int callbackCount;
+    private final AtomicLong duplicates = new AtomicLong();
+
+    public UpdateDeduplicator() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_CALLBACK_CAPACITY);
+    }
+
+    /**
+     * windowSize и callbackCapacity - степени двойки
+     */
+    public UpdateDeduplicator(int windowSize, int callbackCapacity) {
+        if (Integer.bitCount(callbackCapacity) != 1)
+            throw new IllegalArgumentException("Callback capacity must be a power of two: " + callbackCapacity);
+        this.seen = new UpdateIdWindow(windowSize, 0);
+        this.callbacks = new long[callbackCapacity];
+        this.previousCallbacks = new long[callbackCapacity];
+    }
+
+    /**
+     * true - обновление пришло впервые (и теперь запомнено), false - это повтор
+     */
+    public synchronized boolean markSeen(Update update) {
+        boolean fresh = update.getUpdateId() == null || markSeen(update.getUpdateId());
+        if (update.hasCallbackQuery() && update.getCallbackQuery().getId() != null)
+            fresh = markCallbackSeen(update.getCallbackQuery().getId()) && fresh;
+        if (!fresh)
+            duplicates.incrementAndGet();
+        return fresh;
+    }
+
+    /**
+     * Обновления до offset уже обработаны (например, до перезапуска бота), окно начинается с offset
+     */
+    public synchronized void startAt(long offset) {
+        seen.reset(offset);
+        started = true;
+        belowBaseKnown = true;
+    }
+
+    /**
+     * Сколько повторов отсеяно
+     */
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    synchronized boolean markSeen(long updateId) {
+        if (!started || updateId < seen.getBase() - seen.size()) {
+            //первое обновление или нумерация началась заново (Telegram так делает после недели без обновлений)
+            seen.reset(updateId - seen.size() / 2);
+            started = true;
+            belowBaseKnown = false;
+        }
+
+        if (updateId < seen.getBase())
+            return !belowBaseKnown; //старше окна: обработано, если окно уже прошло этот ID, иначе о нем ничего не известно
+        if (!seen.contains(updateId)) {
+            seen.advanceTo(updateId - seen.size() + 1);
+            belowBaseKnown = true;
+        }
+
+        if (seen.get(updateId))
+            return false;
+        seen.set(updateId);
+        return true;
+    }
+
+    private boolean markCallbackSeen(String id) {
+        long hash = hash(id);
+        if (contains(callbacks, hash) || contains(previousCallbacks, hash))
+            return false;
+
+        if (callbackCount >= callbacks.length / 2) {
+            long[] oldest = previousCallbacks;
+            Arrays.fill(oldest, 0);
+            previousCallbacks = callbacks;
+            callbacks = oldest;
+            callbackCount = 0;
+        }
+
+        int mask = callbacks.length - 1;
+        int slot = (int) hash & mask;
+        while (callbacks[slot] != 0)
+            slot = (slot + 1) & mask;
+        callbacks[slot] = hash;
+        callbackCount++;
+        return true;
+    }
+
+    private static boolean contains(long[] table, long hash) {
+        int mask = table.length - 1;
+        for (int slot = (int) hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            if (table[slot] == hash)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * 64-битный FNV-1a по символам строки с перемешиванием (0 означает пустую ячейку, поэтому не используется)
+     */
+    private static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++)
+            hash = (hash ^ id.charAt(i)) * 0x100000001b3L;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+}
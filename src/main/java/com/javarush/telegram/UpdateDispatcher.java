@@ -0,0 +1,85 @@
+package com.javarush.telegram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Асинхронная обработка входящих Update-ов.
+ * Обновления одного чата обрабатываются по порядку, обновления разных чатов - параллельно.
+ * Одновременно в работе (и в очередях чатов) не больше maxInFlight обновлений:
+ * если лимит исчерпан, метод dispatch() ждет - это тормозит long polling (backpressure), а tryDispatch() сразу отказывает.
+ * На Java 21+ используются виртуальные потоки, на более старых JVM - обычный пул потоков.
+ */
+public class UpdateDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(UpdateDispatcher.class);
+
+    private final ExecutorService executor;
+    private final KeyedSerialExecutor chatQueues;
+    private final Semaphore inFlight;
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    public UpdateDispatcher(int maxInFlight) {
+        this.executor = KeyedSerialExecutor.newThreadPerTaskExecutor("update-dispatcher");
+        this.chatQueues = new KeyedSerialExecutor(executor);
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Ставит обработку обновления в очередь чата chatId
+     */
+    public CompletableFuture<Void> dispatch(long chatId, Runnable handler) {
+        inFlight.acquireUninterruptibly();
+        return submit(chatId, handler);
+    }
+
+    /**
+     * То же, но не ждет: если лимит maxInFlight исчерпан, возвращает null. Для потоков, которые нельзя
+     * останавливать (например, таймер, от которого зависят другие чаты)
+     */
+    public CompletableFuture<Void> tryDispatch(long chatId, Runnable handler) {
+        if (!inFlight.tryAcquire())
+            return null;
+        return submit(chatId, handler);
+    }
+
+    private CompletableFuture<Void> submit(long chatId, Runnable handler) {
+        inFlightCount.incrementAndGet();
+        try {
+            CompletableFuture<Void> future = chatQueues.execute(chatId, handler);
+            return future.whenComplete((r, e) -> {
+                inFlightCount.decrementAndGet();
+                inFlight.release();
+                if (e != null) {
+                    BotMetrics.updateError();
+                    logger.error("Update processing failed", e);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlightCount.decrementAndGet();
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Количество обновлений, которые сейчас обрабатываются или ждут в очередях чатов
+     */
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
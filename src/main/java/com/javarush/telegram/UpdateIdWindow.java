@@ -0,0 +1,99 @@
+package com.javarush.telegram;
+
+import java.util.Arrays;
+
+/**
+ * Битовая карта для size подряд идущих update_id: [base, base + size), по биту на ID.
+ * Хранится кольцом в long[]: сдвиг окна вперед только очищает биты ушедших ID, память не выделяется.
+ * Не потокобезопасна - синхронизацию делает владелец.
+ */
+public class UpdateIdWindow {
+    private final long[] words;
+    private final int mask;
+    private long base;
+
+    /**
+     * size - степень двойки, кратная 64
+     */
+    public UpdateIdWindow(int size, long base) {
+        if (size < 64 || Integer.bitCount(size) != 1)
+            throw new IllegalArgumentException("Window size must be a power of two >= 64: " + size);
+        this.words = new long[size >>> 6];
+        this.mask = size - 1;
+        this.base = base;
+    }
+
+    public long getBase() {
+        return base;
+    }
+
+    public int size() {
+        return mask + 1;
+    }
+
+    /**
+     * Попадает ли id в окно
+     */
+    public boolean contains(long id) {
+        return id >= base && id - base <= mask;
+    }
+
+    public boolean get(long id) {
+        int bit = (int) (id & mask);
+        return (words[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    public void set(long id) {
+        int bit = (int) (id & mask);
+        words[bit >>> 6] |= 1L << bit;
+    }
+
+    public void clear(long id) {
+        int bit = (int) (id & mask);
+        words[bit >>> 6] &= ~(1L << bit);
+    }
+
+    /**
+     * Сдвигает начало окна на newBase (только вперед), биты ID меньше newBase очищаются
+     */
+    public void advanceTo(long newBase) {
+        if (newBase <= base)
+            return;
+        if (newBase - base > mask) {
+            Arrays.fill(words, 0);
+        } else {
+            for (long id = base; id < newBase; id++) {
+                if ((id & 63) == 0 && newBase - id >= 64) {
+                    words[(int) (id & mask) >>> 6] = 0; //целое слово за раз
+                    id += 63;
+                } else {
+                    clear(id);
+                }
+            }
+        }
+        base = newBase;
+    }
+
+    /**
+     * Первый ID в [from, to) с установленным битом или to, если таких нет. from и to должны быть в окне
+     */
+    public long nextSet(long from, long to) {
+        long id = from;
+        while (id < to) {
+            int bit = (int) (id & mask);
+            long word = words[bit >>> 6] >>> (bit & 63);
+            if (word != 0)
+                return Math.min(to, id + Long.numberOfTrailingZeros(word));
+            id += 64 - (bit & 63); //остаток слова пуст
+        }
+        return to;
+    }
+
+    /**
+     * Сбрасывает окно: все биты очищены, начало - newBase
+     */
+    public void reset(long newBase) {
+        Arrays.fill(words, 0);
+        base = newBase;
+    }
+}
@@ -0,0 +1,136 @@
+package com.javarush.telegram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.updates.GetUpdates;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Long polling вместо DefaultBotSession: обновления, принятые, но не обработанные до конца, не теряются при падении.
+ * DefaultBotSession запрашивает offset = последний полученный update_id + 1, и если бот упадет посреди обработки,
+ * Telegram уже не пришлет эти обновления. Здесь каждое обновление до подтверждения записывается в журнал UpdateCheckpoint
+ * (и сбрасывается на диск перед следующим getUpdates), а после перезапуска недообработанные обновления
+ * обрабатываются из журнала - поэтому offset запроса можно сразу сдвигать за все полученные обновления,
+ * и запрос всегда ждет новых обновлений (long polling), а не получает заново те, что еще обрабатываются.
+ * Запросы идут своим HTTP-клиентом: долгий запрос getUpdates не занимает соединения, через которые бот отправляет сообщения.
+ */
+public class UpdatePoller {
+    private static final Logger logger = LoggerFactory.getLogger(UpdatePoller.class);
+
+    public static final int LIMIT = 100; //больше Telegram за один запрос не отдает
+    public static final int TIMEOUT_SECONDS = 50;
+    public static final long MAX_ERROR_PAUSE = 30_000;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    private final MultiSessionTelegramBot bot;
+    private final UpdateCheckpoint checkpoint;
+    private final URI uri;
+
+    private volatile boolean running;
+    private Thread thread;
+    private long lastReceived; //последний полученный update_id, -1 - еще не было
+
+    public UpdatePoller(MultiSessionTelegramBot bot, UpdateCheckpoint checkpoint) {
+        this.bot = bot;
+        this.checkpoint = checkpoint;
+        this.uri = URI.create(bot.getOptions().getBaseUrl() + bot.getBotToken() + "/" + GetUpdates.PATH);
+        this.lastReceived = checkpoint.getLastUpdateId();
+    }
+
+    /**
+     * Удаляет webhook (иначе getUpdates не работает) и запускает поток опроса.
+     * Первым делом он обрабатывает обновления, которые остались недообработанными до перезапуска
+     */
+    public void start() throws TelegramApiException {
+        bot.clearWebhook();
+        running = true;
+        thread = new Thread(this::run, "update-poller");
+        thread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+        bot.onClosing();
+        checkpoint.close();
+    }
+
+    private void run() {
+        List<Update> unfinished = checkpoint.getPendingUpdates();
+        if (!unfinished.isEmpty())
+            logger.info("Processing {} updates left unfinished before restart", unfinished.size());
+        dispatch(unfinished);
+
+        long errorPause = 0;
+        while (running) {
+            try {
+                poll();
+                errorPause = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | TelegramApiException | RuntimeException e) {
+                if (!running)
+                    return;
+                errorPause = Math.min(MAX_ERROR_PAUSE, Math.max(500, errorPause * 2));
+                logger.warn("getUpdates failed, retrying in {} ms: {}", errorPause, e.getMessage());
+                BotMetrics.error("update_poller");
+                try {
+                    Thread.sleep(errorPause);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Один запрос getUpdates: ждет новые обновления до TIMEOUT_SECONDS и передает их боту.
+     * Полученные обновления уже в журнале, поэтому следующий запрос подтверждает их Telegram
+     */
+    void poll() throws IOException, InterruptedException, TelegramApiException {
+        GetUpdates request = GetUpdates.builder()
+                .offset((int) (lastReceived + 1))
+                .limit(LIMIT)
+                .timeout(TIMEOUT_SECONDS)
+                .build();
+        request.setAllowedUpdates(bot.getOptions().getAllowedUpdates()); //null - все типы обновлений
+        HttpRequest httpRequest = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(TIMEOUT_SECONDS + 15))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(request)))
+                .build();
+        HttpResponse<String> response = client.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+        List<Update> updates = request.deserializeResponse(response.body());
+
+        for (Update update : updates)
+            lastReceived = Math.max(lastReceived, update.getUpdateId());
+        dispatch(updates);
+        checkpoint.flush(); //до следующего getUpdates, который подтвердит эти обновления
+    }
+
+    private void dispatch(List<Update> updates) {
+        for (Update update : updates) {
+            try {
+                bot.onUpdateReceived(update); //повторы отсеет UpdateDeduplicator бота
+            } catch (RuntimeException e) {
+                logger.error("Update processing failed", e);
+                BotMetrics.error("update_poller");
+            }
+        }
+    }
+}
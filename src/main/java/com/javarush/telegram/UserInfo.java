@@ -12,28 +12,26 @@ public class UserInfo {
     public String annoys; //Меня раздражает в людях
     public String goals; //Цели знакомства
 
-    private String fieldToString(String str, String description) {
+    private void appendField(StringBuilder result, String str, String description) {
         if (str != null && !str.isEmpty())
-            return description + ": " + str + "\n";
-        else
-            return "";
+            result.append(description).append(": ").append(str).append('\n');
     }
 
     @Override
     public String toString() {
-        String result = "";
+        StringBuilder result = new StringBuilder(256);
 
-        result += fieldToString(name, "Имя");
-        result += fieldToString(sex, "Пол");
-        result += fieldToString(age, "Возраст");
-        result += fieldToString(city, "Город");
-        result += fieldToString(occupation, "Профессия");
-        result += fieldToString(hobby, "Хобби");
-        result += fieldToString(handsome, "Красота, привлекательность в баллах (максимум 10 баллов)");
-        result += fieldToString(wealth, "Доход, богатство");
-        result += fieldToString(annoys, "В людях раздражает");
-        result += fieldToString(goals, "Цели знакомства");
+        appendField(result, name, "Имя");
+        appendField(result, sex, "Пол");
+        appendField(result, age, "Возраст");
+        appendField(result, city, "Город");
+        appendField(result, occupation, "Профессия");
+        appendField(result, hobby, "Хобби");
+        appendField(result, handsome, "Красота, привлекательность в баллах (максимум 10 баллов)");
+        appendField(result, wealth, "Доход, богатство");
+        appendField(result, annoys, "В людях раздражает");
+        appendField(result, goals, "Цели знакомства");
 
-        return result;
+        return result.toString();
     }
 }
@@ -0,0 +1,41 @@
+package com.javarush.telegram;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Состояние диалога с одним пользователем (одним Telegram-чатом).
+ * Раньше эти поля жили прямо в TinderBoltApp и были общими для всех пользователей.
+ */
+public class UserSession {
+    public final long chatId;
+    public DialogMode currentMode = null;
+    public final ChatTranscript transcript = new ChatTranscript(); //переписка пользователя в режиме MESSAGE
+    public UserInfo me;
+    public UserInfo she;
+    public int questionCount;
+    public final ChatHistory history = new ChatHistory(); //история диалога с ChatGPT
+
+    final ReentrantLock lock = new ReentrantLock();
+    volatile long lastAccessTime;
+    private long changes; //изменения полей самой сессии, отмеченные changed()
+    long savedVersion; //version() последнего сохраненного в SessionLog состояния (см. SessionStore.withSession)
+
+    public UserSession(long chatId) {
+        this.chatId = chatId;
+    }
+
+    /**
+     * Отмечает изменение полей сессии (режим, анкеты, номер вопроса), чтобы SessionStore сохранил ее в журнал.
+     * transcript и history считают свои изменения сами
+     */
+    public void changed() {
+        changes++;
+    }
+
+    /**
+     * Растет при любом изменении сессии: по нему SessionStore решает, нужно ли сохранять сессию, не кодируя ее
+     */
+    long version() {
+        return changes + transcript.getVersion() + history.getVersion();
+    }
+}
@@ -0,0 +1,169 @@
+package com.javarush.telegram;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Прием обновлений через webhook вместо long polling.
+ * Встроенный HTTP-сервер JDK принимает POST-запросы Telegram с Update в формате JSON,
+ * сразу отвечает 200 и только потом передает Update боту (onUpdateReceived).
+ * Несколько таких процессов можно поставить за балансировщиком.
+ */
+public class WebhookServer {
+    private static final Logger logger = LoggerFactory.getLogger(WebhookServer.class);
+
+    public static final int DEFAULT_MAX_BODY_SIZE = 1024 * 1024;
+    public static final String SECRET_TOKEN_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    private final MultiSessionTelegramBot bot;
+    private final ObjectMapper mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final int port;
+    private final String path;
+    private final int workerThreads;
+    private final int maxBodySize;
+    private final byte[] secretToken;
+
+    private final Map<String, HttpHandler> contexts = new LinkedHashMap<>();
+
+    private HttpServer server;
+    private ExecutorService workers;
+
+    /**
+     * secretToken - значение secret_token, указанное при setWebhook. Обязательно: без него обновления
+     * на открытый порт мог бы прислать кто угодно
+     */
+    public WebhookServer(MultiSessionTelegramBot bot, int port, String path, int workerThreads, int maxBodySize, String secretToken) {
+        if (secretToken == null || secretToken.isBlank())
+            throw new IllegalArgumentException("Webhook secret token is required");
+        this.bot = bot;
+        this.port = port;
+        this.path = path;
+        this.workerThreads = workerThreads;
+        this.maxBodySize = maxBodySize;
+        this.secretToken = secretToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Дополнительный обработчик на том же порту (например, служебные запросы шардирования). Вызывать до start()
+     */
+    public void addContext(String path, HttpHandler handler) {
+        contexts.put(path, handler);
+    }
+
+    public void start() throws IOException {
+        workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "webhook-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(workers);
+        server.createContext(path, this::handle);
+        contexts.forEach(server::createContext);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null)
+            server.stop(1);
+        if (workers != null)
+            workers.shutdown();
+    }
+
+    /**
+     * Фактический порт сервера (полезно, если он был запущен на порту 0)
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Сравнение за одно и то же время, чтобы secret_token нельзя было подобрать по времени ответа
+     */
+    private boolean isSecretTokenValid(String header) {
+        return header != null && MessageDigest.isEqual(secretToken, header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                reject(exchange, 405);
+                return;
+            }
+
+            if (!isSecretTokenValid(exchange.getRequestHeaders().getFirst(SECRET_TOKEN_HEADER))) {
+                reject(exchange, 403);
+                return;
+            }
+
+            byte[] body = readBody(exchange);
+            if (body == null) {
+                reject(exchange, 413);
+                return;
+            }
+
+            Update update;
+            try {
+                update = mapper.readValue(body, Update.class);
+            } catch (IOException e) {
+                reject(exchange, 400);
+                return;
+            }
+
+            //сначала подтверждаем получение, чтобы Telegram не ждал окончания обработки
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+
+            try {
+                bot.onUpdateReceived(update);
+            } catch (RuntimeException e) {
+                logger.error("Update processing failed", e);
+            }
+        }
+    }
+
+    /**
+     * Ответ с ошибкой. Тело запроса могло остаться непрочитанным, поэтому соединение закрываем
+     */
+    private static void reject(HttpExchange exchange, int code) throws IOException {
+        exchange.getResponseHeaders().set("Connection", "close");
+        exchange.sendResponseHeaders(code, -1);
+    }
+
+    /**
+     * Читает тело запроса, но не больше maxBodySize байт. Возвращает null, если тело слишком большое
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength) > maxBodySize)
+                    return null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(maxBodySize + 1);
+            return body.length > maxBodySize ? null : body;
+        }
+    }
+}
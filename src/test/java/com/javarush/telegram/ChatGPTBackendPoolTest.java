@@ -0,0 +1,158 @@
+package com.javarush.telegram;
+
+import com.plexpt.chatgpt.entity.chat.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ChatGPTBackendPool против нескольких заглушек OpenAI с разной скоростью и разными лимитами
+ */
+class ChatGPTBackendPoolTest {
+    private final List<FakeOpenAiServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void stopServers() {
+        servers.forEach(FakeOpenAiServer::stop);
+    }
+
+    /**
+     * Запросы идут на бэкенды своего класса, а если таких нет - на любой другой
+     */
+    @Test
+    void requestsFollowTheirRoute() throws Exception {
+        FakeOpenAiServer fast = startServer(0);
+        FakeOpenAiServer premium = startServer(0);
+        ChatGPTBackendPool pool = new ChatGPTBackendPool(List.of(
+                backend("fast", fast, ChatGPTRoute.FAST, 1, 0),
+                backend("premium", premium, ChatGPTRoute.PREMIUM, 1, 0)));
+
+        for (int i = 0; i < 3; i++)
+            assertEquals(FakeOpenAiServer.ANSWER, complete(pool, ChatGPTRoute.FAST).join());
+        complete(pool, ChatGPTRoute.PREMIUM).join();
+        assertEquals(3, fast.getRequestCount());
+        assertEquals(1, premium.getRequestCount());
+
+        ChatGPTBackendPool premiumOnly = new ChatGPTBackendPool(List.of(backend("premium", premium, ChatGPTRoute.PREMIUM, 1, 0)));
+        complete(premiumOnly, ChatGPTRoute.FAST).join();
+        assertEquals(2, premium.getRequestCount());
+    }
+
+    /**
+     * Одновременные запросы распределяются по числу выполняющихся с учетом веса: бэкенд веса 3 получает около 3/4
+     */
+    @Test
+    void concurrentRequestsAreSpreadByWeight() throws Exception {
+        FakeOpenAiServer small = startServer(300);
+        FakeOpenAiServer large = startServer(300);
+        ChatGPTBackendPool pool = new ChatGPTBackendPool(List.of(
+                backend("small", small, null, 1, 0),
+                backend("large", large, null, 3, 0)));
+
+        List<CompletableFuture<String>> answers = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+            answers.add(complete(pool, ChatGPTRoute.FAST));
+        answers.forEach(CompletableFuture::join);
+
+        assertEquals(10, small.getRequestCount());
+        assertEquals(30, large.getRequestCount());
+    }
+
+    /**
+     * Бэкенд, который раз за разом отвечает 429, исключается из выбора, а запросы уходят на другой без ошибок
+     */
+    @Test
+    void rateLimitedBackendIsEjected() throws Exception {
+        FakeOpenAiServer limited = startServer(0, 1.0);
+        FakeOpenAiServer healthy = startServer(0);
+        ChatGPTBackend limitedBackend = backend("limited", limited, null, 1, 0);
+        ChatGPTBackendPool pool = new ChatGPTBackendPool(List.of(limitedBackend, backend("healthy", healthy, null, 1, 0)));
+
+        for (int i = 0; i < 20; i++)
+            assertEquals(FakeOpenAiServer.ANSWER, complete(pool, ChatGPTRoute.FAST).join());
+
+        assertEquals(1, limitedBackend.getEjectionCount());
+        assertFalse(limitedBackend.isAvailable());
+        assertEquals(ChatGPTBackend.EJECT_AFTER_RATE_LIMITS, limited.getRequestCount());
+        assertEquals(20, healthy.getRequestCount());
+    }
+
+    /**
+     * Токены считаются по usage из ответов: бэкенд, исчерпавший свой лимит токенов в минуту, пропускается
+     */
+    @Test
+    void backendOverTokenLimitIsSkipped() throws Exception {
+        FakeOpenAiServer small = startServer(0);
+        FakeOpenAiServer spare = startServer(0);
+        ChatGPTBackend smallBackend = backend("small", small, null, 1, 30);
+        ChatGPTBackendPool pool = new ChatGPTBackendPool(List.of(smallBackend, backend("spare", spare, null, 1, 0)));
+
+        complete(pool, ChatGPTRoute.FAST).join(); //при равной нагрузке первым выбирается первый бэкенд
+        assertEquals(1, small.getRequestCount());
+        assertTrue(smallBackend.getTokensLastMinute() >= 30, smallBackend.getTokensLastMinute() + " tokens"); //ответ заглушки длиннее лимита
+
+        for (int i = 0; i < 5; i++)
+            complete(pool, ChatGPTRoute.FAST).join();
+        assertEquals(1, small.getRequestCount());
+        assertEquals(5, spare.getRequestCount());
+        assertFalse(smallBackend.isAvailable());
+    }
+
+    /**
+     * Дополнительные бэкенды читаются из настроек (TinderBoltApp.OPENAI_BACKENDS_PROPERTY), а опечатка в них - ошибка
+     */
+    @Test
+    void backendsAreReadFromConfiguration() throws Exception {
+        FakeOpenAiServer extra = startServer(0);
+        List<ChatGPTBackend> backends = TinderBoltApp.parseBackends(
+                "name=extra, route=premium, key=test-key, url=" + extra.getBaseUrl() + ", weight=2, tpm=1000; model=gpt-test");
+        assertEquals(2, backends.size());
+        assertEquals("extra", backends.get(0).getName());
+        assertEquals(ChatGPTRoute.PREMIUM, backends.get(0).getRoute());
+        assertEquals(TinderBoltApp.PREMIUM_MODEL, backends.get(0).getModel());
+        assertEquals("gpt-test", backends.get(1).getModel());
+        assertNull(backends.get(1).getRoute());
+
+        ChatGPTBackendPool pool = new ChatGPTBackendPool(List.of(backends.get(0)));
+        assertEquals(FakeOpenAiServer.ANSWER, complete(pool, ChatGPTRoute.PREMIUM).join());
+        assertEquals(1, extra.getRequestCount());
+
+        assertTrue(TinderBoltApp.parseBackends(null).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> TinderBoltApp.parseBackends("nmae=typo"));
+        assertThrows(IllegalArgumentException.class, () -> TinderBoltApp.parseBackends("route=SLOW"));
+        assertThrows(IllegalArgumentException.class, () -> TinderBoltApp.parseBackends("weight=two"));
+    }
+
+    private static CompletableFuture<String> complete(ChatGPTBackendPool pool, ChatGPTRoute route) {
+        return pool.complete(route, List.of(Message.of("привет")), 100, 0.9).thenApply(answer -> answer.content);
+    }
+
+    private FakeOpenAiServer startServer(long latencyMillis) throws Exception {
+        return startServer(latencyMillis, 0);
+    }
+
+    private FakeOpenAiServer startServer(long latencyMillis, double tooManyRequestsRate) throws Exception {
+        FakeOpenAiServer server = new FakeOpenAiServer(0, latencyMillis, 0, tooManyRequestsRate);
+        server.start();
+        servers.add(server);
+        return server;
+    }
+
+    private static ChatGPTBackend backend(String name, FakeOpenAiServer server, ChatGPTRoute route, int weight, int tokensPerMinute) {
+        ChatGPTTransport.Settings settings = new ChatGPTTransport.Settings();
+        settings.apiHost = server.getBaseUrl();
+        settings.proxy = null;
+        settings.http2 = false;
+        settings.maxRetries = 0; //429 сразу видны пулу
+        return new ChatGPTBackend(name, "test-key", settings, "gpt-test", route, weight, tokensPerMinute);
+    }
+}
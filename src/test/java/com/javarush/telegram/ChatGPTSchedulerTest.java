@@ -0,0 +1,151 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ChatGPTScheduler против имитации ChatGPT: запрос "выполняется" UPSTREAM_MILLIS, не занимая поток
+ */
+class ChatGPTSchedulerTest {
+    private static final long UPSTREAM_MILLIS = 20;
+
+    private final ScheduledExecutorService upstream = Executors.newScheduledThreadPool(4);
+
+    @AfterEach
+    void stopUpstream() {
+        upstream.shutdownNow();
+    }
+
+    /**
+     * Несколько чатов заваливают планировщик запросами, а легкие чаты все равно получают ответ быстро:
+     * очереди обслуживаются по кругу, и хвост задержек легких чатов не зависит от длины очередей тяжелых
+     */
+    @Test
+    void lightChatsAreNotStarvedByFlood() throws Exception {
+        ChatGPTScheduler scheduler = new ChatGPTScheduler(4, 1e6, 1e6, 1e9);
+        scheduler.setReplaceQueued(false); //тяжелые чаты копят очередь, а не заменяют свои запросы
+
+        List<CompletableFuture<String>> heavy = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            for (long chatId = 1; chatId <= 3; chatId++)
+                heavy.add(scheduler.submit(chatId, 100, this::answer));
+        }
+
+        LatencyHistogram light = new LatencyHistogram();
+        List<CompletableFuture<String>> answers = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            for (long chatId = 100; chatId < 120; chatId++) {
+                long start = System.nanoTime();
+                answers.add(scheduler.submit(chatId, 100, this::answer)
+                        .whenComplete((answer, error) -> light.record(System.nanoTime() - start)));
+            }
+            Thread.sleep(100);
+        }
+        answers.forEach(CompletableFuture::join);
+
+        //очередь тяжелых чатов - около 100 * 3 * 20 / 4 = 1500 мс, в порядке поступления легкие ждали бы столько же
+        double p99 = light.getQuantileSeconds(0.99);
+        System.out.printf("light chats: p50 = %.0f ms, p99 = %.0f ms%n", light.getQuantileSeconds(0.5) * 1000, p99 * 1000);
+        assertTrue(p99 < 0.5, "light chat p99 " + p99 + " s");
+        assertTrue(scheduler.getQueued() > 0, "heavy chats were served before light ones");
+
+        heavy.forEach(CompletableFuture::join);
+        assertEquals(0, scheduler.getRunning());
+    }
+
+    /**
+     * Новый запрос чата заменяет его еще не начатый запрос, а выполняющийся не трогает
+     */
+    @Test
+    void queuedRequestIsReplaced() {
+        ChatGPTScheduler scheduler = new ChatGPTScheduler(4, 1e6, 1e6, 1e9);
+        CompletableFuture<String> running = scheduler.submit(1, 100, this::answer);
+        CompletableFuture<String> queued = scheduler.submit(1, 100, this::answer);
+        CompletableFuture<String> latest = scheduler.submit(1, 100, this::answer);
+
+        assertThrows(CancellationException.class, queued::join);
+        assertEquals("answer", running.join());
+        assertEquals("answer", latest.join());
+        assertEquals(1, scheduler.getSupersededCount());
+    }
+
+    /**
+     * cancelQueued() убирает еще не начатый запрос чата, выполняющийся запрос и другие чаты не трогает
+     */
+    @Test
+    void queuedRequestIsCancelled() {
+        ChatGPTScheduler scheduler = new ChatGPTScheduler(4, 1e6, 1e6, 1e9);
+        CompletableFuture<String> running = scheduler.submit(1, 100, this::answer);
+        CompletableFuture<String> queued = scheduler.submit(1, 100, this::answer);
+        CompletableFuture<String> other = scheduler.submit(2, 100, this::answer);
+
+        scheduler.cancelQueued(1);
+        assertThrows(CancellationException.class, queued::join);
+        assertEquals(0, scheduler.getQueued());
+        assertEquals("answer", running.join());
+        assertEquals("answer", other.join());
+        assertEquals("answer", scheduler.submit(1, 100, this::answer).join()); //очередь чата снова работает
+    }
+
+    /**
+     * Сверх квоты запросов чата запрос сразу отклоняется, другие чаты квоту не делят
+     */
+    @Test
+    void requestsOverQuotaAreRejected() {
+        ChatGPTScheduler scheduler = new ChatGPTScheduler(4, 1, 2, 1e9);
+        scheduler.setReplaceQueued(false);
+        scheduler.submit(1, 100, this::answer);
+        scheduler.submit(1, 100, this::answer);
+        CompletionException error = assertThrows(CompletionException.class, () -> scheduler.submit(1, 100, this::answer).join());
+        ChatGPTQuotaExceededException quota = assertInstanceOf(ChatGPTQuotaExceededException.class, error.getCause());
+        assertTrue(quota.getRetryAfterMillis() > 0);
+
+        assertEquals("answer", scheduler.submit(2, 100, this::answer).join());
+        assertEquals(1, scheduler.getRejectedCount());
+    }
+
+    /**
+     * Общая очередь SHARED_CHAT не ограничена квотами чата и выполняет запросы параллельно, не заменяя их -
+     * ее держит только maxConcurrent
+     */
+    @Test
+    void sharedQueueHasNoChatLimits() {
+        ChatGPTScheduler scheduler = new ChatGPTScheduler(3, 1, 1, 1e9);
+        List<CompletableFuture<String>> upstreams = new ArrayList<>();
+        List<CompletableFuture<String>> answers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            CompletableFuture<String> call = new CompletableFuture<>();
+            upstreams.add(call);
+            answers.add(scheduler.submit(ChatGPTScheduler.SHARED_CHAT, 100, () -> call));
+        }
+
+        assertEquals(3, scheduler.getRunning());
+        assertEquals(2, scheduler.getQueued());
+        upstreams.forEach(call -> call.complete("answer"));
+        for (CompletableFuture<String> answer : answers)
+            assertEquals("answer", answer.join());
+        assertEquals(0, scheduler.getRejectedCount());
+        assertEquals(0, scheduler.getSupersededCount());
+    }
+
+    /**
+     * Имитация запроса к ChatGPT: только запускает таймер (см. ChatGPTScheduler.submit())
+     */
+    private CompletableFuture<String> answer() {
+        return CompletableFuture.supplyAsync(() -> "answer", CompletableFuture.delayedExecutor(UPSTREAM_MILLIS, TimeUnit.MILLISECONDS, upstream));
+    }
+}
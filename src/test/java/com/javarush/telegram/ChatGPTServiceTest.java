@@ -0,0 +1,97 @@
+package com.javarush.telegram;
+
+import com.plexpt.chatgpt.entity.chat.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ChatGPTService против заглушки OpenAI
+ */
+class ChatGPTServiceTest {
+    private FakeOpenAiServer openAi;
+    private ChatGPTService chatGPT;
+
+    @BeforeEach
+    void startOpenAi() throws Exception {
+        openAi = new FakeOpenAiServer(0, 300, 0, 0);
+        openAi.start();
+        ChatGPTTransport.Settings settings = new ChatGPTTransport.Settings();
+        settings.apiHost = openAi.getBaseUrl();
+        settings.proxy = null;
+        chatGPT = new ChatGPTService("test-key", settings);
+    }
+
+    @AfterEach
+    void stopOpenAi() {
+        openAi.stop();
+    }
+
+    /**
+     * Краткое содержание удаленной переписки запрашивается до ответа, но вызывающий поток его не ждет
+     */
+    @Test
+    void historySummaryDoesNotBlockCaller() {
+        chatGPT.sendMessage("prompt", "первый запрос"); //соединение с заглушкой уже открыто
+        ChatHistory history = longHistory();
+
+        long start = System.nanoTime();
+        CompletableFuture<String> answer = chatGPT.addMessageAsync(ChatGPTRoute.FAST, history, "новый вопрос", text -> { });
+        assertTrue(System.nanoTime() - start < 200_000_000L, "caller waited for the summary");
+
+        assertEquals(FakeOpenAiServer.ANSWER, answer.join());
+        assertNotNull(history.getSummary());
+        assertEquals(3, openAi.getRequestCount()); //первый запрос, краткое содержание и сам ответ
+    }
+
+    /**
+     * Краткое содержание истории - тоже запрос чата: он проходит через планировщик и тратит квоту чата
+     */
+    @Test
+    void historySummaryIsScheduled() {
+        ChatGPTScheduler scheduler = new ChatGPTScheduler(4, 1, 1, 1e9); //один запрос на чат
+        chatGPT.setScheduler(scheduler);
+
+        CompletableFuture<String> answer = chatGPT.addMessageAsync(1, ChatGPTRoute.FAST, longHistory(), "новый вопрос", text -> { });
+        CompletionException error = assertThrows(CompletionException.class, answer::join);
+        assertInstanceOf(ChatGPTQuotaExceededException.class, error.getCause());
+        assertEquals(1, openAi.getRequestCount()); //краткое содержание выполнено, ответ уже не поместился в квоту
+    }
+
+    /**
+     * Синхронные методы без chatId идут через общую очередь планировщика, где квоты одного чата не действуют
+     */
+    @Test
+    void syncCallsAreScheduled() {
+        ChatGPTScheduler scheduler = new ChatGPTScheduler(4, 1, 1, 1e9); //одному чату - один запрос
+        chatGPT.setScheduler(scheduler);
+
+        assertEquals(FakeOpenAiServer.ANSWER, chatGPT.sendMessage("prompt", "первый"));
+        assertEquals(FakeOpenAiServer.ANSWER, chatGPT.addMessage(longHistory(), "второй"));
+        assertEquals(0, scheduler.getRejectedCount());
+        assertEquals(3, openAi.getRequestCount()); //вопрос, краткое содержание и ответ
+        assertEquals(0, scheduler.getRunning());
+    }
+
+    /**
+     * История, которая не помещается в бюджет токенов: новый вопрос требует краткого содержания
+     */
+    private static ChatHistory longHistory() {
+        ChatHistory history = new ChatHistory(ChatHistory.DEFAULT_MAX_MESSAGES, 100);
+        history.setPrompt("prompt");
+        for (int i = 0; i < 4; i++) {
+            history.add(Message.of("вопрос номер " + i + " - достаточно длинный, чтобы история не поместилась в бюджет токенов"));
+            history.add(Message.ofAssistant("ответ номер " + i + " - тоже достаточно длинный, чтобы история не поместилась в бюджет"));
+        }
+        return history;
+    }
+}
@@ -0,0 +1,147 @@
+package com.javarush.telegram;
+
+import com.plexpt.chatgpt.entity.chat.ChatCompletion;
+import com.plexpt.chatgpt.entity.chat.Message;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ChatGPTTransport против заглушки OpenAI: таймауты, очередь запросов и задержки при разном числе одновременных запросов
+ */
+class ChatGPTTransportTest {
+    /**
+     * По общему таймауту запрос прерывается: повторов после него нет
+     */
+    @Test
+    void totalTimeoutStopsRetries() throws Exception {
+        FakeOpenAiServer openAi = new FakeOpenAiServer(0, 1000, 0, 0);
+        openAi.start();
+        try {
+            ChatGPTTransport.Settings settings = settings(openAi, 8);
+            settings.responseTimeout = Duration.ofMillis(200);
+            settings.totalTimeout = Duration.ofMillis(300);
+            settings.retryBaseDelayMillis = 10;
+            ChatGPTTransport transport = new ChatGPTTransport("test-key", settings);
+
+            CompletionException error = assertThrows(CompletionException.class, () -> transport.complete(completion()).join());
+            assertInstanceOf(ChatGPTUnavailableException.class, error.getCause());
+            Thread.sleep(1500);
+            assertTrue(openAi.getRequestCount() <= 2, openAi.getRequestCount() + " requests");
+        } finally {
+            openAi.stop();
+        }
+    }
+
+    /**
+     * По общему таймауту поток ответа закрывается: кусочки после него уже не читаются
+     */
+    @Test
+    void streamIsClosedOnTimeout() throws Exception {
+        FakeOpenAiServer openAi = new FakeOpenAiServer(0, 0, 100, 0);
+        openAi.start();
+        try {
+            ChatGPTTransport.Settings settings = settings(openAi, 8);
+            settings.totalTimeout = Duration.ofMillis(350);
+            ChatGPTTransport transport = new ChatGPTTransport("test-key", settings);
+
+            AtomicInteger updates = new AtomicInteger();
+            CompletableFuture<ChatGPTAnswer> answer = transport.stream(completion(), text -> updates.incrementAndGet());
+            assertThrows(CompletionException.class, answer::join);
+            Thread.sleep(100); //кусочек, который уже читался в момент таймаута
+            int afterTimeout = updates.get();
+            Thread.sleep(500);
+            assertEquals(afterTimeout, updates.get());
+            assertTrue(afterTimeout < FakeOpenAiServer.ANSWER.split(" ").length);
+        } finally {
+            openAi.stop();
+        }
+    }
+
+    /**
+     * Когда все места заняты, запрос ждет в очереди, не блокируя вызывающий поток, и выполняется, когда место освободится
+     */
+    @Test
+    void callerIsNotBlockedWhileWaitingForSlot() throws Exception {
+        FakeOpenAiServer openAi = new FakeOpenAiServer(0, 300, 0, 0);
+        openAi.start();
+        try {
+            ChatGPTTransport transport = new ChatGPTTransport("test-key", settings(openAi, 1));
+            CompletableFuture<ChatGPTAnswer> first = transport.complete(completion());
+
+            long start = System.nanoTime();
+            CompletableFuture<ChatGPTAnswer> second = transport.complete(completion());
+            assertTrue(System.nanoTime() - start < 100_000_000L, "caller waited for a free slot");
+
+            assertEquals(FakeOpenAiServer.ANSWER, first.join().content);
+            assertEquals(FakeOpenAiServer.ANSWER, second.join().content);
+        } finally {
+            openAi.stop();
+        }
+    }
+
+    /**
+     * 64 одновременных потоковых запроса при 1, 8 и 64 местах: все выполняются, а p99 падает с ростом числа мест
+     */
+    @Test
+    void latencyByPoolSize() throws Exception {
+        FakeOpenAiServer openAi = new FakeOpenAiServer(0, 20, 2, 0);
+        openAi.start();
+        try {
+            List<Double> p99 = new ArrayList<>();
+            for (int poolSize : new int[]{1, 8, 64}) {
+                LatencyHistogram latency = run(new ChatGPTTransport("test-key", settings(openAi, poolSize)), 64);
+                System.out.printf("pool %d: p50 = %.0f ms, p99 = %.0f ms%n", poolSize,
+                        latency.getQuantileSeconds(0.5) * 1000, latency.getQuantileSeconds(0.99) * 1000);
+                assertEquals(64, latency.getCount());
+                p99.add(latency.getQuantileSeconds(0.99));
+            }
+            assertTrue(p99.get(1) < p99.get(0), "p99 " + p99);
+            assertTrue(p99.get(2) < p99.get(0), "p99 " + p99);
+        } finally {
+            openAi.stop();
+        }
+    }
+
+    private static LatencyHistogram run(ChatGPTTransport transport, int requests) {
+        LatencyHistogram latency = new LatencyHistogram();
+        List<CompletableFuture<ChatGPTAnswer>> answers = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            answers.add(transport.stream(completion(), text -> { })
+                    .whenComplete((answer, error) -> latency.record(System.nanoTime() - start)));
+        }
+        for (CompletableFuture<ChatGPTAnswer> answer : answers)
+            assertEquals(FakeOpenAiServer.ANSWER, answer.join().content);
+        return latency;
+    }
+
+    private static ChatGPTTransport.Settings settings(FakeOpenAiServer openAi, int maxConcurrentRequests) {
+        ChatGPTTransport.Settings settings = new ChatGPTTransport.Settings();
+        settings.apiHost = openAi.getBaseUrl();
+        settings.proxy = null;
+        settings.http2 = false;
+        settings.maxConcurrentRequests = maxConcurrentRequests;
+        settings.connectTimeout = Duration.ofSeconds(30); //очередь при одном месте - несколько секунд
+        return settings;
+    }
+
+    private static ChatCompletion completion() {
+        return ChatCompletion.builder()
+                .model("gpt-test")
+                .messages(List.of(Message.of("привет")))
+                .maxTokens(100)
+                .temperature(0.9)
+                .build();
+    }
+}
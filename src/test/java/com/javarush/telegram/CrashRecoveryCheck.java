@@ -0,0 +1,150 @@
+package com.javarush.telegram;
+
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Проверка восстановления после падения: бот (TinderBoltApp.main, отдельный процесс, long polling через UpdatePoller)
+ * получает обновления от заглушки Telegram и падает (kill -9) посреди обработки, затем запускается заново с той же папкой данных.
+ *
+ * Каждый из users чатов проходит /start и /gpt, потом задает один вопрос. Бот убивается, когда вопросы уже получены,
+ * но еще ждут ответа (пачка сообщений копится MESSAGE_QUIET_MILLIS) - их update-ы приняты, но не обработаны.
+ * После перезапуска проверяется, что:
+ *      в каждый чат пришло ровно 2 картинки (/start и /gpt, обработанные до падения, не повторились);
+ *      в каждый чат пришел ровно 1 ответ ChatGPT, и всего запросов к ChatGPT столько же, сколько вопросов.
+ * Код выхода 0 - все верно, 1 - нет. Та же проверка входит в тесты (CrashRecoveryTest).
+ *
+ * Параметры (все необязательные): -users 20 -kill-delay 300 -timeout 60000
+ */
+public class CrashRecoveryCheck {
+    private static final long FIRST_CHAT_ID = 2_000_000_000L;
+
+    private final FakeTelegramServer telegram = new FakeTelegramServer(0, 20, 0);
+    private final FakeOpenAiServer openAi = new FakeOpenAiServer(0, 200, 10, 0);
+    private final Path dataDir;
+    private Process bot; //текущий процесс бота
+
+    public CrashRecoveryCheck(Path dataDir) {
+        this.dataDir = dataDir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2)
+            options.put(args[i].replaceFirst("^-+", ""), args[i + 1]);
+        int users = Integer.parseInt(options.getOrDefault("users", "20"));
+        long killDelay = Long.parseLong(options.getOrDefault("kill-delay", "300"));
+        long timeout = Long.parseLong(options.getOrDefault("timeout", "60000"));
+
+        List<String> errors = List.of("not run");
+        try {
+            errors = new CrashRecoveryCheck(Files.createTempDirectory("tinderbolt-crash")).run(users, killDelay, timeout);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        System.out.println(errors.isEmpty() ? "OK: " + users + " questions" : "FAILED: " + errors);
+        System.exit(errors.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Запускает бота, роняет его и запускает снова. Возвращает найденные ошибки (пустой список - все верно)
+     */
+    public List<String> run(int users, long killDelay, long timeout) throws Exception {
+        telegram.setAnswerFilter(FakeOpenAiServer.ANSWER::equals);
+        telegram.start();
+        openAi.start();
+        try {
+            return check(users, killDelay, timeout);
+        } finally {
+            if (bot != null)
+                bot.destroyForcibly().waitFor();
+            telegram.stop();
+            openAi.stop();
+        }
+    }
+
+    private List<String> check(int users, long killDelay, long timeout) throws Exception {
+        startBot();
+        long lastCommand = 0;
+        for (int i = 0; i < users; i++) {
+            telegram.addUpdate(SyntheticUpdates.command(FIRST_CHAT_ID + i, "/start"));
+            Update command = SyntheticUpdates.command(FIRST_CHAT_ID + i, "/gpt");
+            telegram.addUpdate(command);
+            lastCommand = command.getUpdateId();
+        }
+        //команды обработаны полностью, когда в журнале бота не осталось недообработанных обновлений до них
+        long commandsDone = lastCommand + 1;
+        await(() -> new UpdateCheckpoint(getCheckpointFile()).getOffset() >= commandsDone, timeout);
+
+        long lastQuestion = 0;
+        for (int i = 0; i < users; i++) {
+            Update question = SyntheticUpdates.text(FIRST_CHAT_ID + i, "Вопрос номер " + i + ": как начать разговор?");
+            telegram.addUpdate(question);
+            lastQuestion = question.getUpdateId();
+        }
+        long delivered = lastQuestion;
+        await(() -> telegram.getLastDeliveredUpdateId() >= delivered, timeout);
+        Thread.sleep(killDelay);
+        bot.destroyForcibly().waitFor();
+        System.out.println("Killed bot: ChatGPT requests before crash = " + openAi.getRequestCount());
+
+        startBot();
+        for (int i = 0; i < users; i++) {
+            long chatId = FIRST_CHAT_ID + i;
+            await(() -> telegram.getAnswerCount(chatId) >= 1, timeout);
+        }
+        Thread.sleep(3000); //повторы, если они есть, успеют прийти
+
+        List<String> errors = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            long chatId = FIRST_CHAT_ID + i;
+            if (telegram.getPhotoCount(chatId) != 2)
+                errors.add("chat " + chatId + ": " + telegram.getPhotoCount(chatId) + " photos");
+            if (telegram.getAnswerCount(chatId) != 1)
+                errors.add("chat " + chatId + ": " + telegram.getAnswerCount(chatId) + " answers");
+        }
+        if (openAi.getRequestCount() != users)
+            errors.add(openAi.getRequestCount() + " ChatGPT requests for " + users + " questions");
+        return errors;
+    }
+
+    private interface Condition {
+        boolean test();
+    }
+
+    /**
+     * Бот в отдельном процессе с тем же classpath: long polling к заглушке Telegram, ChatGPT - заглушка OpenAI
+     */
+    private void startBot() throws Exception {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        bot = new ProcessBuilder(java,
+                "-D" + TinderBoltApp.TELEGRAM_URL_PROPERTY + "=" + telegram.getBaseUrl(),
+                "-D" + TinderBoltApp.OPENAI_URL_PROPERTY + "=" + openAi.getBaseUrl(),
+                "-D" + TinderBoltApp.DATA_DIR_PROPERTY + "=" + dataDir,
+                "-cp", System.getProperty("java.class.path"),
+                TinderBoltApp.class.getName())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(dataDir.resolve("bot.log").toFile()))
+                .start();
+    }
+
+    private Path getCheckpointFile() {
+        return dataDir.resolve(TinderBoltApp.UPDATE_CHECKPOINT_FILE.getFileName());
+    }
+
+    private void await(Condition condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.test()) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("Timed out, see " + dataDir.resolve("bot.log"));
+            Thread.sleep(20);
+        }
+    }
+}
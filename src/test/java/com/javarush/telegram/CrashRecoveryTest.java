@@ -0,0 +1,19 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Бот в отдельном процессе падает (kill -9) посреди обработки и запускается снова - см. CrashRecoveryCheck
+ */
+class CrashRecoveryTest {
+    @Test
+    void updatesAreProcessedExactlyOnceAfterCrash(@TempDir Path dir) throws Exception {
+        assertEquals(List.of(), new CrashRecoveryCheck(dir).run(10, 300, 60_000));
+    }
+}
@@ -0,0 +1,127 @@
+package com.javarush.telegram;
+
+import com.plexpt.chatgpt.entity.chat.Message;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Записанная переписка пользователя с ботом проигрывается через бота целиком (DialogEngine, анкеты, кнопки,
+ * склейка сообщений) против заглушек Telegram и OpenAI и проходит через все режимы.
+ */
+class DialogReplayTest {
+    private static final long TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * "/команда", "[код кнопки]", "= N" - дождаться, пока в чате будет N ответов ChatGPT, остальное - текст сообщения
+     */
+    private static final String SCRIPT = """
+            /start
+            /profile
+            25
+            программист
+            шахматы
+            опоздания
+            серьезные отношения
+            = 1
+            /opener
+            Анна
+            23
+            танцы
+            дизайнер
+            дружба
+            = 2
+            /message
+            Привет! Как прошел день?
+            Отлично, была на выставке
+            [message_next]
+            = 3
+            /date
+            [date_grande]
+            Привет!
+            Как дела?
+            = 4
+            /gpt
+            Что подарить на первое свидание?
+            = 5
+            """;
+
+    private static FakeTelegramServer telegram;
+    private static FakeOpenAiServer openAi;
+    private static TinderBoltApp bot;
+
+    @BeforeAll
+    static void startBot() throws Exception {
+        telegram = new FakeTelegramServer(0, 0, 0);
+        telegram.start();
+        telegram.setAnswerFilter(FakeOpenAiServer.ANSWER::equals);
+        openAi = new FakeOpenAiServer(0, 0, 0, 0);
+        openAi.start();
+        System.setProperty(TinderBoltApp.TELEGRAM_URL_PROPERTY, telegram.getBaseUrl());
+        System.setProperty(TinderBoltApp.OPENAI_URL_PROPERTY, openAi.getBaseUrl());
+        bot = new TinderBoltApp();
+        bot.setSendQueue(new TelegramSendQueue(100_000, 100_000, 100_000)); //лимиты Telegram заглушке не нужны
+    }
+
+    @AfterAll
+    static void stopBot() {
+        bot.onClosing();
+        telegram.stop();
+        openAi.stop();
+        System.clearProperty(TinderBoltApp.TELEGRAM_URL_PROPERTY);
+        System.clearProperty(TinderBoltApp.OPENAI_URL_PROPERTY);
+    }
+
+    @Test
+    void recordedDialogPassesEveryMode() throws Exception {
+        long chatId = 4_000_000_000L + System.nanoTime() % 1_000_000; //сессии прошлых запусков не мешают
+        replay(chatId, SCRIPT);
+
+        UserSession session = bot.getSessions().withSession(chatId, current -> current);
+        assertEquals(DialogMode.GPT, session.currentMode);
+
+        assertEquals("25", session.me.age);
+        assertEquals("программист", session.me.occupation);
+        assertEquals("шахматы", session.me.hobby);
+        assertEquals("опоздания", session.me.annoys);
+        assertEquals("серьезные отношения", session.me.goals);
+
+        assertEquals("Анна", session.she.name);
+        assertEquals("23", session.she.age);
+        assertEquals("танцы", session.she.hobby);
+        assertEquals("дизайнер", session.she.occupation);
+        assertEquals("дружба", session.she.goals);
+
+        assertEquals(List.of("Привет! Как прошел день?", "Отлично, была на выставке"), session.transcript.toList());
+
+        //два сообщения подряд в режиме DATE - один вопрос и один ответ
+        List<Message> turns = session.history.getTurns();
+        assertEquals(2, turns.size());
+        assertEquals("Привет!\nКак дела?", turns.get(0).getContent());
+        assertEquals(FakeOpenAiServer.ANSWER, turns.get(1).getContent());
+
+        Thread.sleep(200); //лишние ответы пришли бы сразу
+        assertEquals(5, telegram.getAnswerCount(chatId));
+    }
+
+    private static void replay(long chatId, String script) throws InterruptedException {
+        for (String line : script.strip().split("\n")) {
+            if (line.startsWith("= ")) {
+                int answers = Integer.parseInt(line.substring(2));
+                assertTrue(telegram.awaitAnswers(chatId, answers, TIMEOUT_MILLIS),
+                        "only " + telegram.getAnswerCount(chatId) + " answers before \"" + line + "\"");
+            } else if (line.startsWith("/")) {
+                bot.onUpdateReceived(SyntheticUpdates.command(chatId, line));
+            } else if (line.startsWith("[") && line.endsWith("]")) {
+                bot.onUpdateReceived(SyntheticUpdates.button(chatId, line.substring(1, line.length() - 1)));
+            } else {
+                bot.onUpdateReceived(SyntheticUpdates.text(chatId, line));
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.javarush.telegram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Заглушка OpenAI-совместимого API (POST /v1/chat/completions) для нагрузочного теста.
+ * Всегда отвечает одним и тем же текстом ANSWER - обычным ответом или потоком (stream=true) по кусочку на слово.
+ * Задержку до первого кусочка, паузу между кусочками и долю ответов 429 можно настроить.
+ */
+public class FakeOpenAiServer {
+    public static final String PATH = "/v1/chat/completions";
+    public static final String ANSWER = "Привет! Это ответ заглушки ChatGPT для нагрузочного теста, он приходит по одному слову.";
+
+    private static final String[] CHUNKS = ANSWER.split("(?<= )");
+
+    static {
+        //заголовки и тело ответа уходят отдельными пакетами: без TCP_NODELAY каждый вызов ждет delayed ACK клиента (~40 мс)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final int port;
+    private final long latencyMillis;
+    private final long chunkMillis;
+    private final double tooManyRequestsRate;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder tooManyRequests = new LongAdder();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * latencyMillis - задержка до начала ответа, chunkMillis - пауза между кусочками потокового ответа,
+     * tooManyRequestsRate - доля (0..1) запросов, на которые придет 429
+     */
+    public FakeOpenAiServer(int port, long latencyMillis, long chunkMillis, double tooManyRequestsRate) {
+        this.port = port;
+        this.latencyMillis = latencyMillis;
+        this.chunkMillis = chunkMillis;
+        this.tooManyRequestsRate = tooManyRequestsRate;
+    }
+
+    public void start() throws IOException {
+        //потоковый ответ занимает поток на все время ответа, поэтому потоков много
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-openai");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        server.setExecutor(executor);
+        server.createContext(PATH, this::handle);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null)
+            server.stop(0);
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Адрес для -Dtinderbolt.openai.url (ChatGPTTransport.Settings.apiHost)
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + getPort() + "/";
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    public long getTooManyRequestsCount() {
+        return tooManyRequests.sum();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requests.increment();
+            JsonNode request = mapper.readTree(exchange.getRequestBody());
+            if (tooManyRequestsRate > 0 && ThreadLocalRandom.current().nextDouble() < tooManyRequestsRate) {
+                tooManyRequests.increment();
+                byte[] body = "{\"error\":{\"message\":\"Rate limit reached\",\"type\":\"requests\",\"code\":\"rate_limit_exceeded\"}}"
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(429, body.length);
+                exchange.getResponseBody().write(body);
+                return;
+            }
+
+            sleep(latencyMillis);
+            int promptTokens = TokenCounter.count(request.path("messages").toString());
+            int completionTokens = TokenCounter.count(ANSWER);
+            if (request.path("stream").asBoolean(false))
+                stream(exchange, promptTokens, completionTokens);
+            else
+                complete(exchange, promptTokens, completionTokens);
+        }
+    }
+
+    private void complete(HttpExchange exchange, int promptTokens, int completionTokens) throws IOException {
+        ObjectNode response = mapper.createObjectNode();
+        response.put("object", "chat.completion");
+        response.putArray("choices").addObject()
+                .put("index", 0)
+                .put("finish_reason", "stop")
+                .putObject("message").put("role", "assistant").put("content", ANSWER);
+        usage(response, promptTokens, completionTokens);
+
+        byte[] body = mapper.writeValueAsBytes(response);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * Server-Sent Events: кусочки ответа в choices[0].delta.content, в конце - usage и [DONE]
+     */
+    private void stream(HttpExchange exchange, int promptTokens, int completionTokens) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+
+        for (int i = 0; i < CHUNKS.length; i++) {
+            if (i > 0)
+                sleep(chunkMillis);
+            ObjectNode event = mapper.createObjectNode();
+            event.put("object", "chat.completion.chunk");
+            event.putArray("choices").addObject()
+                    .put("index", 0)
+                    .putObject("delta").put("content", CHUNKS[i]);
+            send(out, mapper.writeValueAsString(event));
+        }
+
+        ObjectNode last = mapper.createObjectNode();
+        last.put("object", "chat.completion.chunk");
+        last.putArray("choices");
+        usage(last, promptTokens, completionTokens);
+        send(out, mapper.writeValueAsString(last));
+        send(out, "[DONE]");
+    }
+
+    private static void send(OutputStream out, String data) throws IOException {
+        out.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void usage(ObjectNode response, int promptTokens, int completionTokens) {
+        response.putObject("usage")
+                .put("prompt_tokens", promptTokens)
+                .put("completion_tokens", completionTokens)
+                .put("total_tokens", promptTokens + completionTokens);
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
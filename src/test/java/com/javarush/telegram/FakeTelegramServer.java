@@ -0,0 +1,392 @@
+package com.javarush.telegram;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Заглушка Telegram Bot API для нагрузочного теста и бенчмарков: отвечает на /bot{token}/{method} так же, как Telegram,
+ * но ничего никуда не отправляет. Задержку ответа и долю ответов 429 Too Many Requests можно настроить.
+ * Для каждого чата считает "ответы" - сообщения, текст которых подходит под setAnswerFilter() (например, итоговый ответ ChatGPT).
+ * Обновления, добавленные addUpdate(), отдает через getUpdates, как Telegram: пока их не подтвердят offset-ом, отдает снова.
+ */
+public class FakeTelegramServer {
+    public static final String PATH = "/bot";
+    public static final int PROFILE_PHOTOS = 5; //сколько фотографий в профиле у каждого пользователя
+    private static final String MULTIPART_CHAT_ID = "name=\"chat_id\"";
+    private static final String MULTIPART_FILE = "; filename=";
+    private static final int[] PHOTO_SIDES = {160, 320, 640};
+
+    static {
+        //заголовки и тело ответа уходят отдельными пакетами: без TCP_NODELAY каждый вызов ждет delayed ACK клиента (~40 мс)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final int port;
+    private final long latencyMillis;
+    private final double tooManyRequestsRate;
+
+    private final AtomicInteger messageIds = new AtomicInteger();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder tooManyRequests = new LongAdder();
+    private final AtomicInteger forcedTooManyRequests = new AtomicInteger();
+    private final ConcurrentHashMap<Long, Chat> chats = new ConcurrentHashMap<>();
+    private volatile Predicate<String> answerFilter = text -> false;
+    private final ArrayDeque<JsonNode> updates = new ArrayDeque<>(); //неподтвержденные обновления для getUpdates
+    private long lastDeliveredUpdateId;
+    private int getUpdatesCount;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * latencyMillis - задержка каждого ответа, tooManyRequestsRate - доля (0..1) отправок, на которые придет 429
+     */
+    public FakeTelegramServer(int port, long latencyMillis, double tooManyRequestsRate) {
+        this.port = port;
+        this.latencyMillis = latencyMillis;
+        this.tooManyRequestsRate = tooManyRequestsRate;
+    }
+
+    public void start() throws IOException {
+        //задержка ответа - просто пауза в потоке обработчика, поэтому потоков столько, сколько одновременных запросов
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-telegram");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        server.setExecutor(executor);
+        server.createContext(PATH, this::handle);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null)
+            server.stop(1); //даем дописать ответы на последние запросы
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Адрес для -Dtinderbolt.telegram.url (DefaultBotOptions.setBaseUrl)
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + getPort() + PATH;
+    }
+
+    public void setAnswerFilter(Predicate<String> answerFilter) {
+        this.answerFilter = answerFilter;
+    }
+
+    public long getCallCount() {
+        return calls.sum();
+    }
+
+    public long getTooManyRequestsCount() {
+        return tooManyRequests.sum();
+    }
+
+    /**
+     * Следующие count отправок получат 429 (кроме случайных по tooManyRequestsRate)
+     */
+    public void failNextSends(int count) {
+        forcedTooManyRequests.set(count);
+    }
+
+    /**
+     * Сколько ответов (см. setAnswerFilter()) получил чат
+     */
+    public int getAnswerCount(long chatId) {
+        return chat(chatId).getAnswers();
+    }
+
+    /**
+     * Ждет, пока чат получит count ответов. Возвращает false, если за timeoutMillis этого не произошло
+     */
+    public boolean awaitAnswers(long chatId, int count, long timeoutMillis) throws InterruptedException {
+        return chat(chatId).await(count, timeoutMillis);
+    }
+
+    /**
+     * Сколько картинок (sendPhoto) отправлено в чат
+     */
+    public int getPhotoCount(long chatId) {
+        return chat(chatId).getPhotos();
+    }
+
+    /**
+     * Размеры (в байтах) картинок, загруженных файлом в чат, по порядку. Отправленные по file_id не учитываются
+     */
+    public List<Integer> getUploadedPhotoSizes(long chatId) {
+        return chat(chatId).getUploadedPhotoSizes();
+    }
+
+    /**
+     * Обновление для getUpdates
+     */
+    public synchronized void addUpdate(Update update) {
+        updates.add(mapper.valueToTree(update));
+        notifyAll();
+    }
+
+    /**
+     * Последний update_id, который хоть раз был отдан через getUpdates
+     */
+    public synchronized long getLastDeliveredUpdateId() {
+        return lastDeliveredUpdateId;
+    }
+
+    /**
+     * Сколько раз вызывали getUpdates
+     */
+    public synchronized int getUpdatesCount() {
+        return getUpdatesCount;
+    }
+
+    private Chat chat(long chatId) {
+        return chats.computeIfAbsent(chatId, key -> new Chat());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        calls.increment();
+        String path = exchange.getRequestURI().getPath();
+        String method = path.substring(path.lastIndexOf('/') + 1).toLowerCase(); //sendPhoto приходит как sendphoto
+        byte[] body = exchange.getRequestBody().readAllBytes();
+
+        byte[] response;
+        int status = 200;
+        long answerChatId = 0;
+        boolean forced = isSend(method) && forcedTooManyRequests.getAndUpdate(count -> Math.max(0, count - 1)) > 0;
+        if (forced || (isSend(method) && tooManyRequestsRate > 0 && ThreadLocalRandom.current().nextDouble() < tooManyRequestsRate)) {
+            tooManyRequests.increment();
+            status = 429;
+            response = "{\"ok\":false,\"error_code\":429,\"description\":\"Too Many Requests: retry after 1\",\"parameters\":{\"retry_after\":1}}"
+                    .getBytes(StandardCharsets.UTF_8);
+        } else {
+            JsonNode result = result(method, body);
+            response = mapper.writeValueAsBytes(mapper.createObjectNode().put("ok", true).set("result", result));
+            if (isText(method) && answerFilter.test(result.path("text").asText("")))
+                answerChatId = result.path("chat").path("id").asLong();
+        }
+
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try (exchange) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, response.length);
+            exchange.getResponseBody().write(response);
+        }
+        if (answerChatId != 0)
+            chat(answerChatId).addAnswer(); //ответ засчитывается, когда бот уже получил подтверждение от "Telegram"
+    }
+
+    private static boolean isText(String method) {
+        return method.equals("sendmessage") || method.equals("editmessagetext");
+    }
+
+    private static boolean isSend(String method) {
+        return method.equals("sendmessage") || method.equals("sendphoto") || method.equals("editmessagetext");
+    }
+
+    private JsonNode result(String method, byte[] body) throws IOException {
+        switch (method) {
+            case "sendmessage":
+            case "editmessagetext": {
+                JsonNode request = mapper.readTree(body);
+                long chatId = request.path("chat_id").asLong();
+                return message(chatId, request.path("message_id").asInt(0), request.path("text").asText(""));
+            }
+            case "sendphoto": {
+                long chatId = multipartChatId(body);
+                chat(chatId).addPhoto(multipartPhotoSize(body));
+                ObjectNode message = message(chatId, 0, null);
+                int id = message.path("message_id").asInt();
+                message.putArray("photo").addObject()
+                        .put("file_id", "photo-" + id)
+                        .put("file_unique_id", "unique-" + id)
+                        .put("width", 640)
+                        .put("height", 640);
+                return message;
+            }
+            case "getme":
+                return mapper.createObjectNode()
+                        .put("id", 1)
+                        .put("is_bot", true)
+                        .put("first_name", "TinderBolt")
+                        .put("username", "tinderbolt_bot");
+            case "getmycommands":
+                return mapper.createArrayNode();
+            case "getuserprofilephotos": {
+                JsonNode request = mapper.readTree(body);
+                return profilePhotos(request.path("user_id").asLong(), request.path("offset").asInt(0), request.path("limit").asInt(100));
+            }
+            case "getupdates": {
+                JsonNode request = mapper.readTree(body);
+                return updates(request.path("offset").asLong(0), request.path("limit").asInt(100), request.path("timeout").asInt(0));
+            }
+            default:
+                return mapper.getNodeFactory().booleanNode(true);
+        }
+    }
+
+    /**
+     * Как getUpdates у Telegram: обновления до offset подтверждены и удаляются, остальные (не больше limit) отдаются.
+     * Если обновлений нет - ждет их до timeout секунд
+     */
+    private synchronized ArrayNode updates(long offset, int limit, int timeoutSeconds) {
+        getUpdatesCount++;
+        while (!updates.isEmpty() && updates.peekFirst().path("update_id").asLong() < offset)
+            updates.pollFirst();
+
+        long deadline = System.currentTimeMillis() + timeoutSeconds * 1000L;
+        try {
+            while (updates.isEmpty() && System.currentTimeMillis() < deadline) {
+                wait(Math.max(1, deadline - System.currentTimeMillis()));
+                while (!updates.isEmpty() && updates.peekFirst().path("update_id").asLong() < offset)
+                    updates.pollFirst();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        ArrayNode result = mapper.createArrayNode();
+        for (JsonNode update : updates) {
+            if (result.size() >= limit)
+                break;
+            result.add(update);
+            lastDeliveredUpdateId = Math.max(lastDeliveredUpdateId, update.path("update_id").asLong());
+        }
+        return result;
+    }
+
+    /**
+     * PROFILE_PHOTOS фотографий, у каждой - варианты PHOTO_SIDES. Учитываются offset и limit
+     */
+    private ObjectNode profilePhotos(long userId, int offset, int limit) {
+        ObjectNode result = mapper.createObjectNode().put("total_count", PROFILE_PHOTOS);
+        ArrayNode photos = result.putArray("photos");
+        for (int photo = offset; photo < Math.min(PROFILE_PHOTOS, offset + limit); photo++) {
+            ArrayNode sizes = photos.addArray();
+            for (int side : PHOTO_SIDES)
+                sizes.addObject()
+                        .put("file_id", "avatar-" + userId + "-" + photo + "-" + side)
+                        .put("file_unique_id", "avatar-" + userId + "-" + photo + "-" + side)
+                        .put("width", side)
+                        .put("height", side)
+                        .put("file_size", side * side / 10);
+        }
+        return result;
+    }
+
+    private ObjectNode message(long chatId, int messageId, String text) {
+        ObjectNode message = mapper.createObjectNode();
+        message.put("message_id", messageId != 0 ? messageId : messageIds.incrementAndGet());
+        message.put("date", System.currentTimeMillis() / 1000);
+        message.putObject("chat").put("id", chatId).put("type", "private");
+        if (text != null)
+            message.put("text", text);
+        return message;
+    }
+
+    /**
+     * sendPhoto приходит как multipart/form-data - chat_id ищем среди полей формы
+     */
+    private static long multipartChatId(byte[] body) {
+        String form = new String(body, StandardCharsets.ISO_8859_1);
+        int field = form.indexOf(MULTIPART_CHAT_ID);
+        if (field < 0)
+            return 0;
+
+        int start = form.indexOf("\r\n\r\n", field) + 4;
+        int end = form.indexOf("\r\n", start);
+        try {
+            return Long.parseLong(form.substring(start, end).trim());
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Размер файла картинки (поле формы с filename, на него ссылается photo=attach://...), -1 - картинка отправлена по file_id
+     */
+    private static int multipartPhotoSize(byte[] body) {
+        String form = new String(body, StandardCharsets.ISO_8859_1);
+        int field = form.indexOf(MULTIPART_FILE);
+        if (field < 0)
+            return -1;
+
+        int start = form.indexOf("\r\n\r\n", field) + 4;
+        return form.indexOf("\r\n--", start) - start;
+    }
+
+    private static class Chat {
+        private int answers;
+        private int photos;
+        private final List<Integer> uploadedPhotoSizes = new ArrayList<>();
+
+        synchronized int getPhotos() {
+            return photos;
+        }
+
+        synchronized List<Integer> getUploadedPhotoSizes() {
+            return new ArrayList<>(uploadedPhotoSizes);
+        }
+
+        synchronized void addPhoto(int uploadedSize) {
+            photos++;
+            if (uploadedSize >= 0)
+                uploadedPhotoSizes.add(uploadedSize);
+        }
+
+        synchronized int getAnswers() {
+            return answers;
+        }
+
+        synchronized void addAnswer() {
+            answers++;
+            notifyAll();
+        }
+
+        synchronized boolean await(int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (answers < count) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    return false;
+                wait(left);
+            }
+            return true;
+        }
+    }
+}
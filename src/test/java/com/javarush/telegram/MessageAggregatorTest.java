@@ -0,0 +1,129 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * MessageAggregator на виртуальных часах: все таймеры срабатывают только в clock.advance()
+ */
+class MessageAggregatorTest {
+    private static final long QUIET_MILLIS = 1500;
+
+    private final VirtualClockScheduler clock = new VirtualClockScheduler();
+    private final List<MessageAggregator.Batch<String>> batches = new ArrayList<>();
+    private final MessageAggregator<String> aggregator = new MessageAggregator<>(QUIET_MILLIS, clock, (chatId, batch) -> batches.add(batch));
+
+    /**
+     * Сообщения, пришедшие с паузами короче quietMillis, уходят одной пачкой - через quietMillis после последнего
+     */
+    @Test
+    void messagesWithinQuietWindowAreMerged() {
+        aggregator.submit(1, "привет", "u1");
+        clock.advance(1000);
+        aggregator.submit(1, "как дела?", "u2");
+        clock.advance(1000);
+        aggregator.submit(1, "что делаешь?", "u3");
+        clock.advance(QUIET_MILLIS - 1);
+        assertTrue(batches.isEmpty());
+
+        clock.advance(1);
+        assertEquals(1, batches.size());
+        assertEquals(List.of("привет", "как дела?", "что делаешь?"), batches.get(0).getMessages());
+        assertEquals("u3", batches.get(0).getContext()); //контекст последнего сообщения
+        assertEquals(1, aggregator.getBatchCount());
+        assertEquals(2, aggregator.getMergedCount());
+    }
+
+    /**
+     * Пауза длиннее quietMillis делит сообщения на две пачки, чаты друг другу не мешают
+     */
+    @Test
+    void quietWindowSplitsBatches() {
+        aggregator.submit(1, "первое", "a");
+        aggregator.submit(2, "другой чат", "b");
+        clock.advance(QUIET_MILLIS);
+        assertEquals(2, batches.size());
+        batches.forEach(MessageAggregator.Batch::finish);
+
+        aggregator.submit(1, "второе", "c");
+        clock.advance(QUIET_MILLIS);
+        assertEquals(3, batches.size());
+        assertEquals(List.of("второе"), batches.get(2).getMessages());
+    }
+
+    /**
+     * Сообщение, пришедшее во время ответа, отменяет пачку (и ее еще не начатый запрос через onCancel()),
+     * а его пачка включает и старые сообщения и начинает ответ только после того, как отмененная завершится
+     */
+    @Test
+    void newMessageSupersedesBatchInFlight() {
+        AtomicInteger processed = new AtomicInteger();
+        aggregator.submit(1, "первое", "a", processed::incrementAndGet);
+        clock.advance(QUIET_MILLIS);
+        MessageAggregator.Batch<String> first = batches.get(0);
+        AtomicInteger cancelActions = new AtomicInteger();
+        first.onCancel(cancelActions::incrementAndGet);
+        assertTrue(first.previousDone().isDone());
+
+        aggregator.submit(1, "второе", "b", processed::incrementAndGet);
+        assertTrue(first.isCancelled());
+        assertThrows(CancellationException.class, first::checkNotCancelled);
+        assertEquals(1, cancelActions.get());
+        assertEquals(1, aggregator.getSupersededCount());
+
+        clock.advance(QUIET_MILLIS);
+        MessageAggregator.Batch<String> second = batches.get(1);
+        assertEquals(List.of("первое", "второе"), second.getMessages());
+        CompletableFuture<Void> previousDone = second.previousDone();
+        assertFalse(previousDone.isDone());
+
+        first.finish();
+        assertTrue(previousDone.isDone());
+        assertEquals(0, processed.get()); //onProcessed сообщений отмененной пачки перешли к следующей
+
+        second.finish();
+        assertEquals(2, processed.get());
+        assertEquals(0, clock.getPendingCount()); //таймаут ожидания отмененной пачки снят
+    }
+
+    /**
+     * Отмененная пачка, которая так и не завершилась, задерживает следующую не дольше PREVIOUS_BATCH_TIMEOUT
+     */
+    @Test
+    void stuckPreviousBatchTimesOut() {
+        aggregator.submit(1, "первое", "a");
+        clock.advance(QUIET_MILLIS);
+        aggregator.submit(1, "второе", "b");
+        clock.advance(QUIET_MILLIS);
+
+        CompletableFuture<Void> previousDone = batches.get(1).previousDone();
+        clock.advance(MessageAggregator.PREVIOUS_BATCH_TIMEOUT - 1);
+        assertFalse(previousDone.isDone());
+        clock.advance(1);
+        assertTrue(previousDone.isDone());
+    }
+
+    /**
+     * Действие onCancel(), заданное уже после отмены, выполняется сразу
+     */
+    @Test
+    void onCancelAfterCancellationRunsImmediately() {
+        aggregator.submit(1, "первое", "a");
+        clock.advance(QUIET_MILLIS);
+        aggregator.submit(1, "второе", "b");
+
+        AtomicInteger cancelActions = new AtomicInteger();
+        batches.get(0).onCancel(cancelActions::incrementAndGet);
+        assertEquals(1, cancelActions.get());
+    }
+}
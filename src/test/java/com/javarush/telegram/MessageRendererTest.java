@@ -0,0 +1,46 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageRendererTest {
+    private static final String ALPHABET = "_*`[\\ab ";
+
+    @Test
+    void escapedUnderscoresAreNotCounted() {
+        assertTrue(MessageRenderer.isValidMarkdown("snake\\_case"));
+        assertTrue(MessageRenderer.isValidMarkdown("_курсив_ и \\_"));
+        assertFalse(MessageRenderer.isValidMarkdown("snake_case"));
+        //обратная косая черта перед обычным символом ничего не экранирует
+        assertFalse(MessageRenderer.isValidMarkdown("C:\\\\dir\\file_name"));
+    }
+
+    /**
+     * Любой текст после escapeMarkdown() можно отправить с parse_mode=markdown
+     */
+    @Test
+    void escapedTextIsAlwaysValidMarkdown() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int j = 0; j < length; j++)
+                text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+
+            String escaped = MessageRenderer.escapeMarkdown(text.toString());
+            assertTrue(MessageRenderer.isValidMarkdown(escaped), () -> "escaped \"" + text + "\" is \"" + escaped + "\"");
+        }
+    }
+
+    @Test
+    void escapeKeepsPlainTextAsIs() {
+        String text = "обычный текст без разметки";
+        assertEquals(text, MessageRenderer.escapeMarkdown(text));
+        assertEquals("a\\_b\\*c\\`d\\[e", MessageRenderer.escapeMarkdown("a_b*c`d[e"));
+    }
+}
@@ -0,0 +1,149 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.methods.GetUserProfilePhotos;
+import org.telegram.telegrambots.meta.api.methods.commands.DeleteMyCommands;
+import org.telegram.telegrambots.meta.api.methods.commands.GetMyCommands;
+import org.telegram.telegrambots.meta.api.methods.commands.SetMyCommands;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.commands.scope.BotCommandScopeAllPrivateChats;
+import org.telegram.telegrambots.meta.api.objects.commands.scope.BotCommandScopeChat;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Бот против заглушки Bot API: отправка через TelegramSendQueue, повторы после 429, очереди чатов
+ * и передача отложенной работы в очередь обновлений без ожидания
+ */
+class MultiSessionTelegramBotTest {
+    private static final long CHAT_ID = 3_200_000_000L;
+
+    private FakeTelegramServer telegram;
+    private TelegramSendQueue sendQueue;
+
+    @BeforeEach
+    void startTelegram() throws Exception {
+        telegram = new FakeTelegramServer(0, 0, 0);
+        telegram.start();
+        sendQueue = new TelegramSendQueue();
+    }
+
+    @AfterEach
+    void stopTelegram() {
+        sendQueue.shutdown();
+        telegram.stop();
+    }
+
+    /**
+     * После 429 картинка загружается заново целиком, а не из уже прочитанного потока
+     */
+    @Test
+    void photoIsUploadedAgainAfterTooManyRequests() {
+        MultiSessionTelegramBot bot = createBot(b -> b.sendPhotoMessage("main"));
+        telegram.failNextSends(2);
+
+        bot.onUpdateReceived(SyntheticUpdates.command(CHAT_ID, "/start"));
+
+        int size = ResourceRegistry.getInstance().getImage("main").length;
+        assertEquals(List.of(size), telegram.getUploadedPhotoSizes(CHAT_ID));
+        assertEquals(2, telegram.getTooManyRequestsCount());
+        assertEquals(2, sendQueue.getTooManyRequestsCount());
+    }
+
+    /**
+     * Картинка, уже загруженная в Telegram, отправляется по file_id: повторной загрузки нет
+     */
+    @Test
+    void photoIsSentByFileIdAfterUpload(@TempDir Path dir) {
+        MultiSessionTelegramBot bot = createBot(b -> b.sendPhotoMessage("gpt"));
+        bot.setPhotoFileIdCache(new PhotoFileIdCache(dir.resolve("photo-file-ids.properties")));
+
+        bot.onUpdateReceived(SyntheticUpdates.command(CHAT_ID + 1, "/gpt"));
+        telegram.failNextSends(1);
+        bot.onUpdateReceived(SyntheticUpdates.command(CHAT_ID + 1, "/gpt"));
+
+        assertEquals(2, telegram.getPhotoCount(CHAT_ID + 1));
+        assertEquals(1, telegram.getUploadedPhotoSizes(CHAT_ID + 1).size());
+    }
+
+    /**
+     * Запросы меню и аватарок конкретного чата идут в очередь этого чата, а не в общую очередь бота
+     */
+    @Test
+    void chatScopedMethodsUseChatQueue() {
+        String chatId = String.valueOf(CHAT_ID);
+        BotCommandScopeChat chatScope = BotCommandScopeChat.builder().chatId(chatId).build();
+
+        SetMyCommands setMyCommands = new SetMyCommands();
+        setMyCommands.setScope(chatScope);
+        assertEquals(chatId, MultiSessionTelegramBot.getMethodChatId(setMyCommands));
+        GetMyCommands getMyCommands = new GetMyCommands();
+        getMyCommands.setScope(chatScope);
+        assertEquals(chatId, MultiSessionTelegramBot.getMethodChatId(getMyCommands));
+        DeleteMyCommands deleteMyCommands = new DeleteMyCommands();
+        deleteMyCommands.setScope(chatScope);
+        assertEquals(chatId, MultiSessionTelegramBot.getMethodChatId(deleteMyCommands));
+        assertEquals(chatId, MultiSessionTelegramBot.getMethodChatId(GetUserProfilePhotos.builder().userId(CHAT_ID).build()));
+
+        SetMyCommands defaultMenu = new SetMyCommands();
+        defaultMenu.setScope(new BotCommandScopeAllPrivateChats());
+        assertNull(MultiSessionTelegramBot.getMethodChatId(defaultMenu));
+    }
+
+    /**
+     * Когда обновлений в работе уже maxInFlight, tryRunInUpdateContext() сразу отказывает, а не ждет места,
+     * как runInUpdateContext(); освободилось место - действие выполняется в контексте своего обновления
+     */
+    @Test
+    void tryRunInUpdateContextDoesNotWaitForFullDispatcher() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        MultiSessionTelegramBot bot = createBot(b -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        bot.enableAsyncDispatch(1);
+        bot.onUpdateReceived(SyntheticUpdates.text(CHAT_ID, "долгое"));
+
+        Update update = SyntheticUpdates.text(CHAT_ID + 1, "пачка");
+        CompletableFuture<Long> ran = new CompletableFuture<>();
+        long start = System.nanoTime();
+        assertFalse(bot.tryRunInUpdateContext(update, () -> ran.complete(bot.getCurrentChatId())));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+        release.countDown();
+        assertTrue(bot.awaitUpdatesProcessed(5000));
+        assertTrue(bot.tryRunInUpdateContext(update, () -> ran.complete(bot.getCurrentChatId())));
+        assertEquals(CHAT_ID + 1, ran.get(5, TimeUnit.SECONDS));
+        bot.onClosing();
+    }
+
+    private MultiSessionTelegramBot createBot(Consumer<MultiSessionTelegramBot> handler) {
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setBaseUrl(telegram.getBaseUrl());
+        MultiSessionTelegramBot bot = new MultiSessionTelegramBot("test_bot", "token", options) {
+            @Override
+            public void onUpdateEventReceived(Update updateEvent) {
+                handler.accept(this);
+            }
+        };
+        bot.setSendQueue(sendQueue);
+        return bot;
+    }
+}
@@ -0,0 +1,80 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ResponseCacheTest {
+    /**
+     * Недописанная при падении запись отрезается: записи, добавленные после перезапуска, читаются при следующем
+     */
+    @Test
+    void tornTailIsCutOff(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("gpt-cache.bin");
+        ResponseCache cache = new ResponseCache(100, file);
+        cache.put(ResponseCache.key("m", "p", "1", 0), "первый");
+        cache.put(ResponseCache.key("m", "p", "2", 0), "второй");
+        byte[] torn = {0, 0, 0, 64, 'a', 'b'}; //длина ключа есть, самого ключа почти нет
+        Files.write(file, torn, StandardOpenOption.APPEND);
+
+        cache = new ResponseCache(100, file);
+        assertEquals("второй", cache.get(ResponseCache.key("m", "p", "2", 0)));
+        cache.put(ResponseCache.key("m", "p", "3", 0), "третий");
+
+        cache = new ResponseCache(100, file);
+        assertEquals(3, cache.size());
+        assertEquals("третий", cache.get(ResponseCache.key("m", "p", "3", 0)));
+    }
+
+    /**
+     * Хвост из нулей (размер файла обновился, а данные нет) тоже считается повреждением, а не пустой записью
+     */
+    @Test
+    void zeroFilledTailIsCutOff(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("gpt-cache.bin");
+        new ResponseCache(100, file).put(ResponseCache.key("m", "p", "1", 0), "первый");
+        Files.write(file, new byte[64], StandardOpenOption.APPEND);
+
+        ResponseCache cache = new ResponseCache(100, file);
+        assertEquals(1, cache.size());
+        assertNull(cache.get(""));
+    }
+
+    /**
+     * Повторяющиеся запросы уходят в ChatGPT один раз - и после перезапуска тоже берутся из файла кеша
+     */
+    @Test
+    void repeatedRequestsReachUpstreamOnce(@TempDir Path dir) throws Exception {
+        FakeOpenAiServer openAi = new FakeOpenAiServer(0, 0, 0, 0);
+        openAi.start();
+        try {
+            Path file = dir.resolve("gpt-cache.bin");
+            for (int restart = 0; restart < 2; restart++) {
+                ChatGPTService chatGPT = createService(openAi);
+                chatGPT.setResponseCache(new ResponseCache(100, file));
+                for (int i = 0; i < 10; i++) {
+                    for (String question : List.of("profile", "opener"))
+                        assertEquals(FakeOpenAiServer.ANSWER, chatGPT.sendMessage("prompt", question, true));
+                }
+                assertEquals(2, openAi.getRequestCount());
+                assertEquals(20 - (restart == 0 ? 2 : 0), chatGPT.getResponseCache().getHits());
+            }
+        } finally {
+            openAi.stop();
+        }
+    }
+
+    private static ChatGPTService createService(FakeOpenAiServer openAi) {
+        ChatGPTTransport.Settings settings = new ChatGPTTransport.Settings();
+        settings.apiHost = openAi.getBaseUrl();
+        settings.proxy = null;
+        return new ChatGPTService("test-key", settings);
+    }
+}
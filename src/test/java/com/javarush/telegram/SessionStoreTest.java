@@ -0,0 +1,177 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionStoreTest {
+    private static final int THREADS = 16;
+    private static final int UPDATES_PER_THREAD = 5_000;
+
+    /**
+     * Обновления одного чата идут по очереди: неатомарное "прочитать - подождать - записать" под withSession
+     * не теряет ни одного увеличения счетчика, хотя потоки одновременно работают с одними и теми же чатами
+     */
+    @Test
+    void updatesOfOneChatAreSerialized() throws Exception {
+        SessionStore store = new SessionStore();
+        int chats = 64;
+        AtomicIntegerArray expected = run(store, chats);
+
+        for (int i = 0; i < chats; i++) {
+            int count = store.withSession(i, session -> session.questionCount);
+            assertEquals(expected.get(i), count, "chat " + i);
+        }
+        assertEquals(chats, store.size());
+    }
+
+    /**
+     * Сессий больше, чем maxSessions: вытесненная из памяти сессия читается из журнала со всеми изменениями,
+     * даже если ее вытеснили между двумя обновлениями, которые шли из разных потоков
+     */
+    @Test
+    void evictedSessionsAreReloadedFromLog(@TempDir Path dir) throws Exception {
+        SessionLog log = new SessionLog(dir, SessionLog.DEFAULT_SEGMENT_SIZE, SessionLog.DEFAULT_COMPACT_SEGMENTS, false);
+        SessionStore store = new SessionStore(SessionStore.DEFAULT_IDLE_TTL, 32);
+        store.setSessionLog(log);
+        int chats = 500;
+        AtomicIntegerArray expected = run(store, chats);
+
+        assertTrue(store.getEvictionCount() > 0, "sessions must be evicted");
+        assertTrue(store.size() <= 32 + THREADS, "store keeps " + store.size() + " sessions");
+        for (int i = 0; i < chats; i++) {
+            int count = store.withSession(i, session -> session.questionCount);
+            assertEquals(expected.get(i), count, "chat " + i);
+        }
+        store.close();
+    }
+
+    /**
+     * В журнал попадают только изменения сессии: обращения, которые ничего не меняют, записей не добавляют
+     */
+    @Test
+    void unchangedSessionIsNotAppended(@TempDir Path dir) {
+        SessionLog log = new SessionLog(dir, SessionLog.DEFAULT_SEGMENT_SIZE, SessionLog.DEFAULT_COMPACT_SEGMENTS, false);
+        SessionStore store = new SessionStore();
+        store.setSessionLog(log);
+
+        store.withSession(1, session -> {
+            session.currentMode = DialogMode.MESSAGE;
+            session.changed();
+            return null;
+        });
+        for (int i = 0; i < 100; i++)
+            store.withSession(1, session -> session.currentMode);
+        store.withSession(1, session -> {
+            session.transcript.add("привет");
+            return null;
+        });
+        store.close(); //запись идет в фоновом потоке журнала: close() дожидается ее
+
+        assertEquals(2, log.getAppendCount());
+    }
+
+    /**
+     * close() дописывает сессии на диск: после перезапуска они читаются из журнала
+     */
+    @Test
+    void sessionsSurviveRestart(@TempDir Path dir) {
+        SessionStore store = new SessionStore();
+        store.setSessionLog(new SessionLog(dir));
+        for (int i = 0; i < 100; i++) {
+            int count = i;
+            store.withSession(i, session -> {
+                session.questionCount = count;
+                session.changed();
+                return null;
+            });
+        }
+        store.close();
+
+        SessionStore restarted = new SessionStore();
+        restarted.setSessionLog(new SessionLog(dir));
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, (int) restarted.withSession(i, session -> session.questionCount));
+        restarted.close();
+    }
+
+    /**
+     * Сбой при сжатии после замены самого нового сегмента, но до удаления остальных: удаленная сессия
+     * не оживает из старого сегмента ни при открытии по hint-файлу, ни после следующего сжатия
+     */
+    @Test
+    void removedSessionStaysRemovedAfterCompactionCrash(@TempDir Path dir) throws Exception {
+        byte[] data = SessionCodec.encode(new UserSession(1));
+        SessionLog log = new SessionLog(dir, SessionLog.DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE, false);
+        log.append(1, data);
+        log.append(2, data);
+        log.close();
+
+        log = new SessionLog(dir, SessionLog.DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE, false);
+        log.remove(1);
+        log.append(3, data);
+        log.close();
+
+        Path oldest = dir.resolve("1.log");
+        byte[] oldestContent = Files.readAllBytes(oldest);
+        log = new SessionLog(dir, SessionLog.DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE, false);
+        log.compact().join();
+        log.close();
+        assertFalse(Files.exists(oldest));
+        Files.write(oldest, oldestContent); //сегмент, который не успели удалить
+
+        for (int restart = 0; restart < 2; restart++) {
+            log = new SessionLog(dir, SessionLog.DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE, false);
+            assertFalse(log.contains(1), "removed session is back after restart " + restart);
+            assertTrue(log.contains(2));
+            assertTrue(log.contains(3));
+            log.compact().join();
+            log.close();
+        }
+    }
+
+    /**
+     * THREADS потоков обновляют случайные чаты, возвращает, сколько раз обновлен каждый чат
+     */
+    private static AtomicIntegerArray run(SessionStore store, int chats) throws Exception {
+        AtomicIntegerArray expected = new AtomicIntegerArray(chats);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+                        int chatId = random.nextInt(chats);
+                        store.withSession(chatId, session -> {
+                            int count = session.questionCount;
+                            Thread.yield(); //даем другому потоку шанс вклиниться, если сериализация сломана
+                            session.questionCount = count + 1;
+                            session.changed();
+                            return null;
+                        });
+                        expected.incrementAndGet(chatId);
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,214 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Шардированный режим целиком: ShardIngress получает обновления из заглушки Telegram через getUpdates
+ * и пересылает их воркерам (webhook + ShardWorker), воркеры отвечают в ту же заглушку.
+ * Каждый воркер отвечает на сообщение своим адресом и числом сообщений в сессии чата,
+ * поэтому видно, кто обработал обновление и переехала ли сессия вместе с чатом.
+ */
+class ShardingTest {
+    private static final String SECRET = "shard-secret";
+    private static final String WEBHOOK_PATH = "/webhook";
+    private static final int CHATS = 200;
+    private static final long FIRST_CHAT_ID = 1_000;
+    private static final long TIMEOUT_MILLIS = 20_000;
+
+    private final Map<String, Worker> workers = new LinkedHashMap<>();
+    private final Map<Long, Set<String>> handledBy = new ConcurrentHashMap<>(); //chatId -> воркеры, обработавшие его обновления
+    private FakeTelegramServer telegram;
+    private ShardIngress ingress;
+    private UpdatePoller poller;
+
+    @BeforeEach
+    void startTelegram() throws Exception {
+        telegram = new FakeTelegramServer(0, 0, 0);
+        telegram.setAnswerFilter(text -> text.startsWith("http://"));
+        telegram.start();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        if (poller != null)
+            poller.stop();
+        for (Worker worker : workers.values())
+            worker.stop();
+        telegram.stop();
+    }
+
+    /**
+     * Все обновления чата попадают на один и тот же воркер - владельца чата по кольцу, и сессия копится там
+     */
+    @Test
+    void chatsStickToOneWorker(@TempDir Path dir) throws Exception {
+        startIngress(dir, startWorker(), startWorker(), startWorker());
+
+        for (int round = 1; round <= 3; round++)
+            sendRound(round);
+
+        ConsistentHashRing ring = ingress.getRing();
+        Map<String, Integer> perWorker = new HashMap<>();
+        for (long chatId = FIRST_CHAT_ID; chatId < FIRST_CHAT_ID + CHATS; chatId++) {
+            String owner = ring.nodeFor(chatId);
+            assertEquals(Set.of(owner), handledBy.get(chatId), "chat " + chatId);
+            assertEquals(3, workers.get(owner).messageCount(chatId), "chat " + chatId);
+            perWorker.merge(owner, 1, Integer::sum);
+        }
+        assertEquals(3, perWorker.size(), "chats per worker: " + perWorker);
+    }
+
+    /**
+     * Новый воркер забирает только чаты своего участка кольца, удаленный отдает только свои,
+     * остальные чаты остаются на месте. Переехавшие сессии продолжаются на новом владельце
+     */
+    @Test
+    void onlyAffectedChatsMoveWhenWorkersChange(@TempDir Path dir) throws Exception {
+        String first = startWorker();
+        String second = startWorker();
+        startIngress(dir, first, second);
+        sendRound(1);
+        Map<Long, String> before = owners();
+
+        String third = startWorker();
+        assertTrue(ingress.addWorker(third));
+        Map<Long, String> afterAdd = owners();
+        List<Long> moved = new ArrayList<>();
+        for (long chatId : before.keySet()) {
+            if (!afterAdd.get(chatId).equals(before.get(chatId))) {
+                assertEquals(third, afterAdd.get(chatId), "chat " + chatId + " moved between old workers");
+                moved.add(chatId);
+            }
+        }
+        assertTrue(!moved.isEmpty() && moved.size() < CHATS / 2, moved.size() + " of " + CHATS + " chats moved");
+        for (long chatId : moved) {
+            assertTrue(workers.get(third).hasSession(chatId), "session of chat " + chatId + " was not moved");
+            assertTrue(!workers.get(before.get(chatId)).hasSession(chatId), "session of chat " + chatId + " was not removed");
+        }
+
+        sendRound(2);
+        assertPlacement(afterAdd, 2);
+
+        assertTrue(ingress.removeWorker(first));
+        Map<Long, String> afterRemove = owners();
+        for (long chatId : afterAdd.keySet()) {
+            if (!afterAdd.get(chatId).equals(first))
+                assertEquals(afterAdd.get(chatId), afterRemove.get(chatId), "chat " + chatId + " of a remaining worker moved");
+        }
+        assertTrue(!workers.get(first).hasAnySession(), "removed worker kept sessions");
+
+        handledBy.clear();
+        sendRound(3);
+        assertPlacement(afterRemove, 3);
+    }
+
+    /**
+     * Последний раунд обработан владельцами из owners, и у каждого чата в сессии все messages сообщений
+     */
+    private void assertPlacement(Map<Long, String> owners, int messages) {
+        for (Map.Entry<Long, String> entry : owners.entrySet()) {
+            long chatId = entry.getKey();
+            assertTrue(handledBy.get(chatId).contains(entry.getValue()), "chat " + chatId + " was not handled by its owner");
+            assertEquals(messages, workers.get(entry.getValue()).messageCount(chatId), "chat " + chatId);
+        }
+    }
+
+    private Map<Long, String> owners() {
+        ConsistentHashRing ring = ingress.getRing();
+        Map<Long, String> owners = new HashMap<>();
+        for (long chatId = FIRST_CHAT_ID; chatId < FIRST_CHAT_ID + CHATS; chatId++)
+            owners.put(chatId, ring.nodeFor(chatId));
+        return owners;
+    }
+
+    /**
+     * Каждый чат присылает по сообщению и ждет ответа; round - сколько ответов у чата должно быть после этого
+     */
+    private void sendRound(int round) throws InterruptedException {
+        for (long chatId = FIRST_CHAT_ID; chatId < FIRST_CHAT_ID + CHATS; chatId++)
+            telegram.addUpdate(SyntheticUpdates.text(chatId, "сообщение " + round));
+        for (long chatId = FIRST_CHAT_ID; chatId < FIRST_CHAT_ID + CHATS; chatId++)
+            assertTrue(telegram.awaitAnswers(chatId, round, TIMEOUT_MILLIS), "chat " + chatId + " got no answer in round " + round);
+    }
+
+    private void startIngress(Path dir, String... addresses) throws Exception {
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setBaseUrl(telegram.getBaseUrl());
+        ingress = new ShardIngress("test_bot", "token", options, List.of(addresses), WEBHOOK_PATH, SECRET);
+        poller = new UpdatePoller(ingress, new UpdateCheckpoint(dir.resolve("updates.txt")));
+        poller.start();
+    }
+
+    private String startWorker() throws Exception {
+        Worker worker = new Worker();
+        worker.start();
+        workers.put(worker.address, worker);
+        return worker.address;
+    }
+
+    /**
+     * Процесс-воркер: бот с собственным SessionStore за webhook-ом с запросами ShardWorker
+     */
+    private class Worker {
+        private final SessionStore sessions = new SessionStore();
+        private MultiSessionTelegramBot bot;
+        private WebhookServer server;
+        private String address;
+
+        void start() throws Exception {
+            DefaultBotOptions options = new DefaultBotOptions();
+            options.setBaseUrl(telegram.getBaseUrl());
+            bot = new MultiSessionTelegramBot("test_bot", "token", options) {
+                @Override
+                public void onUpdateEventReceived(Update updateEvent) {
+                    long chatId = getCurrentChatId();
+                    int count = sessions.withSession(chatId, session -> {
+                        session.transcript.add(getMessageText());
+                        return session.transcript.size();
+                    });
+                    handledBy.computeIfAbsent(chatId, key -> ConcurrentHashMap.newKeySet()).add(address);
+                    sendTextMessage(address + " " + count);
+                }
+            };
+            bot.enableAsyncDispatch(16);
+            server = new WebhookServer(bot, 0, WEBHOOK_PATH, 4, WebhookServer.DEFAULT_MAX_BODY_SIZE, SECRET);
+            new ShardWorker(bot, sessions).register(server);
+            server.start();
+            address = "http://127.0.0.1:" + server.getPort();
+        }
+
+        boolean hasSession(long chatId) {
+            return sessions.chatIds().contains(chatId);
+        }
+
+        boolean hasAnySession() {
+            return !sessions.chatIds().isEmpty();
+        }
+
+        int messageCount(long chatId) {
+            return hasSession(chatId) ? sessions.withSession(chatId, session -> session.transcript.size()) : 0;
+        }
+
+        void stop() {
+            server.stop();
+            bot.onClosing();
+        }
+    }
+}
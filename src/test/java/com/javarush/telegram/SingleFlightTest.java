@@ -0,0 +1,101 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SingleFlightTest {
+    private static final int CALLERS = 50;
+
+    /**
+     * N одинаковых одновременных запросов из разных потоков - к заглушке OpenAI уходит ровно один,
+     * и каждый вызывающий получает и кусочки ответа, и полный ответ
+     */
+    @Test
+    void identicalConcurrentRequestsReachUpstreamOnce() throws Exception {
+        FakeOpenAiServer openAi = new FakeOpenAiServer(0, 500, 10, 0);
+        openAi.start();
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        try {
+            ChatGPTTransport.Settings settings = new ChatGPTTransport.Settings();
+            settings.apiHost = openAi.getBaseUrl();
+            settings.proxy = null;
+            ChatGPTService chatGPT = new ChatGPTService("test-key", settings);
+
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger progressed = new AtomicInteger();
+            List<CompletableFuture<String>> answers = new ArrayList<>();
+            for (int i = 0; i < CALLERS; i++) {
+                answers.add(CompletableFuture.supplyAsync(() -> {
+                    awaitQuietly(start);
+                    AtomicInteger updates = new AtomicInteger();
+                    return chatGPT.sendMessageAsync("prompt", "одинаковый вопрос", text -> {
+                        if (updates.getAndIncrement() == 0)
+                            progressed.incrementAndGet();
+                    }).join();
+                }, callers));
+            }
+            start.countDown();
+
+            for (CompletableFuture<String> answer : answers)
+                assertEquals(FakeOpenAiServer.ANSWER, answer.join());
+            assertEquals(1, openAi.getRequestCount());
+            assertEquals(CALLERS, progressed.get());
+            assertEquals(1, chatGPT.getInFlightRequests().getCallCount());
+            assertEquals(CALLERS - 1, chatGPT.getInFlightRequests().getSharedCount());
+            assertEquals(0, chatGPT.getInFlightRequests().size());
+
+            //запрос закончился - следующий такой же идет в ChatGPT заново
+            assertEquals(FakeOpenAiServer.ANSWER, chatGPT.sendMessage("prompt", "одинаковый вопрос"));
+            assertEquals(2, openAi.getRequestCount());
+        } finally {
+            callers.shutdownNow();
+            openAi.stop();
+        }
+    }
+
+    /**
+     * Запросы с разными ключами не объединяются, а отмена копии одного вызывающего не отменяет общий запрос
+     */
+    @Test
+    void differentKeysAreNotShared() {
+        SingleFlight<String, String, String> flights = new SingleFlight<>();
+        CompletableFuture<String> upstream = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+
+        CompletableFuture<String> first = flights.execute("a", progress -> {
+            calls.incrementAndGet();
+            return upstream;
+        }, null);
+        CompletableFuture<String> second = flights.execute("a", progress -> {
+            calls.incrementAndGet();
+            return upstream;
+        }, null);
+        CompletableFuture<String> other = flights.execute("b", progress -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("b");
+        }, null);
+
+        first.cancel(false);
+        upstream.complete("a");
+        assertEquals("a", second.join());
+        assertEquals("b", other.join());
+        assertEquals(2, calls.get());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.javarush.telegram;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Обновления Telegram от выдуманных пользователей - такие же, какие бот получает через long polling или webhook.
+ * ID чата совпадает с ID пользователя (личный чат с ботом).
+ */
+public class SyntheticUpdates {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final AtomicInteger updateIds = new AtomicInteger();
+    private static final AtomicInteger messageIds = new AtomicInteger();
+
+    /**
+     * Команда, например "/start" - с entity bot_command, как ее присылает Telegram
+     */
+    public static Update command(long chatId, String command) {
+        ObjectNode message = message(chatId, command);
+        message.putArray("entities").addObject()
+                .put("type", "bot_command")
+                .put("offset", 0)
+                .put("length", command.length());
+        return update("message", message);
+    }
+
+    /**
+     * Обычное текстовое сообщение
+     */
+    public static Update text(long chatId, String text) {
+        return update("message", message(chatId, text));
+    }
+
+    /**
+     * Нажатие inline-кнопки с кодом data
+     */
+    public static Update button(long chatId, String data) {
+        ObjectNode query = mapper.createObjectNode();
+        query.put("id", "query-" + updateIds.get());
+        query.set("from", user(chatId));
+        query.set("message", message(chatId, "кнопки"));
+        query.put("chat_instance", String.valueOf(chatId));
+        query.put("data", data);
+        return update("callback_query", query);
+    }
+
+    private static Update update(String field, ObjectNode content) {
+        ObjectNode update = mapper.createObjectNode();
+        update.put("update_id", updateIds.incrementAndGet());
+        update.set(field, content);
+        try {
+            return mapper.treeToValue(update, Update.class);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Can't create update!", e);
+        }
+    }
+
+    private static ObjectNode message(long chatId, String text) {
+        ObjectNode message = mapper.createObjectNode();
+        message.put("message_id", messageIds.incrementAndGet());
+        message.put("date", System.currentTimeMillis() / 1000);
+        message.putObject("chat").put("id", chatId).put("type", "private");
+        message.set("from", user(chatId));
+        message.put("text", text);
+        return message;
+    }
+
+    private static ObjectNode user(long chatId) {
+        ObjectNode user = mapper.createObjectNode();
+        user.put("id", chatId);
+        user.put("is_bot", false);
+        user.put("first_name", "User" + chatId);
+        return user;
+    }
+}
@@ -0,0 +1,143 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Потоковый ответ заглушки OpenAI (SSE) показывается в сообщении заглушки Telegram:
+ * первый кусочек приходит быстро, а правок сообщения намного меньше, чем кусочков
+ */
+class ThrottledMessageEditorTest {
+    private static final long LATENCY_MILLIS = 100;
+    private static final long CHUNK_MILLIS = 50;
+    private static final long EDIT_INTERVAL = 300;
+
+    private FakeOpenAiServer openAi;
+    private FakeTelegramServer telegram;
+
+    @BeforeEach
+    void startServers() throws Exception {
+        openAi = new FakeOpenAiServer(0, LATENCY_MILLIS, CHUNK_MILLIS, 0);
+        openAi.start();
+        telegram = new FakeTelegramServer(0, 0, 0);
+        telegram.start();
+    }
+
+    @AfterEach
+    void stopServers() {
+        openAi.stop();
+        telegram.stop();
+    }
+
+    @Test
+    void streamedAnswerIsShownWithThrottledEdits() {
+        ChatGPTTransport.Settings settings = new ChatGPTTransport.Settings();
+        settings.apiHost = openAi.getBaseUrl();
+        settings.proxy = null;
+        ChatGPTService chatGPT = new ChatGPTService("test-key", settings);
+        chatGPT.setCoalesceRequests(false);
+        chatGPT.sendMessage("prompt", "первый запрос"); //соединение с заглушкой уже открыто
+        ThrottledMessageEditor editor = new ThrottledMessageEditor(createBot(), placeholder(1), EDIT_INTERVAL);
+
+        AtomicLong firstChunkNanos = new AtomicLong();
+        AtomicInteger chunks = new AtomicInteger();
+        long start = System.nanoTime();
+        String answer = chatGPT.sendMessageAsync("prompt", "вопрос", text -> {
+            firstChunkNanos.compareAndSet(0, System.nanoTime() - start);
+            chunks.incrementAndGet();
+            editor.accept(text);
+        }).join();
+        long totalMillis = (System.nanoTime() - start) / 1_000_000;
+        editor.finish(answer).join();
+
+        long ttfbMillis = firstChunkNanos.get() / 1_000_000;
+        System.out.printf("time to first chunk %d ms, total %d ms, %d chunks, %d edits%n", ttfbMillis, totalMillis, chunks.get(), editor.getEditCount());
+        assertEquals(FakeOpenAiServer.ANSWER, answer);
+        assertTrue(ttfbMillis < 1000, "time to first chunk " + ttfbMillis + " ms");
+        assertTrue(ttfbMillis < totalMillis / 2, "the answer was not streamed");
+        //не чаще одной правки за EDIT_INTERVAL, плюс окончательный текст
+        assertTrue(editor.getEditCount() <= totalMillis / EDIT_INTERVAL + 2, editor.getEditCount() + " edits");
+        assertTrue(editor.getEditCount() >= 2, "answer was not shown progressively");
+        assertTrue(editor.getEditCount() < chunks.get());
+        assertEquals(editor.getEditCount(), (int) telegram.getCallCount());
+    }
+
+    /**
+     * Правки, которые долго ждут в очереди отправки (лимиты Telegram, 429), не занимают потоки планировщика:
+     * при десятке зависших правок правка другого чата уходит сразу
+     */
+    @Test
+    void slowEditsDoNotHoldOtherChats() throws Exception {
+        CompletableFuture<Serializable> stuck = new CompletableFuture<>();
+        CountDownLatch delivered = new CountDownLatch(1);
+        MultiSessionTelegramBot bot = new MultiSessionTelegramBot("test_bot", "token", new DefaultBotOptions()) {
+            @Override
+            public void onUpdateEventReceived(Update updateEvent) {
+            }
+
+            @Override
+            public CompletableFuture<Serializable> updateTextMessageAsync(Message message, String text) {
+                if (message.getChatId() != 0)
+                    return stuck;
+                delivered.countDown();
+                return CompletableFuture.completedFuture(true);
+            }
+        };
+
+        List<ThrottledMessageEditor> slow = new ArrayList<>();
+        for (long chatId = 1; chatId <= 10; chatId++) {
+            ThrottledMessageEditor editor = new ThrottledMessageEditor(bot, placeholder(chatId), 0);
+            editor.accept("ответ");
+            slow.add(editor);
+        }
+        Thread.sleep(100); //правки зависших чатов уже отправлены
+
+        ThrottledMessageEditor fast = new ThrottledMessageEditor(bot, placeholder(0), 0);
+        fast.accept("ответ");
+        assertTrue(delivered.await(1, TimeUnit.SECONDS), "edit of another chat was held by pending edits");
+        fast.finish("ответ").get(1, TimeUnit.SECONDS);
+        assertEquals(1, fast.getEditCount());
+
+        //окончательный текст отправляется после зависшей правки
+        CompletableFuture<Void> finished = slow.get(0).finish("полный ответ");
+        assertFalse(finished.isDone());
+        stuck.complete(true);
+        finished.get(1, TimeUnit.SECONDS);
+        assertEquals(2, slow.get(0).getEditCount());
+    }
+
+    private MultiSessionTelegramBot createBot() {
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setBaseUrl(telegram.getBaseUrl());
+        return new MultiSessionTelegramBot("test_bot", "token", options) {
+            @Override
+            public void onUpdateEventReceived(Update updateEvent) {
+            }
+        };
+    }
+
+    private static Message placeholder(long chatId) {
+        Message message = new Message();
+        message.setMessageId(1);
+        message.setChat(new Chat(chatId, "private"));
+        return message;
+    }
+}
@@ -0,0 +1,132 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Бот целиком под нагрузкой: обновления множества чатов приходят вперемешку из нескольких потоков
+ * (как от webhook-сервера), ответы уходят в заглушку Telegram. Проверяется, что состояние каждого чата
+ * собрано только из его собственных сообщений и в том порядке, в каком они пришли.
+ */
+class TinderBoltAppStressTest {
+    private static final int THREADS = 8;
+    private static final int CHATS = 200;
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    private static FakeTelegramServer telegram;
+    private static TinderBoltApp bot;
+
+    @BeforeAll
+    static void startBot() throws Exception {
+        telegram = new FakeTelegramServer(0, 0, 0);
+        telegram.start();
+        System.setProperty(TinderBoltApp.TELEGRAM_URL_PROPERTY, telegram.getBaseUrl());
+        bot = new TinderBoltApp();
+        bot.setSendQueue(new TelegramSendQueue(100_000, 100_000, 100_000)); //лимиты Telegram заглушке не нужны
+    }
+
+    @AfterAll
+    static void stopBot() {
+        bot.onClosing();
+        telegram.stop();
+        System.clearProperty(TinderBoltApp.TELEGRAM_URL_PROPERTY);
+    }
+
+    /**
+     * Режим /message: каждое сообщение дописывается в переписку своего чата
+     */
+    @Test
+    void transcriptsKeepOwnMessagesInOrder() throws Exception {
+        long firstChat = 3_000_000_000L;
+        int messages = 20;
+        send(firstChat, messages, chatId -> SyntheticUpdates.command(chatId, "/message"),
+                (chatId, i) -> SyntheticUpdates.text(chatId, "chat " + chatId + " message " + i));
+
+        for (long chatId = firstChat; chatId < firstChat + CHATS; chatId++) {
+            long id = chatId;
+            awaitSession(id, session -> session.transcript.size() == messages);
+
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < messages; i++)
+                expected.add("chat " + id + " message " + i);
+            assertEquals(expected, bot.getSessions().withSession(id, session -> session.transcript.toList()));
+        }
+    }
+
+    /**
+     * Анкета /profile: ответы попадают в анкету своего чата и в свои поля
+     * (последний вопрос не задаем - после него бот идет в ChatGPT)
+     */
+    @Test
+    void profileWizardsDoNotMix() throws Exception {
+        long firstChat = 3_100_000_000L;
+        String[] fields = {"age", "occupation", "hobby", "annoys"};
+        send(firstChat, fields.length, chatId -> SyntheticUpdates.command(chatId, "/profile"),
+                (chatId, i) -> SyntheticUpdates.text(chatId, fields[i] + " of " + chatId));
+
+        for (long chatId = firstChat; chatId < firstChat + CHATS; chatId++) {
+            long id = chatId;
+            awaitSession(id, session -> session.me != null && session.me.annoys != null);
+
+            UserInfo me = bot.getSessions().withSession(id, session -> session.me);
+            assertEquals("age of " + id, me.age);
+            assertEquals("occupation of " + id, me.occupation);
+            assertEquals("hobby of " + id, me.hobby);
+            assertEquals("annoys of " + id, me.annoys);
+        }
+    }
+
+    private interface UpdateFactory {
+        Update create(long chatId, int index);
+    }
+
+    /**
+     * Каждый поток ведет свою часть чатов: сначала команда во все чаты, потом по кругу по одному сообщению в каждый.
+     * Обновления разных чатов перемешиваются между потоками, порядок внутри чата сохраняется.
+     */
+    private static void send(long firstChat, int messages, LongFunction<Update> command, UpdateFactory message) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (long chatId = firstChat + thread; chatId < firstChat + CHATS; chatId += THREADS)
+                        bot.onUpdateReceived(command.apply(chatId));
+                    for (int i = 0; i < messages; i++) {
+                        for (long chatId = firstChat + thread; chatId < firstChat + CHATS; chatId += THREADS)
+                            bot.onUpdateReceived(message.create(chatId, i));
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private interface SessionCondition {
+        boolean test(UserSession session);
+    }
+
+    private static void awaitSession(long chatId, SessionCondition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!bot.getSessions().withSession(chatId, condition::test)) {
+            assertTrue(System.currentTimeMillis() < deadline, "chat " + chatId + " is not processed");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpdateCheckpointTest {
+    /**
+     * Недообработанные обновления переживают перезапуск целиком, обработанные - нет
+     */
+    @Test
+    void pendingUpdatesSurviveRestart(@TempDir Path dir) {
+        Path file = dir.resolve("updates.txt");
+        UpdateCheckpoint checkpoint = new UpdateCheckpoint(file);
+        Update first = SyntheticUpdates.text(1, "первое");
+        Update second = SyntheticUpdates.text(2, "второе");
+        Update third = SyntheticUpdates.text(3, "третье");
+        checkpoint.begin(first);
+        checkpoint.begin(second);
+        checkpoint.begin(third);
+        checkpoint.complete(first.getUpdateId());
+        checkpoint.complete(third.getUpdateId());
+        assertEquals((long) second.getUpdateId(), checkpoint.getOffset());
+        //падение без close(): строки журнала уже в файле
+
+        UpdateCheckpoint restarted = new UpdateCheckpoint(file);
+        assertEquals((long) third.getUpdateId(), restarted.getLastUpdateId());
+        List<Update> pending = restarted.getPendingUpdates();
+        assertEquals(1, pending.size());
+        assertEquals(second.getUpdateId(), pending.get(0).getUpdateId());
+        assertEquals("второе", pending.get(0).getMessage().getText());
+        assertEquals(2L, pending.get(0).getMessage().getChatId());
+    }
+
+    /**
+     * После перезапуска обработанные обновления - повторы, а недообработанные обрабатываются снова
+     */
+    @Test
+    void restoreMarksOnlyProcessedUpdates(@TempDir Path dir) {
+        Path file = dir.resolve("updates.txt");
+        UpdateCheckpoint checkpoint = new UpdateCheckpoint(file);
+        Update first = SyntheticUpdates.text(1, "первое");
+        Update second = SyntheticUpdates.text(1, "второе");
+        Update third = SyntheticUpdates.text(1, "третье");
+        for (Update update : List.of(first, second, third))
+            checkpoint.begin(update);
+        checkpoint.complete(first.getUpdateId());
+        checkpoint.complete(third.getUpdateId());
+        checkpoint.close();
+
+        UpdateCheckpoint restarted = new UpdateCheckpoint(file);
+        UpdateDeduplicator deduplicator = new UpdateDeduplicator();
+        restarted.restore(deduplicator);
+        assertFalse(deduplicator.markSeen(first));
+        assertTrue(deduplicator.markSeen(second));
+        assertFalse(deduplicator.markSeen(third));
+
+        //повторный begin из журнала не дописывает обновление еще раз
+        restarted.begin(second);
+        restarted.complete(second.getUpdateId());
+        assertEquals(third.getUpdateId() + 1, restarted.getOffset());
+        restarted.close();
+        assertTrue(new UpdateCheckpoint(file).getPendingUpdates().isEmpty());
+    }
+
+    /**
+     * Падение посреди записи строки: недописанная строка отбрасывается, остальное читается
+     */
+    @Test
+    void tornTailIsIgnored(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("updates.txt");
+        UpdateCheckpoint checkpoint = new UpdateCheckpoint(file);
+        Update first = SyntheticUpdates.text(1, "первое");
+        checkpoint.begin(first);
+        checkpoint.close();
+        Files.writeString(file, "-" + first.getUpdateId(), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        UpdateCheckpoint restarted = new UpdateCheckpoint(file);
+        assertEquals(1, restarted.getPendingUpdates().size());
+
+        //обрезанный "+JSON" тоже не ломает загрузку
+        Update second = SyntheticUpdates.text(1, "второе");
+        restarted.begin(second);
+        restarted.close();
+        String content = Files.readString(file, StandardCharsets.UTF_8);
+        Files.writeString(file, content.substring(0, content.length() - 10), StandardCharsets.UTF_8);
+        assertEquals(List.of(first.getUpdateId()), new UpdateCheckpoint(file).getPendingUpdates().stream().map(Update::getUpdateId).toList());
+    }
+
+    /**
+     * Журнал переписывается, когда разрастается, и после этого хранит только недообработанные обновления
+     */
+    @Test
+    void journalIsCompacted(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("updates.txt");
+        UpdateCheckpoint checkpoint = new UpdateCheckpoint(file);
+        Update stuck = SyntheticUpdates.text(1, "долгое");
+        checkpoint.begin(stuck);
+        for (int i = 0; i < UpdateCheckpoint.COMPACT_RECORDS; i++) {
+            Update update = SyntheticUpdates.text(2, "сообщение " + i);
+            checkpoint.begin(update);
+            checkpoint.complete(update.getUpdateId());
+        }
+        checkpoint.close();
+
+        assertTrue(Files.readAllLines(file).size() < UpdateCheckpoint.COMPACT_RECORDS);
+        UpdateCheckpoint restarted = new UpdateCheckpoint(file);
+        assertEquals(List.of(stuck.getUpdateId()), restarted.getPendingUpdates().stream().map(Update::getUpdateId).toList());
+        assertEquals((long) stuck.getUpdateId(), restarted.getOffset());
+    }
+
+    /**
+     * Обновление, которое обрабатывается дольше WINDOW_SIZE следующих, перестают ждать - и это видно в счетчике
+     */
+    @Test
+    void stuckUpdateIsForcedOutOfWindow() {
+        UpdateCheckpoint checkpoint = new UpdateCheckpoint(null);
+        Update stuck = SyntheticUpdates.text(1, "долгое");
+        checkpoint.begin(stuck);
+        Update next = SyntheticUpdates.text(2, "новое");
+        next.setUpdateId(stuck.getUpdateId() + UpdateCheckpoint.WINDOW_SIZE);
+        checkpoint.begin(next);
+
+        assertEquals(1, checkpoint.getForcedCount());
+        assertEquals((long) next.getUpdateId(), checkpoint.getOffset());
+    }
+}
@@ -0,0 +1,65 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpdateDeduplicatorTest {
+    private static final int WINDOW = 1024;
+
+    @Test
+    void repeatedUpdateIsDuplicate() {
+        UpdateDeduplicator deduplicator = new UpdateDeduplicator(WINDOW, 64);
+        Update update = SyntheticUpdates.text(1, "привет");
+        assertTrue(deduplicator.markSeen(update));
+        assertFalse(deduplicator.markSeen(update));
+        assertTrue(deduplicator.markSeen(SyntheticUpdates.text(1, "привет")));
+        assertEquals(1, deduplicator.getDuplicateCount());
+    }
+
+    /**
+     * Webhook доставляет обновления параллельно: ID меньше первого пришедшего - тоже новые обновления
+     */
+    @Test
+    void firstWindowIsCenteredOnFirstUpdate() {
+        UpdateDeduplicator deduplicator = new UpdateDeduplicator(WINDOW, 64);
+        assertTrue(deduplicator.markSeen(10_000));
+        assertTrue(deduplicator.markSeen(9_999));
+        assertTrue(deduplicator.markSeen(10_000 - WINDOW / 2));
+        assertFalse(deduplicator.markSeen(9_999));
+        //ниже окна ничего не известно - такие обновления не отбрасываются
+        assertTrue(deduplicator.markSeen(10_000 - WINDOW / 2 - 1));
+    }
+
+    /**
+     * После сдвига окна или восстановления из UpdateCheckpoint ID до начала окна уже обработаны
+     */
+    @Test
+    void updatesBelowKnownWindowAreDuplicates() {
+        UpdateDeduplicator deduplicator = new UpdateDeduplicator(WINDOW, 64);
+        assertTrue(deduplicator.markSeen(10_000));
+        assertTrue(deduplicator.markSeen(10_000 + WINDOW));
+        assertFalse(deduplicator.markSeen(10_000 - WINDOW / 2));
+
+        UpdateDeduplicator restored = new UpdateDeduplicator(WINDOW, 64);
+        restored.startAt(500);
+        assertFalse(restored.markSeen(499));
+        assertTrue(restored.markSeen(500));
+    }
+
+    /**
+     * То же нажатие кнопки в обновлении с другим update_id - все равно повтор
+     */
+    @Test
+    void repeatedCallbackIsDuplicate() {
+        UpdateDeduplicator deduplicator = new UpdateDeduplicator(WINDOW, 64);
+        Update update = SyntheticUpdates.button(1, "date_grande");
+        assertTrue(deduplicator.markSeen(update));
+        update.setUpdateId(update.getUpdateId() + 100);
+        assertFalse(deduplicator.markSeen(update));
+        assertTrue(deduplicator.markSeen(SyntheticUpdates.button(1, "date_grande")));
+    }
+}
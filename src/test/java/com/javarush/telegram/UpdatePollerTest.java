@@ -0,0 +1,114 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * UpdatePoller против заглушки Bot API: long polling без холостых запросов и повтор недообработанных обновлений
+ */
+class UpdatePollerTest {
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private FakeTelegramServer telegram;
+
+    @BeforeEach
+    void startTelegram() throws Exception {
+        telegram = new FakeTelegramServer(0, 0, 0);
+        telegram.start();
+    }
+
+    @AfterEach
+    void stopTelegram() {
+        telegram.stop();
+    }
+
+    /**
+     * Обновление, которое еще обрабатывается, не заставляет опрашивать Telegram снова и снова:
+     * следующий getUpdates ждет новых обновлений
+     */
+    @Test
+    void unfinishedUpdateDoesNotCausePollingLoop(@TempDir Path dir) throws Exception {
+        List<Update> received = new CopyOnWriteArrayList<>();
+        UpdateCheckpoint checkpoint = new UpdateCheckpoint(dir.resolve("updates.txt"));
+        UpdatePoller poller = new UpdatePoller(createBot(received, true, checkpoint), checkpoint);
+        telegram.addUpdate(SyntheticUpdates.text(1, "долгое"));
+        poller.start();
+        try {
+            awaitSize(received, 1);
+            Thread.sleep(1000);
+            assertTrue(telegram.getUpdatesCount() <= 2, telegram.getUpdatesCount() + " getUpdates calls");
+        } finally {
+            poller.stop();
+        }
+    }
+
+    /**
+     * Обновление, не обработанное до остановки, после перезапуска обрабатывается из журнала (Telegram его уже не пришлет),
+     * обработанные - не повторяются
+     */
+    @Test
+    void unfinishedUpdateIsProcessedAfterRestart(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("updates.txt");
+        Update unfinished = SyntheticUpdates.text(1, "долгое");
+        telegram.addUpdate(unfinished);
+        List<Update> received = new CopyOnWriteArrayList<>();
+        UpdateCheckpoint checkpoint = new UpdateCheckpoint(file);
+        UpdatePoller poller = new UpdatePoller(createBot(received, true, checkpoint), checkpoint);
+        poller.start();
+        awaitSize(received, 1);
+        poller.stop();
+
+        Update next = SyntheticUpdates.text(1, "новое");
+        telegram.addUpdate(next);
+        List<Update> afterRestart = new CopyOnWriteArrayList<>();
+        checkpoint = new UpdateCheckpoint(file);
+        poller = new UpdatePoller(createBot(afterRestart, false, checkpoint), checkpoint);
+        poller.start();
+        try {
+            awaitSize(afterRestart, 2);
+            Thread.sleep(200);
+            assertEquals(List.of(unfinished.getUpdateId(), next.getUpdateId()), afterRestart.stream().map(Update::getUpdateId).toList());
+            assertEquals(next.getUpdateId() + 1L, checkpoint.getOffset());
+        } finally {
+            poller.stop();
+        }
+    }
+
+    /**
+     * Бот, который запоминает обновления; hold - обработка не заканчивается (ждет ответа, которого не будет)
+     */
+    private MultiSessionTelegramBot createBot(List<Update> received, boolean hold, UpdateCheckpoint checkpoint) {
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setBaseUrl(telegram.getBaseUrl());
+        MultiSessionTelegramBot bot = new MultiSessionTelegramBot("test_bot", "token", options) {
+            @Override
+            public void onUpdateEventReceived(Update updateEvent) {
+                received.add(updateEvent);
+                if (hold)
+                    holdCurrentUpdate();
+            }
+        };
+        bot.setUpdateDeduplicator(new UpdateDeduplicator());
+        bot.setUpdateCheckpoint(checkpoint);
+        return bot;
+    }
+
+    private static void awaitSize(List<Update> updates, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (updates.size() < size) {
+            assertTrue(System.currentTimeMillis() < deadline, "only " + updates.size() + " updates received");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.javarush.telegram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Планировщик с виртуальным временем для тестов: задачи выполняются только в advance(), в потоке теста,
+ * в порядке своего времени. Периодические задачи не поддерживаются
+ */
+class VirtualClockScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+    private final PriorityQueue<Task<?>> tasks = new PriorityQueue<>();
+    private long now;
+    private long sequence;
+    private boolean shutdown;
+
+    /**
+     * Текущее виртуальное время, мс
+     */
+    public synchronized long now() {
+        return now;
+    }
+
+    /**
+     * Сдвигает время на millis, выполняя все задачи, чье время подошло (и те, что они запланировали)
+     */
+    public void advance(long millis) {
+        long target;
+        synchronized (this) {
+            target = now + millis;
+        }
+        while (true) {
+            Task<?> task;
+            synchronized (this) {
+                task = tasks.peek();
+                if (task == null || task.time > target) {
+                    now = target;
+                    return;
+                }
+                tasks.poll();
+                now = task.time;
+            }
+            if (!task.isCancelled())
+                task.run();
+        }
+    }
+
+    /**
+     * Задачи, которые еще ждут своего времени
+     */
+    public synchronized int getPendingCount() {
+        return (int) tasks.stream().filter(task -> !task.isCancelled()).count();
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return add(new Task<>(command, null, unit.toMillis(delay)));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return add(new Task<>(callable, unit.toMillis(delay)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> pending = new ArrayList<>(tasks);
+        tasks.clear();
+        return pending;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && tasks.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+
+    private synchronized <V> Task<V> add(Task<V> task) {
+        task.time = now + Math.max(0, task.delay);
+        task.sequence = sequence++;
+        tasks.add(task);
+        return task;
+    }
+
+    private class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        final long delay;
+        long time;
+        long sequence;
+
+        Task(Callable<V> callable, long delay) {
+            super(callable);
+            this.delay = delay;
+        }
+
+        Task(Runnable runnable, V result, long delay) {
+            super(runnable, result);
+            this.delay = delay;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - now(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Task<?> task = (Task<?>) other;
+            return time != task.time ? Long.compare(time, task.time) : Long.compare(sequence, task.sequence);
+        }
+    }
+}
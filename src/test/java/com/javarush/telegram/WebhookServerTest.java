@@ -0,0 +1,83 @@
+package com.javarush.telegram;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * WebhookServer принимает обновления только с правильным secret_token
+ */
+class WebhookServerTest {
+    private static final String SECRET = "test-secret";
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final List<Update> received = new CopyOnWriteArrayList<>();
+    private final HttpClient client = HttpClient.newHttpClient();
+    private WebhookServer server;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        server = new WebhookServer(createBot(), 0, "/webhook", 2, WebhookServer.DEFAULT_MAX_BODY_SIZE, SECRET);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    void secretTokenIsRequired() {
+        assertThrows(IllegalArgumentException.class, () -> new WebhookServer(createBot(), 0, "/webhook", 2, WebhookServer.DEFAULT_MAX_BODY_SIZE, null));
+        assertThrows(IllegalArgumentException.class, () -> new WebhookServer(createBot(), 0, "/webhook", 2, WebhookServer.DEFAULT_MAX_BODY_SIZE, " "));
+    }
+
+    @Test
+    void updatesWithoutValidSecretAreRejected() throws Exception {
+        assertEquals(403, post(null));
+        assertEquals(403, post("wrong-secret"));
+        assertEquals(403, post(SECRET + "x"));
+        Thread.sleep(100);
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    void updateWithSecretIsAccepted() throws Exception {
+        assertEquals(200, post(SECRET));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (received.isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline, "update was not received");
+            Thread.sleep(10);
+        }
+    }
+
+    private int post(String secret) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getPort() + "/webhook"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"update_id\": 1}"));
+        if (secret != null)
+            request.header(WebhookServer.SECRET_TOKEN_HEADER, secret);
+        return client.send(request.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private MultiSessionTelegramBot createBot() {
+        return new MultiSessionTelegramBot("test_bot", "token", new DefaultBotOptions()) {
+            @Override
+            public void onUpdateEventReceived(Update updateEvent) {
+                received.add(updateEvent);
+            }
+        };
+    }
+}